@@ -0,0 +1,346 @@
+package com.mimecast.mtasts;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+import com.mimecast.mtasts.config.Config;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Cache warmer.
+ * <p>Resolves a list of domains through StrictTransportSecurity so their policies are cached before traffic needs them.
+ * <p>Domains are looked up in list order so the busiest domains should be listed first.
+ * <p>Lookups run on a background thread with bounded parallelism and an optional rate limit.
+ * <p>Failed lookups are counted and skipped so a warm-up never blocks on a broken domain.
+ *
+ * @see StrictTransportSecurity
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class CacheWarmer {
+    private static final Logger log = LogManager.getLogger(CacheWarmer.class);
+
+    /**
+     * StrictTransportSecurity instance.
+     */
+    private final StrictTransportSecurity strictTransportSecurity;
+
+    /**
+     * Config instance.
+     */
+    private Config config;
+
+    /**
+     * Concurrent lookups limit.
+     */
+    private int parallelism = 16;
+
+    /**
+     * Lookups per second limit.
+     */
+    private int rate = 0;
+
+    /**
+     * Progress listener.
+     */
+    private Consumer<Progress> listener;
+
+    /**
+     * Constructs a new CacheWarmer instance.
+     *
+     * @param strictTransportSecurity StrictTransportSecurity instance with a cache.
+     */
+    public CacheWarmer(StrictTransportSecurity strictTransportSecurity) {
+        this.strictTransportSecurity = strictTransportSecurity;
+    }
+
+    /**
+     * Sets config.
+     *
+     * @param config Config instance.
+     * @return Self.
+     */
+    public CacheWarmer setConfig(Config config) {
+        this.config = config;
+        return this;
+    }
+
+    /**
+     * Sets concurrent lookups limit.
+     * <p>Default: 16
+     *
+     * @param parallelism Concurrent lookups limit.
+     * @return Self.
+     */
+    public CacheWarmer setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    /**
+     * Sets lookups per second limit.
+     * <p>Default: 0 (unlimited)
+     *
+     * @param rate Lookups per second.
+     * @return Self.
+     */
+    public CacheWarmer setRate(int rate) {
+        this.rate = Math.max(0, rate);
+        return this;
+    }
+
+    /**
+     * Sets progress listener.
+     * <p>Called from lookup threads after each domain completes.
+     *
+     * @param listener Progress consumer.
+     * @return Self.
+     */
+    public CacheWarmer setListener(Consumer<Progress> listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Warms cache from domains file.
+     * <p>One domain per line, blank lines and lines starting with # are ignored.
+     * <p>Only the first column is used and addresses are reduced to their domain so delivery log extracts can be used as is.
+     *
+     * @param file File path.
+     * @return Progress instance.
+     * @throws IOException File could not be read.
+     */
+    public Progress warm(Path file) throws IOException {
+        List<String> domains = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                domains.add(line.split("[\\s,;]+", 2)[0]);
+            }
+        }
+
+        return warm(domains);
+    }
+
+    /**
+     * Warms cache from domains.
+     * <p>Returns immediately while lookups continue in the background.
+     * <p>Duplicates are looked up once.
+     *
+     * @param domains Collection of domain or address strings.
+     * @return Progress instance.
+     */
+    public Progress warm(Collection<String> domains) {
+        Set<String> unique = new LinkedHashSet<>();
+        for (String domain : domains) {
+            String clean = PolicyPublisher.toDomain(domain);
+            if (!clean.isEmpty()) {
+                unique.add(clean);
+            }
+        }
+
+        Progress progress = new Progress(new ArrayList<>(unique));
+        Thread thread = new Thread(() -> run(progress), "cache-warmer");
+        thread.setDaemon(true);
+        thread.start();
+
+        return progress;
+    }
+
+    /**
+     * Runs warm-up.
+     *
+     * @param progress Progress instance.
+     */
+    private void run(Progress progress) {
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "cache-warmer-lookup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore permits = new Semaphore(parallelism);
+        long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        long next = System.nanoTime();
+
+        try {
+            for (String domain : progress.domains) {
+                if (progress.cancelled) {
+                    break;
+                }
+
+                if (interval > 0) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    next = Math.max(next, System.nanoTime()) + interval;
+                }
+
+                permits.acquire();
+                executor.execute(() -> {
+                    try {
+                        lookup(domain, progress);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+
+            permits.acquire(parallelism);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        log.info("Cache warm-up {}: {} of {} domains, {} policies, {} failed in {}ms",
+                progress.cancelled ? "cancelled" : "done", progress.getCompleted(), progress.getTotal(),
+                progress.getFound(), progress.getFailed(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        progress.future.complete(progress);
+    }
+
+    /**
+     * Looks up domain.
+     *
+     * @param domain   Domain string.
+     * @param progress Progress instance.
+     */
+    private void lookup(String domain, Progress progress) {
+        try {
+            Optional<StsPolicy> policy = strictTransportSecurity.getPolicy(domain, config);
+            if (policy.isPresent() && policy.get().isValid()) {
+                progress.found.incrementAndGet();
+            }
+        } catch (Exception e) {
+            log.debug("Cache warm-up lookup failed: {} {}", domain, e.getMessage());
+            progress.failed.incrementAndGet();
+        }
+
+        progress.completed.incrementAndGet();
+        if (listener != null) {
+            try {
+                listener.accept(progress);
+            } catch (Exception e) {
+                log.warn("Cache warm-up listener failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Progress.
+     * <p>Live counters of a running warm-up.
+     */
+    public static class Progress {
+
+        /**
+         * Domains list.
+         */
+        private final List<String> domains;
+
+        /**
+         * Completed lookups.
+         */
+        private final AtomicInteger completed = new AtomicInteger();
+
+        /**
+         * Lookups that found a valid policy.
+         */
+        private final AtomicInteger found = new AtomicInteger();
+
+        /**
+         * Failed lookups.
+         */
+        private final AtomicInteger failed = new AtomicInteger();
+
+        /**
+         * Done future.
+         */
+        private final CompletableFuture<Progress> future = new CompletableFuture<>();
+
+        /**
+         * Cancelled flag.
+         */
+        private volatile boolean cancelled = false;
+
+        /**
+         * Constructs a new Progress instance.
+         *
+         * @param domains List of domain strings.
+         */
+        Progress(List<String> domains) {
+            this.domains = domains;
+        }
+
+        /**
+         * Gets total domains.
+         *
+         * @return Integer.
+         */
+        public int getTotal() {
+            return domains.size();
+        }
+
+        /**
+         * Gets completed lookups.
+         *
+         * @return Integer.
+         */
+        public int getCompleted() {
+            return completed.get();
+        }
+
+        /**
+         * Gets lookups that found a valid policy.
+         *
+         * @return Integer.
+         */
+        public int getFound() {
+            return found.get();
+        }
+
+        /**
+         * Gets failed lookups.
+         *
+         * @return Integer.
+         */
+        public int getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * Is done.
+         *
+         * @return Boolean.
+         */
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        /**
+         * Gets done future.
+         * <p>Completes once all started lookups finished.
+         *
+         * @return CompletableFuture of Progress.
+         */
+        public CompletableFuture<Progress> getFuture() {
+            return future;
+        }
+
+        /**
+         * Cancels warm-up.
+         * <p>Lookups already started are left to finish.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -7,6 +7,7 @@ import com.mimecast.mtasts.assets.StsPolicy;
 import com.mimecast.mtasts.client.OkHttpsPolicyClient;
 import com.mimecast.mtasts.client.XBillDnsRecordClient;
 import com.mimecast.mtasts.exception.*;
+import com.mimecast.mtasts.trace.LookupTrace;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
@@ -83,10 +84,11 @@ public class Main {
             // Run.
             if (cmd.hasOption("domain")) {
                 String domain = cmd.getOptionValue("domain");
+                LookupTrace trace = cmd.hasOption("trace") ? new LookupTrace(domain) : null;
 
                 try {
                     // Get policy.
-                    Optional<StsPolicy> optional = strictTransportSecurity.getPolicy(domain);
+                    Optional<StsPolicy> optional = strictTransportSecurity.getPolicy(domain, null, trace);
                     if (optional.isPresent()) {
                         StsPolicy policy = optional.get();
 
@@ -119,6 +121,14 @@ public class Main {
                 } catch (ValidatorException | NoRecordException | BadRecordException | BadPolicyException | PolicyWebPKIInvalidException | PolicyFetchErrorException e) {
                     log("Ran into a problem: " + e.getMessage());
                 }
+
+                // Lookup trace.
+                if (trace != null) {
+                    log("Lookup trace");
+                    log("- - - - - - - - - - - - - - - - - - - - - - - - -");
+                    log(trace.toString());
+                    log("- - - - - - - - - - - - - - - - - - - - - - - - -");
+                }
             }
 
             // Show usage.
@@ -237,6 +247,7 @@ public class Main {
         options.addOption("m", "mx", true, "MX to match against policy MX masks");
         options.addOption("j", "json", false, "Show policy details as JSON");
         options.addOption("f", "file", true, "Write policy details to JSON file");
+        options.addOption("t", "trace", false, "Show lookup stage timings");
         return options;
     }
 
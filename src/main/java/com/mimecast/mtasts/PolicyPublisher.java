@@ -0,0 +1,265 @@
+package com.mimecast.mtasts;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+import com.mimecast.mtasts.config.Config;
+
+import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Policy publisher.
+ * <p>Bulk lookup publishing one PolicyResult per unique domain as lookups complete.
+ * <p>Recipient addresses are reduced to their domain and each domain is looked up once.
+ * <p>Lookups only start against outstanding demand and never more than the parallelism at once.
+ * <p>Each subscriber gets its own run of lookups.
+ *
+ * @see StrictTransportSecurity#getPolicies(Collection, Config, int, Executor)
+ * @see PolicyResult
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class PolicyPublisher implements Flow.Publisher<PolicyResult> {
+
+    /**
+     * StrictTransportSecurity instance.
+     */
+    private final StrictTransportSecurity strictTransportSecurity;
+
+    /**
+     * Recipients by domain.
+     */
+    private final Map<String, List<String>> domains = new LinkedHashMap<>();
+
+    /**
+     * Config instance.
+     */
+    private final Config config;
+
+    /**
+     * Concurrent lookups limit.
+     */
+    private final int parallelism;
+
+    /**
+     * Executor for lookup stages.
+     */
+    private final Executor executor;
+
+    /**
+     * Constructs a new PolicyPublisher instance.
+     *
+     * @param strictTransportSecurity StrictTransportSecurity instance.
+     * @param recipients              Collection of domain or address strings.
+     * @param config                  Config instance.
+     * @param parallelism             Concurrent lookups limit.
+     * @param executor                Executor for lookup stages.
+     */
+    PolicyPublisher(StrictTransportSecurity strictTransportSecurity, Collection<String> recipients, Config config, int parallelism, Executor executor) {
+        this.strictTransportSecurity = strictTransportSecurity;
+        this.config = config;
+        this.parallelism = Math.max(1, parallelism);
+        this.executor = executor;
+
+        for (String recipient : recipients) {
+            String domain = toDomain(recipient);
+            if (!domain.isEmpty()) {
+                domains.computeIfAbsent(domain, k -> new ArrayList<>()).add(recipient);
+            }
+        }
+    }
+
+    /**
+     * Gets domain of recipient.
+     * <p>Lowercase domain part of an address or the domain itself without a trailing dot.
+     *
+     * @param recipient Domain or address string.
+     * @return Domain string.
+     */
+    static String toDomain(String recipient) {
+        String domain = recipient.substring(recipient.lastIndexOf('@') + 1).trim().toLowerCase(Locale.ROOT);
+        return domain.endsWith(".") ? domain.substring(0, domain.length() - 1) : domain;
+    }
+
+    /**
+     * Gets unique domains count.
+     *
+     * @return Integer.
+     */
+    public int size() {
+        return domains.size();
+    }
+
+    /**
+     * Subscribes.
+     *
+     * @param subscriber Subscriber instance.
+     */
+    @Override
+    public void subscribe(Flow.Subscriber<? super PolicyResult> subscriber) {
+        Objects.requireNonNull(subscriber);
+        new LookupSubscription(subscriber).start();
+    }
+
+    /**
+     * Lookup subscription.
+     * <p>All signals to the subscriber go through a single drain loop so they are serialized.
+     */
+    private class LookupSubscription implements Flow.Subscription {
+
+        /**
+         * Subscriber instance.
+         */
+        private final Flow.Subscriber<? super PolicyResult> subscriber;
+
+        /**
+         * Domains not yet looked up.
+         */
+        private final Iterator<Map.Entry<String, List<String>>> pending = domains.entrySet().iterator();
+
+        /**
+         * Completed results not yet published.
+         */
+        private final Queue<PolicyResult> ready = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Outstanding demand.
+         */
+        private final AtomicLong requested = new AtomicLong();
+
+        /**
+         * Lookups in flight.
+         */
+        private final AtomicInteger running = new AtomicInteger();
+
+        /**
+         * Drain loop work counter.
+         */
+        private final AtomicInteger work = new AtomicInteger();
+
+        /**
+         * Invalid request size or null.
+         */
+        private volatile IllegalArgumentException invalid;
+
+        /**
+         * Cancelled or terminated flag.
+         */
+        private volatile boolean done = false;
+
+        /**
+         * Constructs a new LookupSubscription instance.
+         *
+         * @param subscriber Subscriber instance.
+         */
+        LookupSubscription(Flow.Subscriber<? super PolicyResult> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        /**
+         * Starts subscription.
+         */
+        void start() {
+            work.incrementAndGet();
+            subscriber.onSubscribe(this);
+            drain(true);
+        }
+
+        /**
+         * Requests results.
+         *
+         * @param n Results count.
+         */
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalid = new IllegalArgumentException("Request must be positive: " + n);
+            }
+            else {
+                requested.accumulateAndGet(n, (current, add) -> current + add < 0 ? Long.MAX_VALUE : current + add);
+            }
+            drain(false);
+        }
+
+        /**
+         * Cancels subscription.
+         * <p>Lookups in flight complete but are not published.
+         */
+        @Override
+        public void cancel() {
+            done = true;
+        }
+
+        /**
+         * Drains results and starts lookups within demand.
+         *
+         * @param entered Work counter already taken by the caller.
+         */
+        private void drain(boolean entered) {
+            if (!entered && work.getAndIncrement() != 0) {
+                return;
+            }
+
+            int missed = 1;
+            while (true) {
+                if (!done && invalid != null) {
+                    done = true;
+                    subscriber.onError(invalid);
+                }
+
+                while (!done && requested.get() > 0 && !ready.isEmpty()) {
+                    requested.decrementAndGet();
+                    subscriber.onNext(ready.poll());
+                }
+
+                // Demand not covered by ready or running results.
+                while (!done && pending.hasNext() && running.get() < parallelism && running.get() + ready.size() < requested.get()) {
+                    running.incrementAndGet();
+                    lookup(pending.next());
+                }
+
+                if (!done && !pending.hasNext() && running.get() == 0 && ready.isEmpty()) {
+                    done = true;
+                    subscriber.onComplete();
+                }
+
+                missed = work.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Looks up domain.
+         *
+         * @param entry Domain and recipients entry.
+         */
+        private void lookup(Map.Entry<String, List<String>> entry) {
+            try {
+                strictTransportSecurity.getPolicyAsync(entry.getKey(), config, executor)
+                        .whenComplete((policy, throwable) -> complete(entry, policy, throwable));
+            } catch (Exception e) {
+                complete(entry, null, e);
+            }
+        }
+
+        /**
+         * Completes lookup.
+         *
+         * @param entry     Domain and recipients entry.
+         * @param policy    Optional of StsPolicy instance.
+         * @param throwable Throwable instance.
+         */
+        private void complete(Map.Entry<String, List<String>> entry, Optional<StsPolicy> policy, Throwable throwable) {
+            Throwable error = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+            ready.add(new PolicyResult(entry.getKey(), entry.getValue(), policy, error));
+            running.decrementAndGet();
+            drain(false);
+        }
+    }
+}
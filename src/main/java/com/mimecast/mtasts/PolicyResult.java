@@ -0,0 +1,100 @@
+package com.mimecast.mtasts;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Policy result.
+ * <p>Outcome of one domain in a bulk lookup.
+ * <p>Holds either the lookup result or the exception getPolicy would have thrown.
+ *
+ * @see PolicyPublisher
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class PolicyResult {
+
+    /**
+     * Domain string.
+     */
+    private final String domain;
+
+    /**
+     * Recipients list.
+     */
+    private final List<String> recipients;
+
+    /**
+     * Optional of StsPolicy instance.
+     */
+    private final Optional<StsPolicy> policy;
+
+    /**
+     * Lookup exception.
+     */
+    private final Throwable error;
+
+    /**
+     * Constructs a new PolicyResult instance.
+     *
+     * @param domain     Domain string.
+     * @param recipients List of recipient strings for this domain.
+     * @param policy     Optional of StsPolicy instance or null on error.
+     * @param error      Lookup exception or null.
+     */
+    PolicyResult(String domain, List<String> recipients, Optional<StsPolicy> policy, Throwable error) {
+        this.domain = domain;
+        this.recipients = Collections.unmodifiableList(recipients);
+        this.policy = policy != null ? policy : Optional.empty();
+        this.error = error;
+    }
+
+    /**
+     * Gets domain.
+     *
+     * @return Domain string.
+     */
+    public String getDomain() {
+        return domain;
+    }
+
+    /**
+     * Gets recipients.
+     * <p>All given domains or addresses resolving to this domain.
+     *
+     * @return List of recipient strings.
+     */
+    public List<String> getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * Gets policy.
+     *
+     * @return Optional of StsPolicy instance.
+     */
+    public Optional<StsPolicy> getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Gets lookup exception.
+     *
+     * @return Throwable instance or null if the lookup succeeded.
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * Is successful.
+     *
+     * @return Boolean.
+     */
+    public boolean isSuccessful() {
+        return error == null;
+    }
+}
@@ -1,22 +1,39 @@
 package com.mimecast.mtasts;
 
 import com.mimecast.mtasts.assets.DnsRecord;
+import com.mimecast.mtasts.assets.StsMode;
 import com.mimecast.mtasts.assets.StsPolicy;
 import com.mimecast.mtasts.assets.StsRecord;
 import com.mimecast.mtasts.assets.StsReport;
+import com.mimecast.mtasts.cache.AsyncPolicyCache;
 import com.mimecast.mtasts.cache.PolicyCache;
 import com.mimecast.mtasts.client.*;
 import com.mimecast.mtasts.config.Config;
+import com.mimecast.mtasts.events.PolicyLookupEvent;
 import com.mimecast.mtasts.exception.*;
+import com.mimecast.mtasts.metrics.Counter;
+import com.mimecast.mtasts.metrics.Metrics;
+import com.mimecast.mtasts.metrics.NullMetrics;
+import com.mimecast.mtasts.metrics.Stage;
+import com.mimecast.mtasts.trace.LookupTrace;
+import com.mimecast.mtasts.trace.LookupTrace.Phase;
 import org.apache.commons.validator.ValidatorException;
 import org.apache.commons.validator.routines.DomainValidator;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Strict Transport Security.
@@ -34,6 +51,16 @@ import java.util.Optional;
 public class StrictTransportSecurity {
     private static final Logger log = LogManager.getLogger(StrictTransportSecurity.class);
 
+    /**
+     * Default prefetch threads.
+     */
+    private static final int PREFETCH_THREADS = 4;
+
+    /**
+     * Default prefetch queue length.
+     */
+    private static final int PREFETCH_QUEUE = 10_000;
+
     /**
      * DnsRecordClient instance.
      */
@@ -49,6 +76,46 @@ public class StrictTransportSecurity {
      */
     private final PolicyCache cache;
 
+    /**
+     * AsyncPolicyCache instance.
+     */
+    private final AsyncPolicyCache asyncCache;
+
+    /**
+     * Metrics instance.
+     */
+    private Metrics metrics = NullMetrics.INSTANCE;
+
+    /**
+     * Pre-connect to policy host during record lookup.
+     */
+    private boolean preconnect = false;
+
+    /**
+     * Prefetch executor.
+     */
+    private Executor prefetchExecutor;
+
+    /**
+     * Domains being prefetched.
+     */
+    private final Set<String> prefetching = ConcurrentHashMap.newKeySet();
+
+    /**
+     * On-path lookups in flight.
+     */
+    private final AtomicInteger onPath = new AtomicInteger();
+
+    /**
+     * Prefetch lookups running.
+     */
+    private final AtomicInteger prefetchRunning = new AtomicInteger();
+
+    /**
+     * Lookups in flight at which prefetches are dropped.
+     */
+    private int prefetchBudget = 32;
+
     /**
      * Constructs a new StrictTransportSecurity instance.
      * <p>Cache can be null.
@@ -60,7 +127,7 @@ public class StrictTransportSecurity {
      */
 
     StrictTransportSecurity(DnsRecordClient dnsRecordClient, HttpsPolicyClient httpsPolicyClient) throws InstantiationException {
-        this(dnsRecordClient, httpsPolicyClient, null);
+        this(dnsRecordClient, httpsPolicyClient, (PolicyCache) null);
     }
 
     /**
@@ -79,6 +146,55 @@ public class StrictTransportSecurity {
         this.dnsRecordClient = dnsRecordClient;
         this.httpsPolicyClient = httpsPolicyClient;
         this.cache = cache;
+        this.asyncCache = null;
+    }
+
+    /**
+     * Constructs a new StrictTransportSecurity instance with an asynchronous cache.
+     * <p>Arguments cannot be null.
+     * <p>getPolicyAsync composes on the cache without blocking while getPolicy waits for it.
+     *
+     * @param dnsRecordClient   DnsRecordClient instance.
+     * @param httpsPolicyClient HttpsPolicyClient instance.
+     * @param asyncCache        AsyncPolicyCache instance.
+     * @throws InstantiationException Null argument(s) provided.
+     */
+    public StrictTransportSecurity(DnsRecordClient dnsRecordClient, HttpsPolicyClient httpsPolicyClient, AsyncPolicyCache asyncCache) throws InstantiationException {
+        if (dnsRecordClient == null || httpsPolicyClient == null) {
+            throw new InstantiationException("DnsRecordClient and/or HttpsPolicyClient cannot be null");
+        }
+        this.dnsRecordClient = dnsRecordClient;
+        this.httpsPolicyClient = httpsPolicyClient;
+        this.cache = null;
+        this.asyncCache = asyncCache;
+    }
+
+    /**
+     * Sets metrics.
+     * <p>Records stage latencies and lookup outcomes.
+     * <p>Also set on the cache if any to record cache events.
+     *
+     * @param metrics Metrics instance.
+     * @return Self.
+     */
+    public StrictTransportSecurity setMetrics(Metrics metrics) {
+        this.metrics = metrics != null ? metrics : NullMetrics.INSTANCE;
+        if (cache != null) {
+            cache.setMetrics(this.metrics);
+        }
+        if (asyncCache != null) {
+            asyncCache.setMetrics(this.metrics);
+        }
+        return this;
+    }
+
+    /**
+     * Gets metrics.
+     *
+     * @return Metrics instance.
+     */
+    public Metrics getMetrics() {
+        return metrics;
     }
 
     /**
@@ -118,61 +234,540 @@ public class StrictTransportSecurity {
      * @throws PolicyFetchErrorException Policy fetch error exception.
      */
     public Optional<StsPolicy> getPolicy(String domain, Config config) throws ValidatorException, NoRecordException, BadRecordException, BadPolicyException, PolicyFetchErrorException, PolicyWebPKIInvalidException {
-        StsPolicy policy;
+        return getPolicy(domain, config, null);
+    }
 
-        // Validate domain.
-        if (DomainValidator.getInstance(false).isValid(domain)) {
+    /**
+     * Gets policy with given domain string, config and trace instances.
+     * <p>Config instance can be null.
+     * <p>LookupTrace instance can be null and if provided records a timestamp per stage.
+     *
+     * @param domain Domain string.
+     * @param config Config instance.
+     * @param trace  LookupTrace instance.
+     * @return Optional of StsPolicy instance.
+     * @throws ValidatorException Domain provided is invalid.
+     * @throws NoRecordException  DNS Exception.
+     * @throws BadRecordException DNS record is invalid or not found.
+     * @throws BadPolicyException HTTPS policy is invalid or not found.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException Policy fetch error exception.
+     */
+    public Optional<StsPolicy> getPolicy(String domain, Config config, LookupTrace trace) throws ValidatorException, NoRecordException, BadRecordException, BadPolicyException, PolicyFetchErrorException, PolicyWebPKIInvalidException {
+        onPath.incrementAndGet();
+        try {
+            return getPolicyOffPath(domain, config, trace);
+        } finally {
+            onPath.decrementAndGet();
+        }
+    }
 
-            // Get DNS TXT record.
-            Optional<StsRecord> optional = dnsRecordClient.getStsRecord(domain);
-            if (optional.isPresent() && optional.get().isValid()) {
-                log.info("Record found and valid");
+    /**
+     * Gets policy without counting it as an on-path lookup.
+     * <p>Used directly by prefetches.
+     *
+     * @param domain Domain string.
+     * @param config Config instance.
+     * @param trace  LookupTrace instance.
+     * @return Optional of StsPolicy instance.
+     * @throws ValidatorException Domain provided is invalid.
+     * @throws NoRecordException  DNS Exception.
+     * @throws BadRecordException DNS record is invalid or not found.
+     * @throws BadPolicyException HTTPS policy is invalid or not found.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException Policy fetch error exception.
+     */
+    private Optional<StsPolicy> getPolicyOffPath(String domain, Config config, LookupTrace trace) throws ValidatorException, NoRecordException, BadRecordException, BadPolicyException, PolicyFetchErrorException, PolicyWebPKIInvalidException {
+        PolicyLookupEvent event = new PolicyLookupEvent();
+        event.begin();
+
+        long start = System.nanoTime();
+        String outcome = "success";
+        boolean cached = false;
+        try {
+            Optional<StsPolicy> optional = lookupPolicy(domain, config, trace);
+            metrics.count(Counter.LOOKUP_SUCCESS);
+            cached = optional.isPresent() && optional.get().isCached();
+            return optional;
+        } catch (Exception e) {
+            outcome = e.getClass().getSimpleName();
+            throw e;
+        } finally {
+            metrics.time(Stage.LOOKUP, System.nanoTime() - start);
+
+            if (event.shouldCommit()) {
+                event.domain = domain;
+                event.outcome = outcome;
+                event.cached = cached;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Gets policy asynchronously with given domain string and config instance.
+     *
+     * @param domain   Domain string.
+     * @param config   Config instance.
+     * @param executor Executor for DNS and HTTPS stages.
+     * @return CompletableFuture of Optional of StsPolicy instance.
+     */
+    public CompletableFuture<Optional<StsPolicy>> getPolicyAsync(String domain, Config config, Executor executor) {
+        return getPolicyAsync(domain, config, null, executor);
+    }
 
-                // Search policy in cache or fetch from HTTPS.
-                policy = getPolicy(optional.get(), config);
+    /**
+     * Gets policy asynchronously with given domain string, config and trace instances.
+     * <p>DNS and HTTPS stages run on the given executor.
+     * <p>Cache lookups compose on the cache CompletionStage without holding a thread.
+     * <p>Completes exceptionally with a CompletionException wrapping the same exceptions getPolicy throws.
+     *
+     * @param domain   Domain string.
+     * @param config   Config instance.
+     * @param trace    LookupTrace instance.
+     * @param executor Executor for DNS and HTTPS stages.
+     * @return CompletableFuture of Optional of StsPolicy instance.
+     */
+    public CompletableFuture<Optional<StsPolicy>> getPolicyAsync(String domain, Config config, LookupTrace trace, Executor executor) {
+        PolicyLookupEvent event = new PolicyLookupEvent();
+        event.begin();
+        long start = System.nanoTime();
+        OptionalLong deadline = deadline(config, start);
+
+        onPath.incrementAndGet();
+        CompletableFuture<Optional<StsRecord>> record;
+        try {
+            record = CompletableFuture.supplyAsync(() -> unchecked(() -> getStsRecord(domain, trace, deadline)), executor);
+        } catch (RuntimeException e) {
+            onPath.decrementAndGet();
+            throw e;
+        }
+
+        return record
+                .thenCompose(optional -> {
+                    if (optional.isPresent() && optional.get().isValid()) {
+                        log.info("Record found and valid");
+                        return searchPolicyCache(optional.get(), trace).thenApplyAsync(cached ->
+                                unchecked(() -> checkPolicy(getPolicy(cached.orElse(null), optional.get(), config, trace, deadline), domain)), executor);
+                    }
+                    else if (!optional.isPresent()) {
+                        log.warn("Record not found, searching cache for policy");
+                        return searchPolicyCache(domain, trace).thenApply(cached ->
+                                unchecked(() -> checkCachedPolicy(cached.orElse(null), domain)));
+                    }
+
+                    metrics.count(Counter.RECORD_INVALID);
+                    throw new CompletionException(new BadRecordException("Record invalid for: " + domain));
+                })
+                .thenApplyAsync(policy -> Optional.of(fetchRptRecord(policy, config, trace, deadline)), executor)
+                .whenComplete((optional, throwable) -> {
+                    onPath.decrementAndGet();
+
+                    String outcome = "success";
+                    boolean cached = false;
+                    if (throwable == null) {
+                        metrics.count(Counter.LOOKUP_SUCCESS);
+                        cached = optional.isPresent() && optional.get().isCached();
+                    }
+                    else {
+                        Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+                        outcome = cause.getClass().getSimpleName();
+                    }
+
+                    metrics.time(Stage.LOOKUP, System.nanoTime() - start);
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.domain = domain;
+                        event.outcome = outcome;
+                        event.cached = cached;
+                        event.commit();
+                    }
+                });
+    }
 
-                // Validate policy.
-                if (!policy.isValid() || policy.isExpired()) {
-                    throw new BadPolicyException("Policy invalid for: " + domain);
-                }
+    /**
+     * Sets speculative pre-connect.
+     * <p>When enabled a connection to the policy host of a domain not in the cache is opened while its TXT record is looked up.
+     * <p>The pre-connect is abandoned if no valid record is found.
+     * <p>Default: false
+     *
+     * @param preconnect Boolean.
+     * @return Self.
+     */
+    public StrictTransportSecurity setPreconnect(boolean preconnect) {
+        this.preconnect = preconnect;
+        return this;
+    }
+
+    /**
+     * Sets prefetch executor.
+     * <p>Defaults to a small pool of minimum priority daemon threads with a bounded queue.
+     *
+     * @param prefetchExecutor Executor instance.
+     * @return Self.
+     */
+    public StrictTransportSecurity setPrefetchExecutor(Executor prefetchExecutor) {
+        this.prefetchExecutor = prefetchExecutor;
+        return this;
+    }
+
+    /**
+     * Sets prefetch budget.
+     * <p>Prefetches only start while fewer lookups than this are in flight, counting on-path lookups and prefetches.
+     * <p>On-path lookups are never held back so prefetches only use spare capacity.
+     * <p>Default: 32
+     *
+     * @param prefetchBudget Lookups count.
+     * @return Self.
+     */
+    public StrictTransportSecurity setPrefetchBudget(int prefetchBudget) {
+        this.prefetchBudget = Math.max(1, prefetchBudget);
+        return this;
+    }
+
+    /**
+     * Gets on-path lookups in flight.
+     *
+     * @return Integer.
+     */
+    public int getOnPath() {
+        return onPath.get();
+    }
+
+    /**
+     * Prefetches policies.
+     *
+     * @param domains Collection of domain or address strings.
+     */
+    public void prefetch(Collection<String> domains) {
+        prefetch(domains, null);
+    }
+
+    /**
+     * Prefetches policies with given config instance.
+     * <p>Looks up domains in the background to fill the cache ahead of getPolicy calls and returns immediately.
+     * <p>Domains already being prefetched are skipped and lookup failures are ignored.
+     * <p>Prefetches only run while lookups in flight are below the prefetch budget, checked on submit and again on start.
+     * <p>Domains are dropped at once when there is no spare capacity or the prefetch executor rejects them.
+     *
+     * @param domains Collection of domain or address strings.
+     * @param config  Config instance.
+     */
+    public void prefetch(Collection<String> domains, Config config) {
+        Executor executor = getPrefetchExecutor();
+        for (String recipient : domains) {
+            String domain = PolicyPublisher.toDomain(recipient);
+            if (domain.isEmpty() || !prefetching.add(domain)) {
+                continue;
             }
-            else if (!optional.isPresent()) {
-                log.warn("Record not found, searching cache for policy");
 
-                // Search policy in cache.
-                policy = searchPolicyCache(domain);
+            if (!hasCapacity()) {
+                prefetching.remove(domain);
+                metrics.count(Counter.PREFETCH_DROP);
+                continue;
+            }
 
-                if (policy == null) {
-                    throw new NoRecordException("Record not found for: " + domain);
-                }
+            try {
+                executor.execute(() -> {
+                    try {
+                        if (admit()) {
+                            try {
+                                getPolicyOffPath(domain, config, null);
+                            } finally {
+                                prefetchRunning.decrementAndGet();
+                            }
+                        }
+                        else {
+                            log.debug("Prefetch dropped for lack of capacity: {}", domain);
+                            metrics.count(Counter.PREFETCH_DROP);
+                        }
+                    } catch (Exception e) {
+                        log.debug("Prefetch failed: {} {}", domain, e.getMessage());
+                    } finally {
+                        prefetching.remove(domain);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                prefetching.remove(domain);
+                metrics.count(Counter.PREFETCH_DROP);
             }
-            else {
-                throw new BadRecordException("Record invalid for: " + domain);
+        }
+    }
+
+    /**
+     * Has spare lookup capacity for a prefetch.
+     *
+     * @return Boolean.
+     */
+    private boolean hasCapacity() {
+        return onPath.get() + prefetchRunning.get() < prefetchBudget;
+    }
+
+    /**
+     * Admits prefetch.
+     * <p>Checks once if on-path lookups and running prefetches leave room in the prefetch budget.
+     *
+     * @return Boolean true if admitted and counted as running.
+     */
+    private boolean admit() {
+        while (true) {
+            int running = prefetchRunning.get();
+            if (onPath.get() + running >= prefetchBudget) {
+                return false;
+            }
+            if (prefetchRunning.compareAndSet(running, running + 1)) {
+                return true;
             }
         }
+    }
+
+    /**
+     * Gets prefetch executor.
+     * <p>Creates the default on first use.
+     *
+     * @return Executor instance.
+     */
+    private synchronized Executor getPrefetchExecutor() {
+        if (prefetchExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(PREFETCH_QUEUE), runnable -> {
+                        Thread thread = new Thread(runnable, "mta-sts-prefetch");
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            prefetchExecutor = executor;
+        }
+
+        return prefetchExecutor;
+    }
+
+    /**
+     * Gets policies for many domains.
+     * <p>Domains and recipient addresses are deduplicated by domain and each domain is looked up once.
+     * <p>Results are published as lookups complete with at most parallelism lookups running and none beyond subscriber demand.
+     *
+     * @param recipients  Collection of domain or address strings.
+     * @param config      Config instance.
+     * @param parallelism Concurrent lookups limit.
+     * @param executor    Executor for DNS and HTTPS stages.
+     * @return PolicyPublisher instance.
+     */
+    public PolicyPublisher getPolicies(Collection<String> recipients, Config config, int parallelism, Executor executor) {
+        return new PolicyPublisher(this, recipients, config, parallelism, executor);
+    }
+
+    /**
+     * Looks up policy with given domain string and config instance.
+     *
+     * @param domain Domain string.
+     * @param config Config instance.
+     * @param trace  LookupTrace instance.
+     * @return Optional of StsPolicy instance.
+     * @throws ValidatorException Domain provided is invalid.
+     * @throws NoRecordException  DNS Exception.
+     * @throws BadRecordException DNS record is invalid or not found.
+     * @throws BadPolicyException HTTPS policy is invalid or not found.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException Policy fetch error exception.
+     */
+    private Optional<StsPolicy> lookupPolicy(String domain, Config config, LookupTrace trace) throws ValidatorException, NoRecordException, BadRecordException, BadPolicyException, PolicyFetchErrorException, PolicyWebPKIInvalidException {
+        StsPolicy policy;
+        OptionalLong deadline = deadline(config, System.nanoTime());
+
+        // Validate domain and get DNS TXT record.
+        Optional<StsRecord> optional = getStsRecord(domain, trace, deadline);
+
+        if (optional.isPresent() && optional.get().isValid()) {
+            log.info("Record found and valid");
+
+            // Search policy in cache or fetch from HTTPS.
+            StsPolicy cached = searchPolicyCache(optional.get(), trace).join().orElse(null);
+            policy = checkPolicy(getPolicy(cached, optional.get(), config, trace, deadline), domain);
+        }
+        else if (!optional.isPresent()) {
+            log.warn("Record not found, searching cache for policy");
+
+            // Search policy in cache.
+            policy = checkCachedPolicy(searchPolicyCache(domain, trace).join().orElse(null), domain);
+        }
         else {
+            metrics.count(Counter.RECORD_INVALID);
+            throw new BadRecordException("Record invalid for: " + domain);
+        }
+
+        return Optional.of(fetchRptRecord(policy, config, trace, deadline));
+    }
+
+    /**
+     * Gets lookup deadline.
+     *
+     * @param config Config instance.
+     * @param start  Lookup start nano time.
+     * @return OptionalLong of deadline in System.nanoTime() terms, empty if no lookup timeout.
+     */
+    private static OptionalLong deadline(Config config, long start) {
+        if (config == null || config.getLookupTimeout() <= 0) {
+            return OptionalLong.empty();
+        }
+
+        return OptionalLong.of(start + TimeUnit.SECONDS.toNanos(config.getLookupTimeout()));
+    }
+
+    /**
+     * Gets DNS TXT record for given domain.
+     *
+     * @param domain   Domain string.
+     * @param trace    LookupTrace instance.
+     * @param deadline OptionalLong of lookup deadline.
+     * @return Optional of StsRecord instance.
+     * @throws ValidatorException Domain provided is invalid.
+     */
+    private Optional<StsRecord> getStsRecord(String domain, LookupTrace trace, OptionalLong deadline) throws ValidatorException {
+        if (!DomainValidator.getInstance(false).isValid(domain)) {
+            metrics.count(Counter.DOMAIN_INVALID);
             throw new ValidatorException("Domain invalid: " + domain);
         }
 
-        return Optional.of(fetchRptRecord(policy, config));
+        Closeable preconnection = preconnect(domain);
+
+        long start = System.nanoTime();
+        Optional<StsRecord> optional = deadline.isPresent() ?
+                dnsRecordClient.getStsRecord(domain, deadline.getAsLong()) :
+                dnsRecordClient.getStsRecord(domain);
+        time(Stage.DNS_STS, trace, Phase.DNS_STS, start, false);
+
+        if (preconnection != null && (!optional.isPresent() || !optional.get().isValid())) {
+            try {
+                preconnection.close();
+            } catch (IOException e) {
+                log.debug("Pre-connect close failed: {}", e.getMessage());
+            }
+        }
+
+        return optional;
     }
 
     /**
-     * Gets policy from cache if any.
+     * Pre-connects to policy host if enabled and domain not cached.
      *
+     * @param domain Domain string.
+     * @return Closeable handle or null if not pre-connecting.
+     */
+    private Closeable preconnect(String domain) {
+        if (!preconnect || (cache != null && cache.contains(domain))) {
+            return null;
+        }
+
+        try {
+            return httpsPolicyClient.preconnect(domain);
+        } catch (Exception e) {
+            log.debug("Pre-connect failed: {} {}", domain, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Checks policy is valid and not expired.
+     *
+     * @param policy StsPolicy instance.
+     * @param domain Domain string.
+     * @return StsPolicy instance.
+     * @throws BadPolicyException HTTPS policy is invalid or expired.
+     */
+    private StsPolicy checkPolicy(StsPolicy policy, String domain) throws BadPolicyException {
+        if (!policy.isValid() || policy.isExpired()) {
+            metrics.count(Counter.POLICY_INVALID);
+            getInvalidReasons(policy).forEach(metrics::count);
+            throw new BadPolicyException("Policy invalid for: " + domain);
+        }
+
+        return policy;
+    }
+
+    /**
+     * Gets invalid policy reasons.
+     * <p>Validator errors are mapped by message prefix and policy fields are checked as isValid() does.
+     *
+     * @param policy StsPolicy instance.
+     * @return Set of Counter enums.
+     */
+    static Set<Counter> getInvalidReasons(StsPolicy policy) {
+        Set<Counter> reasons = EnumSet.noneOf(Counter.class);
+        for (String error : policy.getValidator().getErrors()) {
+            if (error.startsWith("Response") || error.startsWith("Handshake")) {
+                reasons.add(Counter.POLICY_INVALID_RESPONSE);
+            }
+            else if (error.startsWith("Header Content-Type")) {
+                reasons.add(Counter.POLICY_INVALID_CONTENT_TYPE);
+            }
+            else if (error.startsWith("Policy EOL") || error.startsWith("Policy does not support empty lines")) {
+                reasons.add(Counter.POLICY_INVALID_EOL);
+            }
+            else if (error.startsWith("Max age")) {
+                reasons.add(Counter.POLICY_INVALID_MAX_AGE);
+            }
+            else {
+                reasons.add(Counter.POLICY_INVALID_OTHER);
+            }
+        }
+
+        // Response errors leave the fields unset so only count those for fetched policies.
+        if (!reasons.contains(Counter.POLICY_INVALID_RESPONSE)) {
+            if (policy.getMode() == StsMode.NONE) {
+                reasons.add(Counter.POLICY_INVALID_MODE);
+            }
+            if (policy.getMaxAge() <= 0) {
+                reasons.add(Counter.POLICY_INVALID_MAX_AGE);
+            }
+            if (policy.getMxMasks().isEmpty()) {
+                reasons.add(Counter.POLICY_INVALID_MX);
+            }
+            if (policy.isValid() && policy.isExpired()) {
+                reasons.add(Counter.POLICY_INVALID_EXPIRED);
+            }
+        }
+
+        return reasons;
+    }
+
+    /**
+     * Checks a cached policy was found when no record exists.
+     *
+     * @param policy StsPolicy instance or null.
+     * @param domain Domain string.
+     * @return StsPolicy instance.
+     * @throws NoRecordException Record and cached policy not found.
+     */
+    private StsPolicy checkCachedPolicy(StsPolicy policy, String domain) throws NoRecordException {
+        if (policy == null) {
+            metrics.count(Counter.RECORD_NOT_FOUND);
+            throw new NoRecordException("Record not found for: " + domain);
+        }
+
+        return policy;
+    }
+
+    /**
+     * Gets cached policy if usable or fetches it.
+     *
+     * @param policy StsPolicy instance from cache or null.
      * @param stsRecord StsRecord instance.
      * @param config Config instance.
+     * @param trace LookupTrace instance.
+     * @param deadline OptionalLong of lookup deadline.
      * @return StsPolicy instance.
      * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
      * @throws PolicyFetchErrorException Policy fetch error exception.
      */
-    private StsPolicy getPolicy(StsRecord stsRecord, Config config) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
-        // Search policy in cache first.
-        StsPolicy policy = searchPolicyCache(stsRecord);
-
+    private StsPolicy getPolicy(StsPolicy policy, StsRecord stsRecord, Config config, LookupTrace trace, OptionalLong deadline) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
         // Fetch policy if not in cache or expired.
         if (policy == null || policy.isExpired()) {
-            return fetchPolicyHttps(stsRecord, config);
+            if (policy != null) {
+                metrics.count(Counter.CACHE_EXPIRED);
+            }
+            return fetchPolicyHttps(stsRecord, config, trace, policy, deadline);
         }
 
         return policy;
@@ -180,56 +775,114 @@ public class StrictTransportSecurity {
 
     /**
      * Gets policy from cache by StsRecord.
+     * <p>Async cache failures are treated as a miss.
      *
      * @param stsRecord StsRecord instance.
-     * @return StsPolicy instance.
+     * @param trace LookupTrace instance.
+     * @return CompletableFuture of Optional of StsPolicy instance.
      */
-    private StsPolicy searchPolicyCache(StsRecord stsRecord) {
-        StsPolicy policy = null;
-
+    private CompletableFuture<Optional<StsPolicy>> searchPolicyCache(StsRecord stsRecord, LookupTrace trace) {
+        long start = System.nanoTime();
         if (cache != null) {
             Optional<StsPolicy> optional = cache.getByRecord(stsRecord);
-            if (optional.isPresent()) {
-                policy = optional.get();
-            }
+            time(Stage.CACHE_LOOKUP, trace, Phase.CACHE, start, optional.isPresent());
+            return CompletableFuture.completedFuture(optional);
+        }
+        else if (asyncCache != null) {
+            return timeCache(asyncCache.getByRecord(stsRecord), trace, start);
         }
 
-        return policy;
+        return CompletableFuture.completedFuture(Optional.empty());
     }
 
     /**
      * Gets policy from cache by domain.
+     * <p>Async cache failures are treated as a miss.
      *
      * @param domain Domain string.
-     * @return StsPolicy instance.
+     * @param trace LookupTrace instance.
+     * @return CompletableFuture of Optional of StsPolicy instance.
      */
-    private StsPolicy searchPolicyCache(String domain) {
-        StsPolicy policy = null;
-
+    private CompletableFuture<Optional<StsPolicy>> searchPolicyCache(String domain, LookupTrace trace) {
+        long start = System.nanoTime();
         if (cache != null) {
             Optional<StsPolicy> optional = cache.getByDomain(domain);
-            if (optional.isPresent()) {
-                policy = optional.get();
-            }
+            time(Stage.CACHE_LOOKUP, trace, Phase.CACHE, start, optional.isPresent());
+            return CompletableFuture.completedFuture(optional);
+        }
+        else if (asyncCache != null) {
+            return timeCache(asyncCache.getByDomain(domain), trace, start);
         }
 
-        return policy;
+        return CompletableFuture.completedFuture(Optional.empty());
+    }
+
+    /**
+     * Records async cache lookup timing and maps failures to a miss.
+     *
+     * @param stage CompletionStage of Optional of StsPolicy instance.
+     * @param trace LookupTrace instance.
+     * @param start Start nano time.
+     * @return CompletableFuture of Optional of StsPolicy instance.
+     */
+    private CompletableFuture<Optional<StsPolicy>> timeCache(CompletionStage<Optional<StsPolicy>> stage, LookupTrace trace, long start) {
+        return stage.toCompletableFuture()
+                .exceptionally(e -> {
+                    log.warn("Async cache lookup failed: {}", e.getMessage());
+                    return Optional.empty();
+                })
+                .thenApply(optional -> {
+                    time(Stage.CACHE_LOOKUP, trace, Phase.CACHE, start, optional.isPresent());
+                    return optional;
+                });
     }
 
     /**
      * Gets policy from well known HTTPS address.
+     * <p>If the expired policy has validators they are sent and a 304 Not Modified response refreshes it without parsing.
      *
      * @param stsRecord StsRecord instance.
      * @param config Config instance.
+     * @param trace LookupTrace instance.
+     * @param expired Expired StsPolicy instance or null.
+     * @param deadline OptionalLong of lookup deadline.
      * @return StsPolicy instance.
      * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
      * @throws PolicyFetchErrorException Policy fetch error exception.
      */
-    private StsPolicy fetchPolicyHttps(StsRecord stsRecord, Config config) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
-        HttpsResponse response = httpsPolicyClient.getPolicy(stsRecord, Optional.ofNullable(config)
-                .map(Config::getPolicyMaxBodySize)
-                .orElse(new Config().getPolicyMaxBodySize()) // get default
-        );
+    private StsPolicy fetchPolicyHttps(StsRecord stsRecord, Config config, LookupTrace trace, StsPolicy expired, OptionalLong deadline) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        String etag = expired != null ? expired.getEtag() : null;
+        String lastModified = expired != null ? expired.getLastModified() : null;
+
+        HttpsResponse response;
+        long start = System.nanoTime();
+        try {
+            int maxPolicyBodySize = Optional.ofNullable(config)
+                    .map(Config::getPolicyMaxBodySize)
+                    .orElse(new Config().getPolicyMaxBodySize()); // get default
+            if (deadline.isPresent()) {
+                response = httpsPolicyClient.getPolicy(stsRecord, maxPolicyBodySize, trace, etag, lastModified, deadline.getAsLong());
+            }
+            else {
+                response = etag != null || lastModified != null ?
+                        httpsPolicyClient.getPolicy(stsRecord, maxPolicyBodySize, trace, etag, lastModified) :
+                        httpsPolicyClient.getPolicy(stsRecord, maxPolicyBodySize, trace);
+            }
+        } catch (PolicyWebPKIInvalidException e) {
+            metrics.count(Counter.POLICY_WEBPKI_INVALID);
+            throw e;
+        } catch (PolicyFetchErrorException e) {
+            metrics.count(Counter.POLICY_FETCH_ERROR);
+            throw e;
+        } finally {
+            time(Stage.HTTPS_FETCH, trace, Phase.HTTPS_FETCH, start, false);
+        }
+
+        if (expired != null && response != null && response.getCode() == 304) {
+            log.debug("Policy not modified: {}", stsRecord.getDomain());
+            metrics.count(Counter.POLICY_NOT_MODIFIED);
+            return cachePolicy(expired.refresh());
+        }
 
         StsPolicy policy = new StsPolicy(stsRecord, response);
 
@@ -237,11 +890,33 @@ public class StrictTransportSecurity {
             policy.setConfig(config);
         }
 
+        start = System.nanoTime();
         policy.make();
+        time(Stage.POLICY_PARSE, trace, Phase.PARSE, start, false);
 
-        if (policy.isValid() && cache != null) {
+        if (policy.isValid()) {
+            cachePolicy(policy);
+        }
+
+        return policy;
+    }
+
+    /**
+     * Puts policy to cache.
+     *
+     * @param policy StsPolicy instance.
+     * @return StsPolicy instance.
+     */
+    private StsPolicy cachePolicy(StsPolicy policy) {
+        if (cache != null) {
             cache.put(policy);
         }
+        else if (asyncCache != null) {
+            asyncCache.put(policy).exceptionally(e -> {
+                log.warn("Async cache put failed: {}", e.getMessage());
+                return null;
+            });
+        }
 
         return policy;
     }
@@ -251,11 +926,17 @@ public class StrictTransportSecurity {
      *
      * @param policy StsPolicy instance.
      * @param config Config instance.
+     * @param trace LookupTrace instance.
+     * @param deadline OptionalLong of lookup deadline.
      * @return StsPolicy instance.
      */
-    private StsPolicy fetchRptRecord(StsPolicy policy, Config config) {
+    private StsPolicy fetchRptRecord(StsPolicy policy, Config config, LookupTrace trace, OptionalLong deadline) {
         if (config ==  null || config.isFetchRptRecord()) {
-        Optional<StsReport> optional = dnsRecordClient.getRptRecord(policy.getRecord().getDomain());
+            long start = System.nanoTime();
+            Optional<StsReport> optional = deadline.isPresent() ?
+                    dnsRecordClient.getRptRecord(policy.getRecord().getDomain(), deadline.getAsLong()) :
+                    dnsRecordClient.getRptRecord(policy.getRecord().getDomain());
+            time(Stage.DNS_RPT, trace, Phase.DNS_RPT, start, false);
             if (optional.isPresent() && optional.get().isValid()) {
                 policy.setReport(optional.get());
             }
@@ -272,7 +953,9 @@ public class StrictTransportSecurity {
      * @return List of MXRecord.
      */
     public List<DnsRecord> getMxRecords(String domain) {
+        long start = System.nanoTime();
         Optional<List<DnsRecord>> optional = dnsRecordClient.getMxRecords(domain);
+        metrics.time(Stage.DNS_MX, System.nanoTime() - start);
         List<DnsRecord> mxRecords = optional.orElseGet(ArrayList::new);
 
         Comparator<DnsRecord> compareByName = Comparator.comparing(DnsRecord::getName);
@@ -283,4 +966,50 @@ public class StrictTransportSecurity {
 
         return mxRecords;
     }
+
+    /**
+     * Records stage timing.
+     * <p>Into metrics and trace if any.
+     *
+     * @param stage  Metrics stage.
+     * @param trace  LookupTrace instance.
+     * @param phase  Trace phase.
+     * @param start  Start nano time.
+     * @param cached Answer came from cache.
+     */
+    private void time(Stage stage, LookupTrace trace, Phase phase, long start, boolean cached) {
+        long end = System.nanoTime();
+        metrics.time(stage, end - start);
+
+        if (trace != null) {
+            trace.record(phase, start, end, cached);
+        }
+    }
+
+    /**
+     * Runs a stage step rethrowing checked exceptions as CompletionException.
+     *
+     * @param step Step.
+     * @param <T>  Result type.
+     * @return Step result.
+     */
+    private static <T> T unchecked(Step<T> step) {
+        try {
+            return step.run();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Async lookup step that may throw checked exceptions.
+     *
+     * @param <T> Result type.
+     */
+    @FunctionalInterface
+    private interface Step<T> {
+        T run() throws Exception;
+    }
 }
@@ -4,6 +4,7 @@ import com.mimecast.mtasts.cache.PolicyCache;
 import com.mimecast.mtasts.client.HttpsResponse;
 import com.mimecast.mtasts.config.Config;
 import com.mimecast.mtasts.config.ConfigHandler;
+import com.mimecast.mtasts.events.PolicyParseEvent;
 import com.mimecast.mtasts.stream.LineInputStream;
 import com.mimecast.mtasts.util.Pair;
 import org.apache.commons.validator.routines.DomainValidator;
@@ -17,7 +18,9 @@ import java.security.InvalidParameterException;
 import java.security.cert.Certificate;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * Strict Transport Security Policy.
@@ -80,6 +83,12 @@ public final class StsPolicy extends ConfigHandler {
      */
     private final List<String> mxMasks = new ArrayList<>();
 
+    /**
+     * MX mask patterns.
+     * <p>Compiled on first match.
+     */
+    private volatile List<Pattern> mxPatterns;
+
     /**
      * Max age integer.
      */
@@ -90,6 +99,16 @@ public final class StsPolicy extends ConfigHandler {
      */
     private long fetchTime = 0L;
 
+    /**
+     * ETag validator.
+     */
+    private String etag;
+
+    /**
+     * Last-Modified validator.
+     */
+    private String lastModified;
+
     /**
      * Cached boolean.
      */
@@ -145,6 +164,9 @@ public final class StsPolicy extends ConfigHandler {
      * @return Self.
      */
     public StsPolicy make() {
+        PolicyParseEvent event = new PolicyParseEvent();
+        event.begin();
+
         // Validate HTTP response and policy body.
         if (response != null) {
             this.policy = validator.getPolicy(response, config);
@@ -154,6 +176,14 @@ public final class StsPolicy extends ConfigHandler {
             } catch (Exception e) {
                 log.error("Handshake certificate chain not found");
             }
+
+            etag = response.getHeader("ETag");
+            lastModified = response.getHeader("Last-Modified");
+
+            // Relayed policies keep their remaining lifetime.
+            if (response.getFetchTime() > 0) {
+                fetchTime = Math.min(fetchTime, response.getFetchTime());
+            }
         }
 
         // Make.
@@ -166,6 +196,14 @@ public final class StsPolicy extends ConfigHandler {
             }
         }
 
+        if (event.shouldCommit()) {
+            event.domain = stsRecord != null ? stsRecord.getDomain() : null;
+            event.outcome = isValid() ? "valid" : "invalid";
+            event.errors = validator.getErrors().size();
+            event.warnings = validator.getWarnings().size();
+            event.commit();
+        }
+
         return this;
     }
 
@@ -288,6 +326,14 @@ public final class StsPolicy extends ConfigHandler {
                         domain = entry.getValue();
                     }
                     break;
+
+                case "etag":
+                    etag = decodeValidator(entry.getValue());
+                    break;
+
+                case "last_modified":
+                    lastModified = decodeValidator(entry.getValue());
+                    break;
                 default:
                     break;
             }
@@ -303,6 +349,22 @@ public final class StsPolicy extends ConfigHandler {
         }
     }
 
+    /**
+     * Decodes validator.
+     * <p>Validators are Base64 encoded in the extended policy as they may contain colons.
+     *
+     * @param value Base64 string.
+     * @return Validator string or null if invalid.
+     */
+    private String decodeValidator(String value) {
+        try {
+            return new String(Base64.getDecoder().decode(value), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            log.warn("Policy validator invalid: {}", value);
+            return null;
+        }
+    }
+
     /**
      * Gets peer certificates.
      *
@@ -387,6 +449,7 @@ public final class StsPolicy extends ConfigHandler {
     /**
      * Match MX.
      * <p>Masks are evaluated by a relaxed regex match.
+     * <p>Mask patterns are compiled once per policy.
      *
      * @param mx MX domain string.
      * @return Boolean.
@@ -396,8 +459,17 @@ public final class StsPolicy extends ConfigHandler {
             return true;
         }
 
-        for (String mask : mxMasks) {
-            if (mx.matches(mask.replace("*", ".*"))) {
+        List<Pattern> patterns = mxPatterns;
+        if (patterns == null) {
+            patterns = new ArrayList<>();
+            for (String mask : mxMasks) {
+                patterns.add(Pattern.compile(mask.replace("*", ".*")));
+            }
+            mxPatterns = patterns;
+        }
+
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(mx).matches()) {
                 return true;
             }
         }
@@ -451,6 +523,38 @@ public final class StsPolicy extends ConfigHandler {
         return fetchTime;
     }
 
+    /**
+     * Gets ETag validator.
+     * <p>As sent by the policy host with the policy.
+     *
+     * @return ETag string or null.
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * Gets Last-Modified validator.
+     * <p>As sent by the policy host with the policy.
+     *
+     * @return Last-Modified string or null.
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Refreshes policy.
+     * <p>Restarts max age from now for a policy the host confirmed unchanged.
+     *
+     * @return Self.
+     */
+    public StsPolicy refresh() {
+        fetchTime = Instant.now().getEpochSecond();
+        cached = false;
+        return this;
+    }
+
     /**
      * Sets cache.
      *
@@ -499,6 +603,13 @@ public final class StsPolicy extends ConfigHandler {
             .append("domain: ").append(stsRecord.getDomain()).append("\r\n")
             .append("record_id: ").append(stsRecord.getId()).append("\r\n");
 
+        if (etag != null) {
+            builder.append("etag: ").append(Base64.getEncoder().encodeToString(etag.getBytes(StandardCharsets.UTF_8))).append("\r\n");
+        }
+        if (lastModified != null) {
+            builder.append("last_modified: ").append(Base64.getEncoder().encodeToString(lastModified.getBytes(StandardCharsets.UTF_8))).append("\r\n");
+        }
+
         return builder.toString();
     }
 }
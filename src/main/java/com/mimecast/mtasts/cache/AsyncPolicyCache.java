@@ -0,0 +1,263 @@
+package com.mimecast.mtasts.cache;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.events.CacheLookupEvent;
+import com.mimecast.mtasts.metrics.Counter;
+import com.mimecast.mtasts.metrics.Metrics;
+import com.mimecast.mtasts.metrics.NullMetrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Collectors;
+
+/**
+ * Asynchronous policy cache.
+ * <p>Abstract for network backed policy cache implementations.
+ * <p>Mirrors PolicyCache but every operation returns a CompletionStage so no caller thread waits on a round trip.
+ * <p>Bulk lookups and puts can be overridden to use a single round trip.
+ *
+ * @see PolicyCache
+ * @see RemotePolicyCache
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public abstract class AsyncPolicyCache {
+    private static final Logger log = LogManager.getLogger(AsyncPolicyCache.class);
+
+    /**
+     * Metrics instance.
+     */
+    protected Metrics metrics = NullMetrics.INSTANCE;
+
+    /**
+     * Sets metrics.
+     * <p>Records cache hits, misses and invalidations.
+     *
+     * @param metrics Metrics instance.
+     * @return Self.
+     */
+    public AsyncPolicyCache setMetrics(Metrics metrics) {
+        this.metrics = metrics != null ? metrics : NullMetrics.INSTANCE;
+        return this;
+    }
+
+    /**
+     * Puts policy in cache.
+     * <p>Invalid and expired policies will not be cached.
+     *
+     * @param policy StsPolicy instance.
+     * @return CompletionStage completed once stored.
+     */
+    public CompletionStage<Void> put(StsPolicy policy) {
+        if (policy.isValid() && !policy.isExpired()) {
+            return add(policy);
+        }
+
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Puts policies in cache.
+     * <p>Invalid and expired policies will not be cached.
+     *
+     * @param policies Collection of StsPolicy instances.
+     * @return CompletionStage completed once stored.
+     */
+    public CompletionStage<Void> putAll(Collection<StsPolicy> policies) {
+        List<StsPolicy> list = policies.stream()
+                .filter(policy -> policy.isValid() && !policy.isExpired())
+                .collect(Collectors.toList());
+
+        if (list.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return addAll(list);
+    }
+
+    /**
+     * Gets policy from cache by StsRecord.
+     * <p>Checks policy record ID matched provided record ID.
+     * <p>Removes from cache if ID not matched.
+     *
+     * @param record StsRecord instance.
+     * @return CompletionStage of Optional of StsPolicy instance.
+     */
+    public CompletionStage<Optional<StsPolicy>> getByRecord(StsRecord record) {
+        if (record == null) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+
+        CacheLookupEvent event = new CacheLookupEvent();
+        event.begin();
+
+        return lookup(record.getDomain()).thenApply(policy -> {
+            if (policy != null) {
+
+                // Validate record and cache policy ID match.
+                if (policy.getRecord().getId().equals(record.getId())) {
+                    metrics.count(Counter.CACHE_HIT);
+                    commit(event, record.getDomain(), "hit");
+                    policy.setCached(true);
+                    return Optional.of(policy);
+                }
+
+                log.info("Record and policy ID mismatch, removing policy from cache");
+                metrics.count(Counter.CACHE_INVALIDATE);
+                remove(record.getDomain());
+                commit(event, record.getDomain(), "invalidate");
+            }
+            else {
+                commit(event, record.getDomain(), "miss");
+            }
+
+            metrics.count(Counter.CACHE_MISS);
+            return Optional.empty();
+        });
+    }
+
+    /**
+     * Gets policy from cache by Domain.
+     * <p>Failsafe cache lookup if no DNS record found.
+     *
+     * @param domain Domain string.
+     * @return CompletionStage of Optional of StsPolicy instance.
+     */
+    public CompletionStage<Optional<StsPolicy>> getByDomain(String domain) {
+        if (domain == null) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+
+        CacheLookupEvent event = new CacheLookupEvent();
+        event.begin();
+
+        return lookup(domain).thenApply(policy -> {
+            if (policy != null) {
+                metrics.count(Counter.CACHE_HIT);
+                commit(event, domain, "hit");
+                policy.setCached(true);
+                return Optional.of(policy);
+            }
+
+            metrics.count(Counter.CACHE_MISS);
+            commit(event, domain, "miss");
+            return Optional.empty();
+        });
+    }
+
+    /**
+     * Gets policies from cache by domains.
+     * <p>Domains not found are absent from the result.
+     *
+     * @param domains Collection of domain strings.
+     * @return CompletionStage of map of StsPolicy instances by domain.
+     */
+    public CompletionStage<Map<String, StsPolicy>> getAll(Collection<String> domains) {
+        Set<String> set = new LinkedHashSet<>(domains);
+        set.remove(null);
+
+        if (set.isEmpty()) {
+            return CompletableFuture.completedFuture(new HashMap<>());
+        }
+
+        return lookupAll(set).thenApply(map -> {
+            for (String domain : set) {
+                StsPolicy policy = map.get(domain);
+                if (policy != null) {
+                    metrics.count(Counter.CACHE_HIT);
+                    policy.setCached(true);
+                }
+                else {
+                    metrics.count(Counter.CACHE_MISS);
+                }
+            }
+            return map;
+        });
+    }
+
+    /**
+     * Commits cache lookup event if enabled.
+     *
+     * @param event  CacheLookupEvent instance.
+     * @param domain Domain string.
+     * @param status Cache status string.
+     */
+    private void commit(CacheLookupEvent event, String domain, String status) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.domain = domain;
+            event.status = status;
+            event.cache = getClass().getSimpleName();
+            event.commit();
+        }
+    }
+
+    /**
+     * Adds policy to cache.
+     * <p>Abstract for policy caching.
+     *
+     * @param policy StsPolicy instance.
+     * @return CompletionStage completed once stored.
+     */
+    protected abstract CompletionStage<Void> add(StsPolicy policy);
+
+    /**
+     * Lookup policy in cache.
+     * <p>Abstract for policy lookup in cache.
+     *
+     * @param domain Domain string.
+     * @return CompletionStage of StsPolicy instance or null if not found.
+     */
+    protected abstract CompletionStage<StsPolicy> lookup(String domain);
+
+    /**
+     * Remove policy from cache.
+     * <p>Abstract for policy removal from cache.
+     *
+     * @param domain Domain string.
+     * @return CompletionStage completed once removed.
+     */
+    protected abstract CompletionStage<Void> remove(String domain);
+
+    /**
+     * Adds policies to cache.
+     * <p>Defaults to one add per policy.
+     *
+     * @param policies List of StsPolicy instances.
+     * @return CompletionStage completed once all stored.
+     */
+    protected CompletionStage<Void> addAll(List<StsPolicy> policies) {
+        return CompletableFuture.allOf(policies.stream()
+                .map(policy -> add(policy).toCompletableFuture())
+                .toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Lookup policies in cache.
+     * <p>Defaults to one lookup per domain.
+     *
+     * @param domains Set of domain strings.
+     * @return CompletionStage of map of StsPolicy instances by domain.
+     */
+    protected CompletionStage<Map<String, StsPolicy>> lookupAll(Set<String> domains) {
+        Map<String, CompletableFuture<StsPolicy>> futures = new LinkedHashMap<>();
+        for (String domain : domains) {
+            futures.put(domain, lookup(domain).toCompletableFuture());
+        }
+
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            Map<String, StsPolicy> map = new HashMap<>();
+            futures.forEach((domain, future) -> {
+                StsPolicy policy = future.join();
+                if (policy != null) {
+                    map.put(domain, policy);
+                }
+            });
+            return map;
+        });
+    }
+}
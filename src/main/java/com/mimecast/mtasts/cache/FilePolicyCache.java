@@ -0,0 +1,451 @@
+package com.mimecast.mtasts.cache;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * File policy cache.
+ * <p>Durable cache backed by an append-only log file so policies survive restarts.
+ * <p>Each put or remove appends a checksummed record holding the extended policy string from StsPolicy.asString().
+ * <p>The log is read in a background thread on construction and operations wait for it to finish.
+ * <p>Loading runs alongside the rest of startup but the log itself is replayed sequentially as records must apply in order.
+ * <p>Policies are only parsed on first lookup so startup cost is a sequential file read.
+ * <p>A torn record at the end of the log from a crash is discarded.
+ * <p>The log is compacted in a background thread once it holds more than twice as many records as live entries.
+ * <p>Records appended while compacting are kept aside and added to the new log before it replaces the old one.
+ * <p>Compaction drops entries expired for longer than the retention so the log does not grow without bound.
+ * <p>Call close() on graceful shutdown to flush and compact.
+ *
+ * @see StsPolicy#asString()
+ * @see PolicyCache
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class FilePolicyCache extends PolicyCache implements Closeable {
+    private static final Logger log = LogManager.getLogger(FilePolicyCache.class);
+
+    /**
+     * Put record operation.
+     */
+    private static final byte PUT = 1;
+
+    /**
+     * Remove record operation.
+     */
+    private static final byte DEL = 2;
+
+    /**
+     * Minimum log records before compaction is considered.
+     */
+    private static final int COMPACT_MIN = 1000;
+
+    /**
+     * Maximum record field length.
+     */
+    private static final int FIELD_MAX = 1 << 20;
+
+    /**
+     * Log file path.
+     */
+    private final Path file;
+
+    /**
+     * Entries by domain.
+     * <p>Values are extended policy strings until first lookup and StsPolicy instances after.
+     */
+    private final Map<String, Object> map = new ConcurrentHashMap<>();
+
+    /**
+     * Load future.
+     */
+    private final CompletableFuture<Void> loaded = new CompletableFuture<>();
+
+    /**
+     * Log writer.
+     */
+    private DataOutputStream writer;
+
+    /**
+     * Log records count.
+     */
+    private int records = 0;
+
+    /**
+     * Compaction lock.
+     */
+    private final Object compaction = new Object();
+
+    /**
+     * Records appended while compacting or null if not compacting.
+     */
+    private ByteArrayOutputStream tail;
+
+    /**
+     * Records appended while compacting count.
+     */
+    private int tailRecords = 0;
+
+    /**
+     * Background compaction started.
+     */
+    private boolean compacting = false;
+
+    /**
+     * Seconds expired entries are kept for conditional refetch.
+     */
+    private int retention = 30 * 24 * 3600;
+
+    /**
+     * Constructs a new FilePolicyCache instance.
+     * <p>Starts loading the log file in the background.
+     *
+     * @param file Log file path.
+     */
+    public FilePolicyCache(Path file) {
+        this.file = file;
+
+        Thread thread = new Thread(this::load, "mta-sts-file-cache");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Sets retention.
+     * <p>How long expired entries are kept for conditional refetch before compaction drops them.
+     * <p>Default: 30 days
+     *
+     * @param retention Retention in seconds.
+     * @return Self.
+     */
+    public FilePolicyCache setRetention(int retention) {
+        this.retention = Math.max(0, retention);
+        return this;
+    }
+
+    /**
+     * Adds policy to cache.
+     * <p>Implementation of policy caching.
+     *
+     * @param policy StsPolicy instance.
+     */
+    @Override
+    protected void add(StsPolicy policy) {
+        await();
+        String domain = policy.getRecord().getDomain();
+        synchronized (this) {
+            map.put(domain, policy);
+            append(PUT, domain, policy.asString());
+        }
+    }
+
+    /**
+     * Lookup policy in cache.
+     * <p>Implementation of policy lookup in cache.
+     * <p>Parses the stored extended policy on first lookup.
+     *
+     * @param domain Domain string.
+     * @return StsPolicy instance.
+     */
+    @Override
+    protected StsPolicy lookup(String domain) {
+        await();
+        Object entry = map.get(domain);
+
+        if (entry instanceof String) {
+            StsPolicy policy = PolicyCodec.decode((String) entry);
+            if (policy == null) {
+                map.remove(domain, entry);
+                return null;
+            }
+
+            map.replace(domain, entry, policy);
+            return policy;
+        }
+
+        return (StsPolicy) entry;
+    }
+
+    /**
+     * Remove policy from cache.
+     * <p>Implementation of policy removal from cache.
+     *
+     * @param domain Domain string.
+     */
+    @Override
+    protected void remove(String domain) {
+        await();
+        synchronized (this) {
+            if (map.remove(domain) != null) {
+                append(DEL, domain, "");
+            }
+        }
+    }
+
+    /**
+     * Gets cache size.
+     * <p>Implementation of cache size getter.
+     * <p>For testing.
+     *
+     * @return Integer.
+     */
+    @Override
+    int size() {
+        await();
+        return map.size();
+    }
+
+    /**
+     * Compacts log.
+     * <p>Rewrites live entries to a new file and atomically replaces the log.
+     * <p>Entries are written as stored and only parsed to check their expiry.
+     * <p>Expired entries are kept for the retention so they can be refetched conditionally, invalid ones are dropped.
+     * <p>Puts and removals carry on meanwhile and are added to the new log before the swap.
+     */
+    public void compact() {
+        await();
+
+        synchronized (compaction) {
+            synchronized (this) {
+                tail = new ByteArrayOutputStream();
+                tailRecords = 0;
+            }
+
+            // Every change after this point is also in the tail so a weakly consistent iteration is enough.
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            long now = Instant.now().getEpochSecond();
+            try {
+                int count = 0;
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                    for (Map.Entry<String, Object> entry : map.entrySet()) {
+                        Object value = entry.getValue();
+                        StsPolicy policy = value instanceof StsPolicy ? (StsPolicy) value : PolicyCodec.decode((String) value);
+                        if (policy == null || policy.getFetchTime() + policy.getMaxAge() + retention <= now) {
+                            map.remove(entry.getKey(), value);
+                            continue;
+                        }
+
+                        write(out, PUT, entry.getKey(), value instanceof StsPolicy ? policy.asString() : (String) value);
+                        count++;
+                    }
+                }
+
+                synchronized (this) {
+                    Files.write(temp, tail.toByteArray(), StandardOpenOption.APPEND);
+                    closeWriter();
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    records = count + tailRecords;
+                }
+            } catch (IOException e) {
+                log.error("Policy cache compaction failed: {}", e.getMessage());
+            } finally {
+                synchronized (this) {
+                    tail = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes cache.
+     * <p>Compacts and closes the log file.
+     */
+    @Override
+    public void close() {
+        compact();
+        closeWriter();
+    }
+
+    /**
+     * Loads log file.
+     * <p>Stops at the first truncated or corrupt record and drops the remainder.
+     */
+    private void load() {
+        long valid = 0;
+
+        try {
+            if (Files.exists(file)) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                    while (true) {
+                        int length = read(in);
+                        if (length < 0) {
+                            break;
+                        }
+                        valid += length;
+                        records++;
+                    }
+                }
+
+                if (valid < Files.size(file)) {
+                    log.warn("Policy cache log truncated at {} bytes", valid);
+                    try (FileOutputStream out = new FileOutputStream(file.toFile(), true)) {
+                        out.getChannel().truncate(valid);
+                    }
+                }
+            }
+
+            log.info("Policy cache loaded {} entries from {} records", map.size(), records);
+        } catch (IOException e) {
+            log.error("Policy cache load failed: {}", e.getMessage());
+        } finally {
+            loaded.complete(null);
+        }
+    }
+
+    /**
+     * Reads one log record into the map.
+     *
+     * @param in DataInputStream instance.
+     * @return Record bytes length or -1 if none or corrupt.
+     */
+    private int read(DataInputStream in) {
+        try {
+            byte op = in.readByte();
+            byte[] domain = new byte[field(in.readInt())];
+            in.readFully(domain);
+            byte[] text = new byte[field(in.readInt())];
+            in.readFully(text);
+            long crc = in.readLong();
+
+            if (crc != checksum(op, domain, text)) {
+                return -1;
+            }
+
+            String key = new String(domain, StandardCharsets.UTF_8);
+            if (op == PUT) {
+                map.put(key, new String(text, StandardCharsets.UTF_8));
+            }
+            else {
+                map.remove(key);
+            }
+
+            return 1 + 4 + domain.length + 4 + text.length + 8;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Validates record field length.
+     *
+     * @param length Field length.
+     * @return Field length.
+     * @throws IOException Length out of bounds.
+     */
+    private static int field(int length) throws IOException {
+        if (length < 0 || length > FIELD_MAX) {
+            throw new IOException("Field length invalid: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Appends log record.
+     * <p>Starts a background compaction when the log holds more than twice as many records as live entries.
+     *
+     * @param op     Operation byte.
+     * @param domain Domain string.
+     * @param text   Extended policy string.
+     */
+    private synchronized void append(byte op, String domain, String text) {
+        try {
+            if (writer == null) {
+                writer = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+            }
+
+            write(writer, op, domain, text);
+            writer.flush();
+            records++;
+
+            if (tail != null) {
+                write(new DataOutputStream(tail), op, domain, text);
+                tailRecords++;
+            }
+        } catch (IOException e) {
+            log.error("Policy cache append failed: {}", e.getMessage());
+        }
+
+        if (!compacting && records > COMPACT_MIN && records > map.size() * 2) {
+            compacting = true;
+
+            Thread thread = new Thread(() -> {
+                compact();
+                synchronized (this) {
+                    compacting = false;
+                }
+            }, "mta-sts-file-cache-compact");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Writes log record.
+     *
+     * @param out    DataOutputStream instance.
+     * @param op     Operation byte.
+     * @param domain Domain string.
+     * @param text   Extended policy string.
+     * @throws IOException IO exception.
+     */
+    private static void write(DataOutputStream out, byte op, String domain, String text) throws IOException {
+        byte[] domainBytes = domain.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+
+        out.writeByte(op);
+        out.writeInt(domainBytes.length);
+        out.write(domainBytes);
+        out.writeInt(textBytes.length);
+        out.write(textBytes);
+        out.writeLong(checksum(op, domainBytes, textBytes));
+    }
+
+    /**
+     * Computes record checksum.
+     *
+     * @param op     Operation byte.
+     * @param domain Domain bytes.
+     * @param text   Extended policy bytes.
+     * @return CRC32 long.
+     */
+    private static long checksum(byte op, byte[] domain, byte[] text) {
+        CRC32 crc = new CRC32();
+        crc.update(op);
+        crc.update(domain);
+        crc.update(text);
+        return crc.getValue();
+    }
+
+    /**
+     * Closes log writer if open.
+     */
+    private synchronized void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                log.error("Policy cache close failed: {}", e.getMessage());
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Waits for log load to finish.
+     */
+    private void await() {
+        loaded.join();
+    }
+}
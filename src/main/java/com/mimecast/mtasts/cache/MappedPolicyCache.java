@@ -0,0 +1,567 @@
+package com.mimecast.mtasts.cache;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+import com.mimecast.mtasts.metrics.Counter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Memory-mapped policy cache.
+ * <p>Shares policies between processes on one host through a memory-mapped file.
+ * <p>The file holds a fixed number of fixed size slots in an open-addressing table keyed by domain hash.
+ * <p>Each slot is guarded by a sequence number so readers never lock.
+ * <p>Writers hold a file lock on the slot sequence so only one writer across all processes changes a slot at a time.
+ * <p>Threads of this process first take a striped lock so they queue rather than contend for the same file lock.
+ * <p>A file channel closed by an interrupted writer is reopened so later writes still go through.
+ * <p>An odd sequence marks a write in progress and readers retry a bounded number of times before counting a miss.
+ * <p>The operating system releases the file lock of a crashed writer so the next writer takes over a slot left odd.
+ * <p>Policies that do not fit in a slot are not cached.
+ * <p>When the probe window is full the home slot is overwritten.
+ *
+ * <p>Slot: [long seq][long hash][int length][encoded policy].
+ *
+ * @see PolicyCodec
+ * @see PolicyCache
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class MappedPolicyCache extends PolicyCache implements Closeable {
+    private static final Logger log = LogManager.getLogger(MappedPolicyCache.class);
+
+    /**
+     * Long view of the mapped buffer for atomic slot sequence and hash access.
+     */
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    /**
+     * File magic.
+     */
+    private static final int MAGIC = 0x4D535453;
+
+    /**
+     * File version.
+     * <p>Bumped whenever the encoded policy layout changes.
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * File header length.
+     */
+    private static final int HEADER = 64;
+
+    /**
+     * Slot header length.
+     */
+    private static final int SLOT_HEADER = 20;
+
+    /**
+     * Maximum slots probed from the home slot.
+     */
+    private static final int PROBE_MAX = 16;
+
+    /**
+     * Maximum read attempts of a slot being written before giving up.
+     */
+    private static final int READ_MAX = 1000;
+
+    /**
+     * Stripe count bits.
+     */
+    private static final int STRIPE_BITS = 6;
+
+    /**
+     * Striped locks ordering writers of this process.
+     * <p>Shared by all instances as file locks are held per process.
+     */
+    private static final ReentrantLock[] stripes = new ReentrantLock[1 << STRIPE_BITS];
+    static {
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * File path.
+     */
+    private final Path file;
+
+    /**
+     * File channel.
+     * <p>Replaced if closed by an interrupt.
+     */
+    private volatile FileChannel channel;
+
+    /**
+     * Closed flag.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Mapped buffer.
+     */
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Slots count.
+     */
+    private final int slots;
+
+    /**
+     * Slot length.
+     */
+    private final int slotSize;
+
+    /**
+     * Constructs a new MappedPolicyCache instance.
+     * <p>Creates the file if missing otherwise uses the slot layout already in it.
+     *
+     * @param file     File path.
+     * @param slots    Slots count.
+     * @param slotSize Slot length in bytes, rounded up to a multiple of 8.
+     * @throws IOException File could not be mapped or is not a cache file.
+     */
+    public MappedPolicyCache(Path file, int slots, int slotSize) throws IOException {
+        this.file = file;
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        FileLock lock = channel.lock();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.nativeOrder());
+            if (channel.size() < HEADER) {
+                int size = (slotSize + 7) & ~7;
+                if ((long) slots * size + HEADER > Integer.MAX_VALUE) {
+                    throw new IOException("Cache file too large: " + slots + " x " + size);
+                }
+
+                header.putInt(MAGIC).putInt(VERSION).putInt(slots).putInt(size).flip();
+                channel.truncate(0);
+                channel.write(header, 0);
+                channel.write(ByteBuffer.allocate(1), HEADER + (long) slots * size - 1);
+                channel.force(true);
+            }
+            else {
+                channel.read(header, 0);
+                header.flip();
+                if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                    throw new IOException("Not a policy cache file: " + file);
+                }
+            }
+
+            header.rewind();
+            header.getInt();
+            header.getInt();
+            this.slots = header.getInt();
+            this.slotSize = header.getInt();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        } finally {
+            if (channel.isOpen()) {
+                lock.release();
+            }
+        }
+
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) this.slots * this.slotSize);
+        this.channel = channel;
+    }
+
+    /**
+     * Adds policy to cache.
+     * <p>Updates the slot holding the domain or takes the first free slot in the probe window.
+     *
+     * @param policy StsPolicy instance.
+     */
+    @Override
+    protected void add(StsPolicy policy) {
+        byte[] data = PolicyCodec.encode(policy);
+        if (data == null || data.length > slotSize - SLOT_HEADER) {
+            log.warn("Policy too large for cache slot: {}", policy.getRecord().getDomain());
+            return;
+        }
+
+        byte[] domain = PolicyCodec.bytes(policy.getRecord().getDomain());
+        long hash = PolicyCodec.hash(domain);
+        int home = home(hash);
+
+        while (true) {
+            int target = -1;
+            for (int i = 0; i < PROBE_MAX; i++) {
+                int slot = (home + i) % slots;
+                long slotHash = (long) LONGS.getAcquire(buffer, offset(slot) + 8);
+                if (slotHash == hash && matches(slot, domain)) {
+                    target = slot;
+                    break;
+                }
+                if (target < 0 && (slotHash == 0 || buffer.getInt(offset(slot) + 16) == 0)) {
+                    target = slot;
+                }
+                if (slotHash == 0) {
+                    break;
+                }
+            }
+
+            boolean evict = target < 0;
+            if (evict) {
+                target = home;
+            }
+
+            int offset = offset(target);
+            FileLock lock = lock(offset);
+            if (lock == null) {
+                return;
+            }
+
+            try {
+                long seq = begin(offset);
+
+                // Slot may have changed before it was locked.
+                long slotHash = (long) LONGS.get(buffer, offset + 8);
+                int length = buffer.getInt(offset + 16);
+                boolean same = slotHash == hash && length > 0 && matchesLocked(offset, domain);
+                if (!same && !evict && slotHash != 0 && length != 0) {
+                    end(offset, seq);
+                    continue;
+                }
+                if (evict && length > 0 && !same) {
+                    metrics.count(Counter.CACHE_EVICT);
+                }
+
+                buffer.put(offset + SLOT_HEADER, data);
+                buffer.putInt(offset + 16, data.length);
+                LONGS.set(buffer, offset + 8, hash);
+                end(offset, seq);
+                return;
+            } finally {
+                release(offset, lock);
+            }
+        }
+    }
+
+    /**
+     * Lookup policy in cache.
+     * <p>Lock-free read validated by the slot sequence.
+     * <p>A slot that does not decode, such as one corrupted by another process, reads as a miss.
+     *
+     * @param domain Domain string.
+     * @return StsPolicy instance.
+     */
+    @Override
+    protected StsPolicy lookup(String domain) {
+        byte[] bytes = PolicyCodec.bytes(domain);
+        long hash = PolicyCodec.hash(bytes);
+        int home = home(hash);
+
+        for (int i = 0; i < PROBE_MAX; i++) {
+            int slot = (home + i) % slots;
+            long slotHash = (long) LONGS.getAcquire(buffer, offset(slot) + 8);
+            if (slotHash == 0) {
+                return null;
+            }
+
+            if (slotHash == hash) {
+                byte[] data = read(slot, hash);
+                if (data != null) {
+                    ByteBuffer copy = ByteBuffer.wrap(data);
+                    try {
+                        if (PolicyCodec.isDomain(copy, 0, bytes)) {
+                            return PolicyCodec.decode(copy, 0);
+                        }
+                    } catch (RuntimeException e) {
+                        log.warn("Cache slot {} invalid: {}", slot, e.getMessage());
+                        return null;
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Remove policy from cache.
+     * <p>Leaves a tombstone so probing continues past it.
+     *
+     * @param domain Domain string.
+     */
+    @Override
+    protected void remove(String domain) {
+        byte[] bytes = PolicyCodec.bytes(domain);
+        long hash = PolicyCodec.hash(bytes);
+        int home = home(hash);
+
+        for (int i = 0; i < PROBE_MAX; i++) {
+            int slot = (home + i) % slots;
+            int offset = offset(slot);
+            long slotHash = (long) LONGS.getAcquire(buffer, offset + 8);
+            if (slotHash == 0) {
+                return;
+            }
+
+            if (slotHash == hash) {
+                FileLock lock = lock(offset);
+                if (lock == null) {
+                    return;
+                }
+
+                try {
+                    long seq = begin(offset);
+                    if ((long) LONGS.get(buffer, offset + 8) == hash && buffer.getInt(offset + 16) > 0 && matchesLocked(offset, bytes)) {
+                        buffer.putInt(offset + 16, 0);
+                    }
+                    end(offset, seq);
+                } finally {
+                    release(offset, lock);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets cache size.
+     * <p>Implementation of cache size getter.
+     * <p>For testing.
+     *
+     * @return Integer.
+     */
+    @Override
+    int size() {
+        int size = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            if ((long) LONGS.getAcquire(buffer, offset(slot) + 8) != 0 && buffer.getInt(offset(slot) + 16) > 0) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Closes file channel.
+     * <p>The mapping is released once unreachable.
+     *
+     * @throws IOException IO exception.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+
+    /**
+     * Gets file channel.
+     * <p>For testing.
+     *
+     * @return FileChannel instance.
+     */
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Reads slot data consistently.
+     * <p>Gives up after a bounded number of attempts so a busy or abandoned slot reads as a miss.
+     *
+     * @param slot Slot index.
+     * @param hash Expected hash.
+     * @return Encoded policy bytes or null if empty, changed or unreadable.
+     */
+    private byte[] read(int slot, long hash) {
+        int offset = offset(slot);
+
+        for (int i = 0; i < READ_MAX; i++) {
+            long before = (long) LONGS.getAcquire(buffer, offset);
+            if ((before & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+
+            long slotHash = (long) LONGS.get(buffer, offset + 8);
+            int length = buffer.getInt(offset + 16);
+            byte[] data = null;
+            if (slotHash == hash && length > 0 && length <= slotSize - SLOT_HEADER) {
+                data = new byte[length];
+                buffer.get(offset + SLOT_HEADER, data);
+            }
+
+            VarHandle.acquireFence();
+            if ((long) LONGS.getVolatile(buffer, offset) == before) {
+                return data;
+            }
+        }
+
+        log.debug("Cache slot {} busy", slot);
+        return null;
+    }
+
+    /**
+     * Checks slot domain.
+     * <p>Locks the slot as a busy slot must not read as a different domain to a writer.
+     *
+     * @param slot   Slot index.
+     * @param domain Domain bytes.
+     * @return Boolean.
+     */
+    private boolean matches(int slot, byte[] domain) {
+        int offset = offset(slot);
+        FileLock lock = lock(offset);
+        if (lock == null) {
+            return false;
+        }
+
+        try {
+            return buffer.getInt(offset + 16) > 0 && matchesLocked(offset, domain);
+        } finally {
+            release(offset, lock);
+        }
+    }
+
+    /**
+     * Checks slot domain while holding the slot.
+     *
+     * @param offset Slot offset.
+     * @param domain Domain bytes.
+     * @return Boolean.
+     */
+    private boolean matchesLocked(int offset, byte[] domain) {
+        return PolicyCodec.isDomain(buffer, offset + SLOT_HEADER, domain);
+    }
+
+    /**
+     * Locks slot for writing.
+     * <p>Takes the slot stripe first so threads of this process wait their turn without spinning.
+     * <p>Then waits for writers in other processes on the file lock.
+     * <p>If an interrupt closes the channel meanwhile it is reopened and the lock taken again.
+     *
+     * @param offset Slot offset.
+     * @return FileLock instance or null if the cache is closed or the file unusable.
+     */
+    private FileLock lock(int offset) {
+        ReentrantLock stripe = stripe(offset);
+        stripe.lock();
+
+        boolean interrupted = Thread.interrupted();
+        try {
+            while (!closed) {
+                FileChannel current = channel;
+                try {
+                    return current.lock(offset, 8, false);
+                } catch (ClosedChannelException e) {
+                    interrupted |= Thread.interrupted();
+                    reopen(current);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Cache slot at {} lock failed: {}", offset, e.getMessage());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        stripe.unlock();
+        return null;
+    }
+
+    /**
+     * Reopens channel closed by an interrupt.
+     * <p>The mapping stays valid, only file locks need the channel.
+     * <p>Locks other threads held on the closed channel are lost so their writes are briefly not exclusive across processes.
+     *
+     * @param current Closed FileChannel instance.
+     * @throws IOException Unable to reopen.
+     */
+    private synchronized void reopen(FileChannel current) throws IOException {
+        if (channel == current && !closed) {
+            log.error("Cache file channel closed by interrupt, reopening: {}", file);
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    /**
+     * Releases slot lock.
+     *
+     * @param offset Slot offset.
+     * @param lock   FileLock instance.
+     */
+    private void release(int offset, FileLock lock) {
+        try {
+            lock.release();
+        } catch (IOException e) {
+            log.debug("Cache slot lock release failed: {}", e.getMessage());
+        } finally {
+            stripe(offset).unlock();
+        }
+    }
+
+    /**
+     * Gets slot stripe.
+     *
+     * @param offset Slot offset.
+     * @return ReentrantLock instance.
+     */
+    private static ReentrantLock stripe(int offset) {
+        return stripes[(offset * 0x9E3779B9) >>> (32 - STRIPE_BITS)];
+    }
+
+    /**
+     * Begins slot write.
+     * <p>Called with the slot locked so a slot left odd was abandoned by a crashed writer.
+     *
+     * @param offset Slot offset.
+     * @return Odd sequence held.
+     */
+    private long begin(int offset) {
+        long seq = (long) LONGS.getVolatile(buffer, offset);
+        long held = seq + 1;
+        if ((seq & 1) != 0) {
+            log.warn("Cache slot at {} abandoned mid-write, taking over", offset);
+            held = seq + 2;
+        }
+
+        LONGS.compareAndSet(buffer, offset, seq, held);
+        return held;
+    }
+
+    /**
+     * Ends slot write.
+     *
+     * @param offset Slot offset.
+     * @param seq    Odd sequence held.
+     */
+    private void end(int offset, long seq) {
+        LONGS.setRelease(buffer, offset, seq + 1);
+    }
+
+    /**
+     * Gets home slot for hash.
+     *
+     * @param hash Hash long.
+     * @return Slot index.
+     */
+    private int home(long hash) {
+        return (int) Long.remainderUnsigned(hash, slots);
+    }
+
+    /**
+     * Gets slot offset.
+     *
+     * @param slot Slot index.
+     * @return Byte offset.
+     */
+    private int offset(int slot) {
+        return HEADER + slot * slotSize;
+    }
+}
@@ -1,6 +1,7 @@
 package com.mimecast.mtasts.cache;
 
 import com.mimecast.mtasts.assets.StsPolicy;
+import com.mimecast.mtasts.metrics.Counter;
 
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -9,6 +10,7 @@ import java.util.Map;
  * Memory policy cache.
  * <p>Stores StsPolicy instances in a deque map.
  * <p>For perfomance reasons this is limited to 100 entries.
+ * <p>Access is synchronized so it can be shared by concurrent lookups.
  * <p>In production environments a cloud cache implementation should be used instead.
  *
  * @see StsPolicy
@@ -36,7 +38,15 @@ public class MemoryPolicyCache extends PolicyCache {
      */
     @Override
     protected void add(StsPolicy policy) {
-        map.put(policy.getRecord().getDomain(), policy);
+        boolean evicted;
+        synchronized (map) {
+            int size = map.size();
+            evicted = map.put(policy.getRecord().getDomain(), policy) == null && map.size() == size;
+        }
+
+        if (evicted) {
+            metrics.count(Counter.CACHE_EVICT);
+        }
     }
 
     /**
@@ -47,7 +57,9 @@ public class MemoryPolicyCache extends PolicyCache {
      */
     @Override
     protected StsPolicy lookup(String domain) {
-        return map.get(domain);
+        synchronized (map) {
+            return map.get(domain);
+        }
     }
 
     /**
@@ -58,7 +70,9 @@ public class MemoryPolicyCache extends PolicyCache {
      */
     @Override
     protected void remove(String domain) {
-        map.remove(domain);
+        synchronized (map) {
+            map.remove(domain);
+        }
     }
 
     /**
@@ -70,6 +84,8 @@ public class MemoryPolicyCache extends PolicyCache {
      */
     @Override
     int size() {
-        return map.size();
+        synchronized (map) {
+            return map.size();
+        }
     }
 }
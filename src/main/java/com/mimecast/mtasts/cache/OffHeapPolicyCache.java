@@ -0,0 +1,375 @@
+package com.mimecast.mtasts.cache;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+import com.mimecast.mtasts.metrics.Counter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Off-heap policy cache.
+ * <p>Stores policies in compact binary form in direct memory so heap usage stays flat regardless of cache size.
+ * <p>Entries are appended to a direct arena buffer and indexed by an open-addressing hash table in a second direct buffer.
+ * <p>Index slots hold the 64-bit domain hash and the arena offset, collisions are resolved by comparing the stored domain bytes.
+ * <p>When the arena or index fill up live entries are compacted in place and the oldest entries evicted in batches if still short of room.
+ * <p>Lookups decode a StsPolicy instance from the stored bytes and keep it in a small direct-mapped on-heap table.
+ * <p>The table is keyed by arena offset and compaction epoch so hot domains skip parsing and stale instances are never returned.
+ * <p>Arena size is limited to 2GB by the ByteBuffer API.
+ *
+ * @see PolicyCodec
+ * @see PolicyCache
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class OffHeapPolicyCache extends PolicyCache {
+
+    /**
+     * Index slot size: hash long, offset int, padding int.
+     */
+    private static final int SLOT = 16;
+
+    /**
+     * Arena entry header size: length int, live byte, hash long.
+     */
+    private static final int HEADER = 13;
+
+    /**
+     * Removed slot offset marker.
+     */
+    private static final int TOMBSTONE = -1;
+
+    /**
+     * Decoded policies table size bits.
+     */
+    private static final int DECODED_BITS = 12;
+
+    /**
+     * Read write lock.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Max entries.
+     */
+    private final int maxEntries;
+
+    /**
+     * Index slot mask.
+     */
+    private final int mask;
+
+    /**
+     * Index buffer.
+     */
+    private final ByteBuffer index;
+
+    /**
+     * Arena buffer.
+     */
+    private final ByteBuffer arena;
+
+    /**
+     * Decoded policies by arena offset.
+     */
+    private final AtomicReferenceArray<Decoded> decoded = new AtomicReferenceArray<>(1 << DECODED_BITS);
+
+    /**
+     * Compaction epoch.
+     * <p>Offsets are reused after compaction so decoded policies are keyed by both.
+     */
+    private int epoch = 0;
+
+    /**
+     * Arena write position.
+     */
+    private int tail = 0;
+
+    /**
+     * Live entries count.
+     */
+    private int entries = 0;
+
+    /**
+     * Used slots count including tombstones.
+     */
+    private int used = 0;
+
+    /**
+     * Constructs a new OffHeapPolicyCache instance.
+     *
+     * @param maxEntries Maximum number of entries.
+     * @param arenaBytes Arena size in bytes.
+     */
+    public OffHeapPolicyCache(int maxEntries, int arenaBytes) {
+        this.maxEntries = maxEntries;
+
+        int slots = Integer.highestOneBit(Math.max(16, maxEntries * 2 - 1)) << 1;
+        this.mask = slots - 1;
+        this.index = ByteBuffer.allocateDirect(slots * SLOT);
+        this.arena = ByteBuffer.allocateDirect(arenaBytes);
+    }
+
+    /**
+     * Adds policy to cache.
+     * <p>Implementation of policy caching.
+     * <p>Policies with fields over 64k are not cached.
+     *
+     * @param policy StsPolicy instance.
+     */
+    @Override
+    protected void add(StsPolicy policy) {
+        byte[] encoded = PolicyCodec.encode(policy);
+        int size = encoded != null ? HEADER + encoded.length : Integer.MAX_VALUE;
+        if (size > arena.capacity()) {
+            return;
+        }
+
+        byte[] domain = PolicyCodec.bytes(policy.getRecord().getDomain());
+        long hash = PolicyCodec.hash(domain);
+
+        lock.writeLock().lock();
+        try {
+            delete(find(domain, hash));
+
+            if (tail + size > arena.capacity() || entries >= maxEntries || used >= (mask + 1) * 3 / 4) {
+                compact(size);
+            }
+
+            arena.putInt(tail, encoded.length);
+            arena.put(tail + 4, (byte) 1);
+            arena.putLong(tail + 5, hash);
+            arena.put(tail + HEADER, encoded);
+            insert(hash, tail);
+            tail += size;
+            entries++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Lookup policy in cache.
+     * <p>Implementation of policy lookup in cache.
+     *
+     * @param domain Domain string.
+     * @return StsPolicy instance.
+     */
+    @Override
+    protected StsPolicy lookup(String domain) {
+        byte[] bytes = PolicyCodec.bytes(domain);
+        String text;
+        long key;
+        int position;
+
+        lock.readLock().lock();
+        try {
+            int slot = find(bytes, PolicyCodec.hash(bytes));
+            if (slot < 0) {
+                return null;
+            }
+
+            int offset = index.getInt(slot * SLOT + 8);
+            key = ((long) epoch << 32) | offset;
+            position = (offset * 0x9E3779B9) >>> (32 - DECODED_BITS);
+
+            Decoded entry = decoded.get(position);
+            if (entry != null && entry.key == key) {
+                return entry.policy;
+            }
+
+            text = PolicyCodec.decodeString(arena, offset + HEADER);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        StsPolicy policy = new StsPolicy(text).make();
+        decoded.set(position, new Decoded(key, policy));
+        return policy;
+    }
+
+    /**
+     * Remove policy from cache.
+     * <p>Implementation of policy removal from cache.
+     *
+     * @param domain Domain string.
+     */
+    @Override
+    protected void remove(String domain) {
+        byte[] bytes = PolicyCodec.bytes(domain);
+
+        lock.writeLock().lock();
+        try {
+            delete(find(bytes, PolicyCodec.hash(bytes)));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets cache size.
+     * <p>Implementation of cache size getter.
+     * <p>For testing.
+     *
+     * @return Integer.
+     */
+    @Override
+    int size() {
+        lock.readLock().lock();
+        try {
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets arena bytes in use.
+     * <p>Includes removed entries not yet compacted.
+     *
+     * @return Integer.
+     */
+    public int getUsedBytes() {
+        lock.readLock().lock();
+        try {
+            return tail;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds index slot.
+     *
+     * @param domain Domain bytes.
+     * @param hash   Domain hash.
+     * @return Slot number or -1 if not found.
+     */
+    private int find(byte[] domain, long hash) {
+        for (int slot = (int) hash & mask, probes = 0; probes <= mask; slot = (slot + 1) & mask, probes++) {
+            long current = index.getLong(slot * SLOT);
+            if (current == 0) {
+                return -1;
+            }
+
+            int offset = index.getInt(slot * SLOT + 8);
+            if (current == hash && offset != TOMBSTONE && PolicyCodec.isDomain(arena, offset + HEADER, domain)) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Inserts index slot.
+     * <p>Reuses the first empty or removed slot.
+     *
+     * @param hash   Domain hash.
+     * @param offset Arena offset.
+     */
+    private void insert(long hash, int offset) {
+        int slot = (int) hash & mask;
+        while (index.getLong(slot * SLOT) != 0 && index.getInt(slot * SLOT + 8) != TOMBSTONE) {
+            slot = (slot + 1) & mask;
+        }
+
+        if (index.getLong(slot * SLOT) == 0) {
+            used++;
+        }
+        index.putLong(slot * SLOT, hash);
+        index.putInt(slot * SLOT + 8, offset);
+    }
+
+    /**
+     * Deletes entry by slot.
+     *
+     * @param slot Slot number or -1.
+     */
+    private void delete(int slot) {
+        if (slot >= 0) {
+            arena.put(index.getInt(slot * SLOT + 8) + 4, (byte) 0);
+            index.putInt(slot * SLOT + 8, TOMBSTONE);
+            entries--;
+        }
+    }
+
+    /**
+     * Compacts arena and rebuilds index.
+     * <p>Slides live entries down in place then evicts the oldest ones until the reserve fits.
+     *
+     * @param reserve Bytes needed after compaction.
+     */
+    private void compact(int reserve) {
+        int live = 0;
+        for (int read = 0; read < tail; read += HEADER + arena.getInt(read)) {
+            if (arena.get(read + 4) == 1) {
+                live += HEADER + arena.getInt(read);
+            }
+        }
+
+        // Evict in batches of 1/16th to amortize compaction when full.
+        int evictBytes = live + reserve > arena.capacity() ? live + reserve - arena.capacity() + arena.capacity() / 16 : 0;
+        int evictEntries = entries + 1 > maxEntries ? entries + 1 - maxEntries + maxEntries / 16 : 0;
+
+        for (int i = 0; i < index.capacity(); i += 8) {
+            index.putLong(i, 0L);
+        }
+        used = 0;
+        entries = 0;
+
+        int write = 0;
+        for (int read = 0; read < tail; ) {
+            int size = HEADER + arena.getInt(read);
+
+            if (arena.get(read + 4) == 1) {
+                if (evictBytes > 0 || evictEntries > 0) {
+                    evictBytes -= size;
+                    evictEntries--;
+                    metrics.count(Counter.CACHE_EVICT);
+                }
+                else {
+                    if (read != write) {
+                        arena.put(write, arena, read, size);
+                    }
+                    insert(arena.getLong(write + 5), write);
+                    entries++;
+                    write += size;
+                }
+            }
+
+            read += size;
+        }
+
+        tail = write;
+        epoch++;
+    }
+
+    /**
+     * Decoded policy.
+     */
+    private static final class Decoded {
+
+        /**
+         * Epoch and arena offset.
+         */
+        private final long key;
+
+        /**
+         * StsPolicy instance.
+         */
+        private final StsPolicy policy;
+
+        /**
+         * Constructs a new Decoded instance.
+         *
+         * @param key    Epoch and arena offset.
+         * @param policy StsPolicy instance.
+         */
+        private Decoded(long key, StsPolicy policy) {
+            this.key = key;
+            this.policy = policy;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.mimecast.mtasts.cache;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collection;
+
+/**
+ * Peer session.
+ * <p>Authenticates frames between cluster peers sharing a secret key.
+ * <p>Each side sends a random nonce on connect and every frame carries an HMAC-SHA256 over the receiver nonce, a frame sequence number and the payload.
+ * <p>Frames from hosts without the secret, replayed from another connection or reordered are rejected.
+ * <p>Payloads are authenticated but not encrypted as policies are public.
+ *
+ * <p>Handshake: [16 bytes nonce] each way.
+ * <p>Frame: [int length][payload][32 bytes HMAC].
+ *
+ * @see ReplicatedPolicyCache
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public final class PeerSession {
+
+    /**
+     * Minimum secret length in bytes.
+     */
+    public static final int SECRET_MIN = 16;
+
+    /**
+     * MAC algorithm.
+     */
+    private static final String ALGORITHM = "HmacSHA256";
+
+    /**
+     * Nonce length in bytes.
+     */
+    private static final int NONCE_LENGTH = 16;
+
+    /**
+     * MAC length in bytes.
+     */
+    private static final int MAC_LENGTH = 32;
+
+    /**
+     * SecureRandom instance.
+     */
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * Mac instance.
+     */
+    private final Mac mac;
+
+    /**
+     * Nonce sent to the peer.
+     */
+    private final byte[] localNonce;
+
+    /**
+     * Nonce received from the peer.
+     */
+    private final byte[] remoteNonce;
+
+    /**
+     * Frames sent.
+     */
+    private long sent = 0;
+
+    /**
+     * Frames received.
+     */
+    private long received = 0;
+
+    /**
+     * Constructs a new PeerSession instance.
+     *
+     * @param mac         Mac instance.
+     * @param localNonce  Nonce sent.
+     * @param remoteNonce Nonce received.
+     */
+    private PeerSession(Mac mac, byte[] localNonce, byte[] remoteNonce) {
+        this.mac = mac;
+        this.localNonce = localNonce;
+        this.remoteNonce = remoteNonce;
+    }
+
+    /**
+     * Opens session.
+     * <p>Exchanges nonces with the peer.
+     *
+     * @param in     DataInputStream instance.
+     * @param out    DataOutputStream instance.
+     * @param secret Shared secret bytes.
+     * @return PeerSession instance.
+     * @throws IOException Unable to exchange nonces.
+     */
+    public static PeerSession open(DataInputStream in, DataOutputStream out, byte[] secret) throws IOException {
+        byte[] localNonce = new byte[NONCE_LENGTH];
+        random.nextBytes(localNonce);
+        out.write(localNonce);
+        out.flush();
+
+        byte[] remoteNonce = new byte[NONCE_LENGTH];
+        in.readFully(remoteNonce);
+
+        return new PeerSession(mac(secret), localNonce, remoteNonce);
+    }
+
+    /**
+     * Writes frame.
+     *
+     * @param out     DataOutputStream instance.
+     * @param payload Payload bytes.
+     * @throws IOException Unable to write.
+     */
+    public void write(DataOutputStream out, byte[] payload) throws IOException {
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.write(sign(remoteNonce, sent++, payload));
+        out.flush();
+    }
+
+    /**
+     * Reads frame.
+     *
+     * @param in  DataInputStream instance.
+     * @param max Maximum payload length.
+     * @return Payload bytes.
+     * @throws IOException Unable to read or frame not authentic.
+     */
+    public byte[] read(DataInputStream in, int max) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > max) {
+            throw new IOException("Frame length invalid: " + length);
+        }
+
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        byte[] signature = new byte[MAC_LENGTH];
+        in.readFully(signature);
+
+        if (!MessageDigest.isEqual(signature, sign(localNonce, received++, payload))) {
+            throw new IOException("Frame authentication failed");
+        }
+
+        return payload;
+    }
+
+    /**
+     * Checks secret.
+     *
+     * @param secret Shared secret bytes.
+     * @return Secret bytes.
+     * @throws IllegalArgumentException Secret missing or too short.
+     */
+    public static byte[] checkSecret(byte[] secret) {
+        if (secret == null || secret.length < SECRET_MIN) {
+            throw new IllegalArgumentException("Shared secret must be at least " + SECRET_MIN + " bytes");
+        }
+        return secret.clone();
+    }
+
+    /**
+     * Is address one of the given peers.
+     *
+     * @param address InetAddress instance.
+     * @param peers   Collection of InetSocketAddress instances.
+     * @return Boolean.
+     */
+    public static boolean isPeer(InetAddress address, Collection<InetSocketAddress> peers) {
+        for (InetSocketAddress peer : peers) {
+            if (address.equals(peer.getAddress())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Signs frame.
+     *
+     * @param nonce    Receiver nonce.
+     * @param sequence Frame sequence number.
+     * @param payload  Payload bytes.
+     * @return MAC bytes.
+     */
+    private byte[] sign(byte[] nonce, long sequence, byte[] payload) {
+        mac.update(nonce);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mac.update((byte) (sequence >>> shift));
+        }
+        return mac.doFinal(payload);
+    }
+
+    /**
+     * Creates keyed Mac.
+     *
+     * @param secret Shared secret bytes.
+     * @return Mac instance.
+     */
+    private static Mac mac(byte[] secret) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(secret, ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " unavailable", e);
+        }
+    }
+}
@@ -2,6 +2,10 @@ package com.mimecast.mtasts.cache;
 
 import com.mimecast.mtasts.assets.StsPolicy;
 import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.events.CacheLookupEvent;
+import com.mimecast.mtasts.metrics.Counter;
+import com.mimecast.mtasts.metrics.Metrics;
+import com.mimecast.mtasts.metrics.NullMetrics;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -20,6 +24,23 @@ import java.util.Optional;
 public abstract class PolicyCache {
     private static final Logger log = LogManager.getLogger(PolicyCache.class);
 
+    /**
+     * Metrics instance.
+     */
+    protected Metrics metrics = NullMetrics.INSTANCE;
+
+    /**
+     * Sets metrics.
+     * <p>Records cache hits, misses, invalidations and evictions.
+     *
+     * @param metrics Metrics instance.
+     * @return Self.
+     */
+    public PolicyCache setMetrics(Metrics metrics) {
+        this.metrics = metrics != null ? metrics : NullMetrics.INSTANCE;
+        return this;
+    }
+
     /**
      * Puts policy in cache.
      * <p>Invalid and expired policies will not be cached.
@@ -45,20 +66,32 @@ public abstract class PolicyCache {
      */
     public Optional<StsPolicy> getByRecord(StsRecord record) {
         if (record != null) {
+            CacheLookupEvent event = new CacheLookupEvent();
+            event.begin();
+
             StsPolicy policy = lookup(record.getDomain());
 
             if (policy != null) {
 
                 // Validate record and cache policy ID match.
                 if (policy.getRecord().getId().equals(record.getId())) {
+                    metrics.count(Counter.CACHE_HIT);
+                    commit(event, record.getDomain(), "hit");
                     policy.setCached(true);
                     return Optional.of(policy);
                 }
                 else {
                     log.info("Record and policy ID mismatch, removing policy from cache");
+                    metrics.count(Counter.CACHE_INVALIDATE);
                     remove(record.getDomain());
+                    commit(event, record.getDomain(), "invalidate");
                 }
             }
+            else {
+                commit(event, record.getDomain(), "miss");
+            }
+
+            metrics.count(Counter.CACHE_MISS);
         }
 
         return Optional.empty();
@@ -73,17 +106,52 @@ public abstract class PolicyCache {
      */
     public Optional<StsPolicy> getByDomain(String domain) {
         if (domain != null) {
+            CacheLookupEvent event = new CacheLookupEvent();
+            event.begin();
+
             StsPolicy policy = lookup(domain);
 
             if (policy != null) {
+                metrics.count(Counter.CACHE_HIT);
+                commit(event, domain, "hit");
                 policy.setCached(true);
                 return Optional.of(policy);
             }
+
+            metrics.count(Counter.CACHE_MISS);
+            commit(event, domain, "miss");
         }
 
         return Optional.empty();
     }
 
+    /**
+     * Checks cache holds a policy for domain.
+     * <p>Does not count as a cache hit or miss.
+     *
+     * @param domain Domain string.
+     * @return Boolean.
+     */
+    public boolean contains(String domain) {
+        return domain != null && lookup(domain) != null;
+    }
+
+    /**
+     * Commits cache lookup event if enabled.
+     *
+     * @param event  CacheLookupEvent instance.
+     * @param domain Domain string.
+     * @param status Cache status string.
+     */
+    private void commit(CacheLookupEvent event, String domain, String status) {
+        if (event.shouldCommit()) {
+            event.domain = domain;
+            event.status = status;
+            event.cache = getClass().getSimpleName();
+            event.commit();
+        }
+    }
+
     /**
      * Adds policy to cache.
      * <p>Abstract for policy caching.
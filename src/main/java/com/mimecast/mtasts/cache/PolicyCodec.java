@@ -0,0 +1,238 @@
+package com.mimecast.mtasts.cache;
+
+import com.mimecast.mtasts.assets.StsMode;
+import com.mimecast.mtasts.assets.StsPolicy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Policy codec.
+ * <p>Compact binary form of the extended policy string for off-heap and file storage.
+ * <p>Layout: domain, record ID, version, mode, max age, fetch time, MX masks, ETag and Last-Modified.
+ * <p>Missing validators are stored as empty strings.
+ * <p>Strings are unsigned short length prefixed UTF-8.
+ * <p>Decoding goes through the StsPolicy(String) constructor so cached policies are built the same way everywhere.
+ *
+ * @see StsPolicy#asString()
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+final class PolicyCodec {
+    private static final Logger log = LogManager.getLogger(PolicyCodec.class);
+
+    /**
+     * Maximum string field length.
+     */
+    private static final int STRING_MAX = 0xFFFF;
+
+    /**
+     * Private constructor.
+     */
+    private PolicyCodec() {
+    }
+
+    /**
+     * Encodes policy.
+     *
+     * @param policy StsPolicy instance.
+     * @return Byte array or null if a field is too long.
+     */
+    static byte[] encode(StsPolicy policy) {
+        List<byte[]> strings = new ArrayList<>();
+        strings.add(bytes(policy.getRecord().getDomain()));
+        strings.add(bytes(policy.getRecord().getId()));
+        strings.add(bytes(policy.getVersion()));
+        for (String mask : policy.getMxMasks()) {
+            strings.add(bytes(mask));
+        }
+        strings.add(bytes(policy.getEtag()));
+        strings.add(bytes(policy.getLastModified()));
+
+        int size = 1 + 4 + 8 + 2;
+        for (byte[] string : strings) {
+            if (string.length > STRING_MAX) {
+                return null;
+            }
+            size += 2 + string.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        put(buffer, strings.get(0));
+        put(buffer, strings.get(1));
+        put(buffer, strings.get(2));
+        buffer.put((byte) policy.getMode().ordinal());
+        buffer.putInt(policy.getMaxAge());
+        buffer.putLong(policy.getFetchTime());
+        buffer.putShort((short) policy.getMxMasks().size());
+        for (int i = 3; i < strings.size(); i++) {
+            put(buffer, strings.get(i));
+        }
+
+        return buffer.array();
+    }
+
+    /**
+     * Decodes policy.
+     *
+     * @param buffer ByteBuffer instance.
+     * @param offset Encoded policy offset.
+     * @return StsPolicy instance.
+     */
+    static StsPolicy decode(ByteBuffer buffer, int offset) {
+        return new StsPolicy(decodeString(buffer, offset)).make();
+    }
+
+    /**
+     * Decodes extended policy string.
+     * <p>Expired policies are returned so they can be refetched conditionally.
+     *
+     * @param text Extended policy string.
+     * @return StsPolicy instance or null if invalid.
+     */
+    static StsPolicy decode(String text) {
+        try {
+            StsPolicy policy = new StsPolicy(text).make();
+            return policy.isValid() ? policy : null;
+        } catch (Exception e) {
+            log.warn("Policy cache entry invalid: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Decodes policy to extended policy string.
+     *
+     * @param buffer ByteBuffer instance.
+     * @param offset Encoded policy offset.
+     * @return Extended policy string.
+     */
+    static String decodeString(ByteBuffer buffer, int offset) {
+        int[] position = {offset};
+        String domain = get(buffer, position);
+        String recordId = get(buffer, position);
+        String version = get(buffer, position);
+        StsMode mode = StsMode.values()[buffer.get(position[0])];
+        int maxAge = buffer.getInt(position[0] + 1);
+        long fetchTime = buffer.getLong(position[0] + 5);
+        int masks = buffer.getShort(position[0] + 13) & 0xFFFF;
+        position[0] += 15;
+
+        StringBuilder builder = new StringBuilder()
+                .append("version: ").append(version).append("\r\n")
+                .append("mode: ").append(mode).append("\r\n");
+
+        for (int i = 0; i < masks; i++) {
+            builder.append("mx: ").append(get(buffer, position)).append("\r\n");
+        }
+
+        builder.append("max_age: ").append(maxAge).append("\r\n")
+                .append("fetch_time: ").append(fetchTime).append("\r\n")
+                .append("domain: ").append(domain).append("\r\n")
+                .append("record_id: ").append(recordId).append("\r\n");
+
+        String etag = get(buffer, position);
+        if (!etag.isEmpty()) {
+            builder.append("etag: ").append(Base64.getEncoder().encodeToString(bytes(etag))).append("\r\n");
+        }
+        String lastModified = get(buffer, position);
+        if (!lastModified.isEmpty()) {
+            builder.append("last_modified: ").append(Base64.getEncoder().encodeToString(bytes(lastModified))).append("\r\n");
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Checks encoded policy domain.
+     * <p>Compares bytes without decoding.
+     *
+     * @param buffer ByteBuffer instance.
+     * @param offset Encoded policy offset.
+     * @param domain Domain bytes.
+     * @return Boolean.
+     */
+    static boolean isDomain(ByteBuffer buffer, int offset, byte[] domain) {
+        int length = buffer.getShort(offset) & 0xFFFF;
+        if (length != domain.length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + 2 + i) != domain[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets encoded policy domain.
+     *
+     * @param buffer ByteBuffer instance.
+     * @param offset Encoded policy offset.
+     * @return Domain string.
+     */
+    static String getDomain(ByteBuffer buffer, int offset) {
+        return get(buffer, new int[]{offset});
+    }
+
+    /**
+     * Hashes domain.
+     * <p>64-bit FNV-1a never returning zero.
+     *
+     * @param domain Domain bytes.
+     * @return Hash long.
+     */
+    static long hash(byte[] domain) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : domain) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+
+        return hash != 0 ? hash : 1;
+    }
+
+    /**
+     * Gets UTF-8 bytes.
+     *
+     * @param string String.
+     * @return Byte array.
+     */
+    static byte[] bytes(String string) {
+        return string != null ? string.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    }
+
+    /**
+     * Puts length prefixed string.
+     *
+     * @param buffer ByteBuffer instance.
+     * @param string String bytes.
+     */
+    private static void put(ByteBuffer buffer, byte[] string) {
+        buffer.putShort((short) string.length);
+        buffer.put(string);
+    }
+
+    /**
+     * Gets length prefixed string.
+     *
+     * @param buffer   ByteBuffer instance.
+     * @param position Position holder advanced past the string.
+     * @return String.
+     */
+    private static String get(ByteBuffer buffer, int[] position) {
+        int length = buffer.getShort(position[0]) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        buffer.get(position[0] + 2, bytes);
+        position[0] += 2 + length;
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
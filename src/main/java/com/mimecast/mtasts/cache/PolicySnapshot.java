@@ -0,0 +1,460 @@
+package com.mimecast.mtasts.cache;
+
+import com.mimecast.mtasts.assets.StsMode;
+import com.mimecast.mtasts.assets.StsPolicy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Policy snapshot.
+ * <p>Read-only memory-mapped bundle of valid policies built once and shipped to every node.
+ * <p>Opening a snapshot only maps the file so a process starts with a warm policy set without parsing anything.
+ * <p>Entries are decoded from the mapping on lookup so only the pages touched are ever loaded.
+ * <p>Decoded policies are kept in a small direct-mapped table by index entry so hot domains are only parsed once.
+ * <p>Domains are kept in a sorted index searched by binary search over the UTF-8 bytes.
+ * <p>Identical policy bodies are stored once and shared by all domains using them.
+ * <p>Puts and removals are ignored so a snapshot is best used as the last tier of a TieredPolicyCache.
+ * <p>Expired policies are never returned.
+ *
+ * <p>Header: [int magic][int version][int count][long created][int reserved].
+ * <p>Index entry: [int domain offset][int record ID offset][int body offset][long fetch time].
+ * <p>Body: [string version][byte mode][int max age][short masks][string mask]...
+ * <p>Strings are unsigned short length prefixed UTF-8 and offsets are from the start of the file.
+ *
+ * @see TieredPolicyCache
+ * @see PolicyCache
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class PolicySnapshot extends PolicyCache implements Closeable {
+    private static final Logger log = LogManager.getLogger(PolicySnapshot.class);
+
+    /**
+     * File magic.
+     */
+    private static final int MAGIC = 0x4D535350;
+
+    /**
+     * File header length.
+     */
+    private static final int HEADER = 24;
+
+    /**
+     * Index entry length.
+     */
+    private static final int ENTRY = 20;
+
+    /**
+     * Maximum string field length.
+     */
+    private static final int STRING_MAX = 0xFFFF;
+
+    /**
+     * Decoded policies table size bits.
+     */
+    private static final int DECODED_BITS = 12;
+
+    /**
+     * File channel.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Mapped buffer.
+     */
+    private final MappedByteBuffer buffer;
+
+    /**
+     * Decoded policies by index entry.
+     */
+    private final AtomicReferenceArray<Decoded> decoded = new AtomicReferenceArray<>(1 << DECODED_BITS);
+
+    /**
+     * Entries count.
+     */
+    private final int count;
+
+    /**
+     * Created epoch seconds.
+     */
+    private final long created;
+
+    /**
+     * Constructs a new PolicySnapshot instance.
+     * <p>Maps the file read-only.
+     *
+     * @param file File path.
+     * @throws IOException File could not be mapped or is not a snapshot file.
+     */
+    public PolicySnapshot(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+
+        try {
+            long size = channel.size();
+            if (size < HEADER || size > Integer.MAX_VALUE) {
+                throw new IOException("Not a policy snapshot file: " + file);
+            }
+
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != 1) {
+                throw new IOException("Not a policy snapshot file: " + file);
+            }
+
+            count = buffer.getInt(8);
+            created = buffer.getLong(12);
+            if (count < 0 || HEADER + (long) count * ENTRY > size) {
+                throw new IOException("Policy snapshot file truncated: " + file);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes snapshot.
+     * <p>Invalid and expired policies are skipped and the latest fetched policy is kept per domain.
+     * <p>The file is written aside and moved into place so processes mapping the previous file are unaffected.
+     *
+     * @param file     File path.
+     * @param policies Collection of StsPolicy instances.
+     * @return Policies written count.
+     * @throws IOException IO exception.
+     */
+    public static int write(Path file, Collection<StsPolicy> policies) throws IOException {
+        // Sort by domain bytes keeping the latest policy per domain.
+        TreeMap<byte[], StsPolicy> sorted = new TreeMap<>(Arrays::compareUnsigned);
+        for (StsPolicy policy : policies) {
+            if (policy == null || policy.getRecord() == null || !policy.isValid() || policy.isExpired()) {
+                continue;
+            }
+
+            byte[] domain = PolicyCodec.bytes(policy.getRecord().getDomain());
+            if (domain.length > STRING_MAX || PolicyCodec.bytes(policy.getRecord().getId()).length > STRING_MAX || body(policy) == null) {
+                log.warn("Policy too large for snapshot: {}", policy.getRecord().getDomain());
+                continue;
+            }
+
+            StsPolicy existing = sorted.get(domain);
+            if (existing == null || existing.getFetchTime() < policy.getFetchTime()) {
+                sorted.put(domain, policy);
+            }
+        }
+
+        // Lay out strings and deduplicated bodies after the index.
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteBuffer index = ByteBuffer.allocate(sorted.size() * ENTRY);
+        Map<ByteBuffer, Integer> bodies = new HashMap<>();
+        int base = HEADER + sorted.size() * ENTRY;
+
+        for (Map.Entry<byte[], StsPolicy> entry : sorted.entrySet()) {
+            StsPolicy policy = entry.getValue();
+
+            int domainOffset = base + data.size();
+            put(data, entry.getKey());
+            int recordOffset = base + data.size();
+            put(data, PolicyCodec.bytes(policy.getRecord().getId()));
+
+            byte[] body = body(policy);
+            Integer bodyOffset = bodies.get(ByteBuffer.wrap(body));
+            if (bodyOffset == null) {
+                bodyOffset = base + data.size();
+                data.write(body);
+                bodies.put(ByteBuffer.wrap(body), bodyOffset);
+            }
+
+            index.putInt(domainOffset).putInt(recordOffset).putInt(bodyOffset).putLong(policy.getFetchTime());
+        }
+
+        if ((long) base + data.size() > Integer.MAX_VALUE) {
+            throw new IOException("Policy snapshot too large: " + sorted.size() + " policies");
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(1);
+            out.writeInt(sorted.size());
+            out.writeLong(Instant.now().getEpochSecond());
+            out.writeInt(0);
+            out.write(index.array());
+            data.writeTo(out);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        log.info("Policy snapshot written: {} policies, {} bodies", sorted.size(), bodies.size());
+        return sorted.size();
+    }
+
+    /**
+     * Gets created time.
+     *
+     * @return Epoch seconds.
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Adds policy to cache.
+     * <p>Snapshots are read-only.
+     *
+     * @param policy StsPolicy instance.
+     */
+    @Override
+    protected void add(StsPolicy policy) {
+        // Read-only.
+    }
+
+    /**
+     * Lookup policy in cache.
+     * <p>Binary search of the domain index.
+     *
+     * @param domain Domain string.
+     * @return StsPolicy instance or null if missing or expired.
+     */
+    @Override
+    protected StsPolicy lookup(String domain) {
+        byte[] bytes = PolicyCodec.bytes(domain);
+
+        try {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int compare = compare(buffer.getInt(HEADER + middle * ENTRY), bytes);
+                if (compare < 0) {
+                    low = middle + 1;
+                }
+                else if (compare > 0) {
+                    high = middle - 1;
+                }
+                else {
+                    StsPolicy policy = decoded(middle, domain);
+                    return policy != null && !policy.isExpired() ? policy : null;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            log.warn("Policy snapshot entry corrupt: {}", domain);
+        }
+
+        return null;
+    }
+
+    /**
+     * Remove policy from cache.
+     * <p>Snapshots are read-only.
+     *
+     * @param domain Domain string.
+     */
+    @Override
+    protected void remove(String domain) {
+        // Read-only.
+    }
+
+    /**
+     * Gets cache size.
+     * <p>Implementation of cache size getter.
+     * <p>For testing.
+     *
+     * @return Integer.
+     */
+    @Override
+    int size() {
+        return count;
+    }
+
+    /**
+     * Closes file channel.
+     * <p>The mapping is released once unreachable.
+     *
+     * @throws IOException IO exception.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Gets decoded index entry.
+     * <p>Decodes on first lookup or when the table slot was taken by another entry.
+     *
+     * @param entry  Index entry number.
+     * @param domain Domain string.
+     * @return StsPolicy instance or null if invalid.
+     */
+    private StsPolicy decoded(int entry, String domain) {
+        int position = (entry * 0x9E3779B9) >>> (32 - DECODED_BITS);
+        Decoded cached = decoded.get(position);
+        if (cached != null && cached.entry == entry) {
+            return cached.policy;
+        }
+
+        StsPolicy policy = decode(HEADER + entry * ENTRY, domain);
+        if (policy != null) {
+            decoded.set(position, new Decoded(entry, policy));
+        }
+        return policy;
+    }
+
+    /**
+     * Decodes index entry.
+     *
+     * @param entry  Index entry offset.
+     * @param domain Domain string.
+     * @return StsPolicy instance or null if invalid.
+     */
+    private StsPolicy decode(int entry, String domain) {
+        String recordId = get(new int[]{buffer.getInt(entry + 4)});
+        int[] position = {buffer.getInt(entry + 8)};
+        long fetchTime = buffer.getLong(entry + 12);
+        String version = get(position);
+
+        StsMode mode = StsMode.values()[buffer.get(position[0])];
+        int maxAge = buffer.getInt(position[0] + 1);
+        int masks = buffer.getShort(position[0] + 5) & 0xFFFF;
+        position[0] += 7;
+
+        StringBuilder builder = new StringBuilder()
+                .append("version: ").append(version).append("\r\n")
+                .append("mode: ").append(mode).append("\r\n");
+
+        for (int i = 0; i < masks; i++) {
+            builder.append("mx: ").append(get(position)).append("\r\n");
+        }
+
+        builder.append("max_age: ").append(maxAge).append("\r\n")
+                .append("fetch_time: ").append(fetchTime).append("\r\n")
+                .append("domain: ").append(domain).append("\r\n")
+                .append("record_id: ").append(recordId).append("\r\n");
+
+        return PolicyCodec.decode(builder.toString());
+    }
+
+    /**
+     * Compares index domain to domain bytes.
+     * <p>Unsigned byte order as written.
+     *
+     * @param offset Domain string offset.
+     * @param domain Domain bytes.
+     * @return Comparison result.
+     */
+    private int compare(int offset, byte[] domain) {
+        int length = buffer.getShort(offset) & 0xFFFF;
+        int common = Math.min(length, domain.length);
+        for (int i = 0; i < common; i++) {
+            int compare = Integer.compare(buffer.get(offset + 2 + i) & 0xFF, domain[i] & 0xFF);
+            if (compare != 0) {
+                return compare;
+            }
+        }
+
+        return Integer.compare(length, domain.length);
+    }
+
+    /**
+     * Encodes policy body.
+     *
+     * @param policy StsPolicy instance.
+     * @return Byte array or null if a field is too long.
+     */
+    private static byte[] body(StsPolicy policy) {
+        List<byte[]> masks = new ArrayList<>();
+        for (String mask : policy.getMxMasks()) {
+            masks.add(PolicyCodec.bytes(mask));
+        }
+
+        byte[] version = PolicyCodec.bytes(policy.getVersion());
+        int size = 2 + version.length + 1 + 4 + 2;
+        for (byte[] mask : masks) {
+            if (mask.length > STRING_MAX) {
+                return null;
+            }
+            size += 2 + mask.length;
+        }
+        if (version.length > STRING_MAX || masks.size() > STRING_MAX) {
+            return null;
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(size);
+        body.putShort((short) version.length).put(version);
+        body.put((byte) policy.getMode().ordinal());
+        body.putInt(policy.getMaxAge());
+        body.putShort((short) masks.size());
+        for (byte[] mask : masks) {
+            body.putShort((short) mask.length).put(mask);
+        }
+
+        return body.array();
+    }
+
+    /**
+     * Writes length prefixed string.
+     *
+     * @param out    ByteArrayOutputStream instance.
+     * @param string String bytes.
+     */
+    private static void put(ByteArrayOutputStream out, byte[] string) {
+        out.write(string.length >>> 8);
+        out.write(string.length);
+        out.write(string, 0, string.length);
+    }
+
+    /**
+     * Gets length prefixed string.
+     *
+     * @param position Position holder advanced past the string.
+     * @return String.
+     */
+    private String get(int[] position) {
+        int length = buffer.getShort(position[0]) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        buffer.get(position[0] + 2, bytes);
+        position[0] += 2 + length;
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decoded policy.
+     */
+    private static final class Decoded {
+
+        /**
+         * Index entry number.
+         */
+        private final int entry;
+
+        /**
+         * StsPolicy instance.
+         */
+        private final StsPolicy policy;
+
+        /**
+         * Constructs a new Decoded instance.
+         *
+         * @param entry  Index entry number.
+         * @param policy StsPolicy instance.
+         */
+        private Decoded(int entry, StsPolicy policy) {
+            this.entry = entry;
+            this.policy = policy;
+        }
+    }
+}
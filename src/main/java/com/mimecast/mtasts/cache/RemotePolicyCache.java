@@ -0,0 +1,486 @@
+package com.mimecast.mtasts.cache;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remote policy cache.
+ * <p>Reference AsyncPolicyCache implementation over a simple TCP protocol.
+ * <p>Requests are pipelined on a single connection and matched to responses by ID on a reader thread.
+ * <p>Connecting and writing happen on a dedicated I/O thread so callers only encode the request and get a future.
+ * <p>The server stores extended policy strings from StsPolicy.asString() as opaque values.
+ * <p>The connection is opened on first use and reopened after failure.
+ * <p>A failed connection only fails the requests sent on it.
+ * <p>Once closed all requests fail and the I/O thread stops.
+ *
+ * <p>Strings are int length prefixed UTF-8.
+ * <p>Request: [int id][byte op][int count] then count keys for GET and DEL or count key and value pairs for PUT.
+ * <p>Response: [int id][byte status][int count] then count key and value pairs found for GET.
+ *
+ * @see StsPolicy#asString()
+ * @see AsyncPolicyCache
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class RemotePolicyCache extends AsyncPolicyCache implements Closeable {
+    private static final Logger log = LogManager.getLogger(RemotePolicyCache.class);
+
+    /**
+     * Get operation.
+     */
+    public static final byte GET = 1;
+
+    /**
+     * Put operation.
+     */
+    public static final byte PUT = 2;
+
+    /**
+     * Remove operation.
+     */
+    public static final byte DEL = 3;
+
+    /**
+     * Success status.
+     */
+    public static final byte OK = 0;
+
+    /**
+     * Maximum string field length.
+     */
+    public static final int FIELD_MAX = 1 << 20;
+
+    /**
+     * Server address.
+     */
+    private final InetSocketAddress address;
+
+    /**
+     * Request ID sequence.
+     */
+    private final AtomicInteger ids = new AtomicInteger();
+
+    /**
+     * Pending requests by ID.
+     */
+    private final Map<Integer, Request> pending = new ConcurrentHashMap<>();
+
+    /**
+     * I/O executor.
+     * <p>Single thread owning connect and write, stopped when idle.
+     */
+    private final ThreadPoolExecutor io;
+
+    /**
+     * Timeout in milliseconds.
+     */
+    private int timeout = 1000;
+
+    /**
+     * Socket instance.
+     * <p>Set by the I/O thread and cleared on disconnect.
+     */
+    private Socket socket;
+
+    /**
+     * Closed flag.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Socket writer.
+     * <p>Only used by the I/O thread.
+     */
+    private DataOutputStream writer;
+
+    /**
+     * Constructs a new RemotePolicyCache instance.
+     *
+     * @param host Server host.
+     * @param port Server port.
+     */
+    public RemotePolicyCache(String host, int port) {
+        this.address = new InetSocketAddress(host, port);
+
+        io = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "mta-sts-remote-cache-io");
+            thread.setDaemon(true);
+            return thread;
+        });
+        io.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets connect and request timeout.
+     *
+     * @param timeout Timeout in milliseconds.
+     * @return Self.
+     */
+    public RemotePolicyCache setTimeout(int timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * Adds policy to cache.
+     * <p>Implementation of policy caching.
+     *
+     * @param policy StsPolicy instance.
+     * @return CompletionStage completed once stored.
+     */
+    @Override
+    protected CompletionStage<Void> add(StsPolicy policy) {
+        return addAll(Collections.singletonList(policy));
+    }
+
+    /**
+     * Lookup policy in cache.
+     * <p>Implementation of policy lookup in cache.
+     *
+     * @param domain Domain string.
+     * @return CompletionStage of StsPolicy instance or null if not found.
+     */
+    @Override
+    protected CompletionStage<StsPolicy> lookup(String domain) {
+        return lookupAll(Collections.singleton(domain)).thenApply(map -> map.get(domain));
+    }
+
+    /**
+     * Remove policy from cache.
+     * <p>Implementation of policy removal from cache.
+     *
+     * @param domain Domain string.
+     * @return CompletionStage completed once removed.
+     */
+    @Override
+    protected CompletionStage<Void> remove(String domain) {
+        return send(DEL, Collections.singletonList(new String[]{domain})).thenApply(entries -> null);
+    }
+
+    /**
+     * Adds policies to cache.
+     * <p>Single round trip.
+     *
+     * @param policies List of StsPolicy instances.
+     * @return CompletionStage completed once all stored.
+     */
+    @Override
+    protected CompletionStage<Void> addAll(List<StsPolicy> policies) {
+        List<String[]> entries = new ArrayList<>();
+        for (StsPolicy policy : policies) {
+            entries.add(new String[]{policy.getRecord().getDomain(), policy.asString()});
+        }
+
+        return send(PUT, entries).thenApply(list -> null);
+    }
+
+    /**
+     * Lookup policies in cache.
+     * <p>Single round trip.
+     * <p>Invalid entries are left out while expired ones are returned for conditional refetch.
+     *
+     * @param domains Set of domain strings.
+     * @return CompletionStage of map of StsPolicy instances by domain.
+     */
+    @Override
+    protected CompletionStage<Map<String, StsPolicy>> lookupAll(Set<String> domains) {
+        List<String[]> entries = new ArrayList<>();
+        for (String domain : domains) {
+            entries.add(new String[]{domain});
+        }
+
+        return send(GET, entries).thenApply(list -> {
+            Map<String, StsPolicy> map = new HashMap<>();
+            for (String[] entry : list) {
+                StsPolicy policy = PolicyCodec.decode(entry[1]);
+                if (policy != null) {
+                    map.put(entry[0], policy);
+                }
+            }
+            return map;
+        });
+    }
+
+    /**
+     * Closes cache.
+     * <p>Stops the I/O thread, closes the connection and fails pending and later requests.
+     */
+    @Override
+    public void close() {
+        Socket current;
+        synchronized (this) {
+            closed = true;
+            current = socket;
+        }
+        io.shutdown();
+
+        IOException exception = new IOException("Cache closed");
+        if (current != null) {
+            disconnect(current, exception);
+        }
+        for (Integer id : new ArrayList<>(pending.keySet())) {
+            fail(id, exception);
+        }
+    }
+
+    /**
+     * Gets current socket.
+     * <p>For testing.
+     *
+     * @return Socket instance or null if not connected.
+     */
+    synchronized Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Sends request.
+     * <p>Encodes on the caller thread and hands the write to the I/O thread.
+     *
+     * @param op      Operation byte.
+     * @param entries List of string arrays.
+     * @return CompletableFuture of response key and value pairs.
+     */
+    private CompletableFuture<List<String[]>> send(byte op, List<String[]> entries) {
+        int id = ids.incrementAndGet();
+        CompletableFuture<List<String[]>> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IOException("Cache closed"));
+            return future;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(id);
+            out.writeByte(op);
+            out.writeInt(entries.size());
+            for (String[] entry : entries) {
+                for (String string : entry) {
+                    writeString(out, string);
+                }
+            }
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        pending.put(id, new Request(future));
+        try {
+            io.execute(() -> write(id, bytes.toByteArray()));
+        } catch (RejectedExecutionException e) {
+            fail(id, new IOException("Cache closed"));
+        }
+
+        return future.orTimeout(timeout, TimeUnit.MILLISECONDS)
+                .whenComplete((list, throwable) -> pending.remove(id));
+    }
+
+    /**
+     * Writes request.
+     * <p>Runs on the I/O thread and connects if needed.
+     * <p>Requests that timed out while queued are not sent.
+     * <p>The request is tied to the connection before writing so only a failure of that connection fails it.
+     *
+     * @param id    Request ID.
+     * @param bytes Encoded request bytes.
+     */
+    private void write(int id, byte[] bytes) {
+        Request request = pending.get(id);
+        if (request == null) {
+            return;
+        }
+
+        Socket current = null;
+        try {
+            current = connect();
+            request.socket = current;
+            writer.write(bytes);
+            writer.flush();
+        } catch (IOException e) {
+            log.warn("Remote cache request failed: {}", e.getMessage());
+            fail(id, e);
+            if (current != null) {
+                disconnect(current, e);
+            }
+        }
+    }
+
+    /**
+     * Fails pending request.
+     *
+     * @param id        Request ID.
+     * @param exception Failure cause.
+     */
+    private void fail(int id, IOException exception) {
+        Request request = pending.remove(id);
+        if (request != null) {
+            request.future.completeExceptionally(exception);
+        }
+    }
+
+    /**
+     * Connects if not connected.
+     * <p>Runs on the I/O thread and starts the response reader thread.
+     *
+     * @return Socket instance.
+     * @throws IOException Unable to connect.
+     */
+    private Socket connect() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Cache closed");
+            }
+            if (socket != null) {
+                return socket;
+            }
+        }
+
+        Socket current = new Socket();
+        try {
+            current.setTcpNoDelay(true);
+            current.connect(address, timeout);
+            writer = new DataOutputStream(new BufferedOutputStream(current.getOutputStream()));
+        } catch (IOException e) {
+            current.close();
+            throw e;
+        }
+        synchronized (this) {
+            if (closed) {
+                current.close();
+                throw new IOException("Cache closed");
+            }
+            socket = current;
+        }
+
+        Thread thread = new Thread(() -> read(current), "mta-sts-remote-cache");
+        thread.setDaemon(true);
+        thread.start();
+
+        return current;
+    }
+
+    /**
+     * Reads responses until the connection fails.
+     *
+     * @param current Socket instance.
+     */
+    private void read(Socket current) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(current.getInputStream()))) {
+            while (true) {
+                int id = in.readInt();
+                byte status = in.readByte();
+                int count = in.readInt();
+
+                List<String[]> list = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    list.add(new String[]{readString(in), readString(in)});
+                }
+
+                Request request = pending.remove(id);
+                if (request != null) {
+                    if (status == OK) {
+                        request.future.complete(list);
+                    }
+                    else {
+                        request.future.completeExceptionally(new IOException("Remote cache error status: " + status));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            disconnect(current, e);
+        }
+    }
+
+    /**
+     * Disconnects and fails requests sent on the connection.
+     * <p>Requests queued for or sent on a newer connection are left alone.
+     * <p>Package-private for testing.
+     *
+     * @param current   Socket instance.
+     * @param exception Failure cause.
+     */
+    void disconnect(Socket current, IOException exception) {
+        synchronized (this) {
+            if (socket == current) {
+                socket = null;
+            }
+        }
+
+        try {
+            current.close();
+        } catch (IOException e) {
+            log.debug("Remote cache close failed: {}", e.getMessage());
+        }
+
+        for (Map.Entry<Integer, Request> entry : new ArrayList<>(pending.entrySet())) {
+            if (entry.getValue().socket == current) {
+                fail(entry.getKey(), exception);
+            }
+        }
+    }
+
+    /**
+     * Writes string field.
+     *
+     * @param out    DataOutputStream instance.
+     * @param string String.
+     * @throws IOException IO exception.
+     */
+    public static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads string field.
+     *
+     * @param in DataInputStream instance.
+     * @return String.
+     * @throws IOException IO exception or length out of bounds.
+     */
+    public static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > FIELD_MAX) {
+            throw new IOException("Field length invalid: " + length);
+        }
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Pending request.
+     */
+    private static final class Request {
+
+        /**
+         * Response future.
+         */
+        private final CompletableFuture<List<String[]>> future;
+
+        /**
+         * Socket the request was sent on or null if not sent yet.
+         */
+        private volatile Socket socket;
+
+        /**
+         * Constructs a new Request instance.
+         *
+         * @param future CompletableFuture instance.
+         */
+        private Request(CompletableFuture<List<String[]>> future) {
+            this.future = future;
+        }
+    }
+}
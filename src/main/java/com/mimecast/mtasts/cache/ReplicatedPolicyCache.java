@@ -0,0 +1,536 @@
+package com.mimecast.mtasts.cache;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+import com.mimecast.mtasts.metrics.Counter;
+import com.mimecast.mtasts.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Replicated policy cache.
+ * <p>Decorates a PolicyCache and shares new policies and record ID invalidations with peer nodes over TCP.
+ * <p>Changes are queued and sent in gzip compressed batches on a background thread.
+ * <p>Inbound policies are parsed and validated before being stored and are never forwarded again.
+ * <p>Invalidations carry the stale record ID so a peer only drops its entry if it holds the same stale policy.
+ * <p>Replication is best effort and a lost batch only costs the peer its own fetch.
+ * <p>Only connections from configured peer addresses are accepted and every frame is authenticated with the shared secret.
+ *
+ * <p>Frame: PeerSession frame of the gzip payload.
+ * <p>Payload: [int count] then count of [byte op][string domain][string value].
+ * <p>Value is the extended policy string for PUT and the stale record ID for DEL.
+ *
+ * @see StsPolicy#asString()
+ * @see PeerSession
+ * @see PolicyCache
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class ReplicatedPolicyCache extends PolicyCache implements Closeable {
+    private static final Logger log = LogManager.getLogger(ReplicatedPolicyCache.class);
+
+    /**
+     * Put operation.
+     */
+    private static final byte PUT = 1;
+
+    /**
+     * Invalidate operation.
+     */
+    private static final byte DEL = 2;
+
+    /**
+     * Maximum messages per batch.
+     */
+    private static final int BATCH_MAX = 500;
+
+    /**
+     * Maximum queued messages before dropping.
+     */
+    private static final int QUEUE_MAX = 10000;
+
+    /**
+     * Maximum frame length.
+     */
+    private static final int FRAME_MAX = 16 << 20;
+
+    /**
+     * Delegate PolicyCache instance.
+     */
+    private final PolicyCache delegate;
+
+    /**
+     * ServerSocket instance.
+     */
+    private final ServerSocket serverSocket;
+
+    /**
+     * Shared secret.
+     */
+    private final byte[] secret;
+
+    /**
+     * Peers.
+     */
+    private final List<Peer> peers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Inbound peer connections.
+     */
+    private final List<Socket> inbound = new CopyOnWriteArrayList<>();
+
+    /**
+     * Outbound queue.
+     */
+    private final BlockingQueue<Message> queue = new LinkedBlockingQueue<>(QUEUE_MAX);
+
+    /**
+     * Batch linger in milliseconds.
+     */
+    private int linger = 20;
+
+    /**
+     * Closed flag.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Constructs a new ReplicatedPolicyCache instance.
+     * <p>Listens for peers on the given address.
+     * <p>Every peer must be configured with the same secret.
+     *
+     * @param delegate PolicyCache instance.
+     * @param address  Listen address, port 0 for ephemeral.
+     * @param secret   Shared secret, at least 16 bytes.
+     * @throws IOException Unable to listen.
+     */
+    public ReplicatedPolicyCache(PolicyCache delegate, InetSocketAddress address, byte[] secret) throws IOException {
+        this.delegate = delegate;
+        this.secret = PeerSession.checkSecret(secret);
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(address);
+
+        start(this::accept, "mta-sts-replica-accept");
+        start(this::send, "mta-sts-replica-send");
+    }
+
+    /**
+     * Gets listen port.
+     *
+     * @return Port number.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Adds peer.
+     * <p>Inbound connections are only accepted from peer addresses.
+     *
+     * @param host Peer host.
+     * @param port Peer port.
+     * @return Self.
+     */
+    public ReplicatedPolicyCache addPeer(String host, int port) {
+        peers.add(new Peer(new InetSocketAddress(host, port), secret));
+        return this;
+    }
+
+    /**
+     * Sets batch linger.
+     * <p>How long to wait for more changes before sending a batch.
+     *
+     * @param linger Linger in milliseconds.
+     * @return Self.
+     */
+    public ReplicatedPolicyCache setLinger(int linger) {
+        this.linger = linger;
+        return this;
+    }
+
+    /**
+     * Sets metrics.
+     * <p>Also set on the delegate.
+     *
+     * @param metrics Metrics instance.
+     * @return Self.
+     */
+    @Override
+    public ReplicatedPolicyCache setMetrics(Metrics metrics) {
+        super.setMetrics(metrics);
+        delegate.setMetrics(metrics);
+        return this;
+    }
+
+    /**
+     * Adds policy to cache.
+     * <p>Stores locally and queues for peers.
+     *
+     * @param policy StsPolicy instance.
+     */
+    @Override
+    protected void add(StsPolicy policy) {
+        delegate.add(policy);
+        enqueue(new Message(PUT, policy.getRecord().getDomain(), policy.asString()));
+    }
+
+    /**
+     * Lookup policy in cache.
+     * <p>Implementation of policy lookup in cache.
+     *
+     * @param domain Domain string.
+     * @return StsPolicy instance.
+     */
+    @Override
+    protected StsPolicy lookup(String domain) {
+        return delegate.lookup(domain);
+    }
+
+    /**
+     * Remove policy from cache.
+     * <p>Removes locally and queues the stale record ID for peers.
+     *
+     * @param domain Domain string.
+     */
+    @Override
+    protected void remove(String domain) {
+        StsPolicy policy = delegate.lookup(domain);
+        delegate.remove(domain);
+        if (policy != null) {
+            enqueue(new Message(DEL, domain, policy.getRecord().getId()));
+        }
+    }
+
+    /**
+     * Gets cache size.
+     * <p>Implementation of cache size getter.
+     * <p>For testing.
+     *
+     * @return Integer.
+     */
+    @Override
+    int size() {
+        return delegate.size();
+    }
+
+    /**
+     * Closes node.
+     * <p>Stops listening and disconnects from peers.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.debug("Replica listener close failed: {}", e.getMessage());
+        }
+        for (Peer peer : peers) {
+            peer.close();
+        }
+        for (Socket socket : inbound) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("Replica peer close failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Queues message for peers.
+     * <p>Dropped if the queue is full.
+     *
+     * @param message Message instance.
+     */
+    private void enqueue(Message message) {
+        if (!closed && !peers.isEmpty() && !queue.offer(message)) {
+            log.warn("Replica queue full, dropping {}", message.domain);
+        }
+    }
+
+    /**
+     * Sends queued messages in batches.
+     */
+    private void send() {
+        List<Message> batch = new ArrayList<>();
+        try {
+            while (!closed) {
+                Message message = queue.poll(1, TimeUnit.SECONDS);
+                if (message == null) {
+                    continue;
+                }
+
+                batch.add(message);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(linger);
+                while (batch.size() < BATCH_MAX) {
+                    message = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (message == null) {
+                        break;
+                    }
+                    batch.add(message);
+                }
+
+                byte[] frame = encode(batch);
+                for (Peer peer : peers) {
+                    peer.send(frame);
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Accepts peer connections.
+     */
+    private void accept() {
+        try {
+            while (!closed) {
+                Socket socket = serverSocket.accept();
+                if (!isPeer(socket)) {
+                    continue;
+                }
+                inbound.add(socket);
+                start(() -> receive(socket), "mta-sts-replica-receive");
+            }
+        } catch (IOException e) {
+            log.debug("Replica listener stopped: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Is connection from a configured peer.
+     * <p>Closes the connection if not.
+     *
+     * @param socket Socket instance.
+     * @return Boolean.
+     */
+    private boolean isPeer(Socket socket) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (Peer peer : peers) {
+            addresses.add(peer.address);
+        }
+        if (PeerSession.isPeer(socket.getInetAddress(), addresses)) {
+            return true;
+        }
+
+        log.warn("Replica connection refused from: {}", socket.getInetAddress().getHostAddress());
+        metrics.count(Counter.REPLICA_REJECT);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.debug("Replica peer close failed: {}", e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Receives frames from a peer connection.
+     * <p>Drops the connection on the first frame failing authentication.
+     *
+     * @param socket Socket instance.
+     */
+    private void receive(Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            PeerSession session = PeerSession.open(in, out, secret);
+            while (true) {
+                byte[] frame = session.read(in, FRAME_MAX);
+                if (closed) {
+                    break;
+                }
+                decode(frame);
+            }
+        } catch (IOException e) {
+            log.debug("Replica peer closed: {}", e.getMessage());
+        } finally {
+            inbound.remove(socket);
+        }
+    }
+
+    /**
+     * Encodes batch to frame payload.
+     *
+     * @param batch List of Message instances.
+     * @return Gzip compressed bytes.
+     */
+    private static byte[] encode(List<Message> batch) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeInt(batch.size());
+            for (Message message : batch) {
+                out.writeByte(message.op);
+                RemotePolicyCache.writeString(out, message.domain);
+                RemotePolicyCache.writeString(out, message.value);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes and applies frame payload.
+     *
+     * @param frame Gzip compressed bytes.
+     * @throws IOException Payload corrupt.
+     */
+    private void decode(byte[] frame) throws IOException {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(frame)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte op = in.readByte();
+                String domain = RemotePolicyCache.readString(in);
+                String value = RemotePolicyCache.readString(in);
+                apply(op, domain, value);
+            }
+        }
+    }
+
+    /**
+     * Applies peer message to the delegate.
+     * <p>Skips policies older than or as old as the one already held, whatever their record ID.
+     *
+     * @param op     Operation byte.
+     * @param domain Domain string.
+     * @param value  Extended policy string or stale record ID.
+     */
+    private void apply(byte op, String domain, String value) {
+        StsPolicy current = delegate.lookup(domain);
+
+        if (op == PUT) {
+            StsPolicy policy = PolicyCodec.decode(value);
+            if (policy == null || !domain.equals(policy.getRecord().getDomain())) {
+                log.warn("Replica policy rejected for: {}", domain);
+                metrics.count(Counter.REPLICA_REJECT);
+                return;
+            }
+
+            if (current == null || current.getFetchTime() < policy.getFetchTime()) {
+                delegate.put(policy);
+            }
+            metrics.count(Counter.REPLICA_ACCEPT);
+        }
+        else if (op == DEL) {
+            if (current != null && current.getRecord().getId().equals(value)) {
+                delegate.remove(domain);
+            }
+            metrics.count(Counter.REPLICA_ACCEPT);
+        }
+    }
+
+    /**
+     * Starts daemon thread.
+     *
+     * @param runnable Runnable instance.
+     * @param name     Thread name.
+     */
+    private static void start(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Replication message.
+     */
+    private static final class Message {
+        private final byte op;
+        private final String domain;
+        private final String value;
+
+        /**
+         * Constructs a new Message instance.
+         *
+         * @param op     Operation byte.
+         * @param domain Domain string.
+         * @param value  Extended policy string or stale record ID.
+         */
+        private Message(byte op, String domain, String value) {
+            this.op = op;
+            this.domain = domain;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Peer connection.
+     * <p>Connects on first send and reconnects once on failure.
+     */
+    private static final class Peer {
+        private final InetSocketAddress address;
+        private final byte[] secret;
+        private Socket socket;
+        private DataOutputStream out;
+        private PeerSession session;
+
+        /**
+         * Constructs a new Peer instance.
+         *
+         * @param address Peer address.
+         * @param secret  Shared secret.
+         */
+        private Peer(InetSocketAddress address, byte[] secret) {
+            this.address = address;
+            this.secret = secret;
+        }
+
+        /**
+         * Sends frame.
+         *
+         * @param frame Gzip compressed bytes.
+         */
+        private synchronized void send(byte[] frame) {
+            for (int attempt = 0; attempt < 2; attempt++) {
+                try {
+                    if (socket == null) {
+                        socket = new Socket();
+                        socket.setTcpNoDelay(true);
+                        socket.setSoTimeout(1000);
+                        socket.connect(address, 1000);
+                        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                        session = PeerSession.open(new DataInputStream(new BufferedInputStream(socket.getInputStream())), out, secret);
+                    }
+
+                    session.write(out, frame);
+                    return;
+                } catch (IOException e) {
+                    log.debug("Replica send to {} failed: {}", address, e.getMessage());
+                    close();
+                }
+            }
+
+            log.warn("Replica batch dropped for {}", address);
+        }
+
+        /**
+         * Closes connection if open.
+         */
+        private synchronized void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    log.debug("Replica peer close failed: {}", e.getMessage());
+                }
+                socket = null;
+                out = null;
+                session = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.mimecast.mtasts.cache;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.metrics.Counter;
+
+import java.util.Optional;
+
+/**
+ * Tiered policy cache.
+ * <p>Composes a small fast L1 cache in front of a larger slower L2 cache.
+ * <p>Read-through: L1 misses are looked up in L2.
+ * <p>Promotion-on-hit: L2 hits are copied into L1.
+ * <p>Write-through: puts go to both tiers, otherwise to L2 only and L1 fills by promotion.
+ * <p>All are enabled by default.
+ * <p>Record ID mismatch invalidation is checked on each tier so a stale L1 entry does not remove a fresh L2 entry.
+ * <p>Removals always apply to both tiers.
+ *
+ * @see PolicyCache
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class TieredPolicyCache extends PolicyCache {
+
+    /**
+     * L1 cache.
+     */
+    private final PolicyCache l1;
+
+    /**
+     * L2 cache.
+     */
+    private final PolicyCache l2;
+
+    /**
+     * Read-through.
+     */
+    private boolean readThrough = true;
+
+    /**
+     * Write-through.
+     */
+    private boolean writeThrough = true;
+
+    /**
+     * Promote on hit.
+     */
+    private boolean promoteOnHit = true;
+
+    /**
+     * Constructs a new TieredPolicyCache instance.
+     *
+     * @param l1 L1 PolicyCache instance.
+     * @param l2 L2 PolicyCache instance.
+     */
+    public TieredPolicyCache(PolicyCache l1, PolicyCache l2) {
+        this.l1 = l1;
+        this.l2 = l2;
+    }
+
+    /**
+     * Sets read-through.
+     *
+     * @param readThrough Boolean.
+     * @return Self.
+     */
+    public TieredPolicyCache setReadThrough(boolean readThrough) {
+        this.readThrough = readThrough;
+        return this;
+    }
+
+    /**
+     * Sets write-through.
+     *
+     * @param writeThrough Boolean.
+     * @return Self.
+     */
+    public TieredPolicyCache setWriteThrough(boolean writeThrough) {
+        this.writeThrough = writeThrough;
+        return this;
+    }
+
+    /**
+     * Sets promote on hit.
+     *
+     * @param promoteOnHit Boolean.
+     * @return Self.
+     */
+    public TieredPolicyCache setPromoteOnHit(boolean promoteOnHit) {
+        this.promoteOnHit = promoteOnHit;
+        return this;
+    }
+
+    /**
+     * Gets policy from cache by StsRecord.
+     * <p>Each tier checks the record ID and removes its own stale entry.
+     *
+     * @param record StsRecord instance.
+     * @return Optional of StsPolicy instance.
+     */
+    @Override
+    public Optional<StsPolicy> getByRecord(StsRecord record) {
+        if (record == null) {
+            return Optional.empty();
+        }
+
+        Optional<StsPolicy> optional = l1.getByRecord(record);
+        if (!optional.isPresent() && readThrough) {
+            optional = l2.getByRecord(record);
+            optional.ifPresent(this::promote);
+        }
+
+        metrics.count(optional.isPresent() ? Counter.CACHE_HIT : Counter.CACHE_MISS);
+        return optional;
+    }
+
+    /**
+     * Adds policy to cache.
+     * <p>Implementation of policy caching.
+     * <p>Without write through any older L1 entry is removed so the new policy is promoted on the next hit.
+     *
+     * @param policy StsPolicy instance.
+     */
+    @Override
+    protected void add(StsPolicy policy) {
+        if (writeThrough) {
+            l1.put(policy);
+        } else {
+            l1.remove(policy.getRecord().getDomain());
+        }
+        l2.put(policy);
+    }
+
+    /**
+     * Lookup policy in cache.
+     * <p>Implementation of policy lookup in cache.
+     *
+     * @param domain Domain string.
+     * @return StsPolicy instance.
+     */
+    @Override
+    protected StsPolicy lookup(String domain) {
+        Optional<StsPolicy> optional = l1.getByDomain(domain);
+        if (!optional.isPresent() && readThrough) {
+            optional = l2.getByDomain(domain);
+            optional.ifPresent(this::promote);
+        }
+
+        return optional.orElse(null);
+    }
+
+    /**
+     * Remove policy from cache.
+     * <p>Implementation of policy removal from cache.
+     *
+     * @param domain Domain string.
+     */
+    @Override
+    protected void remove(String domain) {
+        l1.remove(domain);
+        l2.remove(domain);
+    }
+
+    /**
+     * Gets cache size.
+     * <p>Implementation of cache size getter.
+     * <p>For testing.
+     *
+     * @return Integer of the larger tier size.
+     */
+    @Override
+    int size() {
+        return Math.max(l1.size(), l2.size());
+    }
+
+    /**
+     * Promotes L2 hit into L1.
+     *
+     * @param policy StsPolicy instance.
+     */
+    private void promote(StsPolicy policy) {
+        if (promoteOnHit) {
+            l1.put(policy);
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package com.mimecast.mtasts.client;
+
+import com.mimecast.mtasts.assets.DnsRecord;
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.assets.StsReport;
+import com.mimecast.mtasts.events.DnsLookupEvent;
+import com.mimecast.mtasts.util.LocalDnsResolver;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.xbill.DNS.*;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Async Dns Record Client.
+ * <p>DNS TXT record lookup client implementation specific for MTA-STS.
+ * <p>Sends queries with Resolver.sendAsync so no thread waits on the network while a lookup is in flight.
+ * <p>A handful of threads can drive thousands of concurrent lookups as the resolver multiplexes them.
+ * <p>Shares the DNS Java cache with Lookup and follows CNAME chains.
+ * <p>Truncated answers are sent again over the TCP resolver if one is set.
+ * <p>SimpleResolver and ExtendedResolver already do so themselves.
+ *
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ * @see XBillDnsRecordClient
+ * @see LocalDnsResolver
+ */
+public class AsyncDnsRecordClient implements DnsRecordClient {
+    private static final Logger log = LogManager.getLogger(AsyncDnsRecordClient.class);
+
+    /**
+     * Maximum CNAME chain length.
+     */
+    static final int MAX_CNAME = 8;
+
+    /**
+     * Shared completion executor.
+     */
+    private static final ExecutorService sharedExecutor = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "mta-sts-dns-async");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Resolver instance.
+     */
+    private final Resolver resolver;
+
+    /**
+     * TCP resolver for truncated answers.
+     */
+    private Resolver tcpResolver = null;
+
+    /**
+     * Completion executor.
+     */
+    private Executor executor = sharedExecutor;
+
+    /**
+     * Constructs a new AsyncDnsRecordClient instance with the default resolver.
+     *
+     * @see Lookup#getDefaultResolver()
+     */
+    public AsyncDnsRecordClient() {
+        this(Lookup.getDefaultResolver());
+    }
+
+    /**
+     * Constructs a new AsyncDnsRecordClient instance with given resolver.
+     *
+     * @param resolver Resolver instance.
+     */
+    public AsyncDnsRecordClient(Resolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * Sets TCP resolver.
+     * <p>Used to send again queries answered with the TC flag.
+     * <p>Default: none
+     *
+     * @param tcpResolver Resolver instance.
+     * @return Self.
+     */
+    public AsyncDnsRecordClient setTcpResolver(Resolver tcpResolver) {
+        this.tcpResolver = tcpResolver;
+        return this;
+    }
+
+    /**
+     * Sets completion executor.
+     * <p>Default: shared pool of two daemon threads
+     *
+     * @param executor Executor instance.
+     * @return Self.
+     */
+    public AsyncDnsRecordClient setExecutor(Executor executor) {
+        this.executor = executor != null ? executor : sharedExecutor;
+        return this;
+    }
+
+    /**
+     * Gets DNS TXT MTA-STS record.
+     * <p>Blocks until the lookup completes.
+     *
+     * @param domain Domain string.
+     * @return Optional of StsRecord instance.
+     */
+    @Override
+    public Optional<StsRecord> getStsRecord(String domain) {
+        return getStsRecordAsync(domain).toCompletableFuture().join();
+    }
+
+    /**
+     * Gets DNS TXT TLSRPT record.
+     * <p>Blocks until the lookup completes.
+     *
+     * @param domain Domain string.
+     * @return Optional of StsReport instance.
+     */
+    @Override
+    public Optional<StsReport> getRptRecord(String domain) {
+        return getRptRecordAsync(domain).toCompletableFuture().join();
+    }
+
+    /**
+     * Gets DNS MX records.
+     * <p>Blocks until the lookup completes.
+     *
+     * @param domain Domain string.
+     * @return Optional of List of MXRecord instances.
+     */
+    @Override
+    public Optional<List<DnsRecord>> getMxRecords(String domain) {
+        return getMxRecordsAsync(domain).toCompletableFuture().join();
+    }
+
+    /**
+     * Gets DNS TXT MTA-STS record asynchronously.
+     * <p>Will query the <i>_mta-sts.</i> subdomain of the domain provided.
+     * <p>If multiple MTA-STS records found it will return none.
+     *
+     * @param domain Domain string.
+     * @return CompletionStage of Optional of StsRecord instance.
+     */
+    public CompletionStage<Optional<StsRecord>> getStsRecordAsync(String domain) {
+        return getRecord("_mta-sts." + domain, Type.TXT).thenApply(records -> XBillDnsRecordClient.toStsRecord(domain, records));
+    }
+
+    /**
+     * Gets DNS TXT TLSRPT record asynchronously.
+     * <p>Will query the <i>_smtp._tls.</i> subdomain of the domain provided.
+     * <p>If multiple TLSRPT records found it will return none.
+     *
+     * @param domain Domain string.
+     * @return CompletionStage of Optional of StsReport instance.
+     */
+    public CompletionStage<Optional<StsReport>> getRptRecordAsync(String domain) {
+        return getRecord("_smtp._tls." + domain, Type.TXT).thenApply(XBillDnsRecordClient::toRptRecord);
+    }
+
+    /**
+     * Gets DNS MX records asynchronously.
+     * <p>Will not fallback to A record if none found.
+     *
+     * @param domain Domain string.
+     * @return CompletionStage of Optional of List of MXRecord instances.
+     */
+    public CompletionStage<Optional<List<DnsRecord>>> getMxRecordsAsync(String domain) {
+        return getRecord(domain, Type.MX).thenApply(XBillDnsRecordClient::toMxRecords);
+    }
+
+    /**
+     * Gets host address asynchronously.
+     * <p>Queries A records then AAAA records if none found.
+     *
+     * @param host Host name string.
+     * @return CompletionStage of Optional of InetAddress instance.
+     */
+    public CompletionStage<Optional<InetAddress>> getAddressAsync(String host) {
+        return getRecord(host, Type.A)
+                .thenCompose(records -> records != null && records.length > 0 ?
+                        CompletableFuture.completedFuture(records) :
+                        getRecord(host, Type.AAAA))
+                .thenApply(records -> {
+                    if (records != null) {
+                        for (org.xbill.DNS.Record record : records) {
+                            if (record instanceof ARecord) {
+                                return Optional.of(((ARecord) record).getAddress());
+                            }
+                            else if (record instanceof AAAARecord) {
+                                return Optional.of(((AAAARecord) record).getAddress());
+                            }
+                        }
+                    }
+                    return Optional.empty();
+                });
+    }
+
+    /**
+     * Gets DNS records asynchronously.
+     * <p>Never completes exceptionally.
+     *
+     * @param uri  Lookup URI string.
+     * @param type Lookup type int.
+     * @return CompletionStage of array of Record instances or null if none found.
+     */
+    CompletionStage<org.xbill.DNS.Record[]> getRecord(String uri, int type) {
+        DnsLookupEvent event = new DnsLookupEvent();
+        event.begin();
+
+        Name name;
+        try {
+            name = Name.fromString(uri, Name.root);
+        } catch (TextParseException e) {
+            log.error("Record URI could not resolve: {} - {}", uri, e.getMessage());
+            return CompletableFuture.completedFuture(null);
+        }
+
+        String[] outcome = {"successful"};
+        return resolve(name, type, 0, outcome)
+                .exceptionally(e -> {
+                    outcome[0] = e.getCause() != null ? e.getCause().getClass().getSimpleName() : e.getClass().getSimpleName();
+                    log.debug("Record lookup failed: {} - {}", uri, outcome[0]);
+                    return null;
+                })
+                .whenComplete((records, e) -> {
+                    if (event.shouldCommit()) {
+                        event.name = uri;
+                        event.type = Type.string(type);
+                        event.outcome = outcome[0];
+                        event.records = records != null ? records.length : 0;
+                        event.commit();
+                    }
+                });
+    }
+
+    /**
+     * Resolves name from cache or resolver.
+     *
+     * @param name    Name instance.
+     * @param type    Lookup type int.
+     * @param depth   CNAME chain depth so far.
+     * @param outcome Outcome string holder.
+     * @return CompletionStage of array of Record instances or null if none found.
+     */
+    private CompletionStage<org.xbill.DNS.Record[]> resolve(Name name, int type, int depth, String[] outcome) {
+        Cache cache = Lookup.getDefaultCache(DClass.IN);
+
+        SetResponse cached = cache.lookupRecords(name, type, Credibility.NORMAL);
+        if (cached.isSuccessful()) {
+            List<org.xbill.DNS.Record> records = new ArrayList<>();
+            cached.answers().forEach(rrset -> records.addAll(rrset.rrs()));
+            return CompletableFuture.completedFuture(records.toArray(new org.xbill.DNS.Record[0]));
+        }
+        else if (cached.isNXDOMAIN() || cached.isNXRRSET()) {
+            outcome[0] = cached.isNXDOMAIN() ? "host not found" : "type not found";
+            return CompletableFuture.completedFuture(null);
+        }
+        else if (cached.isCNAME()) {
+            return follow(cached.getCNAME().getTarget(), type, depth, outcome);
+        }
+
+        Message query = Message.newQuery(org.xbill.DNS.Record.newRecord(name, type, DClass.IN));
+        return send(query).thenCompose(response -> {
+            // Cache before the rcode check so NXDOMAIN answers are negatively cached.
+            cache.addMessage(response);
+            if (response.getRcode() != Rcode.NOERROR) {
+                outcome[0] = Rcode.string(response.getRcode());
+                return CompletableFuture.completedFuture(null);
+            }
+
+            // Walk the CNAME chain within the answer.
+            Name current = name;
+            for (int i = 0; i <= MAX_CNAME; i++) {
+                List<org.xbill.DNS.Record> records = new ArrayList<>();
+                Name target = null;
+                for (org.xbill.DNS.Record record : response.getSection(Section.ANSWER)) {
+                    if (record.getName().equals(current)) {
+                        if (record.getType() == type) {
+                            records.add(record);
+                        }
+                        else if (record instanceof CNAMERecord) {
+                            target = ((CNAMERecord) record).getTarget();
+                        }
+                    }
+                }
+
+                if (!records.isEmpty()) {
+                    return CompletableFuture.completedFuture(records.toArray(new org.xbill.DNS.Record[0]));
+                }
+                else if (target == null) {
+                    break;
+                }
+                current = target;
+            }
+
+            if (!current.equals(name)) {
+                return follow(current, type, depth, outcome);
+            }
+
+            outcome[0] = "type not found";
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Follows CNAME target.
+     *
+     * @param target  Target Name instance.
+     * @param type    Lookup type int.
+     * @param depth   CNAME chain depth so far.
+     * @param outcome Outcome string holder.
+     * @return CompletionStage of array of Record instances or null if none found.
+     */
+    private CompletionStage<org.xbill.DNS.Record[]> follow(Name target, int type, int depth, String[] outcome) {
+        if (depth >= MAX_CNAME) {
+            outcome[0] = "CNAME chain too long";
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return resolve(target, type, depth + 1, outcome);
+    }
+
+    /**
+     * Sends query.
+     * <p>Truncated answers are sent again over the TCP resolver if one is set.
+     *
+     * @param query Message instance.
+     * @return CompletionStage of Message instance.
+     */
+    private CompletionStage<Message> send(Message query) {
+        return resolver.sendAsync(query, executor).thenCompose(response -> {
+            if (response.getHeader().getFlag(Flags.TC) && tcpResolver != null) {
+                log.debug("Truncated answer, retrying over TCP: {}", query.getQuestion().getName());
+                return tcpResolver.sendAsync(query, executor);
+            }
+
+            return CompletableFuture.completedFuture(response);
+        });
+    }
+}
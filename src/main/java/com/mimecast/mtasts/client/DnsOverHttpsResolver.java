@@ -0,0 +1,332 @@
+package com.mimecast.mtasts.client;
+
+import org.xbill.DNS.*;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DNS-over-HTTPS Resolver.
+ * <p>DNS Java resolver sending RFC 8484 wireformat queries by GET to a DoH server.
+ * <p>GET keeps each query to a single request frame and lets HTTP caches serve repeated queries.
+ * <p>Uses the JDK HttpClient over HTTP/2 so all queries in flight share one multiplexed connection.
+ * <p>Falls back to HTTP/1.1 with pooled connections if the server does not offer HTTP/2.
+ * <p>Queries in flight are capped so HTTP/1.1 bursts reuse a bounded set of connections instead of opening one each.
+ * <p>Usable by XBillDnsRecordClient via Lookup.setDefaultResolver() or by AsyncDnsRecordClient directly.
+ * <p>Queries are sent with message ID 0 as advised for HTTP caching and answers get the caller's ID back.
+ * <p>The query timeout counts from sendAsync so time spent waiting for a slot is included.
+ *
+ * @link <a href="https://tools.ietf.org/html/rfc8484">RFC8484</a>
+ *
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ * @see XBillDnsRecordClient
+ * @see AsyncDnsRecordClient
+ */
+public class DnsOverHttpsResolver implements Resolver {
+
+    /**
+     * DNS message media type.
+     */
+    static final String MEDIA_TYPE = "application/dns-message";
+
+    /**
+     * DoH server URI.
+     */
+    private final URI uri;
+
+    /**
+     * Trust manager to use for certificate validation.
+     */
+    private final X509TrustManager trustManager;
+
+    /**
+     * Query timeout.
+     */
+    private Duration timeout = Duration.ofSeconds(5);
+
+    /**
+     * Waiting queries.
+     */
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Queries in flight.
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Maximum queries in flight.
+     */
+    private int maxConcurrent = 100;
+
+    /**
+     * Configured client.
+     * <p>Kept so the connection is reused across queries.
+     */
+    private HttpClient client;
+
+    /**
+     * Constructs a new DnsOverHttpsResolver instance.
+     *
+     * @param uri          DoH server URI like https://dns.example/dns-query.
+     * @param trustManager X509TrustManager instance.
+     */
+    public DnsOverHttpsResolver(URI uri, X509TrustManager trustManager) {
+        this.uri = uri;
+        this.trustManager = trustManager;
+    }
+
+    /**
+     * Sets maximum queries in flight.
+     * <p>Over HTTP/2 this bounds concurrent streams, over HTTP/1.1 open connections.
+     * <p>Default: 100
+     *
+     * @param maxConcurrent Queries count.
+     * @return Self.
+     */
+    public DnsOverHttpsResolver setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        return this;
+    }
+
+    /**
+     * Sends query.
+     *
+     * @param query Message instance.
+     * @return Message instance.
+     * @throws IOException Query failed or timed out.
+     */
+    @Override
+    public Message send(Message query) throws IOException {
+        try {
+            return sendAsync(query).toCompletableFuture().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Query interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof HttpTimeoutException || e.getCause() instanceof TimeoutException) {
+                throw new SocketTimeoutException("Query timed out");
+            }
+            else if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Sends query asynchronously.
+     *
+     * @param query Message instance.
+     * @return CompletionStage of Message instance.
+     */
+    @Override
+    public CompletionStage<Message> sendAsync(Message query) {
+        return sendAsync(query, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Sends query asynchronously.
+     * <p>Fails with TimeoutException if not answered within the timeout including time waiting for a slot.
+     *
+     * @param query    Message instance.
+     * @param executor Completion executor.
+     * @return CompletionStage of Message instance.
+     */
+    @Override
+    public CompletionStage<Message> sendAsync(Message query, Executor executor) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        CompletableFuture<Message> future = new CompletableFuture<Message>()
+                .orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS);
+
+        waiting.add(() -> {
+            long remaining = deadline - System.nanoTime();
+            if (future.isDone() || remaining <= 0) {
+                release();
+                future.completeExceptionally(new TimeoutException("Query timed out waiting"));
+                return;
+            }
+
+            try {
+                post(query, Duration.ofNanos(remaining), executor).whenComplete((answer, e) -> {
+                    release();
+
+                    if (e != null) {
+                        future.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                    }
+                    else {
+                        future.complete(answer);
+                    }
+                });
+            } catch (RuntimeException e) {
+                release();
+                future.completeExceptionally(e);
+            }
+        });
+        drain();
+
+        return future;
+    }
+
+    /**
+     * Releases in flight slot.
+     * <p>Then starts the next waiting query.
+     */
+    private void release() {
+        inFlight.decrementAndGet();
+        drain();
+    }
+
+    /**
+     * Starts waiting queries within the in flight limit.
+     */
+    private void drain() {
+        while (!waiting.isEmpty()) {
+            int current = inFlight.get();
+            if (current >= maxConcurrent) {
+                return;
+            }
+            if (!inFlight.compareAndSet(current, current + 1)) {
+                continue;
+            }
+
+            Runnable next = waiting.poll();
+            if (next == null) {
+                inFlight.decrementAndGet();
+                return;
+            }
+            next.run();
+        }
+    }
+
+    /**
+     * Posts query.
+     *
+     * @param query    Message instance.
+     * @param timeout  Time left for the query.
+     * @param executor Completion executor.
+     * @return CompletableFuture of Message instance.
+     */
+    private CompletableFuture<Message> post(Message query, Duration timeout, Executor executor) {
+        Message wire = query.clone();
+        wire.getHeader().setID(0);
+
+        String dns = Base64.getUrlEncoder().withoutPadding().encodeToString(wire.toWire(Message.MAXLENGTH));
+        HttpRequest request = HttpRequest.newBuilder(URI.create(uri + (uri.getRawQuery() != null ? "&" : "?") + "dns=" + dns))
+                .timeout(timeout)
+                .header("Accept", MEDIA_TYPE)
+                .GET()
+                .build();
+
+        try {
+            return getClient().sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                    .thenApplyAsync(response -> {
+                        if (response.statusCode() != 200) {
+                            throw new CompletionException(new IOException("DoH server answered " + response.statusCode()));
+                        }
+
+                        try {
+                            Message answer = new Message(response.body());
+                            answer.getHeader().setID(query.getHeader().getID());
+                            return answer;
+                        } catch (IOException e) {
+                            throw new CompletionException(e);
+                        }
+                    }, executor);
+        } catch (GeneralSecurityException e) {
+            return CompletableFuture.failedFuture(new IOException(e));
+        }
+    }
+
+    /**
+     * Gets HttpClient.
+     * <p>Built on first use.
+     *
+     * @return HttpClient instance.
+     * @throws GeneralSecurityException Unable to build SSLContext.
+     */
+    private synchronized HttpClient getClient() throws GeneralSecurityException {
+        if (client == null) {
+            SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+            sslContext.init(null, new TrustManager[] { trustManager }, null);
+
+            client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .followRedirects(HttpClient.Redirect.NEVER)
+                    .connectTimeout(timeout)
+                    .sslContext(sslContext)
+                    .executor(Executors.newVirtualThreadPerTaskExecutor())
+                    .build();
+        }
+
+        return client;
+    }
+
+    /**
+     * Unused.
+     * <p>The port comes from the URI.
+     */
+    @Override
+    public void setPort(int port) {
+    }
+
+    /**
+     * Unused.
+     * <p>Always over HTTPS.
+     */
+    @Override
+    public void setTCP(boolean flag) {
+    }
+
+    /**
+     * Unused.
+     * <p>HTTPS answers are never truncated.
+     */
+    @Override
+    public void setIgnoreTruncation(boolean flag) {
+    }
+
+    /**
+     * Unused.
+     * <p>HTTPS answers are not size limited.
+     */
+    @Override
+    public void setEDNS(int version, int payloadSize, int flags, List<EDNSOption> options) {
+    }
+
+    /**
+     * Unused.
+     * <p>Transport is authenticated by TLS.
+     */
+    @Override
+    public void setTSIGKey(TSIG key) {
+    }
+
+    @Override
+    public synchronized void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+        client = null;
+    }
+
+    @Override
+    public Duration getTimeout() {
+        return timeout;
+    }
+}
@@ -25,6 +25,19 @@ public interface DnsRecordClient {
      */
     Optional<StsRecord> getStsRecord(String domain);
 
+    /**
+     * Gets DNS TXT MTA-STS record within deadline.
+     * <p>Implementations supporting it make no retry that could not finish before the deadline.
+     * <p>Defaults to ignoring the deadline.
+     *
+     * @param domain   Domain string.
+     * @param deadline Deadline in System.nanoTime() terms.
+     * @return Optional of StsRecord instance.
+     */
+    default Optional<StsRecord> getStsRecord(String domain, long deadline) {
+        return getStsRecord(domain);
+    }
+
     /**
      * Gets DNS TXT TLSRPT record.
      *
@@ -33,6 +46,19 @@ public interface DnsRecordClient {
      */
     Optional<StsReport> getRptRecord(String domain);
 
+    /**
+     * Gets DNS TXT TLSRPT record within deadline.
+     * <p>Implementations supporting it make no retry that could not finish before the deadline.
+     * <p>Defaults to ignoring the deadline.
+     *
+     * @param domain   Domain string.
+     * @param deadline Deadline in System.nanoTime() terms.
+     * @return Optional of StsReport instance.
+     */
+    default Optional<StsReport> getRptRecord(String domain, long deadline) {
+        return getRptRecord(domain);
+    }
+
     /**
      * Gets DNS MX records.
      *
@@ -0,0 +1,367 @@
+package com.mimecast.mtasts.client;
+
+import okhttp3.Dns;
+import okhttp3.Interceptor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Happy Eyeballs Dns.
+ * <p>OkHttp Dns decorator ordering dual-stack addresses by racing connection attempts as per RFC 8305.
+ * <p>OkHttp 4 tries addresses one after the other so a broken IPv6 path costs a full connect timeout before IPv4 is tried.
+ * <p>Attempts alternate address families starting with IPv6 and a new one starts every attempt delay or as soon as one fails.
+ * <p>The first address to connect is returned first followed by the rest of its family, then the other family.
+ * <p>The winning family is remembered per host for a while so later lookups skip the race.
+ * <p>Probes run on a small bounded pool over SocketChannels so losing attempts are aborted by closing them.
+ * <p>Probe connections are closed as soon as the race ends.
+ * <p>Add the interceptor to forget the family of a host once a call to it fails.
+ *
+ * @link <a href="https://tools.ietf.org/html/rfc8305">RFC8305</a>
+ *
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class HappyEyeballsDns implements Dns {
+    private static final Logger log = LogManager.getLogger(HappyEyeballsDns.class);
+
+    /**
+     * Probe threads.
+     */
+    private static final int PROBE_THREADS = 16;
+
+    /**
+     * Probe executor.
+     * <p>Bounded as probes are aborted when their race ends so threads are freed quickly.
+     */
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(PROBE_THREADS, PROBE_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "mta-sts-happy-eyeballs");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Delegate Dns instance.
+     */
+    private final Dns delegate;
+
+    /**
+     * Winning family by host.
+     */
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    /**
+     * Policy host port.
+     */
+    private int port = 443;
+
+    /**
+     * Delay before the next attempt in milliseconds.
+     */
+    private long attemptDelay = 250;
+
+    /**
+     * Race timeout in milliseconds.
+     */
+    private long timeout = 5000;
+
+    /**
+     * Winning family cache time in milliseconds.
+     */
+    private long familyTtl = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * Constructs a new HappyEyeballsDns instance.
+     *
+     * @param delegate Dns instance to resolve with.
+     */
+    public HappyEyeballsDns(Dns delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Sets port connected to.
+     * <p>Default: 443
+     *
+     * @param port Port number.
+     * @return Self.
+     */
+    public HappyEyeballsDns setPort(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * Sets connection attempt delay.
+     * <p>Default: 250
+     *
+     * @param attemptDelay Delay in milliseconds.
+     * @return Self.
+     */
+    public HappyEyeballsDns setAttemptDelay(long attemptDelay) {
+        this.attemptDelay = attemptDelay;
+        return this;
+    }
+
+    /**
+     * Sets race timeout.
+     * <p>Addresses are returned in resolved order if none connects in time.
+     * <p>Default: 5000
+     *
+     * @param timeout Timeout in milliseconds.
+     * @return Self.
+     */
+    public HappyEyeballsDns setTimeout(long timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * Sets winning family cache time.
+     * <p>Default: 600000
+     *
+     * @param familyTtl Time in milliseconds.
+     * @return Self.
+     */
+    public HappyEyeballsDns setFamilyTtl(long familyTtl) {
+        this.familyTtl = familyTtl;
+        return this;
+    }
+
+    /**
+     * Forgets winning family of host.
+     * <p>The next lookup races again.
+     *
+     * @param hostname Host name string.
+     */
+    public void forget(String hostname) {
+        families.remove(hostname);
+    }
+
+    /**
+     * Gets interceptor forgetting the winning family of hosts whose calls fail.
+     * <p>OkHttpsPolicyClient adds it when given a HappyEyeballsDns.
+     *
+     * @return Interceptor instance.
+     */
+    public Interceptor getInterceptor() {
+        return chain -> {
+            try {
+                return chain.proceed(chain.request());
+            } catch (IOException e) {
+                forget(chain.request().url().host());
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * Looks up host addresses.
+     *
+     * @param hostname Host name string.
+     * @return List of InetAddress instances.
+     * @throws UnknownHostException No addresses found.
+     */
+    @NotNull
+    @Override
+    public List<InetAddress> lookup(@NotNull String hostname) throws UnknownHostException {
+        List<InetAddress> addresses = delegate.lookup(hostname);
+
+        List<InetAddress> ipv6 = new ArrayList<>();
+        List<InetAddress> ipv4 = new ArrayList<>();
+        for (InetAddress address : addresses) {
+            (address instanceof Inet6Address ? ipv6 : ipv4).add(address);
+        }
+
+        if (ipv6.isEmpty() || ipv4.isEmpty()) {
+            return addresses;
+        }
+
+        Family family = families.get(hostname);
+        if (family != null && family.expires > System.currentTimeMillis()) {
+            return order(family.ipv6 ? ipv6 : ipv4, family.ipv6 ? ipv4 : ipv6, null);
+        }
+
+        InetAddress winner = race(interleave(ipv6, ipv4));
+        if (winner == null) {
+            families.remove(hostname);
+            return addresses;
+        }
+
+        boolean winnerIpv6 = winner instanceof Inet6Address;
+        families.put(hostname, new Family(winnerIpv6, System.currentTimeMillis() + familyTtl));
+        log.debug("Happy eyeballs winner for {}: {}", hostname, winner.getHostAddress());
+
+        return order(winnerIpv6 ? ipv6 : ipv4, winnerIpv6 ? ipv4 : ipv6, winner);
+    }
+
+    /**
+     * Races connection attempts.
+     *
+     * @param addresses List of InetAddress instances in attempt order.
+     * @return First address to connect or null if none did in time.
+     */
+    private InetAddress race(List<InetAddress> addresses) {
+        BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+        List<Future<?>> attempts = new ArrayList<>();
+        List<SocketChannel> channels = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + timeout;
+        int started = 0;
+        int failed = 0;
+
+        try {
+            while (failed < addresses.size()) {
+                if (started < addresses.size()) {
+                    InetAddress address = addresses.get(started++);
+                    try {
+                        SocketChannel channel = SocketChannel.open();
+                        channels.add(channel);
+                        attempts.add(executor.submit(() -> {
+                            try {
+                                connect(channel, new InetSocketAddress(address, port), (int) timeout);
+                                results.add(address);
+                            } catch (IOException e) {
+                                log.debug("Happy eyeballs attempt failed: {} {}", address.getHostAddress(), e.getMessage());
+                                results.add(e);
+                            }
+                        }));
+                    } catch (IOException e) {
+                        log.debug("Happy eyeballs channel failed: {}", e.getMessage());
+                        results.add(e);
+                    }
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+
+                Object result = results.poll(started < addresses.size() ? Math.min(attemptDelay, remaining) : remaining, TimeUnit.MILLISECONDS);
+                if (result instanceof InetAddress) {
+                    return (InetAddress) result;
+                }
+                else if (result != null) {
+                    failed++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Future<?> attempt : attempts) {
+                attempt.cancel(false);
+            }
+
+            // Closing aborts attempts still connecting.
+            for (SocketChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.debug("Happy eyeballs close failed: {}", e.getMessage());
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Connects probe channel.
+     * <p>Isolated for testing.
+     * <p>Closing the channel from another thread aborts the connect.
+     *
+     * @param channel SocketChannel instance closed by the race.
+     * @param address InetSocketAddress instance.
+     * @param timeout Connect timeout in milliseconds.
+     * @throws IOException Connection failed or aborted.
+     */
+    protected void connect(SocketChannel channel, InetSocketAddress address, int timeout) throws IOException {
+        channel.socket().connect(address, timeout);
+    }
+
+    /**
+     * Interleaves address families.
+     *
+     * @param first  First family addresses.
+     * @param second Second family addresses.
+     * @return List of InetAddress instances.
+     */
+    private static List<InetAddress> interleave(List<InetAddress> first, List<InetAddress> second) {
+        List<InetAddress> addresses = new ArrayList<>(first.size() + second.size());
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                addresses.add(first.get(i));
+            }
+            if (i < second.size()) {
+                addresses.add(second.get(i));
+            }
+        }
+
+        return addresses;
+    }
+
+    /**
+     * Orders addresses preferred family first.
+     *
+     * @param preferred Preferred family addresses.
+     * @param other     Other family addresses.
+     * @param winner    Address to put first or null.
+     * @return List of InetAddress instances.
+     */
+    private static List<InetAddress> order(List<InetAddress> preferred, List<InetAddress> other, InetAddress winner) {
+        List<InetAddress> addresses = new ArrayList<>(preferred.size() + other.size());
+        if (winner != null) {
+            addresses.add(winner);
+        }
+        for (InetAddress address : preferred) {
+            if (!address.equals(winner)) {
+                addresses.add(address);
+            }
+        }
+        addresses.addAll(other);
+
+        return addresses;
+    }
+
+    /**
+     * Winning family.
+     */
+    private static final class Family {
+
+        /**
+         * IPv6 won.
+         */
+        private final boolean ipv6;
+
+        /**
+         * Expiry epoch milliseconds.
+         */
+        private final long expires;
+
+        /**
+         * Constructs a new Family instance.
+         *
+         * @param ipv6    IPv6 won.
+         * @param expires Expiry epoch milliseconds.
+         */
+        Family(boolean ipv6, long expires) {
+            this.ipv6 = ipv6;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package com.mimecast.mtasts.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * HTTP response parser.
+ * <p>Incremental HTTP/1.1 response parser fed with decrypted bytes as they arrive.
+ * <p>Handles Content-Length, chunked and read until close bodies.
+ * <p>Headers are limited to 16k and the body to the maximum policy body size so memory per response is bounded.
+ * <p>Body bytes over the limit are dropped and the response is complete once the limit is reached.
+ *
+ * @see NioHttpsPolicyClient
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+final class HttpResponseParser {
+
+    /**
+     * Maximum headers length.
+     */
+    static final int HEADERS_MAX = 16 * 1024;
+
+    /**
+     * Parser states.
+     */
+    private enum State {
+        HEADERS, LENGTH, CLOSE, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, DONE
+    }
+
+    /**
+     * Maximum body length.
+     */
+    private final int maxBodySize;
+
+    /**
+     * Headers and line buffer.
+     */
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+    /**
+     * Body buffer.
+     */
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+
+    /**
+     * Headers by lowercase name.
+     */
+    private final Map<String, String> headers = new HashMap<>();
+
+    /**
+     * Current state.
+     */
+    private State state = State.HEADERS;
+
+    /**
+     * Headers length so far.
+     */
+    private int headersSize = 0;
+
+    /**
+     * Body or chunk bytes left.
+     */
+    private long remaining = 0;
+
+    /**
+     * Status code.
+     */
+    private int code = 0;
+
+    /**
+     * Status message.
+     */
+    private String message = "";
+
+    /**
+     * Constructs a new HttpResponseParser instance.
+     *
+     * @param maxBodySize Maximum body length.
+     */
+    HttpResponseParser(int maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Feeds bytes.
+     * <p>Consumes all remaining bytes of the buffer.
+     *
+     * @param buffer ByteBuffer instance in read mode.
+     * @return Boolean true once the response is complete.
+     * @throws IOException Malformed response.
+     */
+    boolean feed(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining() && state != State.DONE) {
+            switch (state) {
+                case HEADERS:
+                    if (readLine(buffer)) {
+                        header();
+                    }
+                    break;
+
+                case LENGTH:
+                case CHUNK_DATA:
+                    int length = (int) Math.min(remaining, buffer.remaining());
+                    append(buffer, length);
+                    remaining -= length;
+                    if (remaining == 0) {
+                        state = state == State.LENGTH ? State.DONE : State.CHUNK_END;
+                    }
+                    break;
+
+                case CLOSE:
+                    append(buffer, buffer.remaining());
+                    break;
+
+                case CHUNK_SIZE:
+                    if (readLine(buffer)) {
+                        chunkSize();
+                    }
+                    break;
+
+                case CHUNK_END:
+                    if (readLine(buffer)) {
+                        line.reset();
+                        state = State.CHUNK_SIZE;
+                    }
+                    break;
+
+                case TRAILERS:
+                    if (readLine(buffer)) {
+                        if (line.size() == 0) {
+                            state = State.DONE;
+                        }
+                        line.reset();
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+
+            if (state != State.HEADERS && state != State.DONE && body.size() >= maxBodySize) {
+                state = State.DONE;
+            }
+        }
+
+        buffer.position(buffer.limit());
+        return state == State.DONE;
+    }
+
+    /**
+     * Ends input.
+     * <p>Called when the connection closes.
+     *
+     * @return Boolean true if the response is complete.
+     */
+    boolean end() {
+        if (state == State.CLOSE) {
+            state = State.DONE;
+        }
+
+        return state == State.DONE;
+    }
+
+    /**
+     * Is done.
+     *
+     * @return Boolean.
+     */
+    boolean isDone() {
+        return state == State.DONE;
+    }
+
+    /**
+     * Gets status code.
+     *
+     * @return Integer.
+     */
+    int getCode() {
+        return code;
+    }
+
+    /**
+     * Gets status message.
+     *
+     * @return String.
+     */
+    String getMessage() {
+        return message;
+    }
+
+    /**
+     * Gets headers.
+     *
+     * @return Map of lowercase name and value.
+     */
+    Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Gets body.
+     *
+     * @return Body string.
+     */
+    String getBody() {
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads line into line buffer.
+     * <p>The line terminator is not kept.
+     *
+     * @param buffer ByteBuffer instance.
+     * @return Boolean true if a full line was read.
+     * @throws IOException Line too long.
+     */
+    private boolean readLine(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (++headersSize > HEADERS_MAX && state == State.HEADERS) {
+                throw new IOException("Response headers too large");
+            }
+            if (line.size() > HEADERS_MAX) {
+                throw new IOException("Response line too long");
+            }
+
+            if (b == '\n') {
+                return true;
+            }
+            else if (b != '\r') {
+                line.write(b);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Handles status or header line.
+     *
+     * @throws IOException Malformed status line.
+     */
+    private void header() throws IOException {
+        String text = new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+        line.reset();
+
+        if (code == 0) {
+            String[] parts = text.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Malformed status line: " + text);
+            }
+            try {
+                code = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed status line: " + text);
+            }
+            message = parts.length > 2 ? parts[2] : "";
+        }
+        else if (!text.isEmpty()) {
+            int colon = text.indexOf(':');
+            if (colon > 0) {
+                headers.put(text.substring(0, colon).trim().toLowerCase(Locale.ROOT), text.substring(colon + 1).trim());
+            }
+        }
+        else if (code >= 100 && code < 200) {
+            // Interim response, the final one follows.
+            code = 0;
+            headers.clear();
+        }
+        else {
+            body();
+        }
+    }
+
+    /**
+     * Picks body framing once headers are complete.
+     *
+     * @throws IOException Invalid Content-Length.
+     */
+    private void body() throws IOException {
+        String transferEncoding = headers.get("transfer-encoding");
+        String contentLength = headers.get("content-length");
+
+        if (code == 204 || code == 304) {
+            state = State.DONE;
+        }
+        else if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ROOT).contains("chunked")) {
+            state = State.CHUNK_SIZE;
+        }
+        else if (contentLength != null) {
+            try {
+                remaining = Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid Content-Length: " + contentLength);
+            }
+            state = remaining > 0 ? State.LENGTH : State.DONE;
+        }
+        else {
+            state = State.CLOSE;
+        }
+    }
+
+    /**
+     * Handles chunk size line.
+     *
+     * @throws IOException Invalid chunk size.
+     */
+    private void chunkSize() throws IOException {
+        String text = new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+        line.reset();
+
+        int extension = text.indexOf(';');
+        try {
+            remaining = Long.parseLong((extension >= 0 ? text.substring(0, extension) : text).trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid chunk size: " + text);
+        }
+        state = remaining > 0 ? State.CHUNK_DATA : State.TRAILERS;
+    }
+
+    /**
+     * Appends body bytes up to the maximum body length.
+     *
+     * @param buffer ByteBuffer instance.
+     * @param length Bytes to consume.
+     */
+    private void append(ByteBuffer buffer, int length) {
+        int keep = Math.min(length, maxBodySize - body.size());
+        if (keep > 0) {
+            body.write(buffer.array(), buffer.arrayOffset() + buffer.position(), keep);
+        }
+        buffer.position(buffer.position() + length);
+    }
+}
@@ -3,6 +3,9 @@ package com.mimecast.mtasts.client;
 import com.mimecast.mtasts.assets.StsRecord;
 import com.mimecast.mtasts.exception.PolicyFetchErrorException;
 import com.mimecast.mtasts.exception.PolicyWebPKIInvalidException;
+import com.mimecast.mtasts.trace.LookupTrace;
+
+import java.io.Closeable;
 
 /**
  * Https Policy Client.
@@ -21,9 +24,75 @@ public interface HttpsPolicyClient {
      *
      * @param stsRecord StsRecord instance.
      * @param maxPolicyBodySize The maximum size of the policy body.
-     * @return OkHttpsResponse instance.
+     * @return HttpsResponse instance.
      * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
      * @throws PolicyFetchErrorException Policy fetch error exception.
      */
-    OkHttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize) throws PolicyWebPKIInvalidException, PolicyFetchErrorException;
+    HttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize) throws PolicyWebPKIInvalidException, PolicyFetchErrorException;
+
+    /**
+     * Gets policy with lookup trace.
+     * <p>Implementations supporting it record connection phases into the trace.
+     * <p>Defaults to ignoring the trace.
+     *
+     * @param stsRecord StsRecord instance.
+     * @param maxPolicyBodySize The maximum size of the policy body.
+     * @param trace LookupTrace instance or null.
+     * @return HttpsResponse instance.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException Policy fetch error exception.
+     */
+    default HttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize, LookupTrace trace) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        return getPolicy(stsRecord, maxPolicyBodySize);
+    }
+
+    /**
+     * Gets policy conditionally.
+     * <p>Implementations supporting it send the validators of the cached policy so an unchanged policy is answered with 304 Not Modified and no body.
+     * <p>Defaults to an unconditional fetch.
+     *
+     * @param stsRecord StsRecord instance.
+     * @param maxPolicyBodySize The maximum size of the policy body.
+     * @param trace LookupTrace instance or null.
+     * @param etag ETag of the cached policy or null.
+     * @param lastModified Last-Modified of the cached policy or null.
+     * @return HttpsResponse instance.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException Policy fetch error exception.
+     */
+    default HttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize, LookupTrace trace, String etag, String lastModified) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        return getPolicy(stsRecord, maxPolicyBodySize, trace);
+    }
+
+    /**
+     * Gets policy conditionally within deadline.
+     * <p>Implementations supporting it make no retry that could not finish before the deadline.
+     * <p>Defaults to ignoring the deadline.
+     *
+     * @param stsRecord StsRecord instance.
+     * @param maxPolicyBodySize The maximum size of the policy body.
+     * @param trace LookupTrace instance or null.
+     * @param etag ETag of the cached policy or null.
+     * @param lastModified Last-Modified of the cached policy or null.
+     * @param deadline Deadline in System.nanoTime() terms.
+     * @return HttpsResponse instance.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException Policy fetch error exception.
+     */
+    default HttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize, LookupTrace trace, String etag, String lastModified, long deadline) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        return getPolicy(stsRecord, maxPolicyBodySize, trace, etag, lastModified);
+    }
+
+    /**
+     * Pre-connects to policy host.
+     * <p>Opens a connection to the policy host in the background so a following getPolicy can reuse it.
+     * <p>Closing the returned handle abandons a pre-connect still in progress.
+     * <p>Defaults to doing nothing.
+     *
+     * @param domain Domain string.
+     * @return Closeable handle.
+     */
+    default Closeable preconnect(String domain) {
+        return () -> { };
+    }
 }
@@ -61,4 +61,14 @@ public interface HttpsResponse {
      * @return Body string.
      */
     String getBody();
+
+    /**
+     * Gets origin fetch time.
+     * <p>Epoch seconds the policy was fetched from the policy host when relayed from a cache, else 0 for now.
+     *
+     * @return Long.
+     */
+    default long getFetchTime() {
+        return 0L;
+    }
 }
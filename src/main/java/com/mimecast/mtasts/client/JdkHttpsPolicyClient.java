@@ -0,0 +1,406 @@
+package com.mimecast.mtasts.client;
+
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.config.Config;
+import com.mimecast.mtasts.config.ConfigHandler;
+import com.mimecast.mtasts.events.PolicyFetchEvent;
+import com.mimecast.mtasts.exception.PolicyFetchErrorException;
+import com.mimecast.mtasts.exception.PolicyWebPKIInvalidException;
+import com.mimecast.mtasts.trace.LookupTrace;
+import com.mimecast.mtasts.trace.LookupTrace.Phase;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * JDK HTTPS Policy Client.
+ * <p>HTTPS client implementation specific for MTA-STS on the JDK built-in HttpClient.
+ * <p>Negotiates HTTP/2 where the policy host supports it and falls back to HTTP/1.1.
+ * <p>Runs on virtual threads by default and needs no third party HTTP library.
+ * <p>Redirects are not followed and the body is bounded the same as OkHttpsPolicyClient.
+ *
+ * @link <a href="https://tools.ietf.org/html/rfc8461#section-3.3">RFC8461#section-3.3</a>
+ *
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class JdkHttpsPolicyClient extends ConfigHandler implements HttpsPolicyClient {
+    private static final Logger log = LogManager.getLogger(JdkHttpsPolicyClient.class);
+
+    /**
+     * Trust manager to use for certificate validation.
+     */
+    private final X509TrustManager trustManager;
+
+    /**
+     * Executor for the client.
+     */
+    private Executor executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * Configured client.
+     * <p>Kept so connections are reused across fetches.
+     */
+    private HttpClient client;
+
+    /**
+     * Constructs a new JdkHttpsPolicyClient instance.
+     *
+     * @param trustManager X509TrustManager instance.
+     */
+    public JdkHttpsPolicyClient(X509TrustManager trustManager) {
+        this.trustManager = trustManager;
+    }
+
+    /**
+     * Sets executor.
+     * <p>Default: virtual thread per task
+     *
+     * @param executor Executor instance.
+     * @return Self.
+     */
+    public synchronized JdkHttpsPolicyClient setExecutor(Executor executor) {
+        this.executor = executor != null ? executor : Executors.newVirtualThreadPerTaskExecutor();
+        client = null;
+        return this;
+    }
+
+    /**
+     * Sets config.
+     * <p>The client is rebuilt with the new config on next use.
+     *
+     * @param config Config instance.
+     * @return Self.
+     */
+    @Override
+    public synchronized ConfigHandler setConfig(Config config) {
+        client = null;
+        return super.setConfig(config);
+    }
+
+    /**
+     * Gets policy.
+     * <p>Requires a fresh StsRecord instance to get the domain from and construct the StsPolicy instance.
+     *
+     * @param stsRecord StsRecord instance.
+     * @param maxPolicyBodySize The maximum size of the policy body.
+     * @return JdkHttpsResponse instance.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException Policy fetch error exception.
+     */
+    @Override
+    public JdkHttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        return getPolicy(stsRecord, maxPolicyBodySize, null);
+    }
+
+    /**
+     * Gets policy with lookup trace.
+     * <p>Records TTFB and body phases into the trace if provided.
+     *
+     * @param stsRecord StsRecord instance.
+     * @param maxPolicyBodySize The maximum size of the policy body.
+     * @param trace LookupTrace instance or null.
+     * @return JdkHttpsResponse instance.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException Policy fetch error exception.
+     */
+    @Override
+    public JdkHttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize, LookupTrace trace) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        return getPolicy(stsRecord, maxPolicyBodySize, trace, null, null);
+    }
+
+    /**
+     * Gets policy conditionally.
+     * <p>Sends If-None-Match and If-Modified-Since for the validators given.
+     * <p>Blocks until the fetch completes or the connect, write and read timeouts together run out.
+     *
+     * @param stsRecord StsRecord instance.
+     * @param maxPolicyBodySize The maximum size of the policy body.
+     * @param trace LookupTrace instance or null.
+     * @param etag ETag of the cached policy or null.
+     * @param lastModified Last-Modified of the cached policy or null.
+     * @return JdkHttpsResponse instance.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException Policy fetch error exception.
+     */
+    @Override
+    public JdkHttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize, LookupTrace trace, String etag, String lastModified) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        if (stsRecord == null || stsRecord.getDomain() == null) {
+            return null;
+        }
+
+        PolicyFetchEvent event = new PolicyFetchEvent();
+        event.begin();
+
+        String outcome = null;
+        int bodySize = 0;
+        CompletableFuture<JdkHttpsResponse> future = getPolicyAsync(stsRecord, maxPolicyBodySize, trace, etag, lastModified);
+        try {
+            JdkHttpsResponse jdkHttpsResponse = future.get(config.getConnectTimeout() + config.getWriteTimeout() + config.getReadTimeout(), TimeUnit.SECONDS);
+
+            outcome = String.valueOf(jdkHttpsResponse.getCode());
+            bodySize = jdkHttpsResponse.getBody() != null ? jdkHttpsResponse.getBody().length() : 0;
+            return jdkHttpsResponse;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            outcome = e.getClass().getSimpleName();
+            throw new PolicyFetchErrorException("Interrupted");
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            outcome = e.getClass().getSimpleName();
+            throw new PolicyFetchErrorException("Policy fetch timed out");
+        } catch (ExecutionException e) {
+            outcome = e.getCause().getClass().getSimpleName();
+            if (e.getCause() instanceof PolicyWebPKIInvalidException) {
+                throw (PolicyWebPKIInvalidException) e.getCause();
+            }
+            else if (e.getCause() instanceof PolicyFetchErrorException) {
+                throw (PolicyFetchErrorException) e.getCause();
+            }
+            throw new PolicyFetchErrorException(String.valueOf(e.getCause()));
+        } finally {
+            if (event.shouldCommit()) {
+                event.domain = stsRecord.getDomain();
+                event.outcome = outcome;
+                event.bodySize = bodySize;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Gets policy asynchronously.
+     * <p>Completes exceptionally with PolicyWebPKIInvalidException or PolicyFetchErrorException.
+     *
+     * @param stsRecord StsRecord instance.
+     * @param maxPolicyBodySize The maximum size of the policy body.
+     * @param trace LookupTrace instance or null.
+     * @param etag ETag of the cached policy or null.
+     * @param lastModified Last-Modified of the cached policy or null.
+     * @return CompletableFuture of JdkHttpsResponse instance.
+     */
+    public CompletableFuture<JdkHttpsResponse> getPolicyAsync(StsRecord stsRecord, int maxPolicyBodySize, LookupTrace trace, String etag, String lastModified) {
+        if (maxPolicyBodySize == 0) {
+            // Default to the maximum policy body size specified in the config (64k) if it is zero or not present.
+            maxPolicyBodySize = new Config().getPolicyMaxBodySize();
+        }
+
+        String domain = stsRecord.getDomain();
+        try {
+            HttpRequest.Builder builder = HttpRequest.newBuilder(getUri(domain))
+                    .GET()
+                    .timeout(Duration.ofSeconds(config.getReadTimeout()))
+                    .header("User-Agent", "Mimecast MTA-STS")
+                    .header("Content-Type", "text/plain")
+                    .header("Cache-Control", "no-cache");
+            if (etag != null) {
+                builder.header("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                builder.header("If-Modified-Since", lastModified);
+            }
+
+            int max = maxPolicyBodySize;
+            long start = System.nanoTime();
+            return getClient().sendAsync(builder.build(), responseInfo -> {
+                        long headers = System.nanoTime();
+                        if (trace != null) {
+                            trace.record(Phase.TTFB, start, headers);
+                        }
+                        return new BoundedBodySubscriber(max, trace, headers);
+                    })
+                    .handle((response, exception) -> {
+                        if (exception == null) {
+                            return new JdkHttpsResponse(response);
+                        }
+                        throw new CompletionException(map(domain, exception));
+                    });
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(map(domain, e));
+        }
+    }
+
+    /**
+     * Maps fetch failure.
+     *
+     * @param domain    Domain string.
+     * @param exception Throwable instance.
+     * @return PolicyWebPKIInvalidException or PolicyFetchErrorException instance.
+     */
+    private Exception map(String domain, Throwable exception) {
+        Throwable cause = exception instanceof CompletionException && exception.getCause() != null ? exception.getCause() : exception;
+        for (Throwable t = cause; t != null; t = t.getCause()) {
+            if (t instanceof SSLHandshakeException) {
+                return new PolicyWebPKIInvalidException(t.getMessage());
+            }
+        }
+
+        log.debug("Policy fetch failed: {} {}", domain, cause.getMessage());
+        return new PolicyFetchErrorException(cause.getClass().getSimpleName() + ": " + cause.getMessage());
+    }
+
+    /**
+     * Gets URI.
+     * <p>Isolated for testing.
+     *
+     * @param domain Domain string.
+     * @return URI instance.
+     */
+    protected URI getUri(String domain) {
+        return URI.create("https://mta-sts." + domain + "/.well-known/mta-sts.txt");
+    }
+
+    /**
+     * Gets HttpClient.
+     * <p>Built on first use and kept until the config or executor changes.
+     *
+     * @return HttpClient instance.
+     * @throws KeyManagementException   Key management exception.
+     * @throws NoSuchAlgorithmException No such algorithm exception.
+     */
+    private synchronized HttpClient getClient() throws KeyManagementException, NoSuchAlgorithmException {
+        if (client == null) {
+            SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+            sslContext.init(null, new TrustManager[] { trustManager }, null);
+
+            client = getBuilder(sslContext).build();
+        }
+
+        return client;
+    }
+
+    /**
+     * Gets HttpClient.Builder.
+     * <p>Isolated for testing.
+     * <p>Disabled redirects per RFC specification.
+     *
+     * @param sslContext SSLContext instance.
+     * @return HttpClient.Builder instance.
+     */
+    protected HttpClient.Builder getBuilder(SSLContext sslContext) {
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .connectTimeout(Duration.ofSeconds(config.getConnectTimeout()))
+                .sslContext(sslContext)
+                .executor(executor);
+    }
+
+    /**
+     * Bounded body subscriber.
+     * <p>Keeps up to the maximum policy body size and cancels the rest of the body.
+     */
+    static final class BoundedBodySubscriber implements HttpResponse.BodySubscriber<String> {
+
+        /**
+         * Maximum body length.
+         */
+        private final int maxBodySize;
+
+        /**
+         * LookupTrace instance or null.
+         */
+        private final LookupTrace trace;
+
+        /**
+         * Headers received nano time.
+         */
+        private final long start;
+
+        /**
+         * Body buffer.
+         */
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+
+        /**
+         * Body future.
+         */
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+
+        /**
+         * Subscription.
+         */
+        private Flow.Subscription subscription;
+
+        /**
+         * Constructs a new BoundedBodySubscriber instance.
+         *
+         * @param maxBodySize Maximum body length.
+         * @param trace       LookupTrace instance or null.
+         * @param start       Headers received nano time.
+         */
+        BoundedBodySubscriber(int maxBodySize, LookupTrace trace, long start) {
+            this.maxBodySize = maxBodySize;
+            this.trace = trace;
+            this.start = start;
+        }
+
+        @Override
+        public CompletionStage<String> getBody() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            for (ByteBuffer item : items) {
+                int keep = Math.min(item.remaining(), maxBodySize - body.size());
+                byte[] bytes = new byte[keep];
+                item.get(bytes);
+                body.write(bytes, 0, keep);
+            }
+
+            if (body.size() >= maxBodySize) {
+                subscription.cancel();
+                complete();
+            }
+            else {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            complete();
+        }
+
+        /**
+         * Completes body.
+         */
+        private void complete() {
+            if (!result.isDone()) {
+                if (trace != null) {
+                    trace.record(Phase.BODY, start, System.nanoTime());
+                }
+                result.complete(new String(body.toByteArray(), StandardCharsets.UTF_8));
+            }
+        }
+    }
+}
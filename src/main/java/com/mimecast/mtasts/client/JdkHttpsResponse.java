@@ -0,0 +1,122 @@
+package com.mimecast.mtasts.client;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import java.net.http.HttpResponse;
+import java.security.cert.Certificate;
+import java.util.*;
+
+/**
+ * JDK HTTPS Response.
+ * <p>Wrapper for JdkHttpsPolicyClient response.
+ *
+ * @see JdkHttpsPolicyClient
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class JdkHttpsResponse implements HttpsResponse {
+
+    private final int code;
+    private final String message;
+    private final boolean handshake;
+    private final List<Certificate> certificates = new ArrayList<>();
+    private final Map<String, String> headers = new HashMap<>();
+    private final String body;
+
+    /**
+     * Constructs a new JdkHttpsResponse instance with given HttpResponse.
+     *
+     * @param response HttpResponse instance with body already bounded.
+     */
+    public JdkHttpsResponse(HttpResponse<String> response) {
+        code = response.statusCode();
+        message = "";
+        body = response.body();
+
+        handshake = response.sslSession().isPresent();
+        response.sslSession().ifPresent(session -> {
+            try {
+                certificates.addAll(Arrays.asList(session.getPeerCertificates()));
+            } catch (SSLPeerUnverifiedException e) {
+                // No peer certificate chain.
+            }
+        });
+
+        response.headers().map().forEach((name, values) -> {
+            if (!values.isEmpty()) {
+                headers.put(name.toLowerCase(Locale.ROOT), values.get(0));
+            }
+        });
+    }
+
+    /**
+     * Is successful.
+     *
+     * @return Boolean.
+     */
+    @Override
+    public boolean isSuccessful() {
+        return code >= 200 && code < 300;
+    }
+
+    /**
+     * Gets code.
+     *
+     * @return Integer.
+     */
+    @Override
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Gets message.
+     * <p>Always empty as the JDK client does not expose reason phrases.
+     *
+     * @return Message string.
+     */
+    @Override
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Is handshake.
+     *
+     * @return Boolean.
+     */
+    @Override
+    public boolean isHandshake() {
+        return handshake;
+    }
+
+    /**
+     * Gets peer certificates.
+     *
+     * @return List of Certificate.
+     */
+    @Override
+    public List<Certificate> getPeerCertificates() {
+        return certificates;
+    }
+
+    /**
+     * Gets header.
+     *
+     * @param name Header name string.
+     * @return Header value string.
+     */
+    @Override
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Gets body.
+     *
+     * @return Body string.
+     */
+    @Override
+    public String getBody() {
+        return body;
+    }
+}
@@ -0,0 +1,958 @@
+package com.mimecast.mtasts.client;
+
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.config.Config;
+import com.mimecast.mtasts.config.ConfigHandler;
+import com.mimecast.mtasts.exception.PolicyFetchErrorException;
+import com.mimecast.mtasts.exception.PolicyWebPKIInvalidException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.net.ssl.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NIO HTTPS Policy Client.
+ * <p>Non-blocking HTTPS client for fetching policies in bulk.
+ * <p>Fetches run on a few selector threads using non-blocking socket channels and SSLEngine so no thread is held per fetch.
+ * <p>Only GET of the well known policy path is supported with one request per connection.
+ * <p>Each connection holds its TLS buffers and a body capped at the maximum policy body size so memory per fetch is fixed.
+ * <p>Fetches over the maximum connections limit wait in a queue until a connection completes.
+ * <p>Host names are resolved without blocking through an AsyncDnsRecordClient if one is set.
+ * <p>Otherwise they are resolved with InetAddress on a small bounded thread pool so slow DNS never stalls a selector.
+ * <p>Resolutions over the pool size wait in its queue so a burst of fetches cannot start a thread each.
+ * <p>That caps concurrent blocking resolutions at the pool size which limits bulk fetches of uncached hosts.
+ * <p>The connect timeout covers the TCP connect and TLS handshake and the read timeout applies between reads.
+ *
+ * @link <a href="https://tools.ietf.org/html/rfc8461#section-3.3">RFC8461#section-3.3</a>
+ *
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class NioHttpsPolicyClient extends ConfigHandler implements HttpsPolicyClient, Closeable {
+    private static final Logger log = LogManager.getLogger(NioHttpsPolicyClient.class);
+
+    /**
+     * Host resolver threads.
+     */
+    private static final int RESOLVER_THREADS = 16;
+
+    /**
+     * Host resolver executor.
+     */
+    private static final ThreadPoolExecutor resolver = new ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+        Thread thread = new Thread(runnable, "mta-sts-nio-resolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        resolver.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Timeout sweep interval in milliseconds.
+     */
+    private static final long SWEEP = 100;
+
+    /**
+     * Trust manager to use for certificate validation.
+     */
+    private final X509TrustManager trustManager;
+
+    /**
+     * Fetches waiting for a connection.
+     */
+    private final Queue<Fetch> waiting = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Connections in flight.
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Next selector index.
+     */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Selector threads count.
+     */
+    private int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Maximum connections in flight.
+     */
+    private int maxConnections = 10000;
+
+    /**
+     * SSL context.
+     */
+    private SSLContext sslContext;
+
+    /**
+     * Selector loops.
+     */
+    private Reactor[] reactors;
+
+    /**
+     * Non-blocking DNS client or null to resolve with InetAddress.
+     */
+    private AsyncDnsRecordClient dnsRecordClient = null;
+
+    /**
+     * Closed flag.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Constructs a new NioHttpsPolicyClient instance.
+     *
+     * @param trustManager X509TrustManager instance.
+     */
+    public NioHttpsPolicyClient(X509TrustManager trustManager) {
+        this.trustManager = trustManager;
+    }
+
+    /**
+     * Sets selector threads count.
+     * <p>Applies if set before the first fetch.
+     * <p>Default: available processors up to 4
+     *
+     * @param threads Threads count.
+     * @return Self.
+     */
+    public NioHttpsPolicyClient setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+
+    /**
+     * Sets maximum connections in flight.
+     * <p>Default: 10000
+     *
+     * @param maxConnections Connections count.
+     * @return Self.
+     */
+    public NioHttpsPolicyClient setMaxConnections(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+        return this;
+    }
+
+    /**
+     * Sets DNS client to resolve host names with.
+     * <p>Lookups then hold no thread while in flight instead of waiting on the bounded resolver pool.
+     * <p>Default: null to resolve with InetAddress
+     *
+     * @param dnsRecordClient AsyncDnsRecordClient instance.
+     * @return Self.
+     */
+    public NioHttpsPolicyClient setDnsRecordClient(AsyncDnsRecordClient dnsRecordClient) {
+        this.dnsRecordClient = dnsRecordClient;
+        return this;
+    }
+
+    /**
+     * Gets policy.
+     * <p>Blocks until the fetch completes.
+     *
+     * @param stsRecord StsRecord instance.
+     * @param maxPolicyBodySize The maximum size of the policy body.
+     * @return NioHttpsResponse instance or null if record or domain is null.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException Policy fetch error exception.
+     */
+    @Override
+    public NioHttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        if (stsRecord == null || stsRecord.getDomain() == null) {
+            return null;
+        }
+
+        try {
+            return getPolicyAsync(stsRecord, maxPolicyBodySize).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PolicyFetchErrorException("Interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PolicyWebPKIInvalidException) {
+                throw (PolicyWebPKIInvalidException) e.getCause();
+            }
+            else if (e.getCause() instanceof PolicyFetchErrorException) {
+                throw (PolicyFetchErrorException) e.getCause();
+            }
+            throw new PolicyFetchErrorException(String.valueOf(e.getCause()));
+        }
+    }
+
+    /**
+     * Gets policy asynchronously.
+     * <p>Completes exceptionally with PolicyWebPKIInvalidException or PolicyFetchErrorException.
+     *
+     * @param stsRecord StsRecord instance.
+     * @param maxPolicyBodySize The maximum size of the policy body.
+     * @return CompletableFuture of NioHttpsResponse instance.
+     */
+    public CompletableFuture<NioHttpsResponse> getPolicyAsync(StsRecord stsRecord, int maxPolicyBodySize) {
+        if (maxPolicyBodySize == 0) {
+            // Default to the maximum policy body size specified in the config (64k) if it is zero or not present.
+            maxPolicyBodySize = new Config().getPolicyMaxBodySize();
+        }
+
+        Fetch fetch = new Fetch(stsRecord.getDomain(), maxPolicyBodySize);
+        if (closed) {
+            fetch.future.completeExceptionally(new PolicyFetchErrorException("Client closed"));
+        }
+        else {
+            waiting.add(fetch);
+            drain();
+        }
+
+        return fetch.future;
+    }
+
+    /**
+     * Gets connections in flight.
+     *
+     * @return Integer.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Closes client.
+     * <p>Fetches in flight or waiting fail.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (reactors != null) {
+            for (Reactor reactor : reactors) {
+                reactor.selector.wakeup();
+            }
+        }
+
+        Fetch fetch;
+        while ((fetch = waiting.poll()) != null) {
+            fetch.future.completeExceptionally(new PolicyFetchErrorException("Client closed"));
+        }
+    }
+
+    /**
+     * Gets host name.
+     *
+     * @param domain Domain string.
+     * @return Host string.
+     */
+    protected String getHost(String domain) {
+        return "mta-sts." + domain;
+    }
+
+    /**
+     * Gets port to connect to.
+     * <p>Isolated for testing.
+     *
+     * @param domain Domain string.
+     * @return Port number.
+     */
+    protected int getPort(String domain) {
+        return 443;
+    }
+
+    /**
+     * Gets address to connect to.
+     * <p>Resolves with InetAddress when no DNS client is set.
+     * <p>Isolated for testing.
+     *
+     * @param domain Domain string.
+     * @return Resolved InetSocketAddress instance.
+     */
+    protected InetSocketAddress getAddress(String domain) {
+        return new InetSocketAddress(getHost(domain), getPort(domain));
+    }
+
+    /**
+     * Gets request path.
+     * <p>Isolated for testing.
+     *
+     * @param domain Domain string.
+     * @return Path string.
+     */
+    protected String getPath(String domain) {
+        return "/.well-known/mta-sts.txt";
+    }
+
+    /**
+     * Creates SSLEngine.
+     * <p>Isolated for testing.
+     * <p>Verifies the certificate matches the policy host.
+     *
+     * @param sslContext SSLContext instance.
+     * @param host       Host string.
+     * @return SSLEngine instance.
+     */
+    protected SSLEngine createEngine(SSLContext sslContext, String host) {
+        SSLEngine engine = sslContext.createSSLEngine(host, 443);
+        engine.setUseClientMode(true);
+
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+
+        return engine;
+    }
+
+    /**
+     * Starts waiting fetches within the connections limit.
+     */
+    private void drain() {
+        while (!waiting.isEmpty()) {
+            int current = inFlight.get();
+            if (current >= maxConnections) {
+                return;
+            }
+            if (!inFlight.compareAndSet(current, current + 1)) {
+                continue;
+            }
+
+            Fetch fetch = waiting.poll();
+            if (fetch == null) {
+                inFlight.decrementAndGet();
+                continue;
+            }
+            start(fetch);
+        }
+    }
+
+    /**
+     * Starts fetch.
+     * <p>Resolves the host then hands the connection to a selector.
+     *
+     * @param fetch Fetch instance.
+     */
+    private void start(Fetch fetch) {
+        try {
+            Reactor reactor = getReactors()[Math.floorMod(next.getAndIncrement(), threads)];
+            resolve(fetch.domain).whenComplete((address, e) -> {
+                if (e != null) {
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    finish(fetch, null, cause instanceof Exception ? (Exception) cause : new IOException(cause));
+                    return;
+                }
+
+                try {
+                    reactor.register(new Connection(fetch, address, createEngine(sslContext, getHost(fetch.domain))));
+                } catch (Exception ex) {
+                    finish(fetch, null, ex);
+                }
+            });
+        } catch (Exception e) {
+            finish(fetch, null, e);
+        }
+    }
+
+    /**
+     * Resolves address to connect to.
+     * <p>Through the DNS client if set, else with getAddress on the bounded resolver pool.
+     *
+     * @param domain Domain string.
+     * @return CompletableFuture of resolved InetSocketAddress instance.
+     */
+    private CompletableFuture<InetSocketAddress> resolve(String domain) {
+        String host = getHost(domain);
+        if (dnsRecordClient != null) {
+            return dnsRecordClient.getAddressAsync(host).toCompletableFuture()
+                    .thenApply(address -> new InetSocketAddress(address
+                            .orElseThrow(() -> new CompletionException(new IOException("Unknown host: " + host))), getPort(domain)));
+        }
+
+        return CompletableFuture.supplyAsync(() -> {
+            InetSocketAddress address = getAddress(domain);
+            if (address.isUnresolved()) {
+                throw new CompletionException(new IOException("Unknown host: " + address.getHostString()));
+            }
+            return address;
+        }, resolver);
+    }
+
+    /**
+     * Finishes fetch.
+     * <p>Releases the connection slot before completing so callers never see it held.
+     * <p>Then starts the next waiting fetch.
+     *
+     * @param fetch     Fetch instance.
+     * @param response  NioHttpsResponse instance or null.
+     * @param exception Exception instance or null.
+     */
+    private void finish(Fetch fetch, NioHttpsResponse response, Exception exception) {
+        inFlight.decrementAndGet();
+
+        if (exception == null) {
+            fetch.future.complete(response);
+        }
+        else if (exception instanceof SSLHandshakeException) {
+            fetch.future.completeExceptionally(new PolicyWebPKIInvalidException(exception.getMessage()));
+        }
+        else {
+            log.debug("Policy fetch failed: {} {}", fetch.domain, exception.getMessage());
+            fetch.future.completeExceptionally(new PolicyFetchErrorException(exception.getClass().getSimpleName() + ": " + exception.getMessage()));
+        }
+
+        if (!closed) {
+            drain();
+        }
+    }
+
+    /**
+     * Gets selector loops.
+     * <p>Started on first use.
+     *
+     * @return Array of Reactor instances.
+     * @throws GeneralSecurityException SSL context could not be initialized.
+     * @throws IOException Selector could not be opened.
+     */
+    private synchronized Reactor[] getReactors() throws GeneralSecurityException, IOException {
+        if (closed) {
+            throw new IOException("Client closed");
+        }
+
+        if (reactors == null) {
+            sslContext = SSLContext.getInstance("TLSv1.2");
+            sslContext.init(null, new TrustManager[] { trustManager }, null);
+
+            Reactor[] started = new Reactor[threads];
+            for (int i = 0; i < threads; i++) {
+                started[i] = new Reactor(Selector.open());
+                Thread thread = new Thread(started[i], "mta-sts-nio-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            reactors = started;
+        }
+
+        return reactors;
+    }
+
+    /**
+     * Fetch.
+     * <p>Requested fetch and its future.
+     */
+    private static final class Fetch {
+
+        /**
+         * Domain string.
+         */
+        private final String domain;
+
+        /**
+         * Maximum body length.
+         */
+        private final int maxBodySize;
+
+        /**
+         * Response future.
+         */
+        private final CompletableFuture<NioHttpsResponse> future = new CompletableFuture<>();
+
+        /**
+         * Constructs a new Fetch instance.
+         *
+         * @param domain      Domain string.
+         * @param maxBodySize Maximum body length.
+         */
+        Fetch(String domain, int maxBodySize) {
+            this.domain = domain;
+            this.maxBodySize = maxBodySize;
+        }
+    }
+
+    /**
+     * Reactor.
+     * <p>Selector loop driving its connections.
+     */
+    private final class Reactor implements Runnable {
+
+        /**
+         * Selector instance.
+         */
+        private final Selector selector;
+
+        /**
+         * Connections to register.
+         */
+        private final Queue<Connection> registrations = new ConcurrentLinkedQueue<>();
+
+        /**
+         * Constructs a new Reactor instance.
+         *
+         * @param selector Selector instance.
+         */
+        Reactor(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Queues connection for registration.
+         *
+         * @param connection Connection instance.
+         */
+        void register(Connection connection) {
+            if (closed) {
+                connection.fail(new IOException("Client closed"));
+                return;
+            }
+
+            registrations.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * Runs selector loop.
+         */
+        @Override
+        public void run() {
+            long sweep = System.nanoTime();
+
+            while (!closed) {
+                try {
+                    selector.select(SWEEP);
+                } catch (IOException e) {
+                    log.error("Selector failed: {}", e.getMessage());
+                    break;
+                }
+
+                Connection connection;
+                while ((connection = registrations.poll()) != null) {
+                    connection.open(selector);
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    ((Connection) key.attachment()).handle(key);
+                }
+                selector.selectedKeys().clear();
+
+                long now = System.nanoTime();
+                if (now - sweep >= TimeUnit.MILLISECONDS.toNanos(SWEEP)) {
+                    sweep = now;
+                    for (SelectionKey key : selector.keys()) {
+                        ((Connection) key.attachment()).expire(now);
+                    }
+                }
+            }
+
+            // Fail what is left.
+            Connection connection;
+            while ((connection = registrations.poll()) != null) {
+                connection.fail(new IOException("Client closed"));
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).fail(new IOException("Client closed"));
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.debug("Selector close failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Connection.
+     * <p>One TLS connection carrying a single request.
+     * <p>Only ever touched by its selector thread once registered.
+     */
+    private final class Connection {
+
+        /**
+         * Fetch instance.
+         */
+        private final Fetch fetch;
+
+        /**
+         * Address to connect to.
+         */
+        private final InetSocketAddress address;
+
+        /**
+         * SSLEngine instance.
+         */
+        private final SSLEngine engine;
+
+        /**
+         * Response parser.
+         */
+        private final HttpResponseParser parser;
+
+        /**
+         * Plain request bytes left to send.
+         */
+        private final ByteBuffer request;
+
+        /**
+         * Network input, write mode.
+         */
+        private ByteBuffer netIn;
+
+        /**
+         * Network output, read mode.
+         */
+        private ByteBuffer netOut;
+
+        /**
+         * Application input, write mode.
+         */
+        private ByteBuffer appIn;
+
+        /**
+         * Socket channel.
+         */
+        private SocketChannel channel;
+
+        /**
+         * Selection key.
+         */
+        private SelectionKey key;
+
+        /**
+         * Peer certificates.
+         */
+        private List<Certificate> certificates;
+
+        /**
+         * Deadline in System.nanoTime() terms.
+         */
+        private long deadline;
+
+        /**
+         * Done flag.
+         */
+        private boolean done = false;
+
+        /**
+         * Constructs a new Connection instance.
+         *
+         * @param fetch   Fetch instance.
+         * @param address InetSocketAddress instance.
+         * @param engine  SSLEngine instance.
+         */
+        Connection(Fetch fetch, InetSocketAddress address, SSLEngine engine) {
+            this.fetch = fetch;
+            this.address = address;
+            this.engine = engine;
+            this.parser = new HttpResponseParser(fetch.maxBodySize);
+            this.request = ByteBuffer.wrap(("GET " + getPath(fetch.domain) + " HTTP/1.1\r\n" +
+                    "Host: " + getHost(fetch.domain) + "\r\n" +
+                    "User-Agent: Mimecast MTA-STS\r\n" +
+                    "Content-Type: text/plain\r\n" +
+                    "Cache-Control: no-cache\r\n" +
+                    "Connection: close\r\n" +
+                    "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        /**
+         * Opens connection.
+         *
+         * @param selector Selector instance.
+         */
+        void open(Selector selector) {
+            try {
+                SSLSession session = engine.getSession();
+                netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+                netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+                netOut.flip();
+                appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+
+                deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getConnectTimeout());
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (channel.connect(address)) {
+                    key = channel.register(selector, SelectionKey.OP_READ, this);
+                    engine.beginHandshake();
+                    process();
+                }
+                else {
+                    key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Handles ready key.
+         *
+         * @param key SelectionKey instance.
+         */
+        void handle(SelectionKey key) {
+            if (done) {
+                return;
+            }
+
+            try {
+                if (key.isValid() && key.isConnectable()) {
+                    channel.finishConnect();
+                    engine.beginHandshake();
+                }
+                process();
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Fails connection if past deadline.
+         *
+         * @param now Current System.nanoTime().
+         */
+        void expire(long now) {
+            if (!done && now - deadline > 0) {
+                fail(new SocketTimeoutException(certificates == null ? "Connect timed out" : "Read timed out"));
+            }
+        }
+
+        /**
+         * Drives handshake, request and response as far as the channel allows.
+         *
+         * @throws IOException IO exception.
+         */
+        private void process() throws IOException {
+            while (!done) {
+                if (!flush()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+
+                switch (engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                        break;
+
+                    case NEED_WRAP:
+                        wrap(ByteBuffer.allocate(0));
+                        break;
+
+                    case NEED_UNWRAP:
+                    case NEED_UNWRAP_AGAIN:
+                        if (!unwrap()) {
+                            key.interestOps(SelectionKey.OP_READ);
+                            return;
+                        }
+                        break;
+
+                    default:
+                        if (certificates == null) {
+                            handshake();
+                        }
+
+                        if (request.hasRemaining()) {
+                            wrap(request);
+                        }
+                        else if (!unwrap()) {
+                            if (!done) {
+                                key.interestOps(SelectionKey.OP_READ);
+                            }
+                            return;
+                        }
+                        break;
+                }
+            }
+        }
+
+        /**
+         * Handles handshake completion.
+         */
+        private void handshake() {
+            try {
+                certificates = Collections.unmodifiableList(Arrays.asList(engine.getSession().getPeerCertificates()));
+            } catch (SSLPeerUnverifiedException e) {
+                certificates = new ArrayList<>();
+            }
+            deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getReadTimeout());
+        }
+
+        /**
+         * Wraps application data into network output.
+         *
+         * @param source ByteBuffer instance.
+         * @throws IOException IO exception.
+         */
+        private void wrap(ByteBuffer source) throws IOException {
+            netOut.clear();
+            SSLEngineResult result = engine.wrap(source, netOut);
+            netOut.flip();
+
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                netOut.flip();
+            }
+            else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new IOException("Connection closed");
+            }
+        }
+
+        /**
+         * Writes pending network output.
+         *
+         * @return Boolean true if all written.
+         * @throws IOException IO exception.
+         */
+        private boolean flush() throws IOException {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Unwraps network input and feeds the parser.
+         *
+         * @return Boolean true if progress was made.
+         * @throws IOException IO exception.
+         */
+        private boolean unwrap() throws IOException {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+
+            switch (result.getStatus()) {
+                case OK:
+                    if (appIn.position() > 0) {
+                        appIn.flip();
+                        boolean complete = parser.feed(appIn);
+                        appIn.clear();
+                        if (complete) {
+                            complete();
+                            return false;
+                        }
+                    }
+                    if (result.bytesConsumed() > 0 || result.bytesProduced() > 0) {
+                        return true;
+                    }
+                    break;
+
+                case BUFFER_OVERFLOW:
+                    appIn = ByteBuffer.allocate(Math.max(appIn.capacity() * 2, engine.getSession().getApplicationBufferSize()));
+                    return true;
+
+                case BUFFER_UNDERFLOW:
+                    if (netIn.position() == netIn.capacity()) {
+                        ByteBuffer larger = ByteBuffer.allocate(Math.max(netIn.capacity() * 2, engine.getSession().getPacketBufferSize()));
+                        netIn.flip();
+                        larger.put(netIn);
+                        netIn = larger;
+                    }
+                    break;
+
+                case CLOSED:
+                default:
+                    end();
+                    return false;
+            }
+
+            int read = channel.read(netIn);
+            if (read < 0) {
+                end();
+                return false;
+            }
+            if (read > 0 && certificates != null) {
+                deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getReadTimeout());
+            }
+
+            return read > 0;
+        }
+
+        /**
+         * Handles end of stream.
+         *
+         * @throws IOException Response incomplete.
+         */
+        private void end() throws IOException {
+            if (parser.end()) {
+                complete();
+            }
+            else {
+                throw new IOException(certificates == null ? "Connection closed during handshake" : "Unexpected end of stream");
+            }
+        }
+
+        /**
+         * Completes fetch with the parsed response.
+         */
+        private void complete() {
+            if (!done) {
+                done = true;
+                close();
+                finish(fetch, new NioHttpsResponse(parser, certificates), null);
+            }
+        }
+
+        /**
+         * Fails fetch.
+         *
+         * @param e Exception instance.
+         */
+        void fail(Exception e) {
+            if (!done) {
+                done = true;
+                close();
+                finish(fetch, null, e);
+            }
+        }
+
+        /**
+         * Closes channel.
+         * <p>Sends a best effort close_notify first.
+         */
+        private void close() {
+            if (channel == null) {
+                return;
+            }
+
+            try {
+                if (channel.isConnected() && certificates != null) {
+                    engine.closeOutbound();
+                    netOut.clear();
+                    engine.wrap(ByteBuffer.allocate(0), netOut);
+                    netOut.flip();
+                    channel.write(netOut);
+                }
+            } catch (IOException e) {
+                log.trace("Close notify failed: {}", e.getMessage());
+            }
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Channel close failed: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.mimecast.mtasts.client;
+
+import java.security.cert.Certificate;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * NIO HTTPS Response.
+ * <p>Policy response read by NioHttpsPolicyClient.
+ *
+ * @see NioHttpsPolicyClient
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class NioHttpsResponse implements HttpsResponse {
+
+    private final int code;
+    private final String message;
+    private final List<Certificate> certificates;
+    private final Map<String, String> headers;
+    private final String body;
+
+    /**
+     * Constructs a new NioHttpsResponse instance.
+     *
+     * @param parser       Complete HttpResponseParser instance.
+     * @param certificates List of peer Certificate instances.
+     */
+    NioHttpsResponse(HttpResponseParser parser, List<Certificate> certificates) {
+        this.code = parser.getCode();
+        this.message = parser.getMessage();
+        this.headers = parser.getHeaders();
+        this.body = parser.getBody();
+        this.certificates = certificates;
+    }
+
+    /**
+     * Is successful.
+     *
+     * @return Boolean.
+     */
+    @Override
+    public boolean isSuccessful() {
+        return code >= 200 && code < 300;
+    }
+
+    /**
+     * Gets code.
+     *
+     * @return Integer.
+     */
+    @Override
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Gets message.
+     *
+     * @return Message string.
+     */
+    @Override
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Is handshake.
+     * <p>Always true as responses are only read after a TLS handshake.
+     *
+     * @return Boolean.
+     */
+    @Override
+    public boolean isHandshake() {
+        return true;
+    }
+
+    /**
+     * Gets peer certificates.
+     *
+     * @return List of Certificate.
+     */
+    @Override
+    public List<Certificate> getPeerCertificates() {
+        return certificates;
+    }
+
+    /**
+     * Gets header.
+     *
+     * @param name Header name string.
+     * @return Header value string.
+     */
+    @Override
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Gets body.
+     *
+     * @return Body string.
+     */
+    @Override
+    public String getBody() {
+        return body;
+    }
+}
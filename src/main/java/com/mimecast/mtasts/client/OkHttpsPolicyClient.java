@@ -3,18 +3,23 @@ package com.mimecast.mtasts.client;
 import com.mimecast.mtasts.assets.StsRecord;
 import com.mimecast.mtasts.config.Config;
 import com.mimecast.mtasts.config.ConfigHandler;
+import com.mimecast.mtasts.events.PolicyFetchEvent;
+import com.mimecast.mtasts.trace.LookupTrace;
 import com.mimecast.mtasts.exception.PolicyFetchErrorException;
 import com.mimecast.mtasts.exception.PolicyWebPKIInvalidException;
-import okhttp3.Interceptor;
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
+import okhttp3.*;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 
 import javax.net.ssl.*;
+import java.io.Closeable;
 import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -27,16 +32,40 @@ import java.util.concurrent.TimeUnit;
  * @link <a href="http://mimecast.com">Mimecast</a>
  */
 public class OkHttpsPolicyClient extends ConfigHandler implements HttpsPolicyClient {
+    private static final Logger log = LogManager.getLogger(OkHttpsPolicyClient.class);
 
     /**
      * HTTP Client.
      */
     private static final OkHttpClient httpClient = new OkHttpClient();
+
     /**
      * Trust manager to use for certificate validation.
      */
     private final X509TrustManager trustManager;
 
+    /**
+     * Policy host resolver.
+     */
+    private Dns dns = Dns.SYSTEM;
+
+    /**
+     * Retry policy for transient failures.
+     */
+    private RetryPolicy retryPolicy = new RetryPolicy();
+
+    /**
+     * Configured client.
+     * <p>Kept so pooled connections are reused across fetches.
+     */
+    private OkHttpClient client;
+
+    /**
+     * Pre-connects in progress by domain.
+     * <p>Completed once the connection is back in the pool.
+     */
+    private final Map<String, CompletableFuture<Void>> preconnects = new ConcurrentHashMap<>();
+
     /**
      * Constructs a new HttpPolicyClient instance.
      *
@@ -59,38 +88,284 @@ public class OkHttpsPolicyClient extends ConfigHandler implements HttpsPolicyCli
      */
     @Override
     public OkHttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        return getPolicy(stsRecord, maxPolicyBodySize, null);
+    }
+
+    /**
+     * Gets policy with lookup trace.
+     * <p>Records host DNS, connect, TLS, TTFB and body phases into the trace if provided.
+     *
+     * @param stsRecord StsRecord instance.
+     * @param maxPolicyBodySize The maximum size of the policy body.
+     * @param trace LookupTrace instance or null.
+     * @return OkHttpsResponse instance.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException Policy fetch error exception.
+     */
+    @Override
+    public OkHttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize, LookupTrace trace) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        return getPolicy(stsRecord, maxPolicyBodySize, trace, null, null);
+    }
+
+    /**
+     * Gets policy conditionally.
+     * <p>Sends If-None-Match and If-Modified-Since for the validators given.
+     *
+     * @param stsRecord StsRecord instance.
+     * @param maxPolicyBodySize The maximum size of the policy body.
+     * @param trace LookupTrace instance or null.
+     * @param etag ETag of the cached policy or null.
+     * @param lastModified Last-Modified of the cached policy or null.
+     * @return OkHttpsResponse instance.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException Policy fetch error exception.
+     */
+    @Override
+    public OkHttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize, LookupTrace trace, String etag, String lastModified) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        return getPolicy(stsRecord, maxPolicyBodySize, trace, etag, lastModified, retryPolicy.begin());
+    }
+
+    /**
+     * Gets policy conditionally within deadline.
+     * <p>No retry is made past the deadline and retry attempts are capped to the time left.
+     *
+     * @param stsRecord StsRecord instance.
+     * @param maxPolicyBodySize The maximum size of the policy body.
+     * @param trace LookupTrace instance or null.
+     * @param etag ETag of the cached policy or null.
+     * @param lastModified Last-Modified of the cached policy or null.
+     * @param deadline Deadline in System.nanoTime() terms.
+     * @return OkHttpsResponse instance.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException Policy fetch error exception.
+     */
+    @Override
+    public OkHttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize, LookupTrace trace, String etag, String lastModified, long deadline) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        return getPolicy(stsRecord, maxPolicyBodySize, trace, etag, lastModified, retryPolicy.begin(deadline));
+    }
+
+    /**
+     * Gets policy conditionally within retry budget.
+     *
+     * @param stsRecord StsRecord instance.
+     * @param maxPolicyBodySize The maximum size of the policy body.
+     * @param trace LookupTrace instance or null.
+     * @param etag ETag of the cached policy or null.
+     * @param lastModified Last-Modified of the cached policy or null.
+     * @param budget RetryPolicy.Budget instance.
+     * @return OkHttpsResponse instance.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException Policy fetch error exception.
+     */
+    private OkHttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize, LookupTrace trace, String etag, String lastModified, RetryPolicy.Budget budget) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
         if (maxPolicyBodySize == 0) {
             // Default to the maximum policy body size specified in the config (64k) if it is zero or not present.
             maxPolicyBodySize = new Config().getPolicyMaxBodySize();
         }
 
         if (stsRecord != null && stsRecord.getDomain() != null) {
+            PolicyFetchEvent event = new PolicyFetchEvent();
+            event.begin();
+
+            String outcome = null;
+            int bodySize = 0;
             try {
                 // Request.
-                Request request = new Request.Builder()
+                Request.Builder builder = new Request.Builder()
                         .url(getUrl(stsRecord.getDomain()))
                         .addHeader("Content-Type", "text/plain")
                         .addHeader("Cache-Control", "no-cache")
-                        .build();
+                        .tag(LookupTrace.class, trace);
+                if (etag != null) {
+                    builder.addHeader("If-None-Match", etag);
+                }
+                if (lastModified != null) {
+                    builder.addHeader("If-Modified-Since", lastModified);
+                }
+                Request request = builder.build();
 
                 // Response.
-                Response response = getClient().newCall(request).execute();
-
-                // Extract data.
-                OkHttpsResponse okHttpsResponse = new OkHttpsResponse(response, maxPolicyBodySize);
-                response.close();
+                awaitPreconnect(stsRecord.getDomain(), budget);
+                OkHttpsResponse okHttpsResponse = execute(request, maxPolicyBodySize, stsRecord.getDomain(), budget);
 
+                outcome = String.valueOf(okHttpsResponse.getCode());
+                bodySize = okHttpsResponse.getBody() != null ? okHttpsResponse.getBody().length() : 0;
                 return okHttpsResponse;
             } catch (SSLHandshakeException e) {
+                outcome = e.getClass().getSimpleName();
                 throw new PolicyWebPKIInvalidException(e.getMessage());
             } catch (Exception e) {
+                outcome = e.getClass().getSimpleName();
                 throw new PolicyFetchErrorException(e.getMessage());
+            } finally {
+                if (event.shouldCommit()) {
+                    event.domain = stsRecord.getDomain();
+                    event.outcome = outcome;
+                    event.bodySize = bodySize;
+                    event.commit();
+                }
             }
         }
 
         return null;
     }
 
+    /**
+     * Executes request with retries.
+     * <p>Connection failures, timeouts and transient HTTP status codes are retried as the retry policy allows.
+     * <p>Retry attempts are capped to the time left before the deadline.
+     *
+     * @param request           Request instance.
+     * @param maxPolicyBodySize The maximum size of the policy body.
+     * @param domain            Domain string.
+     * @param budget            RetryPolicy.Budget instance.
+     * @return OkHttpsResponse instance.
+     * @throws IOException IO exception.
+     * @throws KeyManagementException   Key management exception.
+     * @throws NoSuchAlgorithmException No such algorithm exception.
+     */
+    private OkHttpsResponse execute(Request request, int maxPolicyBodySize, String domain, RetryPolicy.Budget budget) throws IOException, KeyManagementException, NoSuchAlgorithmException {
+        OkHttpClient okHttpClient = getClient();
+        while (true) {
+            Call call = okHttpClient.newCall(request);
+            if (budget.getRetries() > 0) {
+                call.timeout().timeout(budget.getRemaining(), TimeUnit.MILLISECONDS);
+            }
+
+            OkHttpsResponse okHttpsResponse;
+            try (Response response = call.execute()) {
+                okHttpsResponse = new OkHttpsResponse(response, maxPolicyBodySize);
+            } catch (IOException e) {
+                if (!RetryPolicy.isTransient(e) || !budget.backoff()) {
+                    throw e;
+                }
+                log.debug("Policy fetch retry: {} {}", domain, e.getMessage());
+                continue;
+            }
+
+            if (!RetryPolicy.isTransient(okHttpsResponse.getCode()) || !budget.backoff()) {
+                return okHttpsResponse;
+            }
+            log.debug("Policy fetch retry: {} {}", domain, okHttpsResponse.getCode());
+        }
+    }
+
+    /**
+     * Pre-connects to policy host.
+     * <p>Sends a HEAD request for the policy in the background leaving the connection pooled for the policy fetch.
+     * <p>A policy fetch for the domain waits for the HEAD to finish so it reuses the connection rather than opening a second one.
+     * <p>Closing the returned handle cancels the request if still in progress.
+     *
+     * @param domain Domain string.
+     * @return Closeable handle.
+     */
+    @Override
+    public Closeable preconnect(String domain) {
+        try {
+            Request request = new Request.Builder()
+                    .url(getUrl(domain))
+                    .head()
+                    .addHeader("Cache-Control", "no-cache")
+                    .build();
+
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            preconnects.put(domain, future);
+
+            Call call = getClient().newCall(request);
+            call.enqueue(new Callback() {
+                @Override
+                public void onFailure(@NotNull Call call, @NotNull IOException e) {
+                    log.debug("Pre-connect failed: {} {}", domain, e.getMessage());
+                    done(domain, future);
+                }
+
+                @Override
+                public void onResponse(@NotNull Call call, @NotNull Response response) {
+                    response.close();
+                    done(domain, future);
+                }
+            });
+
+            return () -> {
+                call.cancel();
+                done(domain, future);
+            };
+        } catch (Exception e) {
+            log.debug("Pre-connect failed: {} {}", domain, e.getMessage());
+            return () -> { };
+        }
+    }
+
+    /**
+     * Marks pre-connect done.
+     *
+     * @param domain Domain string.
+     * @param future CompletableFuture instance.
+     */
+    private void done(String domain, CompletableFuture<Void> future) {
+        preconnects.remove(domain, future);
+        future.complete(null);
+    }
+
+    /**
+     * Awaits pre-connect in progress for domain.
+     * <p>Waits no longer than the retry budget has left.
+     *
+     * @param domain Domain string.
+     * @param budget RetryPolicy.Budget instance.
+     */
+    private void awaitPreconnect(String domain, RetryPolicy.Budget budget) {
+        CompletableFuture<Void> future = preconnects.get(domain);
+        if (future != null) {
+            try {
+                future.get(budget.getRemaining(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.debug("Pre-connect wait ended: {} {}", domain, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sets policy host resolver.
+     * <p>Default: Dns.SYSTEM
+     *
+     * @param dns Dns instance such as XBillDns.
+     * @return Self.
+     * @see XBillDns
+     */
+    public synchronized OkHttpsPolicyClient setDns(Dns dns) {
+        this.dns = dns != null ? dns : Dns.SYSTEM;
+        client = null;
+        return this;
+    }
+
+    /**
+     * Sets retry policy.
+     * <p>Default: no retries
+     *
+     * @param retryPolicy RetryPolicy instance.
+     * @return Self.
+     */
+    public OkHttpsPolicyClient setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy != null ? retryPolicy : new RetryPolicy();
+        return this;
+    }
+
+    /**
+     * Sets config.
+     * <p>The client is rebuilt with the new config on next use.
+     *
+     * @param config Config instance.
+     * @return Self.
+     */
+    @Override
+    public synchronized ConfigHandler setConfig(Config config) {
+        client = null;
+        return super.setConfig(config);
+    }
+
     /**
      * Gets URL.
      * <p>Isolated for testing.
@@ -104,18 +379,22 @@ public class OkHttpsPolicyClient extends ConfigHandler implements HttpsPolicyCli
 
     /**
      * Gets OkHttpClient.
+     * <p>Built on first use and kept until the config changes.
      *
      * @return OkHttpClient instance.
      * @throws KeyManagementException   Key management exception.
      * @throws NoSuchAlgorithmException No such algorithm exception.
      */
-    private OkHttpClient getClient() throws KeyManagementException, NoSuchAlgorithmException {
-        // Client.
-        SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
-        sslContext.init(null, new TrustManager[] { trustManager }, null);
-        SSLSocketFactory socketFactory = sslContext.getSocketFactory();
+    private synchronized OkHttpClient getClient() throws KeyManagementException, NoSuchAlgorithmException {
+        if (client == null) {
+            SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
+            sslContext.init(null, new TrustManager[] { trustManager }, null);
+            SSLSocketFactory socketFactory = sslContext.getSocketFactory();
+
+            client = getBuilder(socketFactory).build();
+        }
 
-        return getBuilder(socketFactory).build();
+        return client;
     }
 
     /**
@@ -127,14 +406,23 @@ public class OkHttpsPolicyClient extends ConfigHandler implements HttpsPolicyCli
      * @return OkHttpClient.Builder instance.
      */
     protected OkHttpClient.Builder getBuilder(SSLSocketFactory socketFactory) {
-        return httpClient.newBuilder()
+        OkHttpClient.Builder builder = httpClient.newBuilder()
                 .addInterceptor(new UserAgentInterceptor())
+                .eventListenerFactory(OkHttpsTraceListener.FACTORY)
+                .dns(dns)
                 .connectTimeout(config.getConnectTimeout(), TimeUnit.SECONDS)
                 .writeTimeout(config.getWriteTimeout(), TimeUnit.SECONDS)
                 .readTimeout(config.getReadTimeout(), TimeUnit.SECONDS)
                 .sslSocketFactory(socketFactory, trustManager)
                 .followRedirects(false)
                 .followSslRedirects(false);
+
+        // Race again after a failed call rather than keep using a broken family.
+        if (dns instanceof HappyEyeballsDns) {
+            builder.addInterceptor(((HappyEyeballsDns) dns).getInterceptor());
+        }
+
+        return builder;
     }
 
     /**
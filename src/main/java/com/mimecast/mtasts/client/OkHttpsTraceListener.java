@@ -0,0 +1,118 @@
+package com.mimecast.mtasts.client;
+
+import com.mimecast.mtasts.trace.LookupTrace;
+import com.mimecast.mtasts.trace.LookupTrace.Phase;
+import okhttp3.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+/**
+ * OK HTTPS Trace Listener.
+ * <p>OkHttp EventListener recording connection phases into the LookupTrace tagged on the request.
+ * <p>Calls without a LookupTrace tag get no listener.
+ *
+ * @see LookupTrace
+ * @see OkHttpsPolicyClient
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+class OkHttpsTraceListener extends EventListener {
+
+    /**
+     * Listener factory.
+     */
+    static final EventListener.Factory FACTORY = call -> {
+        LookupTrace trace = call.request().tag(LookupTrace.class);
+        return trace != null ? new OkHttpsTraceListener(trace) : EventListener.NONE;
+    };
+
+    /**
+     * LookupTrace instance.
+     */
+    private final LookupTrace trace;
+
+    /**
+     * Phase start nano times.
+     */
+    private long dnsStart;
+    private long connectStart;
+    private long secureConnectStart;
+    private long requestStart;
+    private long bodyStart;
+
+    /**
+     * Constructs a new OkHttpsTraceListener instance.
+     *
+     * @param trace LookupTrace instance.
+     */
+    OkHttpsTraceListener(LookupTrace trace) {
+        this.trace = trace;
+    }
+
+    @Override
+    public void dnsStart(@NotNull Call call, @NotNull String domainName) {
+        dnsStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsEnd(@NotNull Call call, @NotNull String domainName, @NotNull List<InetAddress> inetAddressList) {
+        trace.record(Phase.HOST_DNS, dnsStart, System.nanoTime());
+    }
+
+    @Override
+    public void connectStart(@NotNull Call call, @NotNull InetSocketAddress inetSocketAddress, @NotNull Proxy proxy) {
+        connectStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectStart(@NotNull Call call) {
+        secureConnectStart = System.nanoTime();
+        trace.record(Phase.CONNECT, connectStart, secureConnectStart);
+    }
+
+    @Override
+    public void secureConnectEnd(@NotNull Call call, @Nullable Handshake handshake) {
+        trace.record(Phase.TLS, secureConnectStart, System.nanoTime());
+    }
+
+    @Override
+    public void connectFailed(@NotNull Call call, @NotNull InetSocketAddress inetSocketAddress, @NotNull Proxy proxy, @Nullable Protocol protocol, @NotNull IOException ioe) {
+        trace.record(secureConnectStart > connectStart ? Phase.TLS : Phase.CONNECT,
+                Math.max(connectStart, secureConnectStart), System.nanoTime());
+    }
+
+    @Override
+    public void connectionAcquired(@NotNull Call call, @NotNull Connection connection) {
+        // Pooled connection reused.
+        if (connectStart == 0L) {
+            long now = System.nanoTime();
+            trace.record(Phase.CONNECT, now, now, true);
+        }
+    }
+
+    @Override
+    public void requestHeadersStart(@NotNull Call call) {
+        requestStart = System.nanoTime();
+    }
+
+    @Override
+    public void responseHeadersStart(@NotNull Call call) {
+        trace.record(Phase.TTFB, requestStart, System.nanoTime());
+    }
+
+    @Override
+    public void responseBodyStart(@NotNull Call call) {
+        bodyStart = System.nanoTime();
+    }
+
+    @Override
+    public void responseBodyEnd(@NotNull Call call, long byteCount) {
+        trace.record(Phase.BODY, bodyStart, System.nanoTime());
+    }
+}
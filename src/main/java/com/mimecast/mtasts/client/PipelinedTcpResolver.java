@@ -0,0 +1,570 @@
+package com.mimecast.mtasts.client;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.xbill.DNS.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pipelined TCP Resolver.
+ * <p>DNS Java resolver for bulk lookups keeping persistent TCP connections to one upstream resolver.
+ * <p>Many queries are written back to back on each connection and answers are matched by message ID as RFC 7766 allows.
+ * <p>Bursts are not subject to UDP packet loss and need no connection setup per query.
+ * <p>Single lookups still go over UDP with a SimpleResolver which itself retries truncated answers over TCP.
+ * <p>Queries left unanswered when a connection drops are sent again on a new connection while within their timeout.
+ * <p>TSIG signed queries always go over the SimpleResolver.
+ * <p>Connections are opened on their own reader thread so callers of sendAsync never wait on a TCP handshake.
+ *
+ * @link <a href="https://tools.ietf.org/html/rfc7766#section-6.2.1.1">RFC7766#section-6.2.1.1</a>
+ *
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ * @see AsyncDnsRecordClient
+ */
+public class PipelinedTcpResolver implements Resolver, Closeable {
+    private static final Logger log = LogManager.getLogger(PipelinedTcpResolver.class);
+
+    /**
+     * Upstream resolver address.
+     */
+    private InetSocketAddress address;
+
+    /**
+     * UDP resolver for single lookups.
+     */
+    private final SimpleResolver udpResolver;
+
+    /**
+     * Open connections.
+     */
+    private final List<Connection> pool = new ArrayList<>();
+
+    /**
+     * Queries in flight.
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Maximum connections.
+     */
+    private int connections = 2;
+
+    /**
+     * Queries in flight from which TCP is used.
+     */
+    private int burstThreshold = 2;
+
+    /**
+     * Idle time before a connection is closed.
+     */
+    private Duration idleTimeout = Duration.ofSeconds(10);
+
+    /**
+     * Query timeout.
+     */
+    private Duration timeout = Duration.ofSeconds(10);
+
+    /**
+     * Always use TCP.
+     */
+    private boolean tcp = false;
+
+    /**
+     * TSIG key or null.
+     */
+    private TSIG tsig = null;
+
+    /**
+     * Next connection index.
+     */
+    private int next = 0;
+
+    /**
+     * Constructs a new PipelinedTcpResolver instance.
+     *
+     * @param address Upstream resolver address.
+     */
+    public PipelinedTcpResolver(InetSocketAddress address) {
+        this.address = address;
+        this.udpResolver = new SimpleResolver(address);
+    }
+
+    /**
+     * Sets maximum connections.
+     * <p>Default: 2
+     *
+     * @param connections Connections count.
+     * @return Self.
+     */
+    public PipelinedTcpResolver setConnections(int connections) {
+        this.connections = Math.max(1, connections);
+        return this;
+    }
+
+    /**
+     * Sets burst threshold.
+     * <p>Queries go over TCP once this many are in flight including the new one, otherwise over UDP.
+     * <p>Default: 2
+     *
+     * @param burstThreshold Queries count.
+     * @return Self.
+     */
+    public PipelinedTcpResolver setBurstThreshold(int burstThreshold) {
+        this.burstThreshold = Math.max(1, burstThreshold);
+        return this;
+    }
+
+    /**
+     * Sets idle timeout.
+     * <p>Connections with no queries in flight for this long are closed.
+     * <p>Default: 10 seconds
+     *
+     * @param idleTimeout Duration instance.
+     * @return Self.
+     */
+    public PipelinedTcpResolver setIdleTimeout(Duration idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
+    /**
+     * Gets open connections count.
+     *
+     * @return Integer.
+     */
+    public synchronized int getOpenConnections() {
+        pool.removeIf(connection -> connection.closed);
+        return pool.size();
+    }
+
+    /**
+     * Sends query.
+     *
+     * @param query Message instance.
+     * @return Message instance.
+     * @throws IOException Query failed or timed out.
+     */
+    @Override
+    public Message send(Message query) throws IOException {
+        try {
+            return sendAsync(query).toCompletableFuture().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Query interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            else if (e.getCause() instanceof TimeoutException) {
+                throw new SocketTimeoutException("Query timed out");
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Sends query asynchronously.
+     *
+     * @param query Message instance.
+     * @return CompletionStage of Message instance.
+     */
+    @Override
+    public CompletionStage<Message> sendAsync(Message query) {
+        return sendAsync(query, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Sends query asynchronously.
+     * <p>Uses TCP if in a burst, UDP otherwise.
+     *
+     * @param query    Message instance.
+     * @param executor Completion executor.
+     * @return CompletionStage of Message instance.
+     */
+    @Override
+    public CompletionStage<Message> sendAsync(Message query, Executor executor) {
+        if (tsig != null) {
+            return udpResolver.sendAsync(query, executor);
+        }
+
+        int current = inFlight.incrementAndGet();
+        CompletableFuture<Message> future = tcp || current >= burstThreshold ?
+                sendTcp(query) :
+                udpResolver.sendAsync(query, executor).toCompletableFuture();
+
+        return future.whenComplete((response, e) -> inFlight.decrementAndGet())
+                .thenApplyAsync(response -> response, executor);
+    }
+
+    /**
+     * Sends query over TCP.
+     * <p>The timeout covers all attempts.
+     *
+     * @param query Message instance.
+     * @return CompletableFuture of Message instance.
+     */
+    private CompletableFuture<Message> sendTcp(Message query) {
+        Pending pending = new Pending(query, System.nanoTime() + timeout.toNanos());
+        pending.future.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((response, e) -> {
+                    Connection connection = pending.connection;
+                    if (e != null && connection != null) {
+                        connection.pending.remove(pending.id, pending);
+                    }
+                });
+
+        dispatch(pending);
+        return pending.future;
+    }
+
+    /**
+     * Writes pending query to a connection once connected.
+     * <p>The write happens on the calling thread if already connected, else on the connecting thread.
+     * <p>Connections dropped since picked are replaced while the query is within its timeout.
+     * <p>Fails the query if unable to connect.
+     *
+     * @param pending Pending instance.
+     */
+    private void dispatch(Pending pending) {
+        Connection connection = getConnection();
+        connection.connected.whenComplete((v, e) -> {
+            if (e != null) {
+                pending.future.completeExceptionally(e);
+                return;
+            }
+
+            try {
+                connection.write(pending);
+            } catch (IOException ex) {
+                if (pending.isLive()) {
+                    dispatch(pending);
+                }
+                else {
+                    pending.future.completeExceptionally(ex);
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets connection.
+     * <p>Opens connections up to the maximum then spreads queries over them.
+     * <p>New connections are returned while still connecting.
+     *
+     * @return Connection instance.
+     */
+    private synchronized Connection getConnection() {
+        pool.removeIf(connection -> connection.closed);
+        if (pool.size() < connections) {
+            Connection connection = new Connection();
+            pool.add(connection);
+            connection.start();
+            return connection;
+        }
+
+        next = (next + 1) % pool.size();
+        return pool.get(next);
+    }
+
+    /**
+     * Closes all connections.
+     * <p>Queries in flight on them fail.
+     */
+    @Override
+    public void close() {
+        List<Connection> connectionList;
+        synchronized (this) {
+            connectionList = new ArrayList<>(pool);
+            pool.clear();
+        }
+
+        for (Connection connection : connectionList) {
+            connection.close(new IOException("Resolver closed"), false);
+        }
+    }
+
+    @Override
+    public void setPort(int port) {
+        address = new InetSocketAddress(address.getAddress(), port);
+        udpResolver.setPort(port);
+    }
+
+    @Override
+    public void setTCP(boolean flag) {
+        tcp = flag;
+    }
+
+    @Override
+    public void setIgnoreTruncation(boolean flag) {
+        udpResolver.setIgnoreTruncation(flag);
+    }
+
+    @Override
+    public void setEDNS(int version, int payloadSize, int flags, List<EDNSOption> options) {
+        udpResolver.setEDNS(version, payloadSize, flags, options);
+    }
+
+    @Override
+    public void setTSIGKey(TSIG key) {
+        tsig = key;
+        udpResolver.setTSIGKey(key);
+    }
+
+    @Override
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+        udpResolver.setTimeout(timeout);
+    }
+
+    @Override
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Pending query.
+     */
+    private static final class Pending {
+
+        /**
+         * Original query.
+         */
+        private final Message query;
+
+        /**
+         * Deadline in nanoseconds.
+         */
+        private final long deadline;
+
+        /**
+         * Answer future.
+         */
+        private final CompletableFuture<Message> future = new CompletableFuture<>();
+
+        /**
+         * Connection last written to.
+         */
+        private volatile Connection connection;
+
+        /**
+         * Wire message ID on that connection.
+         */
+        private volatile int id;
+
+        /**
+         * Constructs a new Pending instance.
+         *
+         * @param query    Message instance.
+         * @param deadline Deadline in nanoseconds.
+         */
+        Pending(Message query, long deadline) {
+            this.query = query;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Is within timeout and unanswered.
+         *
+         * @return Boolean.
+         */
+        boolean isLive() {
+            return !future.isDone() && deadline - System.nanoTime() > 0;
+        }
+    }
+
+    /**
+     * Pipelined connection.
+     * <p>Writes are serialized and a daemon thread reads answers as they come in any order.
+     */
+    private final class Connection {
+
+        /**
+         * Queries in flight by wire message ID.
+         */
+        private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+
+        /**
+         * Socket instance.
+         */
+        private final Socket socket = new Socket();
+
+        /**
+         * Completes once connected or exceptionally if unable to connect.
+         */
+        private final CompletableFuture<Void> connected = new CompletableFuture<>();
+
+        /**
+         * Output stream.
+         */
+        private DataOutputStream out;
+
+        /**
+         * Input stream.
+         */
+        private DataInputStream in;
+
+        /**
+         * Next message ID.
+         */
+        private int nextId = ThreadLocalRandom.current().nextInt(0x10000);
+
+        /**
+         * Closed flag.
+         */
+        private volatile boolean closed = false;
+
+        /**
+         * Starts daemon thread which connects then reads answers.
+         */
+        void start() {
+            Thread thread = new Thread(() -> {
+                if (connect()) {
+                    read();
+                }
+            }, "mta-sts-dns-tcp");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Connects.
+         * <p>Completes the connected future either way.
+         *
+         * @return Boolean true if connected.
+         */
+        private boolean connect() {
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(address, (int) timeout.toMillis());
+                socket.setSoTimeout((int) idleTimeout.toMillis());
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            } catch (IOException e) {
+                log.debug("Connection failed: {}", e.getMessage());
+                close(e, false);
+                return false;
+            }
+
+            connected.complete(null);
+            return true;
+        }
+
+        /**
+         * Writes query.
+         * <p>The query is sent with a message ID unique on this connection.
+         *
+         * @param query Pending instance.
+         * @throws IOException Unable to write.
+         */
+        synchronized void write(Pending query) throws IOException {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            if (pending.size() >= 0x10000) {
+                throw new IOException("Too many queries in flight");
+            }
+
+            int id;
+            do {
+                id = nextId;
+                nextId = (nextId + 1) & 0xFFFF;
+            } while (pending.putIfAbsent(id, query) != null);
+            query.connection = this;
+            query.id = id;
+
+            Message wire = query.query.clone();
+            wire.getHeader().setID(id);
+            byte[] data = wire.toWire(Message.MAXLENGTH);
+
+            try {
+                out.writeShort(data.length);
+                out.write(data);
+                out.flush();
+            } catch (IOException e) {
+                pending.remove(id);
+                close(e, true);
+                throw e;
+            }
+        }
+
+        /**
+         * Reads answers until the connection closes or idles out.
+         */
+        private void read() {
+            try {
+                while (!closed) {
+                    int length;
+                    try {
+                        length = in.readUnsignedShort();
+                    } catch (SocketTimeoutException e) {
+                        if (pending.isEmpty()) {
+                            close(null, false);
+                            return;
+                        }
+                        continue;
+                    }
+
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+
+                    Message response = new Message(data);
+                    Pending query = pending.remove(response.getHeader().getID());
+                    if (query != null) {
+                        response.getHeader().setID(query.query.getHeader().getID());
+                        query.future.complete(response);
+                    }
+                }
+            } catch (IOException e) {
+                close(e, true);
+            }
+        }
+
+        /**
+         * Closes connection.
+         * <p>Queries in flight are sent again on a new connection if allowed and within their timeout, else failed.
+         *
+         * @param cause IOException instance or null.
+         * @param retry Boolean true to send again queries in flight.
+         */
+        void close(IOException cause, boolean retry) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            }
+            connected.completeExceptionally(cause != null ? cause : new IOException("Connection closed"));
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("Connection close failed: {}", e.getMessage());
+            }
+
+            if (!pending.isEmpty()) {
+                log.debug("Connection dropped with {} queries in flight: {}", pending.size(), cause != null ? cause.getMessage() : "idle");
+            }
+
+            List<Pending> queries = new ArrayList<>(pending.values());
+            pending.clear();
+            for (Pending query : queries) {
+                if (retry && query.isLive()) {
+                    dispatch(query);
+                }
+                else {
+                    query.future.completeExceptionally(cause != null ? cause : new IOException("Connection closed"));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,493 @@
+package com.mimecast.mtasts.client;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.xbill.DNS.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Resolver Pool.
+ * <p>DNS Java resolver routing each query to the best performing of several upstream resolvers.
+ * <p>Tracks latency and error rate of each upstream as exponentially weighted moving averages.
+ * <p>A failed or SERVFAIL query is sent again to the next best upstream.
+ * <p>Upstreams failing several times in a row are ejected for a while.
+ * <p>Once that time is up they get a copy of the next query as a probe and rejoin if it succeeds.
+ * <p>Probes never delay or fail the caller's query.
+ * <p>Installed via Lookup.setDefaultResolver() it is shared by all DNS lookups in this library.
+ *
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ * @see XBillDnsRecordClient
+ * @see AsyncDnsRecordClient
+ */
+public class ResolverPool implements Resolver {
+    private static final Logger log = LogManager.getLogger(ResolverPool.class);
+
+    /**
+     * Moving average weight of the latest sample.
+     */
+    static final double ALPHA = 0.3;
+
+    /**
+     * Upstreams list.
+     */
+    private final List<Upstream> upstreams = new ArrayList<>();
+
+    /**
+     * Attempts per query across upstreams.
+     */
+    private int attempts = 2;
+
+    /**
+     * Consecutive failures before ejection.
+     */
+    private int ejectAfter = 3;
+
+    /**
+     * Ejection time.
+     */
+    private Duration ejectTime = Duration.ofSeconds(30);
+
+    /**
+     * Query timeout.
+     */
+    private Duration timeout = Duration.ofSeconds(10);
+
+    /**
+     * Constructs a new ResolverPool instance.
+     *
+     * @param resolvers Upstream Resolver instances.
+     */
+    public ResolverPool(Resolver... resolvers) {
+        this(Arrays.asList(resolvers));
+    }
+
+    /**
+     * Constructs a new ResolverPool instance.
+     *
+     * @param resolvers List of upstream Resolver instances.
+     */
+    public ResolverPool(List<Resolver> resolvers) {
+        if (resolvers.isEmpty()) {
+            throw new IllegalArgumentException("No upstream resolvers");
+        }
+
+        for (Resolver resolver : resolvers) {
+            upstreams.add(new Upstream(resolver));
+        }
+    }
+
+    /**
+     * Sets attempts per query.
+     * <p>Each attempt goes to a different upstream.
+     * <p>Default: 2
+     *
+     * @param attempts Attempts count.
+     * @return Self.
+     */
+    public ResolverPool setAttempts(int attempts) {
+        this.attempts = Math.max(1, attempts);
+        return this;
+    }
+
+    /**
+     * Sets consecutive failures before ejection.
+     * <p>Default: 3
+     *
+     * @param ejectAfter Failures count.
+     * @return Self.
+     */
+    public ResolverPool setEjectAfter(int ejectAfter) {
+        this.ejectAfter = Math.max(1, ejectAfter);
+        return this;
+    }
+
+    /**
+     * Sets ejection time.
+     * <p>Default: 30 seconds
+     *
+     * @param ejectTime Duration instance.
+     * @return Self.
+     */
+    public ResolverPool setEjectTime(Duration ejectTime) {
+        this.ejectTime = ejectTime;
+        return this;
+    }
+
+    /**
+     * Installs as default resolver.
+     * <p>All lookups via Lookup, including XBillDnsRecordClient and XBillDns, then go through the pool.
+     *
+     * @return Self.
+     */
+    public ResolverPool install() {
+        Lookup.setDefaultResolver(this);
+        return this;
+    }
+
+    /**
+     * Gets upstreams.
+     *
+     * @return Unmodifiable list of Upstream instances.
+     */
+    public List<Upstream> getUpstreams() {
+        return Collections.unmodifiableList(upstreams);
+    }
+
+    /**
+     * Sends query.
+     *
+     * @param query Message instance.
+     * @return Message instance.
+     * @throws IOException Query failed on every attempt.
+     */
+    @Override
+    public Message send(Message query) throws IOException {
+        try {
+            return sendAsync(query).toCompletableFuture().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Query interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            else if (e.getCause() instanceof TimeoutException) {
+                throw new SocketTimeoutException("Query timed out");
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Sends query asynchronously.
+     *
+     * @param query Message instance.
+     * @return CompletionStage of Message instance.
+     */
+    @Override
+    public CompletionStage<Message> sendAsync(Message query) {
+        return sendAsync(query, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Sends query asynchronously.
+     * <p>Goes to the best upstream, then the next best on failure, and probes one recovering upstream alongside.
+     *
+     * @param query    Message instance.
+     * @param executor Completion executor.
+     * @return CompletionStage of Message instance.
+     */
+    @Override
+    public CompletionStage<Message> sendAsync(Message query, Executor executor) {
+        CompletableFuture<Message> result = new CompletableFuture<>();
+        attempt(query, executor, result, new HashSet<>(), attempts);
+        probe(query, executor);
+        return result;
+    }
+
+    /**
+     * Attempts query on the best upstream not tried yet.
+     *
+     * @param query     Message instance.
+     * @param executor  Completion executor.
+     * @param result    Caller CompletableFuture instance.
+     * @param tried     Upstreams tried so far.
+     * @param remaining Attempts remaining.
+     */
+    private void attempt(Message query, Executor executor, CompletableFuture<Message> result, Set<Upstream> tried, int remaining) {
+        Upstream upstream = select(tried);
+        tried.add(upstream);
+
+        send(upstream, query, executor).whenComplete((response, e) -> {
+            boolean failed = e != null || response.getRcode() == Rcode.SERVFAIL;
+            if (!failed) {
+                result.complete(response);
+            }
+            else if (remaining > 1 && tried.size() < upstreams.size()) {
+                log.debug("Upstream failed, trying next: {} {}", upstream.resolver, e != null ? e.getMessage() : "SERVFAIL");
+                attempt(query, executor, result, tried, remaining - 1);
+            }
+            else if (e != null) {
+                result.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+            }
+            else {
+                result.complete(response);
+            }
+        });
+    }
+
+    /**
+     * Probes one ejected upstream whose ejection time is up.
+     *
+     * @param query    Message instance.
+     * @param executor Completion executor.
+     */
+    private void probe(Message query, Executor executor) {
+        long now = System.nanoTime();
+        for (Upstream upstream : upstreams) {
+            if (upstream.isProbeDue(now)) {
+                log.debug("Probing upstream: {}", upstream.resolver);
+                send(upstream, query.clone(), executor);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends query to upstream recording the outcome.
+     *
+     * @param upstream Upstream instance.
+     * @param query    Message instance.
+     * @param executor Completion executor.
+     * @return CompletableFuture of Message instance.
+     */
+    private CompletableFuture<Message> send(Upstream upstream, Message query, Executor executor) {
+        long start = System.nanoTime();
+
+        CompletableFuture<Message> future;
+        try {
+            future = upstream.resolver.sendAsync(query, executor).toCompletableFuture()
+                    .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+
+        return future.whenComplete((response, e) -> {
+            long latency = System.nanoTime() - start;
+            if (e == null && response.getRcode() != Rcode.SERVFAIL) {
+                upstream.success(latency);
+            }
+            else {
+                upstream.failure(latency);
+            }
+        });
+    }
+
+    /**
+     * Selects best upstream not tried yet.
+     * <p>Healthy upstreams are ranked by score, if all are ejected the one whose ejection ends first is used.
+     *
+     * @param tried Upstreams tried so far.
+     * @return Upstream instance.
+     */
+    private Upstream select(Set<Upstream> tried) {
+        Upstream best = null;
+        Upstream fallback = null;
+        for (Upstream upstream : upstreams) {
+            if (tried.contains(upstream)) {
+                continue;
+            }
+
+            if (!upstream.isEjected()) {
+                if (best == null || upstream.getScore() < best.getScore()) {
+                    best = upstream;
+                }
+            }
+            else if (fallback == null || upstream.ejectedUntil - fallback.ejectedUntil < 0) {
+                fallback = upstream;
+            }
+        }
+
+        return best != null ? best : fallback;
+    }
+
+    @Override
+    public void setPort(int port) {
+        upstreams.forEach(upstream -> upstream.resolver.setPort(port));
+    }
+
+    @Override
+    public void setTCP(boolean flag) {
+        upstreams.forEach(upstream -> upstream.resolver.setTCP(flag));
+    }
+
+    @Override
+    public void setIgnoreTruncation(boolean flag) {
+        upstreams.forEach(upstream -> upstream.resolver.setIgnoreTruncation(flag));
+    }
+
+    @Override
+    public void setEDNS(int version, int payloadSize, int flags, List<EDNSOption> options) {
+        upstreams.forEach(upstream -> upstream.resolver.setEDNS(version, payloadSize, flags, options));
+    }
+
+    @Override
+    public void setTSIGKey(TSIG key) {
+        upstreams.forEach(upstream -> upstream.resolver.setTSIGKey(key));
+    }
+
+    /**
+     * Sets timeout.
+     * <p>Applies to each attempt and to the upstreams.
+     *
+     * @param timeout Duration instance.
+     */
+    @Override
+    public void setTimeout(Duration timeout) {
+        this.timeout = timeout;
+        upstreams.forEach(upstream -> upstream.resolver.setTimeout(timeout));
+    }
+
+    @Override
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Upstream.
+     * <p>Health of one upstream resolver.
+     */
+    public final class Upstream {
+
+        /**
+         * Resolver instance.
+         */
+        private final Resolver resolver;
+
+        /**
+         * Latency moving average in nanoseconds.
+         */
+        private double latency = 0;
+
+        /**
+         * Error rate moving average between 0 and 1.
+         */
+        private double errorRate = 0;
+
+        /**
+         * Consecutive failures.
+         */
+        private int failures = 0;
+
+        /**
+         * Ejected until nano time.
+         */
+        private volatile long ejectedUntil = 0;
+
+        /**
+         * Ejected flag.
+         */
+        private volatile boolean ejected = false;
+
+        /**
+         * Probe in flight flag.
+         */
+        private boolean probing = false;
+
+        /**
+         * Constructs a new Upstream instance.
+         *
+         * @param resolver Resolver instance.
+         */
+        Upstream(Resolver resolver) {
+            this.resolver = resolver;
+        }
+
+        /**
+         * Gets resolver.
+         *
+         * @return Resolver instance.
+         */
+        public Resolver getResolver() {
+            return resolver;
+        }
+
+        /**
+         * Gets latency moving average.
+         *
+         * @return Latency in milliseconds.
+         */
+        public synchronized double getLatency() {
+            return latency / 1_000_000d;
+        }
+
+        /**
+         * Gets error rate moving average.
+         *
+         * @return Rate between 0 and 1.
+         */
+        public synchronized double getErrorRate() {
+            return errorRate;
+        }
+
+        /**
+         * Is ejected.
+         *
+         * @return Boolean.
+         */
+        public boolean isEjected() {
+            return ejected;
+        }
+
+        /**
+         * Gets score.
+         * <p>Latency with errors weighed as a full timeout each so an erroring upstream ranks below a slow one.
+         *
+         * @return Score in nanoseconds, lower is better.
+         */
+        synchronized double getScore() {
+            return latency + errorRate * timeout.toNanos();
+        }
+
+        /**
+         * Is probe due.
+         * <p>Claims the probe if the ejection time is up and no probe is in flight.
+         *
+         * @param now Nano time.
+         * @return Boolean.
+         */
+        synchronized boolean isProbeDue(long now) {
+            if (ejected && !probing && now - ejectedUntil >= 0) {
+                probing = true;
+                return true;
+            }
+
+            return false;
+        }
+
+        /**
+         * Records success.
+         * <p>Rejoins the pool if ejected.
+         *
+         * @param nanos Latency in nanoseconds.
+         */
+        synchronized void success(long nanos) {
+            latency = latency == 0 ? nanos : ALPHA * nanos + (1 - ALPHA) * latency;
+            errorRate = (1 - ALPHA) * errorRate;
+            failures = 0;
+            probing = false;
+
+            if (ejected) {
+                ejected = false;
+                log.info("Upstream recovered: {}", resolver);
+            }
+        }
+
+        /**
+         * Records failure.
+         * <p>Ejects after consecutive failures or extends the ejection if a probe failed.
+         *
+         * @param nanos Latency in nanoseconds.
+         */
+        synchronized void failure(long nanos) {
+            latency = latency == 0 ? nanos : ALPHA * nanos + (1 - ALPHA) * latency;
+            errorRate = ALPHA + (1 - ALPHA) * errorRate;
+            probing = false;
+
+            if (++failures >= ejectAfter || ejected) {
+                if (!ejected) {
+                    log.warn("Upstream ejected: {}", resolver);
+                }
+                ejected = true;
+                ejectedUntil = System.nanoTime() + ejectTime.toNanos();
+            }
+        }
+    }
+}
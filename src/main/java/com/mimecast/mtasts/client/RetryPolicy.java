@@ -0,0 +1,229 @@
+package com.mimecast.mtasts.client;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retry policy.
+ * <p>Retries transient DNS and policy fetch failures within a single lookup.
+ * <p>Delays grow exponentially from the base delay up to the max delay with full jitter so retries from many lookups spread out.
+ * <p>Each call has a retry budget of a number of retries and a time limit counted from the first attempt.
+ * <p>A retry is only made if its delay ends before the time limit and clients cap the retry attempt to the time remaining so the caller's deadline is never overrun.
+ * <p>Defaults to no retries so clients behave as before unless configured.
+ *
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class RetryPolicy {
+
+    /**
+     * Maximum retries after the first attempt.
+     */
+    private int maxRetries = 0;
+
+    /**
+     * Base delay in milliseconds.
+     */
+    private long baseDelay = 100;
+
+    /**
+     * Maximum delay in milliseconds.
+     */
+    private long maxDelay = 2000;
+
+    /**
+     * Time limit in milliseconds.
+     */
+    private long budget = 10000;
+
+    /**
+     * Sets maximum retries after the first attempt.
+     * <p>Default: 0
+     *
+     * @param maxRetries Retries count.
+     * @return Self.
+     */
+    public RetryPolicy setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+        return this;
+    }
+
+    /**
+     * Gets maximum retries.
+     *
+     * @return Integer.
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Sets base delay.
+     * <p>Default: 100
+     *
+     * @param baseDelay Delay in milliseconds.
+     * @return Self.
+     */
+    public RetryPolicy setBaseDelay(long baseDelay) {
+        this.baseDelay = Math.max(1, baseDelay);
+        return this;
+    }
+
+    /**
+     * Sets maximum delay.
+     * <p>Default: 2000
+     *
+     * @param maxDelay Delay in milliseconds.
+     * @return Self.
+     */
+    public RetryPolicy setMaxDelay(long maxDelay) {
+        this.maxDelay = Math.max(1, maxDelay);
+        return this;
+    }
+
+    /**
+     * Sets time limit.
+     * <p>Counted from the first attempt, no retry is made past it.
+     * <p>Default: 10000
+     *
+     * @param budget Time in milliseconds.
+     * @return Self.
+     */
+    public RetryPolicy setBudget(long budget) {
+        this.budget = Math.max(0, budget);
+        return this;
+    }
+
+    /**
+     * Begins call.
+     *
+     * @return Budget instance.
+     */
+    public Budget begin() {
+        return new Budget(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget));
+    }
+
+    /**
+     * Begins call with caller deadline.
+     * <p>The earlier of the caller deadline and the time limit applies.
+     *
+     * @param deadline Caller deadline in System.nanoTime() terms.
+     * @return Budget instance.
+     */
+    public Budget begin(long deadline) {
+        long limit = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget);
+        return new Budget(deadline - limit < 0 ? deadline : limit);
+    }
+
+    /**
+     * Gets delay before retry.
+     * <p>Full jitter: uniform between zero and the capped exponential delay.
+     *
+     * @param retry Retry number starting at 1.
+     * @return Delay in milliseconds.
+     */
+    long getDelay(int retry) {
+        long cap = baseDelay << Math.min(retry - 1, 30);
+        cap = cap <= 0 || cap > maxDelay ? maxDelay : cap;
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    /**
+     * Is transient exception.
+     * <p>Connection resets, refusals and timeouts are transient.
+     * <p>TLS failures and unknown hosts are permanent.
+     *
+     * @param e Exception instance.
+     * @return Boolean.
+     */
+    public static boolean isTransient(Exception e) {
+        return e instanceof IOException && !(e instanceof SSLException) && !(e instanceof UnknownHostException);
+    }
+
+    /**
+     * Is transient HTTP status code.
+     * <p>Too many requests and server errors other than not implemented are transient.
+     *
+     * @param code HTTP status code.
+     * @return Boolean.
+     */
+    public static boolean isTransient(int code) {
+        return code == 408 || code == 429 || code == 500 || code == 502 || code == 503 || code == 504;
+    }
+
+    /**
+     * Budget.
+     * <p>Retry state of a single call.
+     */
+    public class Budget {
+
+        /**
+         * Deadline in System.nanoTime() terms.
+         */
+        private final long deadline;
+
+        /**
+         * Retries made.
+         */
+        private int retries = 0;
+
+        /**
+         * Constructs a new Budget instance.
+         *
+         * @param deadline Deadline in System.nanoTime() terms.
+         */
+        Budget(long deadline) {
+            this.deadline = deadline;
+        }
+
+        /**
+         * Backs off before retry.
+         * <p>Sleeps the jittered delay if the budget allows another retry.
+         * <p>No retry is made unless the delay ends before the deadline.
+         *
+         * @return Boolean true if a retry should be made.
+         */
+        public boolean backoff() {
+            if (retries >= maxRetries) {
+                return false;
+            }
+
+            long delay = TimeUnit.MILLISECONDS.toNanos(getDelay(retries + 1));
+            if (System.nanoTime() + delay - deadline >= 0) {
+                return false;
+            }
+
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            retries++;
+            return true;
+        }
+
+        /**
+         * Gets time remaining before the deadline.
+         * <p>Clients cap retry attempts to it.
+         *
+         * @return Time in milliseconds, at least 1.
+         */
+        public long getRemaining() {
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+        }
+
+        /**
+         * Gets retries made.
+         *
+         * @return Integer.
+         */
+        public int getRetries() {
+            return retries;
+        }
+    }
+}
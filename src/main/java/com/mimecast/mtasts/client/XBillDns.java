@@ -0,0 +1,98 @@
+package com.mimecast.mtasts.client;
+
+import okhttp3.Dns;
+import org.jetbrains.annotations.NotNull;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.Address;
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Type;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * XBill Dns.
+ * <p>OkHttp Dns implementation resolving policy hosts through DNS Java.
+ * <p>Uses the same default resolver and TTL bound cache as XBillDnsRecordClient so both lookups share configuration and caching.
+ * <p>A and AAAA records are queried in parallel.
+ * <p>IPv4 addresses are returned first unless java.net.preferIPv6Addresses is set.
+ *
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ * @see XBillDnsRecordClient
+ * @see Lookup
+ */
+public class XBillDns implements Dns {
+
+    /**
+     * AAAA lookup executor.
+     */
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "mta-sts-dns");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Prefer IPv6 addresses.
+     */
+    private final boolean preferIPv6 = Boolean.getBoolean("java.net.preferIPv6Addresses");
+
+    /**
+     * Looks up host addresses.
+     *
+     * @param hostname Host name string.
+     * @return List of InetAddress instances.
+     * @throws UnknownHostException No addresses found.
+     */
+    @NotNull
+    @Override
+    public List<InetAddress> lookup(@NotNull String hostname) throws UnknownHostException {
+        // Address literals need no lookup.
+        if (Address.isDottedQuad(hostname) || hostname.indexOf(':') >= 0) {
+            return Dns.SYSTEM.lookup(hostname);
+        }
+
+        CompletableFuture<org.xbill.DNS.Record[]> aaaa = CompletableFuture.supplyAsync(() -> XBillDnsRecordClient.getRecord(hostname, Type.AAAA), executor);
+        List<InetAddress> ipv4 = addresses(XBillDnsRecordClient.getRecord(hostname, Type.A));
+        List<InetAddress> ipv6 = addresses(aaaa.join());
+
+        List<InetAddress> addresses = new ArrayList<>(ipv4.size() + ipv6.size());
+        addresses.addAll(preferIPv6 ? ipv6 : ipv4);
+        addresses.addAll(preferIPv6 ? ipv4 : ipv6);
+
+        if (addresses.isEmpty()) {
+            throw new UnknownHostException("No addresses found for: " + hostname);
+        }
+
+        return addresses;
+    }
+
+    /**
+     * Gets addresses from records.
+     *
+     * @param records Array of Record instances.
+     * @return List of InetAddress instances.
+     */
+    private static List<InetAddress> addresses(org.xbill.DNS.Record[] records) {
+        List<InetAddress> addresses = new ArrayList<>();
+        if (records != null) {
+            for (org.xbill.DNS.Record record : records) {
+                if (record instanceof ARecord) {
+                    addresses.add(((ARecord) record).getAddress());
+                }
+                else if (record instanceof AAAARecord) {
+                    addresses.add(((AAAARecord) record).getAddress());
+                }
+            }
+        }
+
+        return addresses;
+    }
+}
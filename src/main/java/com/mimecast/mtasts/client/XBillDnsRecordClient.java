@@ -4,17 +4,24 @@ import com.mimecast.mtasts.assets.DnsRecord;
 import com.mimecast.mtasts.assets.StsRecord;
 import com.mimecast.mtasts.assets.StsReport;
 import com.mimecast.mtasts.assets.XBillDnsRecord;
+import com.mimecast.mtasts.events.DnsLookupEvent;
 import com.mimecast.mtasts.util.LocalDnsResolver;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.xbill.DNS.Lookup;
-import org.xbill.DNS.MXRecord;
-import org.xbill.DNS.TextParseException;
-import org.xbill.DNS.Type;
+import org.xbill.DNS.*;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * XBill Dns Record Client.
@@ -31,6 +38,24 @@ import java.util.Optional;
 public class XBillDnsRecordClient implements DnsRecordClient {
     private static final Logger log = LogManager.getLogger(XBillDnsRecordClient.class);
 
+    /**
+     * Retry policy for transient failures.
+     */
+    private RetryPolicy retryPolicy = new RetryPolicy();
+
+    /**
+     * Sets retry policy.
+     * <p>Lookups that fail with SERVFAIL or time out are retried, NXDOMAIN and empty answers are not.
+     * <p>Default: no retries
+     *
+     * @param retryPolicy RetryPolicy instance.
+     * @return Self.
+     */
+    public XBillDnsRecordClient setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy != null ? retryPolicy : new RetryPolicy();
+        return this;
+    }
+
     /**
      * Gets DNS TXT MTA-STS record.
      * <p>Will query the <i>_mta-sts.</i> subdomain of the domain provided.
@@ -41,7 +66,69 @@ public class XBillDnsRecordClient implements DnsRecordClient {
      */
     @Override
     public Optional<StsRecord> getStsRecord(String domain) {
-        org.xbill.DNS.Record[] recordList = getRecord("_mta-sts." + domain, Type.TXT);
+        return toStsRecord(domain, getRecord("_mta-sts." + domain, Type.TXT, retryPolicy));
+    }
+
+    /**
+     * Gets DNS TXT MTA-STS record within deadline.
+     * <p>No retry is made past the deadline and retry attempts are capped to the time left.
+     *
+     * @param domain   Domain string.
+     * @param deadline Deadline in System.nanoTime() terms.
+     * @return Optional of StsRecord instance.
+     */
+    @Override
+    public Optional<StsRecord> getStsRecord(String domain, long deadline) {
+        return toStsRecord(domain, getRecord("_mta-sts." + domain, Type.TXT, retryPolicy.begin(deadline)));
+    }
+
+    /**
+     * Gets DNS TXT TLSRPT record.
+     * <p>Will query the <i>_smtp._tls.</i> subdomain of the domain provided.
+     * <p>If multiple TLSRPT records found it will return none.
+     *
+     * @param domain Domain string.
+     * @return Optional of StsReport instance.
+     */
+    @Override
+    public Optional<StsReport> getRptRecord(String domain) {
+        return toRptRecord(getRecord("_smtp._tls." + domain, Type.TXT, retryPolicy));
+    }
+
+    /**
+     * Gets DNS TXT TLSRPT record within deadline.
+     * <p>No retry is made past the deadline and retry attempts are capped to the time left.
+     *
+     * @param domain   Domain string.
+     * @param deadline Deadline in System.nanoTime() terms.
+     * @return Optional of StsReport instance.
+     */
+    @Override
+    public Optional<StsReport> getRptRecord(String domain, long deadline) {
+        return toRptRecord(getRecord("_smtp._tls." + domain, Type.TXT, retryPolicy.begin(deadline)));
+    }
+
+    /**
+     * Gets DNS MX records.
+     * <p>Will query for MX records of the domain provided.
+     * <p>Will not fallback to A record if none found.
+     *
+     * @param domain Domain string.
+     * @return Optional of List of MXRecord instances.
+     */
+    public Optional<List<DnsRecord>> getMxRecords(String domain) {
+        return toMxRecords(getRecord(domain, Type.MX, retryPolicy));
+    }
+
+    /**
+     * Converts TXT records to MTA-STS record.
+     * <p>Shared with AsyncDnsRecordClient.
+     *
+     * @param domain     Domain string.
+     * @param recordList Array of Record instances or null.
+     * @return Optional of StsRecord instance.
+     */
+    static Optional<StsRecord> toStsRecord(String domain, org.xbill.DNS.Record[] recordList) {
         if (recordList != null) {
             List<StsRecord> records = new ArrayList<>();
             for (org.xbill.DNS.Record entry : recordList) {
@@ -61,16 +148,13 @@ public class XBillDnsRecordClient implements DnsRecordClient {
     }
 
     /**
-     * Gets DNS TXT TLSRPT record.
-     * <p>Will query the <i>_smtp._tls.</i> subdomain of the domain provided.
-     * <p>If multiple TLSRPT records found it will return none.
+     * Converts TXT records to TLSRPT record.
+     * <p>Shared with AsyncDnsRecordClient.
      *
-     * @param domain Domain string.
+     * @param recordList Array of Record instances or null.
      * @return Optional of StsReport instance.
      */
-    @Override
-    public Optional<StsReport> getRptRecord(String domain) {
-        org.xbill.DNS.Record[] recordList = getRecord("_smtp._tls." + domain, Type.TXT);
+    static Optional<StsReport> toRptRecord(org.xbill.DNS.Record[] recordList) {
         if (recordList != null) {
             List<StsReport> records = new ArrayList<>();
             for (org.xbill.DNS.Record entry : recordList) {
@@ -90,15 +174,13 @@ public class XBillDnsRecordClient implements DnsRecordClient {
     }
 
     /**
-     * Gets DNS MX records.
-     * <p>Will query for MX records of the domain provided.
-     * <p>Will not fallback to A record if none found.
+     * Converts MX records.
+     * <p>Shared with AsyncDnsRecordClient.
      *
-     * @param domain Domain string.
+     * @param recordList Array of Record instances or null.
      * @return Optional of List of MXRecord instances.
      */
-    public Optional<List<DnsRecord>> getMxRecords(String domain) {
-        org.xbill.DNS.Record[] recordList = getRecord(domain, Type.MX);
+    static Optional<List<DnsRecord>> toMxRecords(org.xbill.DNS.Record[] recordList) {
         if (recordList != null) {
             List<DnsRecord> records = new ArrayList<>();
             for (org.xbill.DNS.Record record : recordList) {
@@ -116,20 +198,155 @@ public class XBillDnsRecordClient implements DnsRecordClient {
     }
 
     /**
-     * Gets DNS TXT record.
+     * Gets DNS records.
+     * <p>Shared with XBillDns so host lookups go through the same resolver and cache.
      *
      * @param uri  Lookup URI string.
      * @param type Lookup type int.
-     * @return Optional of StsRecord instance.
+     * @return Array of Record instances or null if none found.
      */
-    private org.xbill.DNS.Record[] getRecord(String uri, int type) {
+    static org.xbill.DNS.Record[] getRecord(String uri, int type) {
+        return getRecord(uri, type, (RetryPolicy.Budget) null);
+    }
+
+    /**
+     * Gets DNS records with retries.
+     * <p>Only lookups ending in TRY_AGAIN are retried.
+     *
+     * @param uri         Lookup URI string.
+     * @param type        Lookup type int.
+     * @param retryPolicy RetryPolicy instance or null.
+     * @return Array of Record instances or null if none found.
+     */
+    static org.xbill.DNS.Record[] getRecord(String uri, int type, RetryPolicy retryPolicy) {
+        return getRecord(uri, type, retryPolicy != null ? retryPolicy.begin() : null);
+    }
+
+    /**
+     * Gets DNS records within retry budget.
+     * <p>Only lookups ending in TRY_AGAIN are retried and only if the delay ends before the deadline.
+     * <p>Retry attempts wait no longer than the time left.
+     *
+     * @param uri    Lookup URI string.
+     * @param type   Lookup type int.
+     * @param budget RetryPolicy.Budget instance or null.
+     * @return Array of Record instances or null if none found.
+     */
+    static org.xbill.DNS.Record[] getRecord(String uri, int type, RetryPolicy.Budget budget) {
+        DnsLookupEvent event = new DnsLookupEvent();
+        event.begin();
+
+        String outcome = "invalid name";
+        org.xbill.DNS.Record[] records = new org.xbill.DNS.Record[0];
         try {
-            Lookup lookup = new Lookup(uri, type);
-            return lookup.run();
+            while (true) {
+                Lookup lookup = new Lookup(uri, type);
+                if (budget != null && budget.getRetries() > 0) {
+                    lookup.setResolver(new CappedResolver(Lookup.getDefaultResolver(), budget.getRemaining()));
+                }
+                records = lookup.run();
+                outcome = lookup.getErrorString();
+
+                if (lookup.getResult() != Lookup.TRY_AGAIN || budget == null || !budget.backoff()) {
+                    break;
+                }
+                log.debug("Record lookup retry: {} - {}", uri, outcome);
+            }
         } catch (TextParseException e) {
             log.error("Record URI could not resolve: {} - {}", uri, e.getMessage());
         }
 
-        return new org.xbill.DNS.Record[0];
+        if (event.shouldCommit()) {
+            event.name = uri;
+            event.type = Type.string(type);
+            event.outcome = outcome;
+            event.records = records != null ? records.length : 0;
+            event.commit();
+        }
+
+        return records;
+    }
+
+    /**
+     * Capped resolver.
+     * <p>Waits for the default resolver no longer than the time left for a retry attempt.
+     * <p>Settings are not passed on so the shared default resolver is left as is.
+     */
+    private static final class CappedResolver implements Resolver {
+
+        /**
+         * Resolver instance.
+         */
+        private final Resolver resolver;
+
+        /**
+         * Timeout.
+         */
+        private Duration timeout;
+
+        /**
+         * Constructs a new CappedResolver instance.
+         *
+         * @param resolver Resolver instance.
+         * @param timeout  Timeout in milliseconds.
+         */
+        CappedResolver(Resolver resolver, long timeout) {
+            this.resolver = resolver;
+            this.timeout = Duration.ofMillis(Math.min(timeout, resolver.getTimeout().toMillis()));
+        }
+
+        @Override
+        public Message send(Message query) throws IOException {
+            try {
+                return resolver.sendAsync(query).toCompletableFuture().get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                throw new SocketTimeoutException("Query timed out");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Query interrupted");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+
+        @Override
+        public CompletionStage<Message> sendAsync(Message query) {
+            return resolver.sendAsync(query).toCompletableFuture().orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public CompletionStage<Message> sendAsync(Message query, Executor executor) {
+            return resolver.sendAsync(query, executor).toCompletableFuture().orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void setPort(int port) {
+        }
+
+        @Override
+        public void setTCP(boolean flag) {
+        }
+
+        @Override
+        public void setIgnoreTruncation(boolean flag) {
+        }
+
+        @Override
+        public void setEDNS(int version, int payloadSize, int flags, List<EDNSOption> options) {
+        }
+
+        @Override
+        public void setTSIGKey(TSIG key) {
+        }
+
+        @Override
+        public void setTimeout(Duration timeout) {
+            this.timeout = timeout;
+        }
+
+        @Override
+        public Duration getTimeout() {
+            return timeout;
+        }
     }
 }
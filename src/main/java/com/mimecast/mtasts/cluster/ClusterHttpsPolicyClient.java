@@ -0,0 +1,673 @@
+package com.mimecast.mtasts.cluster;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.cache.PeerSession;
+import com.mimecast.mtasts.cache.PolicyCache;
+import com.mimecast.mtasts.cache.RemotePolicyCache;
+import com.mimecast.mtasts.client.HttpsPolicyClient;
+import com.mimecast.mtasts.client.HttpsResponse;
+import com.mimecast.mtasts.exception.PolicyFetchErrorException;
+import com.mimecast.mtasts.exception.PolicyWebPKIInvalidException;
+import com.mimecast.mtasts.trace.LookupTrace;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Cluster HTTPS policy client.
+ * <p>Decorates an HttpsPolicyClient so each domain is fetched by a single owner node on a consistent hash ring.
+ * <p>Non-owners ask the owner which answers from its cache or fetches once for all concurrent askers.
+ * <p>If the owner is unreachable it is suspended and the next node on the ring is asked, falling back to a local fetch.
+ * <p>Pass the same PolicyCache given to StrictTransportSecurity so owners serve their cached policies.
+ * <p>Cached policies are served with their original fetch time so they expire on every node at the same time.
+ * <p>Only ring members are answered and every frame is authenticated with the shared secret so the node is not an open proxy.
+ * <p>Conditional fetch validators and the time left before the lookup deadline are passed on to the owner.
+ *
+ * <p>Requests and responses are PeerSession frames.
+ * <p>Request: [string domain][string record ID][int max body size][string ETag][string Last-Modified][long time left in milliseconds or 0].
+ * <p>Response: [byte status] then for OK [boolean successful][int code][string message][boolean handshake][string content type][string body][long fetch time][string ETag][string Last-Modified] or else [string error].
+ *
+ * @see HashRing
+ * @see PeerSession
+ * @see HttpsPolicyClient
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class ClusterHttpsPolicyClient implements HttpsPolicyClient, Closeable {
+    private static final Logger log = LogManager.getLogger(ClusterHttpsPolicyClient.class);
+
+    /**
+     * Response statuses.
+     */
+    private static final byte OK = 0;
+    private static final byte WEBPKI_INVALID = 1;
+    private static final byte FETCH_ERROR = 2;
+
+    /**
+     * Maximum frame length.
+     */
+    private static final int FRAME_MAX = 1 << 20;
+
+    /**
+     * Delegate HttpsPolicyClient instance.
+     */
+    private final HttpsPolicyClient delegate;
+
+    /**
+     * PolicyCache instance.
+     */
+    private final PolicyCache cache;
+
+    /**
+     * ServerSocket instance.
+     */
+    private final ServerSocket serverSocket;
+
+    /**
+     * Shared secret.
+     */
+    private final byte[] secret;
+
+    /**
+     * This node ID.
+     */
+    private final String self;
+
+    /**
+     * HashRing instance.
+     */
+    private final HashRing ring = new HashRing();
+
+    /**
+     * Member addresses by node ID.
+     */
+    private final Map<String, InetSocketAddress> members = new ConcurrentHashMap<>();
+
+    /**
+     * Idle connections by node ID.
+     */
+    private final Map<String, Queue<Connection>> idle = new ConcurrentHashMap<>();
+
+    /**
+     * Inbound peer connections.
+     */
+    private final List<Socket> inbound = new CopyOnWriteArrayList<>();
+
+    /**
+     * Suspended nodes until time in milliseconds.
+     */
+    private final Map<String, Long> suspended = new ConcurrentHashMap<>();
+
+    /**
+     * In-flight owner fetches by domain and record ID.
+     */
+    private final Map<String, CompletableFuture<HttpsResponse>> inflight = new ConcurrentHashMap<>();
+
+    /**
+     * Timeout in milliseconds.
+     */
+    private int timeout = 5000;
+
+    /**
+     * Suspension time in milliseconds.
+     */
+    private int suspension = 10000;
+
+    /**
+     * Closed flag.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Constructs a new ClusterHttpsPolicyClient instance.
+     * <p>Listens for peer requests on the given address.
+     * <p>The node ID is the listen IP address and port so peers must add this node by IP address.
+     * <p>Wildcard addresses are rejected as they cannot be the node ID peers add.
+     * <p>Every node must be configured with the same secret.
+     * <p>Cache can be null.
+     *
+     * @param delegate HttpsPolicyClient instance.
+     * @param cache    PolicyCache instance.
+     * @param address  Listen address, port 0 for ephemeral.
+     * @param secret   Shared secret, at least 16 bytes.
+     * @throws IOException Unable to listen.
+     * @throws IllegalArgumentException Listen address is a wildcard or unresolved.
+     */
+    public ClusterHttpsPolicyClient(HttpsPolicyClient delegate, PolicyCache cache, InetSocketAddress address, byte[] secret) throws IOException {
+        if (address.getAddress() == null || address.getAddress().isAnyLocalAddress()) {
+            throw new IllegalArgumentException("Listen address must be the IP address peers add: " + address);
+        }
+
+        this.delegate = delegate;
+        this.cache = cache;
+        this.secret = PeerSession.checkSecret(secret);
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.bind(address);
+        this.self = serverSocket.getInetAddress().getHostAddress() + ":" + serverSocket.getLocalPort();
+        ring.add(self);
+
+        start(this::accept, "mta-sts-cluster-accept");
+    }
+
+    /**
+     * Gets this node ID.
+     *
+     * @return IP address and port string.
+     */
+    public String getNodeId() {
+        return self;
+    }
+
+    /**
+     * Gets listen port.
+     *
+     * @return Port number.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Gets ring.
+     *
+     * @return HashRing instance.
+     */
+    public HashRing getRing() {
+        return ring;
+    }
+
+    /**
+     * Adds node to ring.
+     * <p>Peer requests are only answered from node addresses.
+     *
+     * @param host Node host.
+     * @param port Node port.
+     * @return Self.
+     */
+    public ClusterHttpsPolicyClient addNode(String host, int port) {
+        String node = host + ":" + port;
+        members.put(node, new InetSocketAddress(host, port));
+        ring.add(node);
+        return this;
+    }
+
+    /**
+     * Removes node from ring.
+     *
+     * @param host Node host.
+     * @param port Node port.
+     * @return Self.
+     */
+    public ClusterHttpsPolicyClient removeNode(String host, int port) {
+        String node = host + ":" + port;
+        ring.remove(node);
+        members.remove(node);
+        close(idle.remove(node));
+        return this;
+    }
+
+    /**
+     * Sets peer request timeout.
+     *
+     * @param timeout Timeout in milliseconds.
+     * @return Self.
+     */
+    public ClusterHttpsPolicyClient setTimeout(int timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * Sets how long an unreachable node is skipped.
+     *
+     * @param suspension Suspension in milliseconds.
+     * @return Self.
+     */
+    public ClusterHttpsPolicyClient setSuspension(int suspension) {
+        this.suspension = suspension;
+        return this;
+    }
+
+    /**
+     * Gets policy.
+     *
+     * @param stsRecord         StsRecord instance.
+     * @param maxPolicyBodySize Max policy body size.
+     * @return HttpsResponse instance.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException    Policy fetch error exception.
+     */
+    @Override
+    public HttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        return getPolicy(stsRecord, maxPolicyBodySize, null);
+    }
+
+    /**
+     * Gets policy with lookup trace.
+     *
+     * @param stsRecord         StsRecord instance.
+     * @param maxPolicyBodySize Max policy body size.
+     * @param trace             LookupTrace instance.
+     * @return HttpsResponse instance.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException    Policy fetch error exception.
+     */
+    @Override
+    public HttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize, LookupTrace trace) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        return getPolicy(stsRecord, maxPolicyBodySize, trace, null, null, OptionalLong.empty());
+    }
+
+    /**
+     * Gets policy conditionally.
+     *
+     * @param stsRecord         StsRecord instance.
+     * @param maxPolicyBodySize Max policy body size.
+     * @param trace             LookupTrace instance.
+     * @param etag              ETag of the cached policy or null.
+     * @param lastModified      Last-Modified of the cached policy or null.
+     * @return HttpsResponse instance.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException    Policy fetch error exception.
+     */
+    @Override
+    public HttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize, LookupTrace trace, String etag, String lastModified) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        return getPolicy(stsRecord, maxPolicyBodySize, trace, etag, lastModified, OptionalLong.empty());
+    }
+
+    /**
+     * Gets policy conditionally within deadline.
+     *
+     * @param stsRecord         StsRecord instance.
+     * @param maxPolicyBodySize Max policy body size.
+     * @param trace             LookupTrace instance.
+     * @param etag              ETag of the cached policy or null.
+     * @param lastModified      Last-Modified of the cached policy or null.
+     * @param deadline          Deadline in System.nanoTime() terms.
+     * @return HttpsResponse instance.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException    Policy fetch error exception.
+     */
+    @Override
+    public HttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize, LookupTrace trace, String etag, String lastModified, long deadline) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        return getPolicy(stsRecord, maxPolicyBodySize, trace, etag, lastModified, OptionalLong.of(deadline));
+    }
+
+    /**
+     * Gets policy from the domain owner.
+     * <p>Fetches locally if this node owns the domain or no other node is reachable.
+     *
+     * @param stsRecord         StsRecord instance.
+     * @param maxPolicyBodySize Max policy body size.
+     * @param trace             LookupTrace instance.
+     * @param etag              ETag of the cached policy or null.
+     * @param lastModified      Last-Modified of the cached policy or null.
+     * @param deadline          OptionalLong of deadline in System.nanoTime() terms.
+     * @return HttpsResponse instance.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException    Policy fetch error exception.
+     */
+    private HttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize, LookupTrace trace, String etag, String lastModified, OptionalLong deadline) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        for (String node : ring.getOwners(stsRecord.getDomain(), Integer.MAX_VALUE)) {
+            if (node.equals(self)) {
+                break;
+            }
+
+            Long until = suspended.get(node);
+            if (until != null && until > System.currentTimeMillis()) {
+                continue;
+            }
+
+            try {
+                return ask(node, stsRecord, maxPolicyBodySize, etag, lastModified, deadline);
+            } catch (IOException e) {
+                log.warn("Cluster node {} unreachable, suspending: {}", node, e.getMessage());
+                suspended.put(node, System.currentTimeMillis() + suspension);
+            }
+        }
+
+        return deadline.isPresent() ?
+                delegate.getPolicy(stsRecord, maxPolicyBodySize, trace, etag, lastModified, deadline.getAsLong()) :
+                delegate.getPolicy(stsRecord, maxPolicyBodySize, trace, etag, lastModified);
+    }
+
+    /**
+     * Closes node.
+     * <p>Stops listening and closes peer connections.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.debug("Cluster listener close failed: {}", e.getMessage());
+        }
+        for (Queue<Connection> queue : idle.values()) {
+            close(queue);
+        }
+        idle.clear();
+        for (Socket socket : inbound) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("Cluster peer close failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Asks owner node for policy.
+     *
+     * @param node              Node ID.
+     * @param stsRecord         StsRecord instance.
+     * @param maxPolicyBodySize Max policy body size.
+     * @param etag              ETag of the cached policy or null.
+     * @param lastModified      Last-Modified of the cached policy or null.
+     * @param deadline          OptionalLong of deadline in System.nanoTime() terms.
+     * @return HttpsResponse instance.
+     * @throws IOException                  Node unreachable.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException    Policy fetch error exception.
+     */
+    private HttpsResponse ask(String node, StsRecord stsRecord, int maxPolicyBodySize, String etag, String lastModified, OptionalLong deadline) throws IOException, PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        Queue<Connection> queue = idle.computeIfAbsent(node, k -> new ConcurrentLinkedQueue<>());
+        Connection connection = queue.poll();
+        if (connection == null) {
+            connection = new Connection(node, timeout, secret);
+        }
+
+        byte status;
+        HttpsResponse response = null;
+        String error = null;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream request = new DataOutputStream(bytes);
+            RemotePolicyCache.writeString(request, stsRecord.getDomain());
+            RemotePolicyCache.writeString(request, stsRecord.getId());
+            request.writeInt(maxPolicyBodySize);
+            RemotePolicyCache.writeString(request, Objects.toString(etag, ""));
+            RemotePolicyCache.writeString(request, Objects.toString(lastModified, ""));
+            request.writeLong(deadline.isPresent() ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline.getAsLong() - System.nanoTime())) : 0);
+            connection.session.write(connection.out, bytes.toByteArray());
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(connection.session.read(connection.in, FRAME_MAX)));
+            status = in.readByte();
+            if (status == OK) {
+                response = new ClusterHttpsResponse(in.readBoolean(), in.readInt(), RemotePolicyCache.readString(in),
+                        in.readBoolean(), RemotePolicyCache.readString(in), RemotePolicyCache.readString(in), in.readLong(),
+                        emptyToNull(RemotePolicyCache.readString(in)), emptyToNull(RemotePolicyCache.readString(in)));
+            }
+            else {
+                error = RemotePolicyCache.readString(in);
+            }
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        queue.offer(connection);
+
+        if (status == WEBPKI_INVALID) {
+            throw new PolicyWebPKIInvalidException(error);
+        }
+        else if (status != OK) {
+            throw new PolicyFetchErrorException(error);
+        }
+
+        return response;
+    }
+
+    /**
+     * Accepts peer connections.
+     */
+    private void accept() {
+        try {
+            while (!closed) {
+                Socket socket = serverSocket.accept();
+                if (!PeerSession.isPeer(socket.getInetAddress(), members.values())) {
+                    log.warn("Cluster connection refused from: {}", socket.getInetAddress().getHostAddress());
+                    socket.close();
+                    continue;
+                }
+                inbound.add(socket);
+                start(() -> serve(socket), "mta-sts-cluster-serve");
+            }
+        } catch (IOException e) {
+            log.debug("Cluster listener stopped: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Serves peer connection.
+     * <p>Drops the connection on the first frame failing authentication.
+     *
+     * @param socket Socket instance.
+     */
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            PeerSession session = PeerSession.open(in, out, secret);
+            while (true) {
+                DataInputStream request = new DataInputStream(new ByteArrayInputStream(session.read(in, FRAME_MAX)));
+                String domain = RemotePolicyCache.readString(request);
+                String id = RemotePolicyCache.readString(request);
+                int maxPolicyBodySize = request.readInt();
+                String etag = emptyToNull(RemotePolicyCache.readString(request));
+                String lastModified = emptyToNull(RemotePolicyCache.readString(request));
+                long remaining = request.readLong();
+                OptionalLong deadline = remaining > 0 ? OptionalLong.of(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remaining)) : OptionalLong.empty();
+                if (closed) {
+                    break;
+                }
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream response = new DataOutputStream(bytes);
+                try {
+                    HttpsResponse httpsResponse = fetch(new StsRecord(domain, "v=STSv1; id=" + id + ";"), maxPolicyBodySize, etag, lastModified, deadline);
+                    response.writeByte(OK);
+                    response.writeBoolean(httpsResponse.isSuccessful());
+                    response.writeInt(httpsResponse.getCode());
+                    RemotePolicyCache.writeString(response, Objects.toString(httpsResponse.getMessage(), ""));
+                    response.writeBoolean(httpsResponse.isHandshake());
+                    RemotePolicyCache.writeString(response, Objects.toString(httpsResponse.getHeader("Content-Type"), ""));
+                    RemotePolicyCache.writeString(response, Objects.toString(httpsResponse.getBody(), ""));
+                    response.writeLong(httpsResponse.getFetchTime());
+                    RemotePolicyCache.writeString(response, Objects.toString(httpsResponse.getHeader("ETag"), ""));
+                    RemotePolicyCache.writeString(response, Objects.toString(httpsResponse.getHeader("Last-Modified"), ""));
+                } catch (PolicyWebPKIInvalidException e) {
+                    response.writeByte(WEBPKI_INVALID);
+                    RemotePolicyCache.writeString(response, Objects.toString(e.getMessage(), ""));
+                } catch (PolicyFetchErrorException e) {
+                    response.writeByte(FETCH_ERROR);
+                    RemotePolicyCache.writeString(response, Objects.toString(e.getMessage(), ""));
+                }
+                session.write(out, bytes.toByteArray());
+            }
+        } catch (IOException e) {
+            log.debug("Cluster peer closed: {}", e.getMessage());
+        } finally {
+            inbound.remove(socket);
+        }
+    }
+
+    /**
+     * Fetches policy as owner.
+     * <p>Serves from cache if present for the same record ID else fetches once for all concurrent requests.
+     * <p>The result is cached unless it would replace a valid policy for another record ID.
+     * <p>Conditional fetches share the in-flight fetch only with askers sending the same validators.
+     *
+     * @param stsRecord         StsRecord instance.
+     * @param maxPolicyBodySize Max policy body size.
+     * @param etag              ETag of the asker cached policy or null.
+     * @param lastModified      Last-Modified of the asker cached policy or null.
+     * @param deadline          OptionalLong of deadline in System.nanoTime() terms.
+     * @return HttpsResponse instance.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException    Policy fetch error exception.
+     */
+    private HttpsResponse fetch(StsRecord stsRecord, int maxPolicyBodySize, String etag, String lastModified, OptionalLong deadline) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        // Looked up by domain as the asker record may be stale and must not evict the entry.
+        if (cache != null) {
+            Optional<StsPolicy> optional = cache.getByDomain(stsRecord.getDomain());
+            if (optional.isPresent() && !optional.get().isExpired() && optional.get().getRecord().getId().equals(stsRecord.getId())) {
+                return response(optional.get());
+            }
+        }
+
+        String key = stsRecord.getDomain() + "#" + stsRecord.getId() + "#" + etag + "#" + lastModified;
+        CompletableFuture<HttpsResponse> future = new CompletableFuture<>();
+        CompletableFuture<HttpsResponse> existing = inflight.putIfAbsent(key, future);
+        if (existing != null) {
+            return await(existing);
+        }
+
+        try {
+            HttpsResponse response = deadline.isPresent() ?
+                    delegate.getPolicy(stsRecord, maxPolicyBodySize, null, etag, lastModified, deadline.getAsLong()) :
+                    delegate.getPolicy(stsRecord, maxPolicyBodySize, null, etag, lastModified);
+            if (cache != null) {
+                Optional<StsPolicy> current = cache.getByDomain(stsRecord.getDomain());
+                if (!current.isPresent() || current.get().isExpired() || current.get().getRecord().getId().equals(stsRecord.getId())) {
+                    cache.put(new StsPolicy(stsRecord, response).make());
+                }
+            }
+            future.complete(response);
+            return response;
+        } catch (PolicyWebPKIInvalidException | PolicyFetchErrorException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inflight.remove(key, future);
+        }
+    }
+
+    /**
+     * Waits for in-flight fetch.
+     *
+     * @param future CompletableFuture instance.
+     * @return HttpsResponse instance.
+     * @throws PolicyWebPKIInvalidException Policy web PKI invalid exception.
+     * @throws PolicyFetchErrorException    Policy fetch error exception.
+     */
+    private static HttpsResponse await(CompletableFuture<HttpsResponse> future) throws PolicyWebPKIInvalidException, PolicyFetchErrorException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof PolicyWebPKIInvalidException) {
+                throw (PolicyWebPKIInvalidException) e.getCause();
+            }
+            else if (e.getCause() instanceof PolicyFetchErrorException) {
+                throw (PolicyFetchErrorException) e.getCause();
+            }
+            throw new PolicyFetchErrorException(String.valueOf(e.getCause()));
+        }
+    }
+
+    /**
+     * Builds response from cached policy.
+     * <p>Carries the original fetch time so the asker keeps the remaining lifetime only.
+     *
+     * @param policy StsPolicy instance.
+     * @return HttpsResponse instance.
+     */
+    private static HttpsResponse response(StsPolicy policy) {
+        StringBuilder body = new StringBuilder()
+                .append("version: ").append(policy.getVersion()).append("\r\n")
+                .append("mode: ").append(policy.getMode()).append("\r\n");
+        for (String mask : policy.getMxMasks()) {
+            body.append("mx: ").append(mask).append("\r\n");
+        }
+        body.append("max_age: ").append(policy.getMaxAge()).append("\r\n");
+
+        return new ClusterHttpsResponse(true, 200, "OK", true, "text/plain", body.toString(), policy.getFetchTime(),
+                policy.getEtag(), policy.getLastModified());
+    }
+
+    /**
+     * Maps empty string to null.
+     *
+     * @param string String.
+     * @return String or null.
+     */
+    private static String emptyToNull(String string) {
+        return string.isEmpty() ? null : string;
+    }
+
+    /**
+     * Closes connections.
+     *
+     * @param queue Queue of Connection instances.
+     */
+    private static void close(Queue<Connection> queue) {
+        if (queue != null) {
+            Connection connection;
+            while ((connection = queue.poll()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Starts daemon thread.
+     *
+     * @param runnable Runnable instance.
+     * @param name     Thread name.
+     */
+    private static void start(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Peer connection.
+     */
+    private static final class Connection {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final PeerSession session;
+
+        /**
+         * Constructs a new Connection instance.
+         *
+         * @param node    Node ID.
+         * @param timeout Connect and read timeout in milliseconds.
+         * @param secret  Shared secret.
+         * @throws IOException Unable to connect.
+         */
+        private Connection(String node, int timeout, byte[] secret) throws IOException {
+            int colon = node.lastIndexOf(':');
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(timeout);
+                socket.connect(new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1))), timeout);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                session = PeerSession.open(in, out, secret);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Closes connection.
+         */
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("Cluster connection close failed: {}", e.getMessage());
+            }
+        }
+    }
+}
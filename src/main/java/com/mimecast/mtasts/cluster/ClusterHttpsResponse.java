@@ -0,0 +1,163 @@
+package com.mimecast.mtasts.cluster;
+
+import com.mimecast.mtasts.client.HttpsResponse;
+
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cluster HTTPS response.
+ * <p>Policy response relayed by the owner node.
+ * <p>Peer certificates are not relayed as the owner enforces web PKI on fetch.
+ * <p>Policies served from the owner cache carry their original fetch time.
+ * <p>Only the Content-Type, ETag and Last-Modified headers are relayed.
+ *
+ * @see ClusterHttpsPolicyClient
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+final class ClusterHttpsResponse implements HttpsResponse {
+
+    private final boolean successful;
+    private final int code;
+    private final String message;
+    private final boolean handshake;
+    private final String contentType;
+    private final String body;
+    private final long fetchTime;
+    private final String etag;
+    private final String lastModified;
+
+    /**
+     * Constructs a new ClusterHttpsResponse instance.
+     *
+     * @param successful  Successful boolean.
+     * @param code        Response code.
+     * @param message     Response message.
+     * @param handshake   Handshake boolean.
+     * @param contentType Content-Type header.
+     * @param body        Response body.
+     * @param fetchTime   Origin fetch time in epoch seconds or 0.
+     */
+    ClusterHttpsResponse(boolean successful, int code, String message, boolean handshake, String contentType, String body, long fetchTime) {
+        this(successful, code, message, handshake, contentType, body, fetchTime, null, null);
+    }
+
+    /**
+     * Constructs a new ClusterHttpsResponse instance with validators.
+     *
+     * @param successful   Successful boolean.
+     * @param code         Response code.
+     * @param message      Response message.
+     * @param handshake    Handshake boolean.
+     * @param contentType  Content-Type header.
+     * @param body         Response body.
+     * @param fetchTime    Origin fetch time in epoch seconds or 0.
+     * @param etag         ETag header or null.
+     * @param lastModified Last-Modified header or null.
+     */
+    ClusterHttpsResponse(boolean successful, int code, String message, boolean handshake, String contentType, String body, long fetchTime, String etag, String lastModified) {
+        this.successful = successful;
+        this.code = code;
+        this.message = message;
+        this.handshake = handshake;
+        this.contentType = contentType;
+        this.body = body;
+        this.fetchTime = fetchTime;
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Is successful.
+     *
+     * @return Boolean.
+     */
+    @Override
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    /**
+     * Gets response code.
+     *
+     * @return Integer.
+     */
+    @Override
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Gets response message.
+     *
+     * @return String.
+     */
+    @Override
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Is handshake.
+     *
+     * @return Boolean.
+     */
+    @Override
+    public boolean isHandshake() {
+        return handshake;
+    }
+
+    /**
+     * Gets peer certificates.
+     * <p>Always empty.
+     *
+     * @return List of Certificate.
+     */
+    @Override
+    public List<Certificate> getPeerCertificates() {
+        return new ArrayList<>();
+    }
+
+    /**
+     * Gets header.
+     * <p>Only Content-Type, ETag and Last-Modified are relayed.
+     *
+     * @param name Header name.
+     * @return String.
+     */
+    @Override
+    public String getHeader(String name) {
+        if ("Content-Type".equalsIgnoreCase(name)) {
+            return contentType;
+        }
+        else if ("ETag".equalsIgnoreCase(name)) {
+            return etag;
+        }
+        else if ("Last-Modified".equalsIgnoreCase(name)) {
+            return lastModified;
+        }
+        return null;
+    }
+
+    /**
+     * Gets body.
+     *
+     * @return String.
+     */
+    @Override
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * Gets origin fetch time.
+     *
+     * @return Long.
+     */
+    @Override
+    public long getFetchTime() {
+        return fetchTime;
+    }
+}
@@ -0,0 +1,149 @@
+package com.mimecast.mtasts.cluster;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Consistent hash ring.
+ * <p>Maps keys to nodes so adding or removing a node only moves the keys it owned.
+ * <p>Each node is placed on the ring many times to spread load evenly.
+ *
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class HashRing {
+
+    /**
+     * Default virtual nodes per node.
+     */
+    public static final int REPLICAS = 160;
+
+    /**
+     * Ring positions to node.
+     */
+    private final NavigableMap<Long, String> ring = new ConcurrentSkipListMap<>();
+
+    /**
+     * Nodes.
+     */
+    private final Set<String> nodes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Virtual nodes per node.
+     */
+    private final int replicas;
+
+    /**
+     * Constructs a new HashRing instance with default virtual nodes.
+     */
+    public HashRing() {
+        this(REPLICAS);
+    }
+
+    /**
+     * Constructs a new HashRing instance.
+     *
+     * @param replicas Virtual nodes per node.
+     */
+    public HashRing(int replicas) {
+        this.replicas = replicas;
+    }
+
+    /**
+     * Adds node.
+     *
+     * @param node Node ID.
+     * @return Self.
+     */
+    public HashRing add(String node) {
+        nodes.add(node);
+        for (int i = 0; i < replicas; i++) {
+            ring.put(hash(node + "#" + i), node);
+        }
+        return this;
+    }
+
+    /**
+     * Removes node.
+     *
+     * @param node Node ID.
+     * @return Self.
+     */
+    public HashRing remove(String node) {
+        for (int i = 0; i < replicas; i++) {
+            ring.remove(hash(node + "#" + i), node);
+        }
+        nodes.remove(node);
+        return this;
+    }
+
+    /**
+     * Gets nodes.
+     *
+     * @return Set of node IDs.
+     */
+    public Set<String> getNodes() {
+        return new TreeSet<>(nodes);
+    }
+
+    /**
+     * Gets owner node for key.
+     *
+     * @param key Key string.
+     * @return Optional of node ID.
+     */
+    public Optional<String> getOwner(String key) {
+        List<String> owners = getOwners(key, 1);
+        return owners.isEmpty() ? Optional.empty() : Optional.of(owners.get(0));
+    }
+
+    /**
+     * Gets distinct nodes for key in ring order.
+     * <p>The first is the owner and the rest are failover candidates.
+     *
+     * @param key   Key string.
+     * @param limit Maximum nodes.
+     * @return List of node IDs.
+     */
+    public List<String> getOwners(String key, int limit) {
+        List<String> owners = new ArrayList<>();
+        limit = Math.min(limit, nodes.size());
+        if (limit == 0) {
+            return owners;
+        }
+
+        long hash = hash(key);
+        for (Collection<String> part : Arrays.asList(ring.tailMap(hash, true).values(), ring.headMap(hash, false).values())) {
+            for (String node : part) {
+                if (!owners.contains(node)) {
+                    owners.add(node);
+                    if (owners.size() >= limit) {
+                        return owners;
+                    }
+                }
+            }
+        }
+
+        return owners;
+    }
+
+    /**
+     * Hashes string to ring position.
+     *
+     * @param string String.
+     * @return Long.
+     */
+    static long hash(String string) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(string.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
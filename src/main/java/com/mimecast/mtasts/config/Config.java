@@ -84,6 +84,34 @@ public class Config {
         return this;
     }
 
+    /**
+     * Lookup timeout (in seconds).
+     * <p>Zero for none.
+     */
+    private int lookupTimeout = 0;
+
+    /**
+     * Gets lookup timeout.
+     *
+     * @return Integer.
+     */
+    public int getLookupTimeout() {
+        return lookupTimeout;
+    }
+
+    /**
+     * Sets lookup timeout.
+     * <p>Deadline for a whole policy lookup from the first DNS query.
+     * <p>DNS and HTTPS clients make no retry that could not finish before it.
+     *
+     * @param lookupTimeout Integer.
+     * @return Self.
+     */
+    public Config setLookupTimeout(int lookupTimeout) {
+        this.lookupTimeout = lookupTimeout;
+        return this;
+    }
+
     /**
      * Require HTTPS response Content-Type as text/plain.
      */
@@ -0,0 +1,29 @@
+package com.mimecast.mtasts.events;
+
+import jdk.jfr.*;
+
+/**
+ * Cache lookup JFR event.
+ * <p>Emitted by PolicyCache for every lookup.
+ *
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+@Name("com.mimecast.mtasts.CacheLookup")
+@Label("Cache Lookup")
+@Description("MTA-STS policy cache lookup")
+@Category({"MTA-STS"})
+@StackTrace(false)
+public final class CacheLookupEvent extends Event {
+
+    @Label("Domain")
+    public String domain;
+
+    @Label("Cache Status")
+    @Description("Hit, miss or invalidate")
+    public String status;
+
+    @Label("Cache")
+    @Description("Cache implementation class name")
+    public String cache;
+}
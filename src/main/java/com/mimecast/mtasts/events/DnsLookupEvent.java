@@ -0,0 +1,31 @@
+package com.mimecast.mtasts.events;
+
+import jdk.jfr.*;
+
+/**
+ * DNS lookup JFR event.
+ * <p>Emitted by XBillDnsRecordClient for every DNS query.
+ *
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+@Name("com.mimecast.mtasts.DnsLookup")
+@Label("DNS Lookup")
+@Description("MTA-STS DNS TXT or MX lookup")
+@Category({"MTA-STS"})
+@StackTrace(false)
+public final class DnsLookupEvent extends Event {
+
+    @Label("Name")
+    public String name;
+
+    @Label("Type")
+    public String type;
+
+    @Label("Outcome")
+    @Description("DNS Java lookup result string")
+    public String outcome;
+
+    @Label("Records")
+    public int records;
+}
@@ -0,0 +1,29 @@
+package com.mimecast.mtasts.events;
+
+import jdk.jfr.*;
+
+/**
+ * Policy fetch JFR event.
+ * <p>Emitted by OkHttpsPolicyClient and JdkHttpsPolicyClient for every HTTPS policy fetch.
+ *
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+@Name("com.mimecast.mtasts.PolicyFetch")
+@Label("Policy Fetch")
+@Description("MTA-STS HTTPS policy fetch")
+@Category({"MTA-STS"})
+@StackTrace(false)
+public final class PolicyFetchEvent extends Event {
+
+    @Label("Domain")
+    public String domain;
+
+    @Label("Outcome")
+    @Description("HTTP status code or the exception class name")
+    public String outcome;
+
+    @Label("Body Size")
+    @DataAmount
+    public int bodySize;
+}
@@ -0,0 +1,29 @@
+package com.mimecast.mtasts.events;
+
+import jdk.jfr.*;
+
+/**
+ * Policy lookup JFR event.
+ * <p>Emitted by StrictTransportSecurity for every policy lookup.
+ *
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+@Name("com.mimecast.mtasts.PolicyLookup")
+@Label("Policy Lookup")
+@Description("MTA-STS policy lookup including DNS, cache and HTTPS stages")
+@Category({"MTA-STS"})
+@StackTrace(false)
+public final class PolicyLookupEvent extends Event {
+
+    @Label("Domain")
+    public String domain;
+
+    @Label("Outcome")
+    @Description("Success or the exception class name")
+    public String outcome;
+
+    @Label("Cached")
+    @Description("Policy served from cache")
+    public boolean cached;
+}
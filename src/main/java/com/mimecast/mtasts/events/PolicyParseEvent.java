@@ -0,0 +1,31 @@
+package com.mimecast.mtasts.events;
+
+import jdk.jfr.*;
+
+/**
+ * Policy parse JFR event.
+ * <p>Emitted by StsPolicy for every policy make.
+ *
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+@Name("com.mimecast.mtasts.PolicyParse")
+@Label("Policy Parse")
+@Description("MTA-STS policy parse and validation")
+@Category({"MTA-STS"})
+@StackTrace(false)
+public final class PolicyParseEvent extends Event {
+
+    @Label("Domain")
+    public String domain;
+
+    @Label("Outcome")
+    @Description("Valid or invalid")
+    public String outcome;
+
+    @Label("Errors")
+    public int errors;
+
+    @Label("Warnings")
+    public int warnings;
+}
@@ -0,0 +1,131 @@
+package com.mimecast.mtasts.metrics;
+
+/**
+ * Metrics counters.
+ * <p>Cache events and lookup outcomes.
+ *
+ * @see Metrics
+ */
+public enum Counter {
+
+    /**
+     * Policy found in cache with matching record ID.
+     */
+    CACHE_HIT,
+
+    /**
+     * Policy not found in cache.
+     */
+    CACHE_MISS,
+
+    /**
+     * Policy found in cache but expired.
+     */
+    CACHE_EXPIRED,
+
+    /**
+     * Policy removed from cache due to record ID mismatch.
+     */
+    CACHE_INVALIDATE,
+
+    /**
+     * Policy evicted from cache to make room.
+     */
+    CACHE_EVICT,
+
+    /**
+     * Lookup returned a policy.
+     */
+    LOOKUP_SUCCESS,
+
+    /**
+     * Lookup failed due to invalid domain.
+     */
+    DOMAIN_INVALID,
+
+    /**
+     * Lookup failed due to DNS record not found.
+     */
+    RECORD_NOT_FOUND,
+
+    /**
+     * Lookup failed due to DNS record invalid.
+     */
+    RECORD_INVALID,
+
+    /**
+     * Lookup failed due to policy invalid or expired.
+     * <p>Broken down by the POLICY_INVALID_ reasons below of which one policy may count several.
+     */
+    POLICY_INVALID,
+
+    /**
+     * Invalid policy reason: response unsuccessful, not 200, empty, too large or without handshake.
+     */
+    POLICY_INVALID_RESPONSE,
+
+    /**
+     * Invalid policy reason: Content-Type header missing or not text/plain.
+     */
+    POLICY_INVALID_CONTENT_TYPE,
+
+    /**
+     * Invalid policy reason: lines not ending in CRLF or empty.
+     */
+    POLICY_INVALID_EOL,
+
+    /**
+     * Invalid policy reason: max age missing or not a number.
+     */
+    POLICY_INVALID_MAX_AGE,
+
+    /**
+     * Invalid policy reason: mode missing, unknown or none.
+     */
+    POLICY_INVALID_MODE,
+
+    /**
+     * Invalid policy reason: no MX masks.
+     */
+    POLICY_INVALID_MX,
+
+    /**
+     * Invalid policy reason: any other validator error.
+     */
+    POLICY_INVALID_OTHER,
+
+    /**
+     * Invalid policy reason: max age passed since fetch.
+     */
+    POLICY_INVALID_EXPIRED,
+
+    /**
+     * Lookup failed due to policy fetch error.
+     */
+    POLICY_FETCH_ERROR,
+
+    /**
+     * Lookup failed due to policy host web PKI invalid.
+     */
+    POLICY_WEBPKI_INVALID,
+
+    /**
+     * Replicated policy or invalidation accepted from a peer.
+     */
+    REPLICA_ACCEPT,
+
+    /**
+     * Replicated policy rejected from a peer as invalid or expired.
+     */
+    REPLICA_REJECT,
+
+    /**
+     * Prefetch dropped as the prefetch queue was full.
+     */
+    PREFETCH_DROP,
+
+    /**
+     * Expired policy confirmed unchanged by the policy host and kept.
+     */
+    POLICY_NOT_MODIFIED
+}
@@ -0,0 +1,190 @@
+package com.mimecast.mtasts.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram.
+ * <p>Lock-free log-linear bucketed recorder in the style of HDR histograms.
+ * <p>Values are recorded at microsecond resolution.
+ * <p>Each power of two is split in 8 linear sub-buckets giving a relative error under 12.5%.
+ * <p>Values above ~12 days are clamped to the last bucket.
+ * <p>Recording does not allocate.
+ *
+ * @see MemoryMetrics
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class LatencyHistogram {
+
+    /**
+     * Sub-bucket bits.
+     */
+    private static final int SUB_BITS = 3;
+
+    /**
+     * Sub-buckets per power of two.
+     */
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /**
+     * Highest tracked power of two.
+     */
+    private static final int MAX_EXPONENT = 40;
+
+    /**
+     * Buckets count.
+     */
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+    /**
+     * Bucket counters.
+     */
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+    /**
+     * Values count.
+     */
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * Values sum in microseconds.
+     */
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Max value in microseconds.
+     */
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+    /**
+     * Constructs a new LatencyHistogram instance.
+     */
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records value.
+     *
+     * @param nanos Duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0L, nanos / 1000L);
+        buckets[index(micros)].increment();
+        count.increment();
+        sum.add(micros);
+        max.accumulate(micros);
+    }
+
+    /**
+     * Gets values count.
+     *
+     * @return Long.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Gets mean value.
+     *
+     * @param unit TimeUnit to return in.
+     * @return Long.
+     */
+    public long getMean(TimeUnit unit) {
+        long total = count.sum();
+        return total > 0 ? unit.convert(sum.sum() / total, TimeUnit.MICROSECONDS) : 0L;
+    }
+
+    /**
+     * Gets max value.
+     *
+     * @param unit TimeUnit to return in.
+     * @return Long.
+     */
+    public long getMax(TimeUnit unit) {
+        return unit.convert(max.get(), TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Gets value at percentile.
+     * <p>Returns the upper bound of the bucket the percentile falls in.
+     *
+     * @param percentile Percentile double between 0 and 100.
+     * @param unit       TimeUnit to return in.
+     * @return Long.
+     */
+    public long getPercentile(double percentile, TimeUnit unit) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets[i].sum();
+            total += snapshot[i];
+        }
+
+        if (total == 0) {
+            return 0L;
+        }
+
+        long rank = Math.max(1L, (long) Math.ceil(Math.min(100D, Math.max(0D, percentile)) / 100D * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return unit.convert(Math.min(upperBound(i), max.get()), TimeUnit.MICROSECONDS);
+            }
+        }
+
+        return getMax(unit);
+    }
+
+    /**
+     * Gets bucket index for value.
+     *
+     * @param micros Value in microseconds.
+     * @return Integer.
+     */
+    static int index(long micros) {
+        if (micros < SUB_COUNT) {
+            return (int) micros;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * Gets bucket lower bound.
+     *
+     * @param index Bucket index.
+     * @return Value in microseconds.
+     */
+    static long lowerBound(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+
+        int exponent = index / SUB_COUNT + SUB_BITS - 1;
+        int sub = index % SUB_COUNT;
+        return (long) (SUB_COUNT + sub) << (exponent - SUB_BITS);
+    }
+
+    /**
+     * Gets bucket upper bound.
+     *
+     * @param index Bucket index.
+     * @return Value in microseconds.
+     */
+    static long upperBound(int index) {
+        return index + 1 < BUCKETS ? lowerBound(index + 1) - 1 : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,81 @@
+package com.mimecast.mtasts.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memory metrics.
+ * <p>Default in-process metrics implementation.
+ * <p>Counters are LongAdder instances and stages are LatencyHistogram instances.
+ * <p>All are preallocated so recording is lock-free and does not allocate.
+ * <p>Values can be read at any time to export into an external registry.
+ *
+ * @see Metrics
+ * @see LatencyHistogram
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class MemoryMetrics implements Metrics {
+
+    /**
+     * Counters by ordinal.
+     */
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+
+    /**
+     * Histograms by ordinal.
+     */
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+
+    /**
+     * Constructs a new MemoryMetrics instance.
+     */
+    public MemoryMetrics() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Increments counter.
+     *
+     * @param counter Counter enum.
+     */
+    @Override
+    public void count(Counter counter) {
+        counters[counter.ordinal()].increment();
+    }
+
+    /**
+     * Records stage latency.
+     *
+     * @param stage Stage enum.
+     * @param nanos Duration in nanoseconds.
+     */
+    @Override
+    public void time(Stage stage, long nanos) {
+        histograms[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * Gets counter value.
+     *
+     * @param counter Counter enum.
+     * @return Long.
+     */
+    public long getCount(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /**
+     * Gets stage histogram.
+     *
+     * @param stage Stage enum.
+     * @return LatencyHistogram instance.
+     */
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+}
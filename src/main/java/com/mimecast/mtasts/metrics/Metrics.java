@@ -0,0 +1,30 @@
+package com.mimecast.mtasts.metrics;
+
+/**
+ * Metrics.
+ * <p>Instrumentation interface for policy lookups.
+ * <p>Implementations are called on the delivery path and must not block or throw.
+ * <p>Implement this to bridge into an external registry or use the provided MemoryMetrics.
+ *
+ * @see MemoryMetrics
+ * @see NullMetrics
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public interface Metrics {
+
+    /**
+     * Increments counter.
+     *
+     * @param counter Counter enum.
+     */
+    void count(Counter counter);
+
+    /**
+     * Records stage latency.
+     *
+     * @param stage Stage enum.
+     * @param nanos Duration in nanoseconds.
+     */
+    void time(Stage stage, long nanos);
+}
@@ -0,0 +1,46 @@
+package com.mimecast.mtasts.metrics;
+
+/**
+ * Null metrics.
+ * <p>Discards everything.
+ * <p>Default when no metrics instance is provided.
+ *
+ * @see Metrics
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public final class NullMetrics implements Metrics {
+
+    /**
+     * Shared instance.
+     */
+    public static final NullMetrics INSTANCE = new NullMetrics();
+
+    /**
+     * Constructs a new NullMetrics instance.
+     * <p>Use the shared instance.
+     */
+    private NullMetrics() {
+    }
+
+    /**
+     * Increments counter.
+     *
+     * @param counter Counter enum.
+     */
+    @Override
+    public void count(Counter counter) {
+        // Discard.
+    }
+
+    /**
+     * Records stage latency.
+     *
+     * @param stage Stage enum.
+     * @param nanos Duration in nanoseconds.
+     */
+    @Override
+    public void time(Stage stage, long nanos) {
+        // Discard.
+    }
+}
@@ -0,0 +1,45 @@
+package com.mimecast.mtasts.metrics;
+
+/**
+ * Metrics stages.
+ * <p>Timed steps of a policy lookup.
+ *
+ * @see Metrics
+ */
+public enum Stage {
+
+    /**
+     * DNS TXT MTA-STS record lookup.
+     */
+    DNS_STS,
+
+    /**
+     * DNS TXT TLSRPT record lookup.
+     */
+    DNS_RPT,
+
+    /**
+     * DNS MX records lookup.
+     */
+    DNS_MX,
+
+    /**
+     * Policy cache lookup.
+     */
+    CACHE_LOOKUP,
+
+    /**
+     * HTTPS policy fetch.
+     */
+    HTTPS_FETCH,
+
+    /**
+     * Policy parse and validation.
+     */
+    POLICY_PARSE,
+
+    /**
+     * Whole policy lookup.
+     */
+    LOOKUP
+}
@@ -0,0 +1,270 @@
+package com.mimecast.mtasts.trace;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Lookup trace.
+ * <p>Records per stage timings of a single policy lookup.
+ * <p>Pass an instance to StrictTransportSecurity.getPolicy() and read it once the call returns.
+ * <p>HTTPS connect, TLS and TTFB phases are only recorded by HTTPS clients supporting it.
+ *
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class LookupTrace {
+
+    /**
+     * Trace phases.
+     */
+    public enum Phase {
+
+        /**
+         * DNS TXT MTA-STS record lookup.
+         */
+        DNS_STS("DNS TXT MTA-STS"),
+
+        /**
+         * Policy cache lookup.
+         * <p>Cached if found with matching record ID.
+         */
+        CACHE("Policy cache"),
+
+        /**
+         * Whole HTTPS policy fetch.
+         */
+        HTTPS_FETCH("HTTPS fetch"),
+
+        /**
+         * Policy host DNS resolution.
+         */
+        HOST_DNS("HTTPS host DNS"),
+
+        /**
+         * TCP connect.
+         * <p>Cached if a pooled connection was reused.
+         */
+        CONNECT("HTTPS connect"),
+
+        /**
+         * TLS handshake including certificate and revocation checks.
+         */
+        TLS("HTTPS TLS handshake"),
+
+        /**
+         * Request sent to response headers received.
+         */
+        TTFB("HTTPS time to first byte"),
+
+        /**
+         * Policy body read.
+         */
+        BODY("HTTPS body read"),
+
+        /**
+         * Policy parse and validation.
+         */
+        PARSE("Policy parse"),
+
+        /**
+         * DNS TXT TLSRPT record lookup.
+         */
+        DNS_RPT("DNS TXT TLSRPT");
+
+        /**
+         * Phase label.
+         */
+        private final String label;
+
+        /**
+         * Constructs new instance.
+         *
+         * @param label Label string.
+         */
+        Phase(String label) {
+            this.label = label;
+        }
+
+        /**
+         * To String.
+         *
+         * @return String.
+         */
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /**
+     * Trace entry.
+     */
+    public static final class Entry {
+        private final Phase phase;
+        private final long offset;
+        private final long duration;
+        private final boolean cached;
+
+        /**
+         * Constructs a new Entry instance.
+         *
+         * @param phase    Phase enum.
+         * @param offset   Start offset from trace start in nanoseconds.
+         * @param duration Duration in nanoseconds.
+         * @param cached   Answer came from cache.
+         */
+        Entry(Phase phase, long offset, long duration, boolean cached) {
+            this.phase = phase;
+            this.offset = offset;
+            this.duration = duration;
+            this.cached = cached;
+        }
+
+        /**
+         * Gets phase.
+         *
+         * @return Phase enum.
+         */
+        public Phase getPhase() {
+            return phase;
+        }
+
+        /**
+         * Gets start offset from trace start.
+         *
+         * @return Nanoseconds long.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Gets duration.
+         *
+         * @return Nanoseconds long.
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * Is cached.
+         *
+         * @return Boolean.
+         */
+        public boolean isCached() {
+            return cached;
+        }
+    }
+
+    /**
+     * Domain string.
+     */
+    private final String domain;
+
+    /**
+     * Trace start nano time.
+     */
+    private final long start = System.nanoTime();
+
+    /**
+     * Entries list.
+     */
+    private final List<Entry> entries = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Constructs a new LookupTrace instance.
+     *
+     * @param domain Domain string.
+     */
+    public LookupTrace(String domain) {
+        this.domain = domain;
+    }
+
+    /**
+     * Records phase.
+     *
+     * @param phase     Phase enum.
+     * @param startTime Start nano time.
+     * @param endTime   End nano time.
+     * @return Self.
+     */
+    public LookupTrace record(Phase phase, long startTime, long endTime) {
+        return record(phase, startTime, endTime, false);
+    }
+
+    /**
+     * Records phase.
+     *
+     * @param phase     Phase enum.
+     * @param startTime Start nano time.
+     * @param endTime   End nano time.
+     * @param cached    Answer came from cache.
+     * @return Self.
+     */
+    public LookupTrace record(Phase phase, long startTime, long endTime, boolean cached) {
+        entries.add(new Entry(phase, startTime - start, endTime - startTime, cached));
+        return this;
+    }
+
+    /**
+     * Gets domain.
+     *
+     * @return Domain string.
+     */
+    public String getDomain() {
+        return domain;
+    }
+
+    /**
+     * Gets entries.
+     * <p>In order of completion.
+     *
+     * @return List of Entry.
+     */
+    public List<Entry> getEntries() {
+        synchronized (entries) {
+            return new ArrayList<>(entries);
+        }
+    }
+
+    /**
+     * Gets first entry for phase if any.
+     *
+     * @param phase Phase enum.
+     * @return Entry instance or null.
+     */
+    public Entry getEntry(Phase phase) {
+        for (Entry entry : getEntries()) {
+            if (entry.getPhase() == phase) {
+                return entry;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * To String.
+     * <p>One line per entry ordered by start offset.
+     *
+     * @return String.
+     */
+    @Override
+    public String toString() {
+        List<Entry> list = getEntries();
+        list.sort((a, b) -> Long.compare(a.getOffset(), b.getOffset()));
+
+        StringBuilder builder = new StringBuilder("Trace:\t" + domain);
+        for (Entry entry : list) {
+            builder.append("\n")
+                    .append(String.format(Locale.ROOT, "%-26s +%9.3f ms %9.3f ms",
+                            entry.getPhase(), entry.getOffset() / 1e6, entry.getDuration() / 1e6))
+                    .append(entry.isCached() ? "  cached" : "");
+        }
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,69 @@
+package com.mimecast.mtasts.util;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.net.Socket;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+
+/**
+ * Chain Trust Manager.
+ * <p>Extended trust manager checking the chain only with the wrapped trust manager.
+ * <p>The JDK verifies host names for plain trust managers but leaves it to extended ones.
+ * <p>This lets JDK HttpClient based clients connect to local servers in testing.
+ *
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class ChainTrustManager extends X509ExtendedTrustManager {
+
+    /**
+     * Wrapped trust manager.
+     */
+    private final X509TrustManager trustManager;
+
+    /**
+     * Constructs a new ChainTrustManager instance.
+     *
+     * @param trustManager X509TrustManager instance.
+     */
+    public ChainTrustManager(X509TrustManager trustManager) {
+        this.trustManager = trustManager;
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        trustManager.checkClientTrusted(chain, authType);
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+        trustManager.checkClientTrusted(chain, authType);
+    }
+
+    @Override
+    public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+        trustManager.checkClientTrusted(chain, authType);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+        trustManager.checkServerTrusted(chain, authType);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+        trustManager.checkServerTrusted(chain, authType);
+    }
+
+    @Override
+    public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+        trustManager.checkServerTrusted(chain, authType);
+    }
+
+    @Override
+    public X509Certificate[] getAcceptedIssuers() {
+        return trustManager.getAcceptedIssuers();
+    }
+}
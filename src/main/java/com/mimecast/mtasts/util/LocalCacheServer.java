@@ -0,0 +1,177 @@
+package com.mimecast.mtasts.util;
+
+import com.mimecast.mtasts.cache.RemotePolicyCache;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local cache server.
+ * <p>Provides an in-process RemotePolicyCache server for use in testing.
+ * <p>Binds to an ephemeral loopback port and serves each connection on its own thread.
+ *
+ * @see RemotePolicyCache
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class LocalCacheServer implements Closeable {
+    private static final Logger log = LogManager.getLogger(LocalCacheServer.class);
+
+    /**
+     * Cache database.
+     */
+    private final Map<String, String> map = new ConcurrentHashMap<>();
+
+    /**
+     * ServerSocket instance.
+     */
+    private final ServerSocket serverSocket;
+
+    /**
+     * Connected sockets.
+     */
+    private final List<Socket> sockets = new ArrayList<>();
+
+    /**
+     * Closed flag.
+     * <p>Closing a socket does not stop a thread already blocked reading it so requests are checked against this.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Constructs a new LocalCacheServer instance.
+     *
+     * @throws IOException IO exception.
+     */
+    public LocalCacheServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+        Thread thread = new Thread(this::accept, "local-cache-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gets port number.
+     *
+     * @return Port number.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Gets database.
+     *
+     * @return Map of extended policy strings by domain.
+     */
+    public Map<String, String> getMap() {
+        return map;
+    }
+
+    /**
+     * Drops all client connections.
+     * <p>Leaves the server listening.
+     */
+    public void disconnect() {
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    log.debug("Local cache server close failed: {}", e.getMessage());
+                }
+            }
+            sockets.clear();
+        }
+    }
+
+    /**
+     * Stop server.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.debug("Local cache server close failed: {}", e.getMessage());
+        }
+        disconnect();
+    }
+
+    /**
+     * Accepts connections.
+     */
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                synchronized (sockets) {
+                    sockets.add(socket);
+                }
+
+                Thread thread = new Thread(() -> serve(socket), "local-cache-client");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            log.debug("Local cache server stopped: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Serves connection.
+     *
+     * @param socket Socket instance.
+     */
+    private void serve(Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            while (true) {
+                int id = in.readInt();
+                byte op = in.readByte();
+                int count = in.readInt();
+                if (closed) {
+                    break;
+                }
+
+                List<String[]> found = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    String key = RemotePolicyCache.readString(in);
+                    if (op == RemotePolicyCache.PUT) {
+                        map.put(key, RemotePolicyCache.readString(in));
+                    }
+                    else if (op == RemotePolicyCache.DEL) {
+                        map.remove(key);
+                    }
+                    else {
+                        String value = map.get(key);
+                        if (value != null) {
+                            found.add(new String[]{key, value});
+                        }
+                    }
+                }
+
+                out.writeInt(id);
+                out.writeByte(RemotePolicyCache.OK);
+                out.writeInt(found.size());
+                for (String[] entry : found) {
+                    RemotePolicyCache.writeString(out, entry[0]);
+                    RemotePolicyCache.writeString(out, entry[1]);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            log.debug("Local cache client closed: {}", e.getMessage());
+        }
+    }
+}
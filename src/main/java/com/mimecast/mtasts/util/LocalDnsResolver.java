@@ -9,8 +9,11 @@ import java.net.UnknownHostException;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.Executor;
 
@@ -18,10 +21,11 @@ import java.util.concurrent.Executor;
  * Local DNS Resolver.
  * <p>This provides a static resolver for DNS Java to aid in testing.
  * <p>It has limited capabilities but more than needed for this lib.
- * <p>It can only handle NS, A, MX, PTR and TXT types.
+ * <p>It can only handle NS, A, AAAA, CNAME, MX, PTR and TXT types.
+ * <p>CNAME entries answer queries of any type the name has no entries for.
  * <p>Strings should not exceed 255 bytes.
- * <p>A strings should be valid IPv4 addresses.
- * <p>NS, MX and PTR strings should not be empty.
+ * <p>A strings should be valid IPv4 addresses and AAAA strings valid IPv6 addresses.
+ * <p>NS, CNAME, MX and PTR strings should not be empty.
  *
  * @author "Vlad Marian" <vmarian@mimecast.com>
  * @link <a href="http://mimecast.com">Mimecast</a>
@@ -45,6 +49,68 @@ public class LocalDnsResolver implements Resolver {
         map.computeIfAbsent(record, k -> new HashMap<>()).put(type, answer);
     }
 
+    /**
+     * Failures database.
+     */
+    private static final Map<String, Integer> failures = new HashMap<>();
+
+    /**
+     * Put failures in database.
+     * <p>The next queries for the record are answered with SERVFAIL.
+     *
+     * @param record Record string.
+     * @param count  Queries count.
+     */
+    public static synchronized void putFailure(String record, int count) {
+        failures.put(record, count);
+    }
+
+    /**
+     * Takes one failure.
+     *
+     * @param record Record string.
+     * @return Boolean true if the query should fail.
+     */
+    private static synchronized boolean takeFailure(String record) {
+        Integer count = failures.get(record);
+        if (count != null && count > 0) {
+            failures.put(record, count - 1);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Truncated database.
+     */
+    private static final Set<String> truncated = new HashSet<>();
+
+    /**
+     * Put truncated record in database.
+     * <p>Queries for the record are answered with the TC flag and no records unless over TCP.
+     *
+     * @param record Record string.
+     */
+    public static synchronized void putTruncated(String record) {
+        truncated.add(record);
+    }
+
+    /**
+     * Is truncated record.
+     *
+     * @param record Record string.
+     * @return Boolean.
+     */
+    private static synchronized boolean isTruncated(String record) {
+        return truncated.contains(record);
+    }
+
+    /**
+     * Use TCP.
+     */
+    private boolean tcp = false;
+
     /**
      * Lookup record.
      *
@@ -58,9 +124,15 @@ public class LocalDnsResolver implements Resolver {
         if (answer != null && !answer.isEmpty()) {
             List<String> records = answer.get(question.getType());
 
+            int type = question.getType();
+            if ((records == null || records.isEmpty()) && answer.get(Type.CNAME) != null) {
+                records = answer.get(Type.CNAME);
+                type = Type.CNAME;
+            }
+
             if (records != null && !records.isEmpty()) {
                 try {
-                    response = loop(question.getName(), records, question.getType());
+                    response = loop(question.getName(), records, type);
                 } catch (TextParseException e) {
                     log.error("Record cannot be parsed: {}", e.getMessage());
                 } catch (UnknownHostException e) {
@@ -93,6 +165,16 @@ public class LocalDnsResolver implements Resolver {
                     response.add(new ARecord(name, 1, 300L, InetAddress.getByName(record)));
                 }
                 break;
+            case Type.AAAA:
+                for (String record : records) {
+                    response.add(new AAAARecord(name, 1, 300L, InetAddress.getByName(record)));
+                }
+                break;
+            case Type.CNAME:
+                for (String record : records) {
+                    response.add(new CNAMERecord(name, 1, 300L, new Name(record)));
+                }
+                break;
             case Type.MX:
                 for (String record : records) {
                     response.add(new MXRecord(name, 1, 300L, 1, new Name(record)));
@@ -129,6 +211,18 @@ public class LocalDnsResolver implements Resolver {
         answer.getHeader().setOpcode(question.getHeader().getOpcode());
         answer.addRecord(question.getQuestion(), 0);
 
+        // Failure.
+        if (takeFailure(question.getQuestion().getName().toString(true))) {
+            answer.getHeader().setRcode(Rcode.SERVFAIL);
+            return answer;
+        }
+
+        // Truncated.
+        if (!tcp && isTruncated(question.getQuestion().getName().toString(true))) {
+            answer.getHeader().setFlag(Flags.TC);
+            return answer;
+        }
+
         // Answer.
         List<org.xbill.DNS.Record> records = lookup(question.getQuestion());
         if (!records.isEmpty()) {
@@ -142,24 +236,31 @@ public class LocalDnsResolver implements Resolver {
 
     @Override
     public CompletionStage<Message> sendAsync(Message query) {
-        return new ExtendedResolver().sendAsync(query);
+        return CompletableFuture.completedFuture(send(query));
     }
 
     @Override
     public CompletionStage<Message> sendAsync(Message query, Executor executor) {
-        return new ExtendedResolver().sendAsync(query, executor);
+        return CompletableFuture.supplyAsync(() -> send(query), executor);
     }
 
     /**
-     * Unused.
+     * Sets TCP.
+     * <p>Truncated records are answered in full over TCP.
+     *
+     * @param b Boolean.
      */
-
     @Override
-    public void setPort(int i) {
+    public void setTCP(boolean b) {
+        tcp = b;
     }
 
+    /**
+     * Unused.
+     */
+
     @Override
-    public void setTCP(boolean b) {
+    public void setPort(int i) {
     }
 
     @Override
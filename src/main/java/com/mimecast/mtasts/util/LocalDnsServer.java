@@ -0,0 +1,271 @@
+package com.mimecast.mtasts.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.xbill.DNS.Message;
+
+import java.io.*;
+import java.net.*;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local DNS Server.
+ * <p>Provides a DNS server over UDP and TCP on the same local port for use in testing.
+ * <p>Answers from LocalDnsResolver database.
+ * <p>TCP queries are answered concurrently so pipelined answers may come back out of order.
+ *
+ * @see LocalDnsResolver
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class LocalDnsServer {
+    private static final Logger log = LogManager.getLogger(LocalDnsServer.class);
+
+    /**
+     * Resolver answering UDP queries.
+     */
+    private final LocalDnsResolver udpResolver = new LocalDnsResolver();
+
+    /**
+     * Resolver answering TCP queries.
+     */
+    private final LocalDnsResolver tcpResolver = new LocalDnsResolver();
+
+    /**
+     * Answer executor.
+     */
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "local-dns-server");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * TCP server socket.
+     */
+    private final ServerSocket serverSocket;
+
+    /**
+     * UDP socket.
+     */
+    private final DatagramSocket datagramSocket;
+
+    /**
+     * TCP connections accepted.
+     */
+    private final AtomicInteger tcpConnections = new AtomicInteger();
+
+    /**
+     * TCP queries received.
+     */
+    private final AtomicInteger tcpQueries = new AtomicInteger();
+
+    /**
+     * UDP queries received.
+     */
+    private final AtomicInteger udpQueries = new AtomicInteger();
+
+    /**
+     * TCP queries read per connection before closing it unanswered.
+     */
+    private volatile int closeAfter = 0;
+
+    /**
+     * Answer TCP queries.
+     */
+    private volatile boolean silent = false;
+
+    /**
+     * Constructs a new LocalDnsServer instance.
+     *
+     * @throws IOException Unable to bind.
+     */
+    public LocalDnsServer() throws IOException {
+        ServerSocket tcp = null;
+        DatagramSocket udp = null;
+        for (int i = 0; i < 10 && udp == null; i++) {
+            tcp = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            try {
+                udp = new DatagramSocket(tcp.getLocalPort(), InetAddress.getLoopbackAddress());
+            } catch (SocketException e) {
+                tcp.close();
+            }
+        }
+        if (udp == null) {
+            throw new BindException("No port free for both UDP and TCP");
+        }
+
+        serverSocket = tcp;
+        datagramSocket = udp;
+        tcpResolver.setTCP(true);
+
+        executor.execute(this::acceptTcp);
+        executor.execute(this::receiveUdp);
+    }
+
+    /**
+     * Sets TCP queries read per connection before closing it without answering the last.
+     * <p>Earlier queries are answered in order before the close.
+     * <p>Zero never closes.
+     *
+     * @param closeAfter Queries count.
+     * @return Self.
+     */
+    public LocalDnsServer setCloseAfter(int closeAfter) {
+        this.closeAfter = closeAfter;
+        return this;
+    }
+
+    /**
+     * Sets silent.
+     * <p>TCP queries are read but never answered.
+     *
+     * @param silent Boolean.
+     * @return Self.
+     */
+    public LocalDnsServer setSilent(boolean silent) {
+        this.silent = silent;
+        return this;
+    }
+
+    /**
+     * Gets address.
+     *
+     * @return InetSocketAddress instance.
+     */
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+    }
+
+    /**
+     * Gets TCP connections accepted.
+     *
+     * @return Integer.
+     */
+    public int getTcpConnections() {
+        return tcpConnections.get();
+    }
+
+    /**
+     * Gets TCP queries received.
+     *
+     * @return Integer.
+     */
+    public int getTcpQueries() {
+        return tcpQueries.get();
+    }
+
+    /**
+     * Gets UDP queries received.
+     *
+     * @return Integer.
+     */
+    public int getUdpQueries() {
+        return udpQueries.get();
+    }
+
+    /**
+     * Stops server.
+     */
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.debug("Server close failed: {}", e.getMessage());
+        }
+        datagramSocket.close();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Accepts TCP connections.
+     */
+    private void acceptTcp() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                tcpConnections.incrementAndGet();
+                executor.execute(() -> serveTcp(socket));
+            } catch (IOException e) {
+                log.debug("Accept failed: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Serves TCP connection.
+     *
+     * @param socket Socket instance.
+     */
+    private void serveTcp(Socket socket) {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+            int count = 0;
+            while (true) {
+                byte[] data = new byte[in.readUnsignedShort()];
+                in.readFully(data);
+                tcpQueries.incrementAndGet();
+
+                if (closeAfter > 0 && ++count >= closeAfter) {
+                    return;
+                }
+                if (silent) {
+                    continue;
+                }
+
+                if (closeAfter > 0) {
+                    answerTcp(data, out);
+                }
+                else {
+                    executor.execute(() -> answerTcp(data, out));
+                }
+            }
+        } catch (IOException e) {
+            log.debug("TCP connection ended: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Answers TCP query.
+     *
+     * @param data Query bytes.
+     * @param out  DataOutputStream instance.
+     */
+    private void answerTcp(byte[] data, DataOutputStream out) {
+        try {
+            byte[] answer = tcpResolver.send(new Message(data)).toWire();
+            synchronized (out) {
+                out.writeShort(answer.length);
+                out.write(answer);
+                out.flush();
+            }
+        } catch (IOException e) {
+            log.debug("TCP answer failed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Receives UDP queries.
+     */
+    private void receiveUdp() {
+        byte[] buffer = new byte[512];
+        while (!datagramSocket.isClosed()) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                datagramSocket.receive(packet);
+                udpQueries.incrementAndGet();
+
+                Message query = new Message(Arrays.copyOf(packet.getData(), packet.getLength()));
+                byte[] answer = udpResolver.send(query).toWire(512);
+                datagramSocket.send(new DatagramPacket(answer, answer.length, packet.getSocketAddress()));
+            } catch (IOException e) {
+                log.debug("UDP query failed: {}", e.getMessage());
+            }
+        }
+    }
+}
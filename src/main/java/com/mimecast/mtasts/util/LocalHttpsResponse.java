@@ -1,6 +1,7 @@
 package com.mimecast.mtasts.util;
 
 import java.net.HttpURLConnection;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Local HTTPS Response.
@@ -17,6 +18,29 @@ public class LocalHttpsResponse {
      */
     private String contentType = "text/plain";
 
+    /**
+     * Response status code.
+     * <p>Default: 200 (HTTP_OK)
+     *
+     * @see HttpURLConnection.HTTP_OK
+     */
+    private int code = 200;
+
+    /**
+     * Response string.
+     */
+    private String responseString;
+
+    /**
+     * ETag header string.
+     */
+    private String etag;
+
+    /**
+     * Requests left to answer with 503 Service Unavailable.
+     */
+    private final AtomicInteger unavailable = new AtomicInteger();
+
     /**
      * Gets Content-Type header string.
      *
@@ -37,14 +61,6 @@ public class LocalHttpsResponse {
         return this;
     }
 
-    /**
-     * Response status code.
-     * <p>Default: 200 (HTTP_OK)
-     *
-     * @see HttpURLConnection.HTTP_OK
-     */
-    private int code = 200;
-
     /**
      * Gets status code.
      *
@@ -65,11 +81,6 @@ public class LocalHttpsResponse {
         return this;
     }
 
-    /**
-     * Response string.
-     */
-    private String responseString;
-
     /**
      * Gets response string.
      *
@@ -89,4 +100,46 @@ public class LocalHttpsResponse {
         this.responseString = responseString;
         return this;
     }
+
+    /**
+     * Gets ETag header string.
+     *
+     * @return String.
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * Sets ETag header string.
+     * <p>Requests with a matching If-None-Match are answered with 304 Not Modified.
+     *
+     * @param etag String.
+     * @return Self.
+     */
+    public LocalHttpsResponse setEtag(String etag) {
+        this.etag = etag;
+        return this;
+    }
+
+    /**
+     * Takes one unavailable answer.
+     *
+     * @return Boolean true if the request should be answered with 503 Service Unavailable.
+     */
+    public boolean takeUnavailable() {
+        return unavailable.getAndUpdate(count -> Math.max(0, count - 1)) > 0;
+    }
+
+    /**
+     * Sets requests to answer with 503 Service Unavailable.
+     * <p>For testing retries.
+     *
+     * @param count Requests count.
+     * @return Self.
+     */
+    public LocalHttpsResponse setUnavailable(int count) {
+        unavailable.set(count);
+        return this;
+    }
 }
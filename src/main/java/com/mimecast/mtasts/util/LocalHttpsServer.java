@@ -4,6 +4,7 @@ import com.mimecast.mtasts.trust.PermissiveTrustManager;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpsConfigurator;
 import com.sun.net.httpserver.HttpsServer;
+import org.xbill.DNS.Message;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -14,19 +15,30 @@ import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.security.*;
 import java.security.cert.CertificateException;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
 
 /**
  * Local HTTPS Server.
  * <p>Provides a HTTPS server for use in testing.
  * <p>The server should be started after all path and responses have been put.
+ * <p>DNS-over-HTTPS paths answer RFC 8484 queries from LocalDnsResolver database.
  *
  * @author "Vlad Marian" <vmarian@mimecast.com>
  * @link <a href="http://mimecast.com">Mimecast</a>
  */
 public class LocalHttpsServer {
 
+    static {
+        // Headers and body go out as separate writes, without this every response waits on a delayed ACK.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
     /**
      * HttpsServer database.
      */
@@ -42,11 +54,32 @@ public class LocalHttpsServer {
         map.put(path, response);
     }
 
+    /**
+     * DNS-over-HTTPS paths.
+     */
+    private static final Set<String> dohPaths = new HashSet<>();
+
+    /**
+     * Put DNS-over-HTTPS path.
+     * <p>Answers POST and GET wireformat queries from LocalDnsResolver database.
+     *
+     * @param path HTTP request path.
+     */
+    public static void putDoh(String path) {
+        dohPaths.add(path);
+    }
+
     /**
      * HttpsServer instance.
      */
     private HttpsServer httpServer;
 
+    /**
+     * Client addresses of policy requests.
+     * <p>One per connection.
+     */
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+
     /**
      * Constructs a new HttpPolicyServerMock instance.
      *
@@ -81,12 +114,24 @@ public class LocalHttpsServer {
             LocalHttpsResponse response = entry.getValue();
 
             httpServer.createContext("/" + path, exchange -> {
+                connections.add(exchange.getRemoteAddress());
                 if (response != null && response.getResponseString() != null) {
                     Headers responseHeaders = exchange.getResponseHeaders();
                     responseHeaders.add("Content-Type", response.getContentType());
-
-                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.getResponseString().length());
-                    exchange.getResponseBody().write(response.getResponseString().getBytes());
+                    if (response.getEtag() != null) {
+                        responseHeaders.add("ETag", response.getEtag());
+                    }
+
+                    if (response.takeUnavailable()) {
+                        exchange.sendResponseHeaders(HttpURLConnection.HTTP_UNAVAILABLE, -1);
+                    } else if (response.getEtag() != null && response.getEtag().equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                        exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+                    } else if (exchange.getRequestMethod().equals("HEAD")) {
+                        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, -1);
+                    } else {
+                        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, response.getResponseString().length());
+                        exchange.getResponseBody().write(response.getResponseString().getBytes());
+                    }
                 } else {
                     exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_FOUND, 0);
                 }
@@ -94,6 +139,40 @@ public class LocalHttpsServer {
             });
         }
 
+        LocalDnsResolver resolver = new LocalDnsResolver();
+        resolver.setTCP(true);
+        for (String path : dohPaths) {
+            httpServer.createContext("/" + path, exchange -> {
+                byte[] query = null;
+                if (exchange.getRequestMethod().equals("POST")) {
+                    query = exchange.getRequestBody().readAllBytes();
+                } else if (exchange.getRequestURI().getQuery() != null && exchange.getRequestURI().getQuery().startsWith("dns=")) {
+                    query = Base64.getUrlDecoder().decode(exchange.getRequestURI().getQuery().substring(4));
+                }
+
+                byte[] answer;
+                try {
+                    answer = query != null ? resolver.send(new Message(query)).toWire() : null;
+                } catch (IOException e) {
+                    answer = null;
+                }
+
+                if (answer != null) {
+                    exchange.getResponseHeaders().add("Content-Type", "application/dns-message");
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, answer.length);
+                    exchange.getResponseBody().write(answer);
+                } else {
+                    exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_REQUEST, -1);
+                }
+                exchange.close();
+            });
+        }
+
+        httpServer.setExecutor(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "local-https-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
         httpServer.start();
     }
 
@@ -106,6 +185,15 @@ public class LocalHttpsServer {
         return httpServer.getAddress().getPort();
     }
 
+    /**
+     * Gets count of connections policy requests were received on.
+     *
+     * @return Integer.
+     */
+    public int getConnections() {
+        return connections.size();
+    }
+
     /**
      * Stop server.
      */
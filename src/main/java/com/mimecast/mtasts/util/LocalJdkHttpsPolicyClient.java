@@ -0,0 +1,72 @@
+package com.mimecast.mtasts.util;
+
+import com.mimecast.mtasts.client.JdkHttpsPolicyClient;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.net.URI;
+import java.net.http.HttpClient;
+
+/**
+ * Local JDK HTTPS Policy Client.
+ * <p>Connects to LocalHttpsServer and skips host name verification.
+ *
+ * @see LocalHttpsServer
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class LocalJdkHttpsPolicyClient extends JdkHttpsPolicyClient {
+
+    /**
+     * Trust manager to use for certificate validation.
+     */
+    private final X509TrustManager trustManager;
+
+    /**
+     * HTTP server port number.
+     */
+    private final int port;
+
+    /**
+     * Constructs a new LocalJdkHttpsPolicyClient instance.
+     *
+     * @param trustManager The trust manager instance.
+     * @param port         Port number.
+     */
+    public LocalJdkHttpsPolicyClient(X509TrustManager trustManager, int port) {
+        super(trustManager);
+        this.trustManager = trustManager;
+        this.port = port;
+    }
+
+    /**
+     * Gets URI.
+     *
+     * @param domain Domain string.
+     * @return URI instance.
+     */
+    @Override
+    protected URI getUri(String domain) {
+        return URI.create("https://127.0.0.1:" + port + "/" + domain);
+    }
+
+    /**
+     * Gets HttpClient.Builder.
+     * <p>The JDK client always verifies host names unless the trust manager is an extended one that does its own.
+     * <p>Wraps the trust manager into one checking the chain only.
+     *
+     * @param sslContext SSLContext instance.
+     * @return HttpClient.Builder instance.
+     */
+    @Override
+    protected HttpClient.Builder getBuilder(SSLContext sslContext) {
+        try {
+            SSLContext localContext = SSLContext.getInstance("TLSv1.2");
+            localContext.init(null, new TrustManager[] { new ChainTrustManager(trustManager) }, null);
+            return super.getBuilder(localContext);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.mimecast.mtasts.util;
+
+import com.mimecast.mtasts.client.NioHttpsPolicyClient;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.X509TrustManager;
+import java.net.InetSocketAddress;
+
+/**
+ * Local NIO Https Policy Client.
+ * <p>Extends NioHttpsPolicyClient to mock resources needed for testing via local server.
+ *
+ * @author "Vlad Marian" <vmarian@mimecast.com>
+ * @link <a href="http://mimecast.com">Mimecast</a>
+ */
+public class LocalNioHttpsPolicyClient extends NioHttpsPolicyClient {
+
+    /**
+     * HTTP server port number.
+     */
+    private final int port;
+
+    /**
+     * Constructs a new LocalNioHttpsPolicyClient instance.
+     *
+     * @param trustManager The trust manager instance.
+     * @param port         Port number.
+     */
+    public LocalNioHttpsPolicyClient(X509TrustManager trustManager, int port) {
+        super(trustManager);
+        this.port = port;
+    }
+
+    /**
+     * Gets port to connect to.
+     *
+     * @param domain Domain string.
+     * @return Port number.
+     */
+    @Override
+    protected int getPort(String domain) {
+        return port;
+    }
+
+    /**
+     * Gets address to connect to.
+     *
+     * @param domain Domain string.
+     * @return InetSocketAddress instance.
+     */
+    @Override
+    protected InetSocketAddress getAddress(String domain) {
+        return new InetSocketAddress("127.0.0.1", port);
+    }
+
+    /**
+     * Gets request path.
+     *
+     * @param domain Domain string.
+     * @return Path string.
+     */
+    @Override
+    protected String getPath(String domain) {
+        return "/" + domain;
+    }
+
+    /**
+     * Creates SSLEngine.
+     * <p>Skips host name verification.
+     *
+     * @param sslContext SSLContext instance.
+     * @param host       Host string.
+     * @return SSLEngine instance.
+     */
+    @Override
+    protected SSLEngine createEngine(SSLContext sslContext, String host) {
+        SSLEngine engine = sslContext.createSSLEngine(host, 443);
+        engine.setUseClientMode(true);
+
+        return engine;
+    }
+}
@@ -0,0 +1,162 @@
+package com.mimecast.mtasts;
+
+import com.mimecast.mtasts.assets.DnsRecord;
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.assets.StsReport;
+import com.mimecast.mtasts.cache.OffHeapPolicyCache;
+import com.mimecast.mtasts.client.DnsRecordClient;
+import com.mimecast.mtasts.client.HttpsPolicyClient;
+import com.mimecast.mtasts.client.HttpsResponseMock;
+import com.mimecast.mtasts.exception.PolicyFetchErrorException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheWarmerTest {
+
+    @TempDir
+    Path dir;
+
+    private final AtomicInteger fetches = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private final List<String> fetched = Collections.synchronizedList(new ArrayList<>());
+
+    private final DnsRecordClient dnsRecordClient = new DnsRecordClient() {
+        @Override
+        public Optional<StsRecord> getStsRecord(String domain) {
+            return domain.startsWith("none") ? Optional.empty() : Optional.of(new StsRecord(domain, "v=STSv1; id=1;"));
+        }
+
+        @Override
+        public Optional<StsReport> getRptRecord(String domain) {
+            return Optional.empty();
+        }
+
+        @Override
+        public Optional<List<DnsRecord>> getMxRecords(String domain) {
+            return Optional.empty();
+        }
+    };
+
+    private final HttpsPolicyClient httpsPolicyClient = (stsRecord, maxPolicyBodySize) -> {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        try {
+            fetches.incrementAndGet();
+            fetched.add(stsRecord.getDomain());
+            TimeUnit.MILLISECONDS.sleep(10);
+            if (stsRecord.getDomain().startsWith("broken")) {
+                throw new PolicyFetchErrorException("Connection refused");
+            }
+            return new HttpsResponseMock()
+                    .setSuccessful(true)
+                    .setCode(200)
+                    .setMessage("OK")
+                    .setHandshake(true)
+                    .setPeerCertificates(new ArrayList<>())
+                    .putHeader("Content-Type", "text/plain")
+                    .setBody("version: STSv1\r\nmode: enforce\r\nmx: *.mimecast.com\r\nmax_age: 604800\r\n");
+        } catch (InterruptedException e) {
+            throw new PolicyFetchErrorException("Interrupted");
+        } finally {
+            running.decrementAndGet();
+        }
+    };
+
+    private StrictTransportSecurity strictTransportSecurity(OffHeapPolicyCache cache) throws InstantiationException {
+        return new StrictTransportSecurity(dnsRecordClient, httpsPolicyClient, cache);
+    }
+
+    @Test
+    void warm() throws Exception {
+        OffHeapPolicyCache cache = new OffHeapPolicyCache(1000, 1024 * 1024);
+        List<String> domains = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            domains.add("domain" + i + ".com");
+        }
+        domains.add("user@Domain0.com.");
+        domains.add("none.com");
+        domains.add("broken.com");
+
+        AtomicInteger updates = new AtomicInteger();
+        CacheWarmer.Progress progress = new CacheWarmer(strictTransportSecurity(cache))
+                .setParallelism(4)
+                .setListener(p -> updates.incrementAndGet())
+                .warm(domains);
+
+        progress.getFuture().get(10, TimeUnit.SECONDS);
+        assertTrue(progress.isDone());
+        assertEquals(52, progress.getTotal());
+        assertEquals(52, progress.getCompleted());
+        assertEquals(50, progress.getFound());
+        assertEquals(2, progress.getFailed());
+        assertEquals(52, updates.get());
+        assertEquals(51, fetches.get());
+        assertTrue(maxRunning.get() <= 4);
+        assertTrue(maxRunning.get() > 1);
+
+        // Warm domains are served from cache.
+        assertTrue(cache.getByDomain("domain49.com").isPresent());
+        strictTransportSecurity(cache).getPolicy("domain49.com");
+        assertEquals(51, fetches.get());
+    }
+
+    @Test
+    void rate() throws Exception {
+        OffHeapPolicyCache cache = new OffHeapPolicyCache(1000, 1024 * 1024);
+        List<String> domains = new ArrayList<>();
+        for (int i = 0; i < 11; i++) {
+            domains.add("domain" + i + ".com");
+        }
+
+        long start = System.nanoTime();
+        new CacheWarmer(strictTransportSecurity(cache))
+                .setRate(50)
+                .warm(domains)
+                .getFuture().get(10, TimeUnit.SECONDS);
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200);
+    }
+
+    @Test
+    void file() throws Exception {
+        Path file = dir.resolve("domains.txt");
+        Files.write(file, Arrays.asList("# top domains", "", "domain1.com 1200", "domain2.com,800", "  domain3.com"));
+
+        CacheWarmer.Progress progress = new CacheWarmer(strictTransportSecurity(new OffHeapPolicyCache(1000, 1024 * 1024)))
+                .warm(file);
+
+        progress.getFuture().get(10, TimeUnit.SECONDS);
+        assertEquals(3, progress.getFound());
+        assertEquals(new HashSet<>(Arrays.asList("domain1.com", "domain2.com", "domain3.com")), new HashSet<>(fetched));
+    }
+
+    @Test
+    void cancel() throws Exception {
+        List<String> domains = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            domains.add("domain" + i + ".com");
+        }
+
+        CacheWarmer.Progress progress = new CacheWarmer(strictTransportSecurity(new OffHeapPolicyCache(2000, 4 * 1024 * 1024)))
+                .setParallelism(1)
+                .warm(domains);
+        progress.cancel();
+
+        progress.getFuture().get(10, TimeUnit.SECONDS);
+        assertTrue(progress.getCompleted() < 1000);
+    }
+
+    @Test
+    void missingFile() {
+        assertThrows(IOException.class, () -> new CacheWarmer(null).warm(dir.resolve("missing.txt")));
+    }
+}
@@ -19,6 +19,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class MainTest {
 
@@ -60,11 +61,12 @@ class MainTest {
         assertEquals("java -jar mta-sts.jar", logs.get(0));
         assertEquals(" SMTP MTA Strict Transport Security", logs.get(1));
         assertEquals("", logs.get(2));
-        assertEquals("usage:   [-d <arg>] [-f <arg>] [-j] [-m <arg>]\n" +
+        assertEquals("usage:   [-d <arg>] [-f <arg>] [-j] [-m <arg>] [-t]\n" +
                 " -d,--domain <arg>   Domain\n" +
                 " -f,--file <arg>     Write policy details to JSON file\n" +
                 " -j,--json           Show policy details as JSON\n" +
-                " -m,--mx <arg>       MX to match against policy MX masks\n", logs.get(3));
+                " -m,--mx <arg>       MX to match against policy MX masks\n" +
+                " -t,--trace          Show lookup stage timings\n", logs.get(3));
         assertEquals("", logs.get(4));
     }
 
@@ -75,11 +77,12 @@ class MainTest {
         assertEquals("java -jar mta-sts.jar", logs.get(0));
         assertEquals(" SMTP MTA Strict Transport Security", logs.get(1));
         assertEquals("", logs.get(2));
-        assertEquals("usage:   [-d <arg>] [-f <arg>] [-j] [-m <arg>]\n" +
+        assertEquals("usage:   [-d <arg>] [-f <arg>] [-j] [-m <arg>] [-t]\n" +
                 " -d,--domain <arg>   Domain\n" +
                 " -f,--file <arg>     Write policy details to JSON file\n" +
                 " -j,--json           Show policy details as JSON\n" +
-                " -m,--mx <arg>       MX to match against policy MX masks\n", logs.get(3));
+                " -m,--mx <arg>       MX to match against policy MX masks\n" +
+                " -t,--trace          Show lookup stage timings\n", logs.get(3));
         assertEquals("", logs.get(4));
     }
 
@@ -95,11 +98,12 @@ class MainTest {
         assertEquals("java -jar mta-sts.jar", logs.get(0));
         assertEquals(" SMTP MTA Strict Transport Security", logs.get(1));
         assertEquals("", logs.get(2));
-        assertEquals("usage:   [-d <arg>] [-f <arg>] [-j] [-m <arg>]\n" +
+        assertEquals("usage:   [-d <arg>] [-f <arg>] [-j] [-m <arg>] [-t]\n" +
                 " -d,--domain <arg>   Domain\n" +
                 " -f,--file <arg>     Write policy details to JSON file\n" +
                 " -j,--json           Show policy details as JSON\n" +
-                " -m,--mx <arg>       MX to match against policy MX masks\n", logs.get(3));
+                " -m,--mx <arg>       MX to match against policy MX masks\n" +
+                " -t,--trace          Show lookup stage timings\n", logs.get(3));
         assertEquals("", logs.get(4));
     }
 
@@ -172,4 +176,20 @@ class MainTest {
         assertEquals("MX:\t\tservice-alpha-inbound-a.mimecast.com", logs.get(2));
         assertEquals("Match:\ttrue", logs.get(3));
     }
+
+    @Test
+    void traceArgs() throws InstantiationException {
+        List<String> argv = new ArrayList<>();
+
+        argv.add("--domain");
+        argv.add("mimecast.com");
+        argv.add("--trace");
+
+        List<String> logs = MainMock.main(argv.toArray(new String[0]), localHttpsServer.getPort());
+
+        assertEquals("Lookup trace", logs.get(0));
+        assertTrue(logs.get(2).startsWith("Trace:\tmimecast.com"));
+        assertTrue(logs.get(2).contains("DNS TXT MTA-STS"));
+        assertTrue(logs.get(2).contains("Policy cache"));
+    }
 }
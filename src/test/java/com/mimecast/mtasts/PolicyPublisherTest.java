@@ -0,0 +1,223 @@
+package com.mimecast.mtasts;
+
+import com.mimecast.mtasts.assets.DnsRecord;
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.assets.StsReport;
+import com.mimecast.mtasts.cache.OffHeapPolicyCache;
+import com.mimecast.mtasts.client.DnsRecordClient;
+import com.mimecast.mtasts.client.HttpsPolicyClient;
+import com.mimecast.mtasts.client.HttpsResponseMock;
+import com.mimecast.mtasts.exception.PolicyFetchErrorException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PolicyPublisherTest {
+
+    private final AtomicInteger fetches = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    private ExecutorService executor;
+    private StrictTransportSecurity strictTransportSecurity;
+
+    private final DnsRecordClient dnsRecordClient = new DnsRecordClient() {
+        @Override
+        public Optional<StsRecord> getStsRecord(String domain) {
+            return Optional.of(new StsRecord(domain, "v=STSv1; id=1;"));
+        }
+
+        @Override
+        public Optional<StsReport> getRptRecord(String domain) {
+            return Optional.empty();
+        }
+
+        @Override
+        public Optional<List<DnsRecord>> getMxRecords(String domain) {
+            return Optional.empty();
+        }
+    };
+
+    private final HttpsPolicyClient httpsPolicyClient = (stsRecord, maxPolicyBodySize) -> {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        try {
+            fetches.incrementAndGet();
+            TimeUnit.MILLISECONDS.sleep(20);
+            if (stsRecord.getDomain().startsWith("broken")) {
+                throw new PolicyFetchErrorException("Connection refused");
+            }
+            return new HttpsResponseMock()
+                    .setSuccessful(true)
+                    .setCode(200)
+                    .setMessage("OK")
+                    .setHandshake(true)
+                    .setPeerCertificates(new ArrayList<>())
+                    .putHeader("Content-Type", "text/plain")
+                    .setBody("version: STSv1\r\nmode: enforce\r\nmx: *.mimecast.com\r\nmax_age: 604800\r\n");
+        } catch (InterruptedException e) {
+            throw new PolicyFetchErrorException("Interrupted");
+        } finally {
+            running.decrementAndGet();
+        }
+    };
+
+    /**
+     * Collecting subscriber requesting a fixed batch at a time.
+     */
+    private static class Collector implements Flow.Subscriber<PolicyResult> {
+        private final long batch;
+        private final List<PolicyResult> results = Collections.synchronizedList(new ArrayList<>());
+        private final CompletableFuture<List<PolicyResult>> done = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        private int received = 0;
+
+        Collector(long batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (batch > 0) {
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onNext(PolicyResult item) {
+            results.add(item);
+            if (batch > 0 && ++received % batch == 0) {
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            done.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            done.complete(results);
+        }
+    }
+
+    @BeforeEach
+    void before() throws InstantiationException {
+        executor = Executors.newFixedThreadPool(64);
+        strictTransportSecurity = new StrictTransportSecurity(dnsRecordClient, httpsPolicyClient, new OffHeapPolicyCache(1000, 1024 * 1024));
+    }
+
+    @AfterEach
+    void after() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void deduplicate() throws Exception {
+        List<String> recipients = Arrays.asList("john@mimecast.com", "jane@MIMECAST.com", "mimecast.com.", "bob@mimecast.org", "broken.com", "");
+
+        PolicyPublisher publisher = strictTransportSecurity.getPolicies(recipients, null, 4, executor);
+        assertEquals(3, publisher.size());
+
+        Collector collector = new Collector(Long.MAX_VALUE);
+        publisher.subscribe(collector);
+        List<PolicyResult> results = collector.done.get(10, TimeUnit.SECONDS);
+
+        assertEquals(3, results.size());
+        assertEquals(3, fetches.get());
+
+        Map<String, PolicyResult> byDomain = new HashMap<>();
+        results.forEach(result -> byDomain.put(result.getDomain(), result));
+
+        assertEquals(Arrays.asList("john@mimecast.com", "jane@MIMECAST.com", "mimecast.com."), byDomain.get("mimecast.com").getRecipients());
+        assertTrue(byDomain.get("mimecast.com").isSuccessful());
+        assertEquals("enforce", byDomain.get("mimecast.com").getPolicy().get().getMode().toString());
+
+        assertFalse(byDomain.get("broken.com").isSuccessful());
+        assertInstanceOf(PolicyFetchErrorException.class, byDomain.get("broken.com").getError());
+        assertFalse(byDomain.get("broken.com").getPolicy().isPresent());
+    }
+
+    @Test
+    void parallel() throws Exception {
+        List<String> recipients = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            recipients.add("user@domain" + i + ".com");
+        }
+
+        long start = System.nanoTime();
+        Collector collector = new Collector(16);
+        strictTransportSecurity.getPolicies(recipients, null, 20, executor).subscribe(collector);
+        assertEquals(200, collector.done.get(10, TimeUnit.SECONDS).size());
+
+        // Serial would take 4 seconds.
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+        assertTrue(maxRunning.get() <= 16);
+        assertTrue(maxRunning.get() > 1);
+    }
+
+    @Test
+    void backpressure() throws Exception {
+        List<String> recipients = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            recipients.add("domain" + i + ".com");
+        }
+
+        Collector collector = new Collector(0);
+        strictTransportSecurity.getPolicies(recipients, null, 10, executor).subscribe(collector);
+
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertEquals(0, fetches.get());
+
+        collector.subscription.request(3);
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertEquals(3, fetches.get());
+        assertEquals(3, collector.results.size());
+
+        collector.subscription.request(Long.MAX_VALUE);
+        assertEquals(50, collector.done.get(10, TimeUnit.SECONDS).size());
+        assertEquals(50, fetches.get());
+    }
+
+    @Test
+    void cancel() throws Exception {
+        List<String> recipients = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            recipients.add("domain" + i + ".com");
+        }
+
+        Collector collector = new Collector(0);
+        strictTransportSecurity.getPolicies(recipients, null, 10, executor).subscribe(collector);
+        collector.subscription.request(5);
+        collector.subscription.cancel();
+
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertTrue(fetches.get() <= 5);
+        assertTrue(collector.results.isEmpty());
+        assertFalse(collector.done.isDone());
+    }
+
+    @Test
+    void invalidRequest() {
+        Collector collector = new Collector(0);
+        strictTransportSecurity.getPolicies(Collections.singletonList("mimecast.com"), null, 1, executor).subscribe(collector);
+        collector.subscription.request(0);
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> collector.done.get(1, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalArgumentException.class, e.getCause());
+    }
+
+    @Test
+    void empty() throws Exception {
+        Collector collector = new Collector(0);
+        strictTransportSecurity.getPolicies(Collections.emptyList(), null, 1, executor).subscribe(collector);
+        assertTrue(collector.done.get(1, TimeUnit.SECONDS).isEmpty());
+    }
+}
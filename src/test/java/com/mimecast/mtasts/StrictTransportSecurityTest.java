@@ -2,9 +2,16 @@ package com.mimecast.mtasts;
 
 import com.mimecast.mtasts.assets.StsPolicy;
 import com.mimecast.mtasts.cache.MemoryPolicyCache;
+import com.mimecast.mtasts.cache.OffHeapPolicyCache;
+import com.mimecast.mtasts.cache.RemotePolicyCache;
 import com.mimecast.mtasts.client.HttpsPolicyClient;
 import com.mimecast.mtasts.client.XBillDnsRecordClient;
 import com.mimecast.mtasts.exception.*;
+import com.mimecast.mtasts.metrics.Counter;
+import com.mimecast.mtasts.metrics.MemoryMetrics;
+import com.mimecast.mtasts.metrics.Stage;
+import com.mimecast.mtasts.trace.LookupTrace;
+import com.mimecast.mtasts.trace.LookupTrace.Phase;
 import com.mimecast.mtasts.trust.PermissiveTrustManager;
 import com.mimecast.mtasts.util.*;
 import org.apache.commons.validator.ValidatorException;
@@ -16,7 +23,9 @@ import org.xbill.DNS.Lookup;
 import org.xbill.DNS.Type;
 
 import javax.net.ssl.X509TrustManager;
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -24,6 +33,18 @@ import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -57,6 +78,12 @@ class StrictTransportSecurityTest {
         LocalDnsResolver.put("_mta-sts.mimecast.uk", Type.TXT, new ArrayList<String>() {{
             add("v=STSv1; id=19840507T234501;");
         }});
+        LocalDnsResolver.put("_mta-sts.mimecast.ie", Type.TXT, new ArrayList<String>() {{
+            add("v=STSv1; id=19840507T234501;");
+        }});
+        LocalDnsResolver.put("_mta-sts.mimecast.si", Type.TXT, new ArrayList<String>() {{
+            add("v=STSv1; id=19840507T234501;");
+        }});
 
         // Configure mock server
         LocalHttpsServer.put("mimecast.com", new LocalHttpsResponse()
@@ -67,6 +94,13 @@ class StrictTransportSecurityTest {
         LocalHttpsServer.put("mimecast.uk", new LocalHttpsResponse()
                 .setResponseString(response));
 
+        LocalHttpsServer.put("mimecast.si", new LocalHttpsResponse()
+                .setResponseString("version: STSv1\nmode: none\nmax_age: 86400\n"));
+
+        LocalHttpsServer.put("mimecast.ie", new LocalHttpsResponse()
+                .setResponseString(response)
+                .setEtag("\"v1\""));
+
         // Start mock server
         localHttpsServer = new LocalHttpsServer();
 
@@ -177,4 +211,258 @@ class StrictTransportSecurityTest {
         }});
         Lookup.getDefaultCache(DClass.IN).clearCache();
     }
+
+    @Test
+    void prefetch() throws Exception {
+        OffHeapPolicyCache cache = new OffHeapPolicyCache(100, 64 * 1024);
+        StrictTransportSecurity prefetchStrictTransportSecurity = new StrictTransportSecurity(new XBillDnsRecordClient(), new LocalHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort()), cache);
+
+        prefetchStrictTransportSecurity.prefetch(Arrays.asList("john@mimecast.com", "jane@mimecast.com", "mimecast.net"));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!cache.getByDomain("mimecast.com").isPresent() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(prefetchStrictTransportSecurity.getPolicy("mimecast.com").get().isCached());
+    }
+
+    @Test
+    void prefetchInFlight() throws Exception {
+        MemoryMetrics metrics = new MemoryMetrics();
+        List<Runnable> queued = new ArrayList<>();
+        StrictTransportSecurity prefetchStrictTransportSecurity = new StrictTransportSecurity(new XBillDnsRecordClient(), new LocalHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort()))
+                .setMetrics(metrics)
+                .setPrefetchExecutor(queued::add);
+
+        // Deduplicated while in flight.
+        prefetchStrictTransportSecurity.prefetch(Arrays.asList("mimecast.com", "john@mimecast.com"));
+        prefetchStrictTransportSecurity.prefetch(Collections.singletonList("MIMECAST.com"));
+        assertEquals(1, queued.size());
+
+        queued.get(0).run();
+        prefetchStrictTransportSecurity.prefetch(Collections.singletonList("mimecast.com"));
+        assertEquals(2, queued.size());
+
+        // Dropped when rejected.
+        prefetchStrictTransportSecurity.setPrefetchExecutor(runnable -> {
+            throw new RejectedExecutionException("Full");
+        });
+        prefetchStrictTransportSecurity.prefetch(Collections.singletonList("mimecast.uk"));
+        prefetchStrictTransportSecurity.prefetch(Collections.singletonList("mimecast.uk"));
+        assertEquals(2, metrics.getCount(Counter.PREFETCH_DROP));
+    }
+
+    @Test
+    void prefetchAdmission() throws Exception {
+        MemoryMetrics metrics = new MemoryMetrics();
+        List<Runnable> queued = new ArrayList<>();
+        Queue<Runnable> onPathQueued = new ConcurrentLinkedQueue<>();
+        OffHeapPolicyCache cache = new OffHeapPolicyCache(100, 64 * 1024);
+        StrictTransportSecurity prefetchStrictTransportSecurity = new StrictTransportSecurity(new XBillDnsRecordClient(), new LocalHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort()), cache)
+                .setMetrics(metrics)
+                .setPrefetchExecutor(queued::add)
+                .setPrefetchBudget(1);
+
+        // Queued while idle, dropped on start as an on-path lookup now fills the budget.
+        prefetchStrictTransportSecurity.prefetch(Collections.singletonList("mimecast.com"));
+        assertEquals(1, queued.size());
+
+        CompletableFuture<Optional<StsPolicy>> future = prefetchStrictTransportSecurity.getPolicyAsync("mimecast.com", null, onPathQueued::add);
+        assertEquals(1, prefetchStrictTransportSecurity.getOnPath());
+
+        queued.get(0).run();
+        assertEquals(1, metrics.getCount(Counter.PREFETCH_DROP));
+        assertFalse(cache.getByDomain("mimecast.com").isPresent());
+
+        // Dropped on submit while the budget is full.
+        prefetchStrictTransportSecurity.prefetch(Collections.singletonList("mimecast.com"));
+        assertEquals(1, queued.size());
+        assertEquals(2, metrics.getCount(Counter.PREFETCH_DROP));
+
+        // On-path lookup done.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!future.isDone() && System.currentTimeMillis() < deadline) {
+            Runnable runnable = onPathQueued.poll();
+            if (runnable != null) {
+                runnable.run();
+            }
+        }
+        assertTrue(future.get().isPresent());
+        assertEquals(0, prefetchStrictTransportSecurity.getOnPath());
+
+        // Spare capacity so the prefetch runs.
+        prefetchStrictTransportSecurity.prefetch(Collections.singletonList("mimecast.com"));
+        queued.get(1).run();
+        assertEquals(2, metrics.getCount(Counter.PREFETCH_DROP));
+    }
+
+    @Test
+    void preconnect() throws Exception {
+        List<String> preconnected = new ArrayList<>();
+        List<String> closed = new ArrayList<>();
+        HttpsPolicyClient httpsPolicyClient = new LocalHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort()) {
+            @Override
+            public Closeable preconnect(String domain) {
+                preconnected.add(domain);
+                Closeable closeable = super.preconnect(domain);
+                return () -> {
+                    closed.add(domain);
+                    closeable.close();
+                };
+            }
+        };
+
+        OffHeapPolicyCache cache = new OffHeapPolicyCache(100, 64 * 1024);
+        StrictTransportSecurity preconnectStrictTransportSecurity = new StrictTransportSecurity(new XBillDnsRecordClient(), httpsPolicyClient, cache)
+                .setPreconnect(true);
+
+        // Fetch reuses pre-connect.
+        int connections = localHttpsServer.getConnections();
+        assertFalse(preconnectStrictTransportSecurity.getPolicy("mimecast.com").get().isCached());
+        assertEquals(Collections.singletonList("mimecast.com"), preconnected);
+        assertTrue(closed.isEmpty());
+        assertEquals(connections + 1, localHttpsServer.getConnections());
+
+        // Cached domain is not pre-connected.
+        assertTrue(preconnectStrictTransportSecurity.getPolicy("mimecast.com").get().isCached());
+        assertEquals(1, preconnected.size());
+
+        // Pre-connect dropped without record.
+        assertThrows(NoRecordException.class, () -> preconnectStrictTransportSecurity.getPolicy("mimecast.net"));
+        assertEquals(Collections.singletonList("mimecast.net"), closed);
+
+        // Invalid domains are not pre-connected.
+        assertThrows(ValidatorException.class, () -> preconnectStrictTransportSecurity.getPolicy("mimecast"));
+        assertEquals(2, preconnected.size());
+    }
+
+    @Test
+    void notModified() throws Exception {
+        StsPolicy expired = new StsPolicy(response +
+                "fetch_time: 1\r\n" +
+                "domain: mimecast.ie\r\n" +
+                "record_id: 19840507T234501\r\n" +
+                "etag: " + Base64.getEncoder().encodeToString("\"v1\"".getBytes(StandardCharsets.UTF_8)) + "\r\n").make();
+        assertTrue(expired.isExpired());
+
+        // Serve the expired policy until a fresh one is put.
+        OffHeapPolicyCache cache = new OffHeapPolicyCache(100, 64 * 1024) {
+            @Override
+            protected StsPolicy lookup(String domain) {
+                StsPolicy policy = super.lookup(domain);
+                return policy == null && domain.equals("mimecast.ie") ? expired : policy;
+            }
+        };
+
+        MemoryMetrics metrics = new MemoryMetrics();
+        StrictTransportSecurity conditionalStrictTransportSecurity = new StrictTransportSecurity(new XBillDnsRecordClient(), new LocalHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort()), cache)
+                .setMetrics(metrics);
+
+        StsPolicy policy = conditionalStrictTransportSecurity.getPolicy("mimecast.ie").get();
+        assertSame(expired, policy);
+        assertFalse(policy.isExpired());
+        assertFalse(policy.isCached());
+        assertEquals("\"v1\"", policy.getEtag());
+        assertEquals(1, metrics.getCount(Counter.CACHE_EXPIRED));
+        assertEquals(1, metrics.getCount(Counter.POLICY_NOT_MODIFIED));
+        assertEquals(0, metrics.getHistogram(Stage.POLICY_PARSE).getCount());
+
+        // Refreshed policy cached.
+        policy = conditionalStrictTransportSecurity.getPolicy("mimecast.ie").get();
+        assertTrue(policy.isCached());
+        assertFalse(policy.isExpired());
+        assertEquals("\"v1\"", policy.getEtag());
+    }
+
+    @Test
+    void metrics() throws Exception {
+        MemoryMetrics metrics = new MemoryMetrics();
+        StrictTransportSecurity metricsStrictTransportSecurity = new StrictTransportSecurity(new XBillDnsRecordClient(), new LocalHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort()))
+                .setMetrics(metrics);
+
+        metricsStrictTransportSecurity.getPolicy("mimecast.com");
+        assertThrows(NoRecordException.class, () -> metricsStrictTransportSecurity.getPolicy("mimecast.net"));
+        assertThrows(ValidatorException.class, () -> metricsStrictTransportSecurity.getPolicy("mimecast"));
+
+        assertEquals(1, metrics.getCount(Counter.LOOKUP_SUCCESS));
+        assertEquals(1, metrics.getCount(Counter.RECORD_NOT_FOUND));
+        assertEquals(1, metrics.getCount(Counter.DOMAIN_INVALID));
+        assertEquals(3, metrics.getHistogram(Stage.LOOKUP).getCount());
+        assertEquals(2, metrics.getHistogram(Stage.DNS_STS).getCount());
+        assertEquals(1, metrics.getHistogram(Stage.HTTPS_FETCH).getCount());
+        assertEquals(1, metrics.getHistogram(Stage.POLICY_PARSE).getCount());
+        assertEquals(1, metrics.getHistogram(Stage.DNS_RPT).getCount());
+    }
+
+    @Test
+    void metricsInvalid() throws Exception {
+        MemoryMetrics metrics = new MemoryMetrics();
+        StrictTransportSecurity metricsStrictTransportSecurity = new StrictTransportSecurity(new XBillDnsRecordClient(), new LocalHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort()))
+                .setMetrics(metrics);
+
+        // Not found.
+        assertThrows(BadPolicyException.class, () -> metricsStrictTransportSecurity.getPolicy("mimecast.org"));
+        assertEquals(1, metrics.getCount(Counter.POLICY_INVALID));
+        assertEquals(1, metrics.getCount(Counter.POLICY_INVALID_RESPONSE));
+        assertEquals(0, metrics.getCount(Counter.POLICY_INVALID_MX));
+
+        // No MX and mode none, LF only is a warning by default.
+        assertThrows(BadPolicyException.class, () -> metricsStrictTransportSecurity.getPolicy("mimecast.si"));
+        assertEquals(2, metrics.getCount(Counter.POLICY_INVALID));
+        assertEquals(1, metrics.getCount(Counter.POLICY_INVALID_RESPONSE));
+        assertEquals(0, metrics.getCount(Counter.POLICY_INVALID_EOL));
+        assertEquals(1, metrics.getCount(Counter.POLICY_INVALID_MODE));
+        assertEquals(1, metrics.getCount(Counter.POLICY_INVALID_MX));
+        assertEquals(0, metrics.getCount(Counter.POLICY_INVALID_MAX_AGE));
+        assertEquals(0, metrics.getCount(Counter.POLICY_INVALID_OTHER));
+    }
+
+    @Test
+    void trace() throws Exception {
+        StrictTransportSecurity traceStrictTransportSecurity = new StrictTransportSecurity(new XBillDnsRecordClient(), new LocalHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort()));
+
+        LookupTrace trace = new LookupTrace("mimecast.com");
+        traceStrictTransportSecurity.getPolicy("mimecast.com", null, trace);
+
+        assertNotNull(trace.getEntry(Phase.DNS_STS));
+        assertNotNull(trace.getEntry(Phase.HTTPS_FETCH));
+        assertNotNull(trace.getEntry(Phase.TTFB));
+        assertNotNull(trace.getEntry(Phase.BODY));
+        assertNotNull(trace.getEntry(Phase.PARSE));
+        assertNotNull(trace.getEntry(Phase.DNS_RPT));
+        assertNotNull(trace.getEntry(Phase.CONNECT));
+    }
+
+    @Test
+    void async() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (LocalCacheServer server = new LocalCacheServer();
+             RemotePolicyCache cache = new RemotePolicyCache("127.0.0.1", server.getPort())) {
+            StrictTransportSecurity asyncStrictTransportSecurity = new StrictTransportSecurity(new XBillDnsRecordClient(), new LocalHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort()), cache);
+
+            StsPolicy policy = asyncStrictTransportSecurity.getPolicyAsync("mimecast.com", null, executor).get().get();
+            assertEquals(response, policy.getPolicy());
+            assertFalse(policy.isCached());
+
+            // Put is pipelined ahead of the next lookup.
+            policy = asyncStrictTransportSecurity.getPolicyAsync("mimecast.com", null, executor).get().get();
+            assertTrue(policy.isCached());
+            assertEquals(1, server.getMap().size());
+
+            // Blocking lookup waits for the same cache.
+            assertTrue(asyncStrictTransportSecurity.getPolicy("mimecast.com").get().isCached());
+
+            CompletionException exception = assertThrows(CompletionException.class, () -> asyncStrictTransportSecurity.getPolicyAsync("mimecast", null, executor).join());
+            assertInstanceOf(ValidatorException.class, exception.getCause());
+
+            // Cache outage is a miss.
+            server.close();
+            policy = asyncStrictTransportSecurity.getPolicyAsync("mimecast.com", null, executor).get().get();
+            assertEquals(response, policy.getPolicy());
+            assertFalse(policy.isCached());
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
@@ -841,4 +841,38 @@ class StsPolicyTest {
                 "mx: *.mimecast.com\r\n" +
                 "max_age: 604800\r\n").make());
     }
+
+    @Test
+    void validators() {
+        StsRecord record = new StsRecord("mimecast.com", "\"v=STSv1; id=19840507T234501;\"");
+
+        HttpsResponseMock httpsResponse = new HttpsResponseMock()
+                .setSuccessful(true)
+                .setCode(200)
+                .setMessage("OK")
+                .setHandshake(true)
+                .setPeerCertificates(new ArrayList<>())
+                .putHeader("Content-Type", "text/plain")
+                .putHeader("ETag", "W/\"19840507:1\"")
+                .putHeader("Last-Modified", "Mon, 07 May 1984 23:45:01 GMT")
+                .setBody("version: STSv1\r\n" +
+                        "mode: enforce\r\n" +
+                        "mx: *.mimecast.com\r\n" +
+                        "max_age: 604800\r\n");
+
+        StsPolicy policy = new StsPolicy(record, httpsResponse).make();
+        assertEquals("W/\"19840507:1\"", policy.getEtag());
+        assertEquals("Mon, 07 May 1984 23:45:01 GMT", policy.getLastModified());
+
+        StsPolicy cached = new StsPolicy(policy.asString()).make();
+        assertTrue(cached.isValid());
+        assertEquals("W/\"19840507:1\"", cached.getEtag());
+        assertEquals("Mon, 07 May 1984 23:45:01 GMT", cached.getLastModified());
+
+        long fetchTime = cached.getFetchTime();
+        cached.setCached(true);
+        assertSame(cached, cached.refresh());
+        assertFalse(cached.isCached());
+        assertTrue(cached.getFetchTime() >= fetchTime);
+    }
 }
@@ -0,0 +1,202 @@
+package com.mimecast.mtasts.cache;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.client.HttpsResponseMock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SuppressWarnings("OptionalGetWithoutIsPresent")
+class FilePolicyCacheTest {
+
+    @TempDir
+    Path dir;
+
+    private static StsPolicy policy(String domain, String id) {
+        StsRecord record = new StsRecord(domain, "v=STSv1; id=" + id + ";");
+
+        String policyBody = "version: STSv1\r\n" +
+                "mode: enforce\r\n" +
+                "mx: *.mimecast.com\r\n" +
+                "mx: *.mimecast.org\r\n" +
+                "max_age: 86400\r\n";
+
+        return new StsPolicy(record, new HttpsResponseMock()
+                .setSuccessful(true)
+                .setCode(200)
+                .setMessage("OK")
+                .setHandshake(true)
+                .setPeerCertificates(new ArrayList<>())
+                .putHeader("Content-Type", "text/plain")
+                .putHeader("ETag", "\"v1\"")
+                .setBody(policyBody)).make();
+    }
+
+    private static StsPolicy expired(StsPolicy policy, long ago) {
+        long fetchTime = Instant.now().getEpochSecond() - policy.getMaxAge() - ago;
+        return PolicyCodec.decode(policy.asString().replaceFirst("fetch_time: \\d+", "fetch_time: " + fetchTime));
+    }
+
+    @Test
+    void persisted() {
+        Path file = dir.resolve("policies.log");
+
+        FilePolicyCache cache = new FilePolicyCache(file);
+        cache.put(policy("mimecast.com", "1"));
+        cache.put(policy("mimecast.org", "2"));
+        cache.close();
+
+        FilePolicyCache reopened = new FilePolicyCache(file);
+        assertEquals(2, reopened.size());
+
+        StsPolicy policy = reopened.getByRecord(new StsRecord("mimecast.com", "v=STSv1; id=1;")).get();
+        assertTrue(policy.isValid());
+        assertTrue(policy.isCached());
+        assertEquals(2, policy.getMxMasks().size());
+        assertEquals("1", policy.getRecord().getId());
+        assertEquals(604800, policy.getMaxAge());
+        reopened.close();
+    }
+
+    @Test
+    void removed() {
+        Path file = dir.resolve("policies.log");
+
+        FilePolicyCache cache = new FilePolicyCache(file);
+        cache.put(policy("mimecast.com", "1"));
+
+        // ID mismatch removes.
+        assertFalse(cache.getByRecord(new StsRecord("mimecast.com", "v=STSv1; id=2;")).isPresent());
+
+        FilePolicyCache reopened = new FilePolicyCache(file);
+        assertEquals(0, reopened.size());
+        cache.close();
+        reopened.close();
+    }
+
+    @Test
+    void compacted() throws IOException {
+        Path file = dir.resolve("policies.log");
+
+        FilePolicyCache cache = new FilePolicyCache(file);
+        for (int i = 0; i < 50; i++) {
+            cache.put(policy("mimecast.com", String.valueOf(i)));
+        }
+        long size = Files.size(file);
+
+        cache.compact();
+        assertTrue(Files.size(file) < size / 10);
+
+        assertTrue(cache.getByRecord(new StsRecord("mimecast.com", "v=STSv1; id=49;")).isPresent());
+        cache.close();
+    }
+
+    @Test
+    void compactedBackground() throws Exception {
+        Path file = dir.resolve("policies.log");
+
+        FilePolicyCache cache = new FilePolicyCache(file);
+        Thread[] threads = new Thread[2];
+        for (int t = 0; t < threads.length; t++) {
+            int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 3000; i++) {
+                    cache.put(policy("mimecast" + (i % 5 * 2 + offset) + ".com", String.valueOf(i)));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Compacted in the background well below the records written.
+        long record = policy("mimecast0.com", "0").asString().length();
+        assertTrue(Files.size(file) < 6000 * record / 2);
+
+        // Nothing written during compaction was lost.
+        FilePolicyCache reopened = new FilePolicyCache(file);
+        assertEquals(10, reopened.size());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(reopened.getByRecord(new StsRecord("mimecast" + i + ".com", "v=STSv1; id=" + (2995 + i / 2) + ";")).isPresent());
+        }
+        cache.close();
+        reopened.close();
+    }
+
+    @Test
+    void expired() {
+        Path file = dir.resolve("policies.log");
+
+        // Stored while fresh, expired since.
+        StsPolicy expired = expired(policy("mimecast.com", "1"), 3600);
+        assertTrue(expired.isExpired());
+
+        FilePolicyCache cache = new FilePolicyCache(file);
+        cache.add(expired);
+        cache.close();
+
+        // Returned for conditional refetch.
+        FilePolicyCache reopened = new FilePolicyCache(file);
+        StsPolicy policy = reopened.getByRecord(new StsRecord("mimecast.com", "v=STSv1; id=1;")).get();
+        assertTrue(policy.isValid());
+        assertTrue(policy.isExpired());
+        assertEquals("\"v1\"", policy.getEtag());
+        reopened.close();
+    }
+
+    @Test
+    void retention() {
+        Path file = dir.resolve("policies.log");
+
+        FilePolicyCache cache = new FilePolicyCache(file).setRetention(86400);
+        cache.add(expired(policy("mimecast.com", "1"), 3600));
+        cache.add(expired(policy("mimecast.org", "2"), 2 * 86400));
+        cache.put(policy("mimecast.net", "3"));
+        cache.close();
+
+        // Expired past retention dropped on compaction.
+        FilePolicyCache reopened = new FilePolicyCache(file);
+        assertEquals(2, reopened.size());
+        assertTrue(reopened.getByRecord(new StsRecord("mimecast.com", "v=STSv1; id=1;")).isPresent());
+        assertFalse(reopened.getByRecord(new StsRecord("mimecast.org", "v=STSv1; id=2;")).isPresent());
+
+        // No retention drops all expired.
+        reopened.setRetention(0).compact();
+        assertEquals(1, reopened.size());
+        reopened.close();
+
+        assertEquals(1, new FilePolicyCache(file).size());
+    }
+
+    @Test
+    void truncated() throws IOException {
+        Path file = dir.resolve("policies.log");
+
+        FilePolicyCache cache = new FilePolicyCache(file);
+        cache.put(policy("mimecast.com", "1"));
+        cache.close();
+        long size = Files.size(file);
+
+        // Simulate torn write.
+        Files.write(file, new byte[]{1, 0, 0, 0, 12, 'm'}, StandardOpenOption.APPEND);
+
+        FilePolicyCache reopened = new FilePolicyCache(file);
+        assertEquals(1, reopened.size());
+        assertEquals(size, Files.size(file));
+
+        reopened.put(policy("mimecast.org", "2"));
+        reopened.close();
+
+        assertEquals(2, new FilePolicyCache(file).size());
+    }
+}
@@ -0,0 +1,234 @@
+package com.mimecast.mtasts.cache;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.client.HttpsResponseMock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SuppressWarnings("OptionalGetWithoutIsPresent")
+class MappedPolicyCacheTest {
+
+    @TempDir
+    Path dir;
+
+    private static StsPolicy policy(String domain, String id) {
+        StsRecord record = new StsRecord(domain, "v=STSv1; id=" + id + ";");
+
+        String policyBody = "version: STSv1\r\n" +
+                "mode: testing\r\n" +
+                "mx: *.mimecast.com\r\n" +
+                "mx: mx.mimecast.org\r\n" +
+                "max_age: 86400\r\n";
+
+        return new StsPolicy(record, new HttpsResponseMock()
+                .setSuccessful(true)
+                .setCode(200)
+                .setMessage("OK")
+                .setHandshake(true)
+                .setPeerCertificates(new ArrayList<>())
+                .putHeader("Content-Type", "text/plain")
+                .setBody(policyBody)).make();
+    }
+
+    @Test
+    void valid() throws IOException {
+        StsPolicy policy = policy("mimecast.com", "19840507T234501");
+
+        try (MappedPolicyCache cache = new MappedPolicyCache(dir.resolve("cache.map"), 64, 512)) {
+            cache.put(policy);
+
+            StsPolicy cachePolicy = cache.getByRecord(new StsRecord("mimecast.com", "v=STSv1; id=19840507T234501;")).get();
+            assertTrue(cachePolicy.isCached());
+            assertEquals("testing", cachePolicy.getMode().toString());
+            assertEquals(policy.getFetchTime(), cachePolicy.getFetchTime());
+            assertEquals(policy.getMxMasks(), cachePolicy.getMxMasks());
+        }
+    }
+
+    @Test
+    void shared() throws IOException {
+        Path file = dir.resolve("cache.map");
+
+        try (MappedPolicyCache first = new MappedPolicyCache(file, 64, 512);
+             MappedPolicyCache second = new MappedPolicyCache(file, 1, 1)) {
+            first.put(policy("mimecast.com", "1"));
+            assertEquals("1", second.getByDomain("mimecast.com").get().getRecord().getId());
+
+            // Invalidation from the other mapping.
+            assertFalse(second.getByRecord(new StsRecord("mimecast.com", "v=STSv1; id=2;")).isPresent());
+            assertFalse(first.getByDomain("mimecast.com").isPresent());
+
+            second.put(policy("mimecast.com", "2"));
+            assertEquals("2", first.getByDomain("mimecast.com").get().getRecord().getId());
+            assertEquals(1, first.size());
+        }
+    }
+
+    @Test
+    void persistent() throws IOException {
+        Path file = dir.resolve("cache.map");
+
+        try (MappedPolicyCache cache = new MappedPolicyCache(file, 64, 512)) {
+            cache.put(policy("mimecast.com", "1"));
+        }
+
+        try (MappedPolicyCache cache = new MappedPolicyCache(file, 64, 512)) {
+            assertTrue(cache.getByDomain("mimecast.com").isPresent());
+        }
+    }
+
+    @Test
+    void notCacheFile() throws IOException {
+        Path file = dir.resolve("cache.map");
+        Files.write(file, new byte[128]);
+
+        assertThrows(IOException.class, () -> new MappedPolicyCache(file, 64, 512));
+    }
+
+    @Test
+    void tooLarge() throws IOException {
+        try (MappedPolicyCache cache = new MappedPolicyCache(dir.resolve("cache.map"), 64, 64)) {
+            cache.put(policy("mimecast.com", "1"));
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test
+    void full() throws IOException {
+        try (MappedPolicyCache cache = new MappedPolicyCache(dir.resolve("cache.map"), 32, 512)) {
+            for (int i = 0; i < 200; i++) {
+                cache.put(policy("mimecast" + i + ".com", String.valueOf(i)));
+            }
+
+            assertEquals(32, cache.size());
+            assertEquals("199", cache.getByDomain("mimecast199.com").get().getRecord().getId());
+        }
+    }
+
+    @Test
+    void concurrent() throws Exception {
+        Path file = dir.resolve("cache.map");
+
+        try (MappedPolicyCache writer = new MappedPolicyCache(file, 64, 512);
+             MappedPolicyCache reader = new MappedPolicyCache(file, 64, 512)) {
+            writer.put(policy("mimecast.com", "0"));
+
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicInteger errors = new AtomicInteger();
+            AtomicInteger hits = new AtomicInteger();
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 2; t++) {
+                int offset = t;
+                threads.add(new Thread(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        writer.put(policy("mimecast.com", String.valueOf(i * 2 + offset)));
+                    }
+                }));
+            }
+            for (int t = 0; t < 2; t++) {
+                threads.add(new Thread(() -> {
+                    while (!done.get()) {
+                        // A slot busy for too long reads as a miss but never as a torn policy.
+                        Optional<StsPolicy> optional = reader.getByDomain("mimecast.com");
+                        if (optional.isPresent()) {
+                            hits.incrementAndGet();
+                            if (!optional.get().isValid() || !optional.get().getRecord().getId().matches("\\d+")) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    }
+                }));
+            }
+
+            threads.forEach(Thread::start);
+            threads.get(0).join();
+            threads.get(1).join();
+            done.set(true);
+            threads.get(2).join();
+            threads.get(3).join();
+
+            assertEquals(0, errors.get());
+            assertTrue(hits.get() > 0);
+            assertEquals(1, reader.size());
+            String id = reader.getByDomain("mimecast.com").get().getRecord().getId();
+            assertTrue(id.equals("3998") || id.equals("3999"));
+        }
+    }
+
+    @Test
+    void abandoned() throws IOException {
+        Path file = dir.resolve("cache.map");
+
+        try (MappedPolicyCache cache = new MappedPolicyCache(file, 64, 512);
+             FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            cache.put(policy("mimecast.com", "1"));
+
+            // Leave the slot mid-write as a crashed writer would.
+            long offset = 64 + Long.remainderUnsigned(PolicyCodec.hash(PolicyCodec.bytes("mimecast.com")), 64) * 512;
+            ByteBuffer seq = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+            channel.read(seq, offset);
+            seq.flip();
+            long odd = seq.getLong() + 1;
+            seq.clear();
+            seq.putLong(odd).flip();
+            channel.write(seq, offset);
+
+            // Reads fail fast.
+            long start = System.nanoTime();
+            assertFalse(cache.getByDomain("mimecast.com").isPresent());
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+
+            // Next writer takes over.
+            cache.put(policy("mimecast.com", "2"));
+            assertEquals("2", cache.getByDomain("mimecast.com").get().getRecord().getId());
+        }
+    }
+
+    @Test
+    void reopened() throws IOException {
+        try (MappedPolicyCache cache = new MappedPolicyCache(dir.resolve("cache.map"), 64, 512)) {
+            cache.put(policy("mimecast.com", "1"));
+
+            // Channel closed as an interrupted lock would.
+            cache.getChannel().close();
+
+            cache.put(policy("mimecast.com", "2"));
+            assertEquals("2", cache.getByDomain("mimecast.com").get().getRecord().getId());
+            assertTrue(cache.getChannel().isOpen());
+        }
+    }
+
+    @Test
+    void corrupt() throws IOException {
+        Path file = dir.resolve("cache.map");
+
+        try (MappedPolicyCache cache = new MappedPolicyCache(file, 64, 512);
+             FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            cache.put(policy("mimecast.com", "1"));
+
+            // Record ID length past the slot as another process might leave it.
+            long offset = 64 + Long.remainderUnsigned(PolicyCodec.hash(PolicyCodec.bytes("mimecast.com")), 64) * 512;
+            channel.write(ByteBuffer.allocate(2).putShort((short) 0xFFFF).flip(), offset + 20 + 2 + "mimecast.com".length());
+
+            assertFalse(cache.getByDomain("mimecast.com").isPresent());
+            assertFalse(cache.getByRecord(new StsRecord("mimecast.com", "v=STSv1; id=1;")).isPresent());
+        }
+    }
+}
@@ -4,6 +4,8 @@ import com.mimecast.mtasts.assets.StsPolicy;
 import com.mimecast.mtasts.assets.StsRecord;
 import com.mimecast.mtasts.client.HttpsResponse;
 import com.mimecast.mtasts.client.HttpsResponseMock;
+import com.mimecast.mtasts.metrics.Counter;
+import com.mimecast.mtasts.metrics.MemoryMetrics;
 import org.junit.jupiter.api.Test;
 
 import java.util.ArrayList;
@@ -100,7 +102,9 @@ class MemoryPolicyCacheTest {
 
     @Test
     void many() {
+        MemoryMetrics metrics = new MemoryMetrics();
         MemoryPolicyCache cache = new MemoryPolicyCache();
+        cache.setMetrics(metrics);
 
         StsRecord record;
         String policyBody;
@@ -130,6 +134,7 @@ class MemoryPolicyCacheTest {
         }
 
         assertEquals(100, cache.size());
+        assertTrue(metrics.getCount(Counter.CACHE_EVICT) >= 5);
     }
 
     @Test
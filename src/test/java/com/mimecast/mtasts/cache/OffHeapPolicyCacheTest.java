@@ -0,0 +1,154 @@
+package com.mimecast.mtasts.cache;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.client.HttpsResponseMock;
+import com.mimecast.mtasts.metrics.Counter;
+import com.mimecast.mtasts.metrics.MemoryMetrics;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SuppressWarnings("OptionalGetWithoutIsPresent")
+class OffHeapPolicyCacheTest {
+
+    private static StsPolicy policy(String domain, String id) {
+        StsRecord record = new StsRecord(domain, "v=STSv1; id=" + id + ";");
+
+        String policyBody = "version: STSv1\r\n" +
+                "mode: testing\r\n" +
+                "mx: *.mimecast.com\r\n" +
+                "mx: mx.mimecast.org\r\n" +
+                "max_age: 86400\r\n";
+
+        return new StsPolicy(record, new HttpsResponseMock()
+                .setSuccessful(true)
+                .setCode(200)
+                .setMessage("OK")
+                .setHandshake(true)
+                .setPeerCertificates(new ArrayList<>())
+                .putHeader("Content-Type", "text/plain")
+                .setBody(policyBody)).make();
+    }
+
+    @Test
+    void valid() {
+        StsPolicy policy = policy("mimecast.com", "19840507T234501");
+
+        OffHeapPolicyCache cache = new OffHeapPolicyCache(100, 64 * 1024);
+        cache.put(policy);
+
+        StsPolicy cachePolicy = cache.getByRecord(new StsRecord("mimecast.com", "v=STSv1; id=19840507T234501;")).get();
+
+        assertTrue(cachePolicy.isValid());
+        assertTrue(cachePolicy.isCached());
+        assertEquals("STSv1", cachePolicy.getVersion());
+        assertEquals("testing", cachePolicy.getMode().toString());
+        assertEquals(86400, cachePolicy.getMaxAge());
+        assertEquals(policy.getFetchTime(), cachePolicy.getFetchTime());
+        assertEquals(policy.getMxMasks(), cachePolicy.getMxMasks());
+        assertEquals("19840507T234501", cachePolicy.getRecord().getId());
+    }
+
+    @Test
+    void validators() {
+        StsRecord record = new StsRecord("mimecast.com", "v=STSv1; id=19840507T234501;");
+        OffHeapPolicyCache cache = new OffHeapPolicyCache(100, 64 * 1024);
+        cache.put(new StsPolicy(record, new HttpsResponseMock()
+                .setSuccessful(true)
+                .setCode(200)
+                .setMessage("OK")
+                .setHandshake(true)
+                .setPeerCertificates(new ArrayList<>())
+                .putHeader("Content-Type", "text/plain")
+                .putHeader("ETag", "\"v1\"")
+                .setBody("version: STSv1\r\n" +
+                        "mode: testing\r\n" +
+                        "mx: *.mimecast.com\r\n" +
+                        "max_age: 86400\r\n")).make());
+
+        StsPolicy cachePolicy = cache.getByRecord(record).get();
+        assertEquals("\"v1\"", cachePolicy.getEtag());
+        assertNull(cachePolicy.getLastModified());
+        assertNull(cache.getByDomain("mimecast.com").get().getLastModified());
+    }
+
+    @Test
+    void invalid() {
+        OffHeapPolicyCache cache = new OffHeapPolicyCache(100, 64 * 1024);
+        cache.put(policy("mimecast.com", "1"));
+
+        assertFalse(cache.getByRecord(new StsRecord("mimecast.com", "v=STSv1; id=2;")).isPresent());
+        assertEquals(0, cache.size());
+        assertFalse(cache.getByDomain("mimecast.com").isPresent());
+        assertFalse(cache.getByDomain("mimecast.org").isPresent());
+    }
+
+    @Test
+    void replace() {
+        OffHeapPolicyCache cache = new OffHeapPolicyCache(100, 64 * 1024);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(policy("mimecast.com", String.valueOf(i)));
+        }
+
+        assertEquals(1, cache.size());
+        assertEquals("999", cache.getByDomain("mimecast.com").get().getRecord().getId());
+    }
+
+    @Test
+    void many() {
+        MemoryMetrics metrics = new MemoryMetrics();
+        OffHeapPolicyCache cache = new OffHeapPolicyCache(100, 64 * 1024);
+        cache.setMetrics(metrics);
+
+        for (int i = 0; i < 105; i++) {
+            cache.put(policy("mimecast" + i + ".com", String.valueOf(i)));
+        }
+
+        assertTrue(cache.size() <= 100);
+        assertEquals(105, cache.size() + metrics.getCount(Counter.CACHE_EVICT));
+        assertFalse(cache.getByDomain("mimecast0.com").isPresent());
+        assertTrue(cache.getByDomain("mimecast104.com").isPresent());
+        assertTrue(cache.getByDomain("mimecast50.com").isPresent());
+    }
+
+    @Test
+    void arena() {
+        OffHeapPolicyCache cache = new OffHeapPolicyCache(1000, 2048);
+
+        for (int i = 0; i < 100; i++) {
+            cache.put(policy("mimecast" + i + ".com", String.valueOf(i)));
+        }
+
+        assertTrue(cache.getUsedBytes() <= 2048);
+        assertTrue(cache.size() > 0 && cache.size() < 100);
+        assertTrue(cache.getByDomain("mimecast99.com").isPresent());
+        assertFalse(cache.getByDomain("mimecast0.com").isPresent());
+    }
+
+    @Test
+    void decoded() {
+        OffHeapPolicyCache cache = new OffHeapPolicyCache(1000, 2048);
+        cache.put(policy("mimecast.com", "1"));
+
+        // Parsed once.
+        StsPolicy policy = cache.getByDomain("mimecast.com").get();
+        assertSame(policy, cache.getByDomain("mimecast.com").get());
+
+        // Replaced entry is parsed again.
+        cache.put(policy("mimecast.com", "2"));
+        assertEquals("2", cache.getByDomain("mimecast.com").get().getRecord().getId());
+
+        // Offsets reused by compaction never return another domain.
+        for (int i = 0; i < 100; i++) {
+            cache.put(policy("mimecast" + i + ".com", String.valueOf(i)));
+            for (int j = Math.max(0, i - 3); j <= i; j++) {
+                String id = String.valueOf(j);
+                cache.getByDomain("mimecast" + j + ".com").ifPresent(cached -> assertEquals(id, cached.getRecord().getId()));
+            }
+        }
+        assertEquals("99", cache.getByDomain("mimecast99.com").get().getRecord().getId());
+    }
+}
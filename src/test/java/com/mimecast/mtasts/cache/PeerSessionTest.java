@@ -0,0 +1,126 @@
+package com.mimecast.mtasts.cache;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeerSessionTest {
+
+    private static final byte[] secret = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+
+    private final List<Socket> sockets = new ArrayList<>();
+
+    private static final class End {
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private PeerSession session;
+
+        private End(Socket socket) throws IOException {
+            this.in = new DataInputStream(socket.getInputStream());
+            this.out = new DataOutputStream(socket.getOutputStream());
+        }
+    }
+
+    private End[] pair(byte[] a, byte[] b) throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            sockets.add(new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()));
+            sockets.add(serverSocket.accept());
+        }
+        End left = new End(sockets.get(sockets.size() - 2));
+        End right = new End(sockets.get(sockets.size() - 1));
+
+        CompletableFuture<PeerSession> future = CompletableFuture.supplyAsync(() -> {
+            try {
+                return PeerSession.open(right.in, right.out, b);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        left.session = PeerSession.open(left.in, left.out, a);
+        right.session = future.get();
+
+        return new End[]{left, right};
+    }
+
+    @AfterEach
+    void after() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    @Test
+    void roundTrip() throws Exception {
+        End[] ends = pair(secret, secret);
+
+        ends[0].session.write(ends[0].out, "one".getBytes(StandardCharsets.UTF_8));
+        ends[0].session.write(ends[0].out, "two".getBytes(StandardCharsets.UTF_8));
+        ends[1].session.write(ends[1].out, "three".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("one", new String(ends[1].session.read(ends[1].in, 1024), StandardCharsets.UTF_8));
+        assertEquals("two", new String(ends[1].session.read(ends[1].in, 1024), StandardCharsets.UTF_8));
+        assertEquals("three", new String(ends[0].session.read(ends[0].in, 1024), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void wrongSecret() throws Exception {
+        End[] ends = pair(secret, "fedcba9876543210fedcba9876543210".getBytes(StandardCharsets.UTF_8));
+
+        ends[0].session.write(ends[0].out, "one".getBytes(StandardCharsets.UTF_8));
+        assertThrows(IOException.class, () -> ends[1].session.read(ends[1].in, 1024));
+    }
+
+    @Test
+    void replay() throws Exception {
+        End[] ends = pair(secret, secret);
+
+        // Capture a frame and send it twice.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ends[0].session.write(new DataOutputStream(bytes), "one".getBytes(StandardCharsets.UTF_8));
+        ends[0].out.write(bytes.toByteArray());
+        ends[0].out.write(bytes.toByteArray());
+        ends[0].out.flush();
+
+        assertEquals("one", new String(ends[1].session.read(ends[1].in, 1024), StandardCharsets.UTF_8));
+        assertThrows(IOException.class, () -> ends[1].session.read(ends[1].in, 1024));
+    }
+
+    @Test
+    void tampered() throws Exception {
+        End[] ends = pair(secret, secret);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ends[0].session.write(new DataOutputStream(bytes), "one".getBytes(StandardCharsets.UTF_8));
+        byte[] frame = bytes.toByteArray();
+        frame[4] ^= 1;
+        ends[0].out.write(frame);
+        ends[0].out.flush();
+
+        assertThrows(IOException.class, () -> ends[1].session.read(ends[1].in, 1024));
+    }
+
+    @Test
+    void length() throws Exception {
+        End[] ends = pair(secret, secret);
+
+        ends[0].session.write(ends[0].out, new byte[2048]);
+        assertThrows(IOException.class, () -> ends[1].session.read(ends[1].in, 1024));
+    }
+
+    @Test
+    void checkSecret() {
+        assertThrows(IllegalArgumentException.class, () -> PeerSession.checkSecret(null));
+        assertThrows(IllegalArgumentException.class, () -> PeerSession.checkSecret(new byte[15]));
+        assertArrayEquals(secret, PeerSession.checkSecret(secret));
+    }
+}
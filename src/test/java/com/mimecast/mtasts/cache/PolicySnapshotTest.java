@@ -0,0 +1,166 @@
+package com.mimecast.mtasts.cache;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.client.HttpsResponseMock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SuppressWarnings("OptionalGetWithoutIsPresent")
+class PolicySnapshotTest {
+
+    @TempDir
+    Path dir;
+
+    private static StsPolicy policy(String domain, String id, String mx) {
+        StsRecord record = new StsRecord(domain, "v=STSv1; id=" + id + ";");
+
+        String policyBody = "version: STSv1\r\n" +
+                "mode: enforce\r\n" +
+                "mx: " + mx + "\r\n" +
+                "mx: mx.mimecast.org\r\n" +
+                "max_age: 604800\r\n";
+
+        return new StsPolicy(record, new HttpsResponseMock()
+                .setSuccessful(true)
+                .setCode(200)
+                .setMessage("OK")
+                .setHandshake(true)
+                .setPeerCertificates(new ArrayList<>())
+                .putHeader("Content-Type", "text/plain")
+                .setBody(policyBody)).make();
+    }
+
+    @Test
+    void valid() throws IOException {
+        Path file = dir.resolve("policies.snap");
+        List<StsPolicy> policies = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            policies.add(policy("domain" + i + ".com", String.valueOf(i), "*.mimecast.com"));
+        }
+        assertEquals(100, PolicySnapshot.write(file, policies));
+
+        try (PolicySnapshot snapshot = new PolicySnapshot(file)) {
+            assertEquals(100, snapshot.size());
+            for (int i = 0; i < 100; i++) {
+                StsPolicy policy = snapshot.getByRecord(new StsRecord("domain" + i + ".com", "v=STSv1; id=" + i + ";")).get();
+                assertTrue(policy.isCached());
+                assertEquals("enforce", policy.getMode().toString());
+                assertEquals(604800, policy.getMaxAge());
+                assertEquals(policies.get(i).getFetchTime(), policy.getFetchTime());
+                assertEquals(Arrays.asList("*.mimecast.com", "mx.mimecast.org"), policy.getMxMasks());
+                assertTrue(policy.matchMx("eu.mimecast.com"));
+                assertFalse(policy.matchMx("mx.mimecast.net"));
+            }
+
+            assertFalse(snapshot.getByDomain("domain100.com").isPresent());
+            assertFalse(snapshot.getByDomain("a.com").isPresent());
+            assertFalse(snapshot.getByDomain("z.com").isPresent());
+        }
+    }
+
+    @Test
+    void decoded() throws IOException {
+        Path file = dir.resolve("policies.snap");
+        PolicySnapshot.write(file, Arrays.asList(policy("mimecast.com", "1", "*.mimecast.com"), policy("mimecast.org", "2", "*.mimecast.com")));
+
+        try (PolicySnapshot snapshot = new PolicySnapshot(file)) {
+            StsPolicy policy = snapshot.getByDomain("mimecast.com").get();
+            assertSame(policy, snapshot.getByDomain("mimecast.com").get());
+            assertEquals("2", snapshot.getByDomain("mimecast.org").get().getRecord().getId());
+            assertEquals("1", snapshot.getByDomain("mimecast.com").get().getRecord().getId());
+        }
+    }
+
+    @Test
+    void deduplicated() throws IOException {
+        Path same = dir.resolve("same.snap");
+        Path different = dir.resolve("different.snap");
+
+        List<StsPolicy> samePolicies = new ArrayList<>();
+        List<StsPolicy> differentPolicies = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            samePolicies.add(policy("domain" + i + ".com", "1", "*.mimecast.com"));
+            differentPolicies.add(policy("domain" + i + ".com", "1", "mx" + i + ".mimecast.com"));
+        }
+
+        PolicySnapshot.write(same, samePolicies);
+        PolicySnapshot.write(different, differentPolicies);
+        assertTrue(Files.size(same) + 49 * 20 < Files.size(different));
+    }
+
+    @Test
+    void skipped() throws IOException {
+        Path file = dir.resolve("policies.snap");
+
+        StsPolicy expired = new StsPolicy("version: STSv1\r\n" +
+                "mode: enforce\r\n" +
+                "mx: *.mimecast.com\r\n" +
+                "max_age: 604800\r\n" +
+                "fetch_time: 1000\r\n" +
+                "domain: expired.com\r\n" +
+                "record_id: 1\r\n").make();
+
+        StsPolicy older = policy("mimecast.com", "1", "*.mimecast.com");
+        StsPolicy newer = new StsPolicy(policy("mimecast.com", "2", "*.mimecast.com").asString().replace("fetch_time: " + older.getFetchTime(), "fetch_time: " + (older.getFetchTime() + 1))).make();
+
+        assertEquals(1, PolicySnapshot.write(file, Arrays.asList(newer, expired, older, null)));
+
+        try (PolicySnapshot snapshot = new PolicySnapshot(file)) {
+            assertEquals("2", snapshot.getByDomain("mimecast.com").get().getRecord().getId());
+            assertFalse(snapshot.getByDomain("expired.com").isPresent());
+        }
+    }
+
+    @Test
+    void readOnly() throws IOException {
+        Path file = dir.resolve("policies.snap");
+        PolicySnapshot.write(file, List.of(policy("mimecast.com", "1", "*.mimecast.com")));
+
+        try (PolicySnapshot snapshot = new PolicySnapshot(file)) {
+            snapshot.put(policy("mimecast.org", "1", "*.mimecast.com"));
+            assertFalse(snapshot.getByDomain("mimecast.org").isPresent());
+
+            // Stale record misses but leaves the entry.
+            assertFalse(snapshot.getByRecord(new StsRecord("mimecast.com", "v=STSv1; id=2;")).isPresent());
+            assertTrue(snapshot.getByDomain("mimecast.com").isPresent());
+        }
+    }
+
+    @Test
+    void tiered() throws IOException {
+        Path file = dir.resolve("policies.snap");
+        PolicySnapshot.write(file, List.of(policy("mimecast.com", "1", "*.mimecast.com")));
+
+        try (PolicySnapshot snapshot = new PolicySnapshot(file)) {
+            OffHeapPolicyCache l1 = new OffHeapPolicyCache(64, 64 * 1024);
+            TieredPolicyCache cache = new TieredPolicyCache(l1, snapshot);
+
+            assertTrue(cache.getByRecord(new StsRecord("mimecast.com", "v=STSv1; id=1;")).isPresent());
+            assertEquals(1, l1.size());
+
+            cache.put(policy("mimecast.org", "1", "*.mimecast.com"));
+            assertTrue(cache.getByDomain("mimecast.org").isPresent());
+            assertEquals(1, snapshot.size());
+        }
+    }
+
+    @Test
+    void invalid() throws IOException {
+        Path file = dir.resolve("policies.snap");
+        Files.write(file, new byte[64]);
+        assertThrows(IOException.class, () -> new PolicySnapshot(file));
+
+        Files.write(file, new byte[0]);
+        assertThrows(IOException.class, () -> new PolicySnapshot(file));
+    }
+}
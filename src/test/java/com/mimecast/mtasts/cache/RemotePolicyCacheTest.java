@@ -0,0 +1,207 @@
+package com.mimecast.mtasts.cache;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.client.HttpsResponseMock;
+import com.mimecast.mtasts.metrics.Counter;
+import com.mimecast.mtasts.metrics.MemoryMetrics;
+import com.mimecast.mtasts.util.LocalCacheServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SuppressWarnings("OptionalGetWithoutIsPresent")
+class RemotePolicyCacheTest {
+
+    private LocalCacheServer server;
+    private RemotePolicyCache cache;
+
+    private static StsPolicy policy(String domain, String id) {
+        StsRecord record = new StsRecord(domain, "v=STSv1; id=" + id + ";");
+
+        String policyBody = "version: STSv1\r\n" +
+                "mode: enforce\r\n" +
+                "mx: *.mimecast.com\r\n" +
+                "max_age: 86400\r\n";
+
+        return new StsPolicy(record, new HttpsResponseMock()
+                .setSuccessful(true)
+                .setCode(200)
+                .setMessage("OK")
+                .setHandshake(true)
+                .setPeerCertificates(new ArrayList<>())
+                .putHeader("Content-Type", "text/plain")
+                .setBody(policyBody)).make();
+    }
+
+    @BeforeEach
+    void before() throws Exception {
+        server = new LocalCacheServer();
+        cache = new RemotePolicyCache("127.0.0.1", server.getPort());
+    }
+
+    @AfterEach
+    void after() {
+        cache.close();
+        server.close();
+    }
+
+    @Test
+    void valid() throws Exception {
+        StsPolicy policy = policy("mimecast.com", "19840507T234501");
+        cache.put(policy).toCompletableFuture().get();
+
+        StsPolicy cachePolicy = cache.getByRecord(new StsRecord("mimecast.com", "v=STSv1; id=19840507T234501;")).toCompletableFuture().get().get();
+
+        assertTrue(cachePolicy.isValid());
+        assertTrue(cachePolicy.isCached());
+        assertEquals("enforce", cachePolicy.getMode().toString());
+        assertEquals(policy.getFetchTime(), cachePolicy.getFetchTime());
+        assertEquals(policy.getMxMasks(), cachePolicy.getMxMasks());
+        assertTrue(cache.getByDomain("mimecast.com").toCompletableFuture().get().isPresent());
+    }
+
+    @Test
+    void expired() throws Exception {
+        StsPolicy expired = PolicyCodec.decode(policy("mimecast.com", "1").asString().replaceFirst("fetch_time: \\d+", "fetch_time: 1"));
+        cache.add(expired).toCompletableFuture().get();
+
+        // Returned for conditional refetch.
+        StsPolicy cachePolicy = cache.getByRecord(new StsRecord("mimecast.com", "v=STSv1; id=1;")).toCompletableFuture().get().get();
+        assertTrue(cachePolicy.isValid());
+        assertTrue(cachePolicy.isExpired());
+        assertEquals(1, cachePolicy.getFetchTime());
+    }
+
+    @Test
+    void invalid() throws Exception {
+        MemoryMetrics metrics = new MemoryMetrics();
+        cache.setMetrics(metrics);
+        cache.put(policy("mimecast.com", "1")).toCompletableFuture().get();
+
+        assertFalse(cache.getByRecord(new StsRecord("mimecast.com", "v=STSv1; id=2;")).toCompletableFuture().get().isPresent());
+        assertFalse(cache.getByDomain("mimecast.org").toCompletableFuture().get().isPresent());
+        assertEquals(1, metrics.getCount(Counter.CACHE_INVALIDATE));
+        assertEquals(2, metrics.getCount(Counter.CACHE_MISS));
+
+        // Removal is sent before the next request on the same connection.
+        assertFalse(cache.getByDomain("mimecast.com").toCompletableFuture().get().isPresent());
+    }
+
+    @Test
+    void bulk() throws Exception {
+        List<StsPolicy> policies = new ArrayList<>();
+        List<String> domains = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            policies.add(policy("mimecast" + i + ".com", String.valueOf(i)));
+            domains.add("mimecast" + i + ".com");
+        }
+        domains.add("mimecast.net");
+
+        cache.putAll(policies).toCompletableFuture().get();
+        assertEquals(50, server.getMap().size());
+
+        Map<String, StsPolicy> map = cache.getAll(domains).toCompletableFuture().get();
+        assertEquals(50, map.size());
+        assertEquals("7", map.get("mimecast7.com").getRecord().getId());
+        assertTrue(map.get("mimecast7.com").isCached());
+    }
+
+    @Test
+    void pipelined() throws Exception {
+        cache.put(policy("mimecast.com", "1")).toCompletableFuture().get();
+
+        List<CompletableFuture<Optional<StsPolicy>>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            futures.add(cache.getByDomain(i % 2 == 0 ? "mimecast.com" : "mimecast.net").toCompletableFuture());
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(i % 2 == 0, futures.get(i).get().isPresent());
+        }
+    }
+
+    @Test
+    void reconnect() throws Exception {
+        cache.put(policy("mimecast.com", "1")).toCompletableFuture().get();
+
+        server.disconnect();
+        Thread.sleep(100);
+
+        assertTrue(cache.getByDomain("mimecast.com").toCompletableFuture().get().isPresent());
+    }
+
+    @Test
+    void connectOffCaller() {
+        // Non-routable address so connecting blocks until the timeout.
+        RemotePolicyCache blackhole = new RemotePolicyCache("10.255.255.1", 7070).setTimeout(500);
+
+        long start = System.nanoTime();
+        CompletableFuture<Optional<StsPolicy>> future = blackhole.getByDomain("mimecast.com").toCompletableFuture();
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(250));
+
+        assertThrows(ExecutionException.class, future::get);
+        blackhole.close();
+    }
+
+    @Test
+    void unavailable() {
+        server.close();
+        cache.close();
+
+        assertThrows(ExecutionException.class, () -> cache.getByDomain("mimecast.com").toCompletableFuture().get());
+    }
+
+    @Test
+    void closed() throws Exception {
+        cache.put(policy("mimecast.com", "1")).toCompletableFuture().get();
+        cache.close();
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> cache.getByDomain("mimecast.com").toCompletableFuture().get());
+        assertEquals("Cache closed", e.getCause().getMessage());
+        assertNull(cache.getSocket());
+    }
+
+    @Test
+    void staleDisconnect() throws Exception {
+        // Server reading requests without answering so they stay pending.
+        try (ServerSocket serverSocket = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())) {
+            RemotePolicyCache silent = new RemotePolicyCache("127.0.0.1", serverSocket.getLocalPort()).setTimeout(5000);
+
+            CompletableFuture<Optional<StsPolicy>> first = silent.getByDomain("mimecast.com").toCompletableFuture();
+            Socket firstPeer = serverSocket.accept();
+            new DataInputStream(firstPeer.getInputStream()).readInt();
+            Socket firstSocket = silent.getSocket();
+
+            // First connection dropped fails its own request.
+            silent.disconnect(firstSocket, new IOException("Connection reset"));
+            assertThrows(ExecutionException.class, first::get);
+
+            CompletableFuture<Optional<StsPolicy>> second = silent.getByDomain("mimecast.net").toCompletableFuture();
+            Socket secondPeer = serverSocket.accept();
+            new DataInputStream(secondPeer.getInputStream()).readInt();
+
+            // Late failure of the first connection leaves the second alone.
+            silent.disconnect(firstSocket, new IOException("Connection reset"));
+            assertFalse(second.isDone());
+            assertNotSame(firstSocket, silent.getSocket());
+
+            silent.close();
+            assertThrows(ExecutionException.class, second::get);
+            firstPeer.close();
+            secondPeer.close();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.mimecast.mtasts.cache;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.client.HttpsResponseMock;
+import com.mimecast.mtasts.metrics.Counter;
+import com.mimecast.mtasts.metrics.MemoryMetrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SuppressWarnings("OptionalGetWithoutIsPresent")
+class ReplicatedPolicyCacheTest {
+
+    private static final byte[] secret = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+
+    private final List<ReplicatedPolicyCache> nodes = new ArrayList<>();
+
+    private static StsPolicy policy(String domain, String id) {
+        return policy(domain, id, 0);
+    }
+
+    private static StsPolicy policy(String domain, String id, long fetchTime) {
+        StsRecord record = new StsRecord(domain, "v=STSv1; id=" + id + ";");
+
+        String policyBody = "version: STSv1\r\n" +
+                "mode: enforce\r\n" +
+                "mx: *.mimecast.com\r\n" +
+                "max_age: 86400\r\n";
+
+        StsPolicy policy = new StsPolicy(record, new HttpsResponseMock()
+                .setSuccessful(true)
+                .setCode(200)
+                .setMessage("OK")
+                .setHandshake(true)
+                .setPeerCertificates(new ArrayList<>())
+                .putHeader("Content-Type", "text/plain")
+                .setBody(policyBody)).make();
+        return fetchTime == 0 ? policy : PolicyCodec.decode(policy.asString().replaceFirst("fetch_time: \\d+", "fetch_time: " + fetchTime));
+    }
+
+    private static byte[] frame(String domain, String value) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeInt(1);
+            out.writeByte(1);
+            RemotePolicyCache.writeString(out, domain);
+            RemotePolicyCache.writeString(out, value);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for replication");
+            Thread.sleep(10);
+        }
+    }
+
+    @BeforeEach
+    void before() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            nodes.add(new ReplicatedPolicyCache(new OffHeapPolicyCache(100, 64 * 1024), new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), secret)
+                    .setLinger(5));
+        }
+
+        for (ReplicatedPolicyCache node : nodes) {
+            for (ReplicatedPolicyCache peer : nodes) {
+                if (peer != node) {
+                    node.addPeer("127.0.0.1", peer.getPort());
+                }
+            }
+        }
+    }
+
+    @AfterEach
+    void after() {
+        nodes.forEach(ReplicatedPolicyCache::close);
+    }
+
+    @Test
+    void put() throws Exception {
+        MemoryMetrics metrics = new MemoryMetrics();
+        nodes.get(1).setMetrics(metrics);
+
+        nodes.get(0).put(policy("mimecast.com", "1"));
+
+        await(() -> nodes.get(1).size() == 1 && nodes.get(2).size() == 1);
+        StsPolicy policy = nodes.get(1).getByRecord(new StsRecord("mimecast.com", "v=STSv1; id=1;")).get();
+        assertTrue(policy.isCached());
+        assertEquals("enforce", policy.getMode().toString());
+        assertEquals(1, metrics.getCount(Counter.REPLICA_ACCEPT));
+        assertEquals(1, metrics.getCount(Counter.CACHE_HIT));
+    }
+
+    @Test
+    void batch() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            nodes.get(0).put(policy("mimecast" + i + ".com", String.valueOf(i)));
+        }
+
+        await(() -> nodes.get(1).size() == 50 && nodes.get(2).size() == 50);
+        assertEquals("42", nodes.get(2).getByDomain("mimecast42.com").get().getRecord().getId());
+    }
+
+    @Test
+    void invalidate() throws Exception {
+        nodes.get(0).put(policy("mimecast.com", "1"));
+        await(() -> nodes.get(1).size() == 1 && nodes.get(2).size() == 1);
+
+        // Record ID changed, seen first by node 2.
+        assertFalse(nodes.get(2).getByRecord(new StsRecord("mimecast.com", "v=STSv1; id=2;")).isPresent());
+
+        await(() -> nodes.get(0).size() == 0 && nodes.get(1).size() == 0);
+    }
+
+    @Test
+    void staleInvalidate() throws Exception {
+        // Node only sending to node 1.
+        ReplicatedPolicyCache node = new ReplicatedPolicyCache(new OffHeapPolicyCache(100, 64 * 1024), new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), secret)
+                .setLinger(5)
+                .addPeer("127.0.0.1", nodes.get(1).getPort());
+        nodes.add(node);
+
+        node.put(policy("mimecast.com", "1"));
+        await(() -> nodes.get(1).size() == 1);
+
+        // Node 1 moves on to ID 2 so the stale invalidation of ID 1 must not remove it.
+        nodes.get(1).put(policy("mimecast.com", "2"));
+        node.remove("mimecast.com");
+        node.put(policy("mimecast.org", "1"));
+        await(() -> nodes.get(1).size() == 2);
+
+        assertEquals("2", nodes.get(1).getByDomain("mimecast.com").get().getRecord().getId());
+    }
+
+    @Test
+    void staleOtherRecord() throws Exception {
+        long now = System.currentTimeMillis() / 1000;
+        nodes.get(1).put(policy("mimecast.com", "2", now));
+
+        // Older policy under another record ID must not replace the newer one.
+        nodes.get(0).put(policy("mimecast.com", "1", now - 3600));
+        nodes.get(0).put(policy("mimecast.org", "1"));
+        await(() -> nodes.get(1).size() == 2);
+
+        assertEquals("2", nodes.get(1).getByDomain("mimecast.com").get().getRecord().getId());
+    }
+
+    @Test
+    void reject() throws Exception {
+        MemoryMetrics metrics = new MemoryMetrics();
+        nodes.get(1).setMetrics(metrics);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes))) {
+            out.writeInt(2);
+            out.writeByte(1);
+            RemotePolicyCache.writeString(out, "mimecast.com");
+            RemotePolicyCache.writeString(out, "mode: enforce\r\n");
+            out.writeByte(1);
+            RemotePolicyCache.writeString(out, "mimecast.org");
+            RemotePolicyCache.writeString(out, policy("mimecast.com", "1").asString());
+        }
+
+        try (Socket socket = new Socket("127.0.0.1", nodes.get(1).getPort());
+             DataInputStream in = new DataInputStream(socket.getInputStream());
+             DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+            PeerSession.open(in, out, secret).write(out, bytes.toByteArray());
+
+            await(() -> metrics.getCount(Counter.REPLICA_REJECT) == 2);
+        }
+
+        assertEquals(0, nodes.get(1).size());
+    }
+
+    @Test
+    void unauthenticated() throws Exception {
+        byte[] other = "fedcba9876543210fedcba9876543210".getBytes(StandardCharsets.UTF_8);
+        byte[] frame = frame("mimecast.com", policy("mimecast.com", "1").asString());
+
+        // Wrong secret.
+        try (Socket socket = new Socket("127.0.0.1", nodes.get(1).getPort());
+             DataInputStream in = new DataInputStream(socket.getInputStream());
+             DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+            PeerSession.open(in, out, other).write(out, frame);
+            assertEquals(-1, in.read());
+        }
+
+        // No session.
+        try (Socket socket = new Socket("127.0.0.1", nodes.get(1).getPort());
+             DataInputStream in = new DataInputStream(socket.getInputStream());
+             DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+            out.write(new byte[16]);
+            out.writeInt(frame.length);
+            out.write(frame);
+            out.write(new byte[32]);
+            out.flush();
+            in.readFully(new byte[16]);
+            assertEquals(-1, in.read());
+        }
+
+        assertEquals(0, nodes.get(1).size());
+    }
+
+    @Test
+    void notPeer() throws Exception {
+        MemoryMetrics metrics = new MemoryMetrics();
+        ReplicatedPolicyCache node = new ReplicatedPolicyCache(new OffHeapPolicyCache(100, 64 * 1024), new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), secret)
+                .setMetrics(metrics);
+        nodes.add(node);
+
+        try (Socket socket = new Socket("127.0.0.1", node.getPort());
+             DataInputStream in = new DataInputStream(socket.getInputStream())) {
+            assertEquals(-1, in.read());
+        }
+
+        assertEquals(1, metrics.getCount(Counter.REPLICA_REJECT));
+    }
+
+    @Test
+    void secret() {
+        assertThrows(IllegalArgumentException.class, () -> new ReplicatedPolicyCache(new OffHeapPolicyCache(100, 64 * 1024), new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), new byte[8]));
+    }
+}
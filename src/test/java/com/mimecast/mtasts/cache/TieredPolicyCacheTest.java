@@ -0,0 +1,120 @@
+package com.mimecast.mtasts.cache;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.client.HttpsResponseMock;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SuppressWarnings("OptionalGetWithoutIsPresent")
+class TieredPolicyCacheTest {
+
+    private static StsPolicy policy(String domain, String id) {
+        StsRecord record = new StsRecord(domain, "v=STSv1; id=" + id + ";");
+
+        String policyBody = "version: STSv1\r\n" +
+                "mode: enforce\r\n" +
+                "mx: *.mimecast.com\r\n" +
+                "max_age: 86400\r\n";
+
+        return new StsPolicy(record, new HttpsResponseMock()
+                .setSuccessful(true)
+                .setCode(200)
+                .setMessage("OK")
+                .setHandshake(true)
+                .setPeerCertificates(new ArrayList<>())
+                .putHeader("Content-Type", "text/plain")
+                .setBody(policyBody)).make();
+    }
+
+    private static StsRecord record(String domain, String id) {
+        return new StsRecord(domain, "v=STSv1; id=" + id + ";");
+    }
+
+    @Test
+    void writeThrough() {
+        OffHeapPolicyCache l1 = new OffHeapPolicyCache(10, 4096);
+        OffHeapPolicyCache l2 = new OffHeapPolicyCache(100, 64 * 1024);
+        TieredPolicyCache cache = new TieredPolicyCache(l1, l2);
+
+        cache.put(policy("mimecast.com", "1"));
+
+        assertTrue(l1.getByRecord(record("mimecast.com", "1")).isPresent());
+        assertTrue(l2.getByRecord(record("mimecast.com", "1")).isPresent());
+        assertTrue(cache.getByRecord(record("mimecast.com", "1")).isPresent());
+    }
+
+    @Test
+    void promoteOnHit() {
+        OffHeapPolicyCache l1 = new OffHeapPolicyCache(10, 4096);
+        OffHeapPolicyCache l2 = new OffHeapPolicyCache(100, 64 * 1024);
+        TieredPolicyCache cache = new TieredPolicyCache(l1, l2).setWriteThrough(false);
+
+        cache.put(policy("mimecast.com", "1"));
+        assertEquals(0, l1.size());
+        assertEquals(1, l2.size());
+
+        assertTrue(cache.getByRecord(record("mimecast.com", "1")).get().isCached());
+        assertEquals(1, l1.size());
+    }
+
+    @Test
+    void noReadThrough() {
+        OffHeapPolicyCache l1 = new OffHeapPolicyCache(10, 4096);
+        OffHeapPolicyCache l2 = new OffHeapPolicyCache(100, 64 * 1024);
+        TieredPolicyCache cache = new TieredPolicyCache(l1, l2).setReadThrough(false);
+
+        l2.put(policy("mimecast.com", "1"));
+
+        assertFalse(cache.getByRecord(record("mimecast.com", "1")).isPresent());
+        assertFalse(cache.getByDomain("mimecast.com").isPresent());
+    }
+
+    @Test
+    void staleL1() {
+        OffHeapPolicyCache l1 = new OffHeapPolicyCache(10, 4096);
+        OffHeapPolicyCache l2 = new OffHeapPolicyCache(100, 64 * 1024);
+        TieredPolicyCache cache = new TieredPolicyCache(l1, l2);
+
+        l1.put(policy("mimecast.com", "1"));
+        l2.put(policy("mimecast.com", "2"));
+
+        // Stale L1 removed, fresh L2 promoted.
+        assertEquals("2", cache.getByRecord(record("mimecast.com", "2")).get().getRecord().getId());
+        assertEquals("2", l1.getByDomain("mimecast.com").get().getRecord().getId());
+    }
+
+    @Test
+    void staleBoth() {
+        OffHeapPolicyCache l1 = new OffHeapPolicyCache(10, 4096);
+        OffHeapPolicyCache l2 = new OffHeapPolicyCache(100, 64 * 1024);
+        TieredPolicyCache cache = new TieredPolicyCache(l1, l2);
+
+        cache.put(policy("mimecast.com", "1"));
+
+        assertFalse(cache.getByRecord(record("mimecast.com", "2")).isPresent());
+        assertEquals(0, l1.size());
+        assertEquals(0, l2.size());
+    }
+
+    @Test
+    void expiredL1() {
+        OffHeapPolicyCache l1 = new OffHeapPolicyCache(10, 4096);
+        OffHeapPolicyCache l2 = new OffHeapPolicyCache(100, 64 * 1024);
+        TieredPolicyCache cache = new TieredPolicyCache(l1, l2).setWriteThrough(false);
+
+        // Promoted earlier, expired since.
+        StsPolicy expired = PolicyCodec.decode(policy("mimecast.com", "1").asString().replaceFirst("fetch_time: \\d+", "fetch_time: 1"));
+        l1.add(expired);
+        assertTrue(cache.getByRecord(record("mimecast.com", "1")).get().isExpired());
+
+        // Refetched policy invalidates L1 and is promoted on the next hit.
+        cache.put(policy("mimecast.com", "1"));
+        assertEquals(0, l1.size());
+        assertFalse(cache.getByRecord(record("mimecast.com", "1")).get().isExpired());
+        assertFalse(l1.getByDomain("mimecast.com").get().isExpired());
+    }
+}
@@ -0,0 +1,172 @@
+package com.mimecast.mtasts.client;
+
+import com.mimecast.mtasts.assets.DnsRecord;
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.assets.StsReport;
+import com.mimecast.mtasts.util.LocalDnsResolver;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.net.Inet6Address;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SuppressWarnings("OptionalGetWithoutIsPresent")
+class AsyncDnsRecordClientTest {
+
+    private static final int BULK = 2000;
+
+    @BeforeAll
+    static void before() {
+        LocalDnsResolver.put("_mta-sts.mimecast.com", Type.TXT, Collections.singletonList("v=STSv1; id=19840507T234501;"));
+        LocalDnsResolver.put("_mta-sts.mimecast.us", Type.TXT, Collections.singletonList("id=19840507T234501;"));
+        LocalDnsResolver.put("_smtp._tls.mimecast.com", Type.TXT, Collections.singletonList("v=TLSRPTv1; rua=mailto:tlsrpt@mimecast.com"));
+        LocalDnsResolver.put("mimecast.com", Type.MX, Collections.singletonList("service-alpha-inbound-a.mimecast.com."));
+        LocalDnsResolver.put("mta-sts.mimecast.com", Type.A, Arrays.asList("127.0.0.1", "127.0.0.2"));
+        LocalDnsResolver.put("mta-sts.mimecast.org", Type.AAAA, Collections.singletonList("::1"));
+
+        // CNAME chain.
+        LocalDnsResolver.put("_mta-sts.mimecast.fr", Type.CNAME, Collections.singletonList("sts.mimecast.fr."));
+        LocalDnsResolver.put("sts.mimecast.fr", Type.CNAME, Collections.singletonList("sts.mimecast.com."));
+        LocalDnsResolver.put("sts.mimecast.com", Type.TXT, Collections.singletonList("v=STSv1; id=19840507T234502;"));
+
+        // CNAME loop.
+        LocalDnsResolver.put("_mta-sts.mimecast.es", Type.CNAME, Collections.singletonList("loop.mimecast.es."));
+        LocalDnsResolver.put("loop.mimecast.es", Type.CNAME, Collections.singletonList("_mta-sts.mimecast.es."));
+
+        // Truncated.
+        LocalDnsResolver.put("_mta-sts.mimecast.be", Type.TXT, Collections.singletonList("v=STSv1; id=19840507T234503;"));
+        LocalDnsResolver.putTruncated("_mta-sts.mimecast.be");
+
+        for (int i = 0; i < BULK; i++) {
+            LocalDnsResolver.put("_mta-sts.bulk" + i + ".mimecast.com", Type.TXT, Collections.singletonList("v=STSv1; id=" + i + ";"));
+        }
+    }
+
+    @Test
+    void getRecord() {
+        DnsRecordClient dnsRecordClient = new AsyncDnsRecordClient(new LocalDnsResolver());
+
+        assertEquals("v=STSv1; id=19840507T234501;", dnsRecordClient.getStsRecord("mimecast.com").get().toString());
+        assertFalse(dnsRecordClient.getStsRecord("mimecast.us").isPresent());
+        assertFalse(dnsRecordClient.getStsRecord("mimecast.net").isPresent());
+        assertFalse(dnsRecordClient.getStsRecord(".eu").isPresent());
+
+        StsReport report = dnsRecordClient.getRptRecord("mimecast.com").get();
+        assertEquals("TLSRPTv1", report.getVersion());
+
+        List<DnsRecord> mx = dnsRecordClient.getMxRecords("mimecast.com").get();
+        assertEquals(1, mx.size());
+    }
+
+    @Test
+    void getCname() {
+        Lookup.getDefaultCache(DClass.IN).clearCache();
+        AsyncDnsRecordClient dnsRecordClient = new AsyncDnsRecordClient(new LocalDnsResolver());
+
+        Optional<StsRecord> record = dnsRecordClient.getStsRecordAsync("mimecast.fr").toCompletableFuture().join();
+        assertEquals("v=STSv1; id=19840507T234502;", record.get().toString());
+        assertEquals("mimecast.fr", record.get().getDomain());
+
+        // From cache.
+        assertTrue(dnsRecordClient.getStsRecord("mimecast.fr").isPresent());
+
+        // Loop.
+        assertFalse(dnsRecordClient.getStsRecord("mimecast.es").isPresent());
+    }
+
+    @Test
+    void getAddress() {
+        Lookup.getDefaultCache(DClass.IN).clearCache();
+        AsyncDnsRecordClient dnsRecordClient = new AsyncDnsRecordClient(new LocalDnsResolver());
+
+        assertEquals("127.0.0.1", dnsRecordClient.getAddressAsync("mta-sts.mimecast.com").toCompletableFuture().join().get().getHostAddress());
+
+        // AAAA if no A.
+        assertTrue(dnsRecordClient.getAddressAsync("mta-sts.mimecast.org").toCompletableFuture().join().get() instanceof Inet6Address);
+
+        assertFalse(dnsRecordClient.getAddressAsync("mta-sts.mimecast.xyz").toCompletableFuture().join().isPresent());
+    }
+
+    @Test
+    void getNxdomain() throws Exception {
+        Lookup.getDefaultCache(DClass.IN).clearCache();
+        Name zone = Name.fromString("mimecast.nx.");
+        SOARecord soa = new SOARecord(zone, DClass.IN, 300L, Name.fromString("ns.mimecast.nx."),
+                Name.fromString("hostmaster.mimecast.nx."), 1L, 3600L, 600L, 86400L, 300L);
+
+        AtomicInteger queries = new AtomicInteger();
+        LocalDnsResolver resolver = new LocalDnsResolver() {
+            @Override
+            public Message send(Message question) {
+                queries.incrementAndGet();
+                Message answer = new Message(question.getHeader().getID());
+                answer.addRecord(question.getQuestion(), Section.QUESTION);
+                answer.addRecord(soa, Section.AUTHORITY);
+                answer.getHeader().setRcode(Rcode.NXDOMAIN);
+                return answer;
+            }
+        };
+
+        AsyncDnsRecordClient dnsRecordClient = new AsyncDnsRecordClient(resolver);
+        assertFalse(dnsRecordClient.getStsRecord("mimecast.nx").isPresent());
+        assertEquals(1, queries.get());
+
+        // Negatively cached.
+        assertFalse(dnsRecordClient.getStsRecord("mimecast.nx").isPresent());
+        assertEquals(1, queries.get());
+    }
+
+    @Test
+    void getTruncated() {
+        Lookup.getDefaultCache(DClass.IN).clearCache();
+        assertFalse(new AsyncDnsRecordClient(new LocalDnsResolver()).getStsRecord("mimecast.be").isPresent());
+
+        LocalDnsResolver tcpResolver = new LocalDnsResolver();
+        tcpResolver.setTCP(true);
+
+        AsyncDnsRecordClient dnsRecordClient = new AsyncDnsRecordClient(new LocalDnsResolver())
+                .setTcpResolver(tcpResolver);
+        assertEquals("v=STSv1; id=19840507T234503;", dnsRecordClient.getStsRecord("mimecast.be").get().toString());
+    }
+
+    @Test
+    void getConcurrent() throws Exception {
+        Lookup.getDefaultCache(DClass.IN).clearCache();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            AsyncDnsRecordClient dnsRecordClient = new AsyncDnsRecordClient(new LocalDnsResolver())
+                    .setExecutor(executor);
+
+            List<CompletableFuture<Optional<StsRecord>>> futures = new ArrayList<>();
+            for (int i = 0; i < BULK; i++) {
+                futures.add(dnsRecordClient.getStsRecordAsync("bulk" + i + ".mimecast.com").toCompletableFuture());
+            }
+
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+            for (int i = 0; i < BULK; i++) {
+                assertEquals("v=STSv1; id=" + i + ";", futures.get(i).get().get().toString());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
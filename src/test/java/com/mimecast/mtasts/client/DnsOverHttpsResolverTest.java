@@ -0,0 +1,137 @@
+package com.mimecast.mtasts.client;
+
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.trust.PermissiveTrustManager;
+import com.mimecast.mtasts.util.ChainTrustManager;
+import com.mimecast.mtasts.util.LocalDnsResolver;
+import com.mimecast.mtasts.util.LocalHttpsServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SuppressWarnings("OptionalGetWithoutIsPresent")
+class DnsOverHttpsResolverTest {
+
+    private static final int BULK = 500;
+
+    private static LocalHttpsServer localHttpsServer;
+
+    private static Resolver defaultResolver;
+
+    @BeforeAll
+    static void before() throws Exception {
+        LocalDnsResolver.put("_mta-sts.mimecast.pt", Type.TXT, Collections.singletonList("v=STSv1; id=19840507T234501;"));
+        for (int i = 0; i < BULK; i++) {
+            LocalDnsResolver.put("_mta-sts.doh" + i + ".mimecast.com", Type.TXT, Collections.singletonList("v=STSv1; id=" + i + ";"));
+        }
+
+        LocalHttpsServer.putDoh("dns-query");
+        localHttpsServer = new LocalHttpsServer();
+
+        defaultResolver = Lookup.getDefaultResolver();
+        Lookup.getDefaultCache(DClass.IN).clearCache();
+    }
+
+    @AfterAll
+    static void after() {
+        Lookup.setDefaultResolver(defaultResolver);
+        localHttpsServer.stop();
+    }
+
+    private static DnsOverHttpsResolver resolver(String path) {
+        return new DnsOverHttpsResolver(URI.create("https://127.0.0.1:" + localHttpsServer.getPort() + "/" + path),
+                new ChainTrustManager(new PermissiveTrustManager()));
+    }
+
+    @Test
+    void send() throws Exception {
+        Message query = Message.newQuery(org.xbill.DNS.Record.newRecord(Name.fromString("_mta-sts.mimecast.pt."), Type.TXT, DClass.IN));
+        Message response = resolver("dns-query").send(query);
+
+        assertEquals(query.getHeader().getID(), response.getHeader().getID());
+        assertEquals(Rcode.NOERROR, response.getRcode());
+        assertEquals("\"v=STSv1; id=19840507T234501;\"", response.getSection(Section.ANSWER).get(0).rdataToString());
+
+        // Not a DoH path.
+        assertThrows(IOException.class, () -> resolver("dns-none").send(query));
+    }
+
+    @Test
+    void invalidUri() throws Exception {
+        // Rejected by the request builder before anything is sent.
+        DnsOverHttpsResolver resolver = new DnsOverHttpsResolver(URI.create("ftp://127.0.0.1/dns-query"),
+                new ChainTrustManager(new PermissiveTrustManager())).setMaxConcurrent(1);
+        Message query = Message.newQuery(org.xbill.DNS.Record.newRecord(Name.fromString("_mta-sts.mimecast.pt."), Type.TXT, DClass.IN));
+
+        // Slot released so the second query is not stuck behind the first.
+        for (int i = 0; i < 2; i++) {
+            CompletableFuture<Message> future = resolver.sendAsync(query).toCompletableFuture();
+            ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IllegalArgumentException.class, e.getCause());
+        }
+    }
+
+    @Test
+    void queuedTimeout() throws Exception {
+        // Accepts connections but never answers.
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            DnsOverHttpsResolver resolver = new DnsOverHttpsResolver(URI.create("https://127.0.0.1:" + serverSocket.getLocalPort() + "/dns-query"),
+                    new ChainTrustManager(new PermissiveTrustManager())).setMaxConcurrent(1);
+            resolver.setTimeout(Duration.ofSeconds(1));
+            Message query = Message.newQuery(org.xbill.DNS.Record.newRecord(Name.fromString("_mta-sts.mimecast.pt."), Type.TXT, DClass.IN));
+
+            long start = System.nanoTime();
+            CompletableFuture<Message> first = resolver.sendAsync(query).toCompletableFuture();
+            CompletableFuture<Message> second = resolver.sendAsync(query).toCompletableFuture();
+
+            // The second waits for the slot within its own timeout instead of starting a new one.
+            assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS));
+            assertThrows(ExecutionException.class, () -> second.get(5, TimeUnit.SECONDS));
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1800));
+
+            assertThrows(SocketTimeoutException.class, () -> resolver.send(query));
+        }
+    }
+
+    @Test
+    void lookup() {
+        Lookup.setDefaultResolver(resolver("dns-query"));
+
+        DnsRecordClient dnsRecordClient = new XBillDnsRecordClient();
+        assertEquals("v=STSv1; id=19840507T234501;", dnsRecordClient.getStsRecord("mimecast.pt").get().toString());
+        assertFalse(dnsRecordClient.getStsRecord("mimecast.none").isPresent());
+    }
+
+    @Test
+    void concurrent() throws Exception {
+        // The stand-in only speaks HTTP/1.1 so bound the connections opened.
+        AsyncDnsRecordClient dnsRecordClient = new AsyncDnsRecordClient(resolver("dns-query").setMaxConcurrent(16));
+
+        List<CompletableFuture<Optional<StsRecord>>> futures = new ArrayList<>();
+        for (int i = 0; i < BULK; i++) {
+            futures.add(dnsRecordClient.getStsRecordAsync("doh" + i + ".mimecast.com").toCompletableFuture());
+        }
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        for (int i = 0; i < BULK; i++) {
+            assertEquals("v=STSv1; id=" + i + ";", futures.get(i).get().get().toString());
+        }
+    }
+}
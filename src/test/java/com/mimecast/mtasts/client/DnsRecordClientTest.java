@@ -4,6 +4,7 @@ import com.mimecast.mtasts.assets.StsRecord;
 import com.mimecast.mtasts.util.LocalDnsResolver;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.xbill.DNS.DClass;
 import org.xbill.DNS.Lookup;
 import org.xbill.DNS.Type;
 
@@ -12,6 +13,7 @@ import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @SuppressWarnings("OptionalGetWithoutIsPresent")
 class DnsRecordClientTest {
@@ -29,6 +31,9 @@ class DnsRecordClientTest {
         LocalDnsResolver.put("_mta-sts.mimecast.us", Type.TXT, new ArrayList<String>() {{
             add("id=19840507T234501;");
         }});
+        LocalDnsResolver.put("_mta-sts.mimecast.it", Type.TXT, new ArrayList<String>() {{
+            add("v=STSv1; id=19840507T234501;");
+        }});
     }
 
     @Test
@@ -70,4 +75,30 @@ class DnsRecordClientTest {
 
         assertFalse(optional.isPresent());
     }
+
+    @Test
+    void getRetried() {
+        // DNS Java queries twice per lookup on SERVFAIL.
+
+        // Failure without retries.
+        LocalDnsResolver.putFailure("_mta-sts.mimecast.it", 2);
+        assertFalse(new XBillDnsRecordClient().getStsRecord("mimecast.it").isPresent());
+
+        // Recovered with retries within the default time limit.
+        LocalDnsResolver.putFailure("_mta-sts.mimecast.it", 2);
+        XBillDnsRecordClient dnsRecordClient = new XBillDnsRecordClient()
+                .setRetryPolicy(new RetryPolicy().setMaxRetries(2).setBaseDelay(10));
+        assertTrue(dnsRecordClient.getStsRecord("mimecast.it").isPresent());
+
+        // Retries exhausted.
+        Lookup.getDefaultCache(DClass.IN).clearCache();
+        LocalDnsResolver.putFailure("_mta-sts.mimecast.it", 6);
+        assertFalse(dnsRecordClient.getStsRecord("mimecast.it").isPresent());
+
+        // Caller deadline leaves no time for a retry.
+        Lookup.getDefaultCache(DClass.IN).clearCache();
+        LocalDnsResolver.putFailure("_mta-sts.mimecast.it", 2);
+        assertFalse(dnsRecordClient.getStsRecord("mimecast.it", System.nanoTime()).isPresent());
+        LocalDnsResolver.putFailure("_mta-sts.mimecast.it", 0);
+    }
 }
@@ -0,0 +1,186 @@
+package com.mimecast.mtasts.client;
+
+import okhttp3.Dns;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.UnknownHostException;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HappyEyeballsDnsTest {
+
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    private final List<SocketChannel> slowChannels = new CopyOnWriteArrayList<>();
+
+    private final Dns delegate = hostname -> {
+        switch (hostname) {
+            case "dual.mimecast.com":
+                return Arrays.asList(InetAddress.getByName("2001:db8::1"), InetAddress.getByName("2001:db8::2"),
+                        InetAddress.getByName("192.0.2.1"), InetAddress.getByName("192.0.2.2"));
+            case "ipv4.mimecast.com":
+                return Collections.singletonList(InetAddress.getByName("192.0.2.1"));
+            default:
+                throw new UnknownHostException(hostname);
+        }
+    };
+
+    /**
+     * Happy eyeballs with scripted connect outcomes.
+     */
+    private HappyEyeballsDns dns(Set<String> slow, Set<String> refused) {
+        return new HappyEyeballsDns(delegate) {
+            @Override
+            protected void connect(SocketChannel channel, InetSocketAddress address, int timeout) throws IOException {
+                attempts.incrementAndGet();
+                String host = address.getAddress().getHostAddress();
+                if (refused.contains(host)) {
+                    throw new ConnectException("Connection refused");
+                }
+                if (slow.contains(host)) {
+                    // Hangs until timed out or aborted by closing the channel.
+                    slowChannels.add(channel);
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+                    while (channel.isOpen() && System.nanoTime() < deadline) {
+                        try {
+                            TimeUnit.MILLISECONDS.sleep(5);
+                        } catch (InterruptedException e) {
+                            throw new IOException("Interrupted");
+                        }
+                    }
+                    throw channel.isOpen() ? new ConnectException("Connect timed out") : new AsynchronousCloseException();
+                }
+            }
+        }.setAttemptDelay(100).setTimeout(2000);
+    }
+
+    @Test
+    void ipv6First() throws UnknownHostException {
+        List<InetAddress> addresses = dns(Collections.emptySet(), Collections.emptySet()).lookup("dual.mimecast.com");
+
+        assertEquals("2001:db8:0:0:0:0:0:1", addresses.get(0).getHostAddress());
+        assertEquals(4, addresses.size());
+        assertTrue(addresses.get(1) instanceof Inet6Address);
+    }
+
+    @Test
+    void brokenIpv6() throws UnknownHostException {
+        Set<String> slow = ConcurrentHashMap.newKeySet();
+        slow.addAll(Arrays.asList("2001:db8:0:0:0:0:0:1", "2001:db8:0:0:0:0:0:2"));
+        HappyEyeballsDns dns = dns(slow, Collections.emptySet());
+
+        long start = System.nanoTime();
+        List<InetAddress> addresses = dns.lookup("dual.mimecast.com");
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals("192.0.2.1", addresses.get(0).getHostAddress());
+        assertEquals("192.0.2.2", addresses.get(1).getHostAddress());
+        assertTrue(elapsed >= 100 && elapsed < 1000, "Elapsed: " + elapsed);
+
+        // Losing attempts aborted.
+        assertFalse(slowChannels.isEmpty());
+        slowChannels.forEach(channel -> assertFalse(channel.isOpen()));
+
+        // Winning family remembered.
+        attempts.set(0);
+        addresses = dns.lookup("dual.mimecast.com");
+        assertEquals("192.0.2.1", addresses.get(0).getHostAddress());
+        assertEquals(0, attempts.get());
+
+        // Until forgotten.
+        dns.forget("dual.mimecast.com");
+        dns.lookup("dual.mimecast.com");
+        assertTrue(attempts.get() > 0);
+    }
+
+    @Test
+    void refusedIpv6() throws UnknownHostException {
+        Set<String> refused = ConcurrentHashMap.newKeySet();
+        refused.add("2001:db8:0:0:0:0:0:1");
+
+        long start = System.nanoTime();
+        List<InetAddress> addresses = dns(Collections.emptySet(), refused).setAttemptDelay(1500).lookup("dual.mimecast.com");
+
+        // Next attempt starts without waiting for the delay.
+        assertEquals("192.0.2.1", addresses.get(0).getHostAddress());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+    }
+
+    @Test
+    void noneConnect() throws UnknownHostException {
+        Set<String> refused = ConcurrentHashMap.newKeySet();
+        refused.addAll(Arrays.asList("2001:db8:0:0:0:0:0:1", "2001:db8:0:0:0:0:0:2", "192.0.2.1", "192.0.2.2"));
+
+        List<InetAddress> addresses = dns(Collections.emptySet(), refused).lookup("dual.mimecast.com");
+        assertEquals(delegate.lookup("dual.mimecast.com"), addresses);
+    }
+
+    @Test
+    void singleFamily() throws UnknownHostException {
+        assertEquals(1, dns(Collections.emptySet(), Collections.emptySet()).lookup("ipv4.mimecast.com").size());
+        assertEquals(0, attempts.get());
+
+        assertThrows(UnknownHostException.class, () -> dns(Collections.emptySet(), Collections.emptySet()).lookup("mimecast.net"));
+    }
+
+    @Test
+    void socket() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+            Dns loopback = hostname -> Arrays.asList(InetAddress.getByName("::1"), InetAddress.getByName("127.0.0.1"));
+            List<InetAddress> addresses = new HappyEyeballsDns(loopback)
+                    .setPort(serverSocket.getLocalPort())
+                    .lookup("localhost");
+
+            assertEquals("127.0.0.1", addresses.get(0).getHostAddress());
+        }
+    }
+
+    @Test
+    void failedCall() throws IOException {
+        AtomicInteger probes = new AtomicInteger();
+        Dns loopback = hostname -> Arrays.asList(InetAddress.getByName("::1"), InetAddress.getByName("127.0.0.1"));
+
+        int port;
+        HappyEyeballsDns dns;
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+            port = serverSocket.getLocalPort();
+            dns = new HappyEyeballsDns(loopback) {
+                @Override
+                protected void connect(SocketChannel channel, InetSocketAddress address, int timeout) throws IOException {
+                    probes.incrementAndGet();
+                    super.connect(channel, address, timeout);
+                }
+            }.setPort(port);
+            dns.lookup("localhost");
+        }
+
+        // Call fails as the server is gone so the family is forgotten.
+        OkHttpClient client = new OkHttpClient.Builder()
+                .dns(dns)
+                .addInterceptor(dns.getInterceptor())
+                .build();
+        assertThrows(IOException.class, () -> client.newCall(new Request.Builder().url("http://localhost:" + port + "/").build()).execute());
+
+        probes.set(0);
+        dns.lookup("localhost");
+        assertTrue(probes.get() > 0);
+    }
+}
@@ -0,0 +1,96 @@
+package com.mimecast.mtasts.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HttpResponseParserTest {
+
+    private static final String policy = "version: STSv1\r\n" +
+            "mode: enforce\r\n" +
+            "mx: *.mimecast.com\r\n" +
+            "max_age: 86400\r\n";
+
+    private static boolean feed(HttpResponseParser parser, String data) throws IOException {
+        return parser.feed(ByteBuffer.wrap(data.getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test
+    void contentLength() throws IOException {
+        String response = "HTTP/1.1 200 OK\r\n" +
+                "Content-Type: text/plain\r\n" +
+                "Content-Length: " + policy.length() + "\r\n" +
+                "\r\n" + policy;
+
+        // Byte at a time.
+        HttpResponseParser parser = new HttpResponseParser(64000);
+        for (int i = 0; i < response.length() - 1; i++) {
+            assertFalse(feed(parser, response.substring(i, i + 1)));
+        }
+        assertTrue(feed(parser, response.substring(response.length() - 1)));
+
+        assertEquals(200, parser.getCode());
+        assertEquals("OK", parser.getMessage());
+        assertEquals("text/plain", parser.getHeaders().get("content-type"));
+        assertEquals(policy, parser.getBody());
+    }
+
+    @Test
+    void chunked() throws IOException {
+        HttpResponseParser parser = new HttpResponseParser(64000);
+
+        assertFalse(feed(parser, "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"));
+        assertFalse(feed(parser, Integer.toHexString(30) + ";ext=1\r\n" + policy.substring(0, 30) + "\r\n"));
+        assertFalse(feed(parser, Integer.toHexString(policy.length() - 30) + "\r\n" + policy.substring(30) + "\r\n"));
+        assertTrue(feed(parser, "0\r\nX-Trailer: 1\r\n\r\n"));
+
+        assertEquals(200, parser.getCode());
+        assertEquals(policy, parser.getBody());
+    }
+
+    @Test
+    void close() throws IOException {
+        HttpResponseParser parser = new HttpResponseParser(64000);
+
+        assertFalse(feed(parser, "HTTP/1.0 200 OK\r\n\r\n" + policy));
+        assertTrue(parser.end());
+        assertEquals(policy, parser.getBody());
+
+        // Incomplete.
+        parser = new HttpResponseParser(64000);
+        assertFalse(feed(parser, "HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n" + policy));
+        assertFalse(parser.end());
+    }
+
+    @Test
+    void bounded() throws IOException {
+        HttpResponseParser parser = new HttpResponseParser(10);
+        assertTrue(feed(parser, "HTTP/1.1 200 OK\r\nContent-Length: " + policy.length() + "\r\n\r\n" + policy));
+        assertEquals(policy.substring(0, 10), parser.getBody());
+
+        StringBuilder headers = new StringBuilder("HTTP/1.1 200 OK\r\n");
+        while (headers.length() <= HttpResponseParser.HEADERS_MAX) {
+            headers.append("X-Padding: 0123456789012345678901234567890123456789\r\n");
+        }
+        assertThrows(IOException.class, () -> feed(new HttpResponseParser(64000), headers.toString()));
+    }
+
+    @Test
+    void malformed() {
+        assertThrows(IOException.class, () -> feed(new HttpResponseParser(64000), "SMTP 220 ready\r\n"));
+        assertThrows(IOException.class, () -> feed(new HttpResponseParser(64000), "HTTP/1.1 200 OK\r\nContent-Length: x\r\n\r\n"));
+        assertThrows(IOException.class, () -> feed(new HttpResponseParser(64000), "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n"));
+    }
+
+    @Test
+    void notModified() throws IOException {
+        HttpResponseParser parser = new HttpResponseParser(64000);
+        assertTrue(feed(parser, "HTTP/1.1 304 Not Modified\r\nETag: \"v1\"\r\n\r\n"));
+        assertEquals(304, parser.getCode());
+        assertEquals("", parser.getBody());
+    }
+}
@@ -3,6 +3,8 @@ package com.mimecast.mtasts.client;
 import com.mimecast.mtasts.assets.StsRecord;
 import com.mimecast.mtasts.exception.PolicyFetchErrorException;
 import com.mimecast.mtasts.exception.PolicyWebPKIInvalidException;
+import com.mimecast.mtasts.trace.LookupTrace;
+import com.mimecast.mtasts.trace.LookupTrace.Phase;
 import com.mimecast.mtasts.trust.PermissiveTrustManager;
 import com.mimecast.mtasts.util.FailingHttpsPolicyClient;
 import com.mimecast.mtasts.util.LocalHttpsPolicyClient;
@@ -41,6 +43,9 @@ class HttpsPolicyClientTest {
             "valid: true\r\n" +
             "version: STSv1\r\n";
 
+    private static final LocalHttpsResponse unavailable = new LocalHttpsResponse()
+            .setResponseString(valid);
+
     @BeforeAll
     static void before() throws CertificateException, UnrecoverableKeyException, NoSuchAlgorithmException, IOException, KeyManagementException, KeyStoreException {
         // Configure mock server
@@ -58,6 +63,12 @@ class HttpsPolicyClientTest {
         LocalHttpsServer.put("mimecast.co.uk", new LocalHttpsResponse()
                 .setResponseString(oversize));
 
+        LocalHttpsServer.put("mimecast.it", unavailable);
+
+        LocalHttpsServer.put("mimecast.nl", new LocalHttpsResponse()
+                .setResponseString(valid)
+                .setEtag("\"v1\""));
+
         // Start mock server
         localHttpsServer = new LocalHttpsServer();
     }
@@ -197,4 +208,88 @@ class HttpsPolicyClientTest {
 
         assertThrows(PolicyFetchErrorException.class, () -> httpsPolicyClient.getPolicy(record, 6400));
     }
+
+    @Test
+    @DisplayName("should reuse pre-connected connection")
+    void preconnect() throws Exception {
+        StsRecord record = new StsRecord("mimecast.com", "\"v=STSv1; id=19840507T234501;\"");
+        HttpsPolicyClient httpsPolicyClient = new LocalHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort());
+
+        httpsPolicyClient.preconnect("mimecast.com");
+        Thread.sleep(500);
+
+        LookupTrace trace = new LookupTrace("mimecast.com");
+        HttpsResponse httpsResponse = httpsPolicyClient.getPolicy(record, 64000, trace);
+
+        assertTrue(httpsResponse.isSuccessful());
+        assertEquals(valid, httpsResponse.getBody());
+        assertTrue(trace.getEntry(Phase.CONNECT).isCached());
+        assertNull(trace.getEntry(Phase.TLS));
+    }
+
+    @Test
+    @DisplayName("should connect when pre-connect cancelled")
+    void preconnectCancel() throws Exception {
+        StsRecord record = new StsRecord("mimecast.com", "\"v=STSv1; id=19840507T234501;\"");
+        HttpsPolicyClient httpsPolicyClient = new LocalHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort());
+
+        httpsPolicyClient.preconnect("mimecast.com").close();
+
+        HttpsResponse httpsResponse = httpsPolicyClient.getPolicy(record, 64000);
+        assertTrue(httpsResponse.isSuccessful());
+    }
+
+    @Test
+    @DisplayName("should answer not modified for matching validators")
+    void conditional() throws Exception {
+        StsRecord record = new StsRecord("mimecast.nl", "\"v=STSv1; id=19840507T234501;\"");
+        HttpsPolicyClient httpsPolicyClient = new LocalHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort());
+
+        HttpsResponse httpsResponse = httpsPolicyClient.getPolicy(record, 64000, null, null, null);
+        assertEquals(200, httpsResponse.getCode());
+        assertEquals("\"v1\"", httpsResponse.getHeader("ETag"));
+
+        httpsResponse = httpsPolicyClient.getPolicy(record, 64000, null, "\"v1\"", "Sat, 01 Jan 2000 00:00:00 GMT");
+        assertEquals(304, httpsResponse.getCode());
+        assertTrue(httpsResponse.getBody() == null || httpsResponse.getBody().isEmpty());
+
+        httpsResponse = httpsPolicyClient.getPolicy(record, 64000, null, "\"v0\"", null);
+        assertEquals(200, httpsResponse.getCode());
+        assertEquals(valid, httpsResponse.getBody());
+    }
+
+    @Test
+    @DisplayName("should retry transient failures")
+    void retry() throws Exception {
+        StsRecord record = new StsRecord("mimecast.it", "\"v=STSv1; id=19840507T234501;\"");
+
+        // Failure without retries.
+        unavailable.setUnavailable(2);
+        HttpsResponse httpsResponse = new LocalHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort())
+                .getPolicy(record, 64000);
+        assertEquals(503, httpsResponse.getCode());
+
+        // Recovered with retries within the default time limit.
+        unavailable.setUnavailable(2);
+        HttpsPolicyClient httpsPolicyClient = new LocalHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort())
+                .setRetryPolicy(new RetryPolicy().setMaxRetries(2).setBaseDelay(10));
+        httpsResponse = httpsPolicyClient.getPolicy(record, 64000);
+        assertEquals(200, httpsResponse.getCode());
+        assertEquals(valid, httpsResponse.getBody());
+
+        // Caller deadline leaves no time for a retry.
+        unavailable.setUnavailable(1);
+        httpsResponse = httpsPolicyClient.getPolicy(record, 64000, null, null, null, System.nanoTime());
+        assertEquals(503, httpsResponse.getCode());
+
+        // Retries exhausted.
+        unavailable.setUnavailable(3);
+        httpsResponse = httpsPolicyClient.getPolicy(record, 64000);
+        assertEquals(503, httpsResponse.getCode());
+        unavailable.setUnavailable(0);
+
+        // Not found is not retried.
+        httpsResponse = httpsPolicyClient.getPolicy(new StsRecord("mimecast.xyz", "\"v=STSv1; id=19840507T234501;\""), 64000);
+        assertEquals(404, httpsResponse.getCode());
+    }
 }
@@ -0,0 +1,179 @@
+package com.mimecast.mtasts.client;
+
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.exception.PolicyFetchErrorException;
+import com.mimecast.mtasts.exception.PolicyWebPKIInvalidException;
+import com.mimecast.mtasts.trace.LookupTrace;
+import com.mimecast.mtasts.trace.LookupTrace.Phase;
+import com.mimecast.mtasts.trust.PermissiveTrustManager;
+import com.mimecast.mtasts.util.LocalHttpsPolicyClient;
+import com.mimecast.mtasts.util.LocalHttpsResponse;
+import com.mimecast.mtasts.util.LocalHttpsServer;
+import com.mimecast.mtasts.util.LocalJdkHttpsPolicyClient;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.X509TrustManager;
+import java.net.ServerSocket;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JdkHttpsPolicyClientTest {
+    private static final Logger log = LogManager.getLogger(JdkHttpsPolicyClientTest.class);
+
+    private static LocalHttpsServer localHttpsServer;
+
+    private static final String valid = "version: STSv1\r\n" +
+            "mode: enforce\r\n" +
+            "mx: *.mimecast.com\r\n" +
+            "max_age: 86400\r\n";
+
+    private static final StsRecord record = new StsRecord("mimecast.com", "\"v=STSv1; id=19840507T234501;\"");
+
+    @BeforeAll
+    static void before() throws Exception {
+        LocalHttpsServer.put("mimecast.com", new LocalHttpsResponse()
+                .setResponseString(valid));
+
+        LocalHttpsServer.put("mimecast.se", new LocalHttpsResponse()
+                .setResponseString(valid)
+                .setEtag("\"v2\""));
+
+        localHttpsServer = new LocalHttpsServer();
+    }
+
+    @AfterAll
+    static void after() {
+        localHttpsServer.stop();
+    }
+
+    @Test
+    void valid() throws Exception {
+        HttpsPolicyClient httpsPolicyClient = new LocalJdkHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort());
+
+        LookupTrace trace = new LookupTrace("mimecast.com");
+        HttpsResponse httpsResponse = httpsPolicyClient.getPolicy(record, 64000, trace);
+
+        assertTrue(httpsResponse.isSuccessful());
+        assertEquals(200, httpsResponse.getCode());
+        assertTrue(httpsResponse.isHandshake());
+        assertFalse(httpsResponse.getPeerCertificates().isEmpty());
+        assertEquals("text/plain", httpsResponse.getHeader("Content-Type"));
+        assertEquals(valid, httpsResponse.getBody());
+
+        assertNotNull(trace.getEntry(Phase.TTFB));
+        assertNotNull(trace.getEntry(Phase.BODY));
+
+        // Bounded body.
+        assertEquals(valid.substring(0, 20), httpsPolicyClient.getPolicy(record, 20).getBody());
+
+        assertNull(httpsPolicyClient.getPolicy(null, 64000));
+    }
+
+    @Test
+    void notFound() throws Exception {
+        HttpsPolicyClient httpsPolicyClient = new LocalJdkHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort());
+        HttpsResponse httpsResponse = httpsPolicyClient.getPolicy(new StsRecord("mimecast.xyz", "\"v=STSv1; id=19840507T234501;\""), 64000);
+
+        assertFalse(httpsResponse.isSuccessful());
+        assertEquals(404, httpsResponse.getCode());
+    }
+
+    @Test
+    void conditional() throws Exception {
+        HttpsPolicyClient httpsPolicyClient = new LocalJdkHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort());
+        StsRecord stsRecord = new StsRecord("mimecast.se", "\"v=STSv1; id=19840507T234501;\"");
+
+        HttpsResponse httpsResponse = httpsPolicyClient.getPolicy(stsRecord, 64000, null, "\"v1\"", null);
+        assertEquals(200, httpsResponse.getCode());
+        assertEquals("\"v2\"", httpsResponse.getHeader("ETag"));
+
+        httpsResponse = httpsPolicyClient.getPolicy(stsRecord, 64000, null, "\"v2\"", null);
+        assertEquals(304, httpsResponse.getCode());
+        assertEquals("", httpsResponse.getBody());
+    }
+
+    @Test
+    void webPkiInvalid() {
+        X509TrustManager trustManager = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+                // Not used.
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+                throw new CertificateException("Untrusted");
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+
+        HttpsPolicyClient httpsPolicyClient = new LocalJdkHttpsPolicyClient(trustManager, localHttpsServer.getPort());
+        assertThrows(PolicyWebPKIInvalidException.class, () -> httpsPolicyClient.getPolicy(record, 64000));
+    }
+
+    @Test
+    void fetchError() throws Exception {
+        int port;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            port = serverSocket.getLocalPort();
+        }
+
+        HttpsPolicyClient httpsPolicyClient = new LocalJdkHttpsPolicyClient(new PermissiveTrustManager(), port);
+        assertThrows(PolicyFetchErrorException.class, () -> httpsPolicyClient.getPolicy(record, 64000));
+    }
+
+    @Test
+    void benchmark() throws Exception {
+        int fetches = 200;
+        int threads = 32;
+
+        HttpsPolicyClient jdk = new LocalJdkHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort());
+        HttpsPolicyClient ok = new LocalHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort());
+
+        for (HttpsPolicyClient httpsPolicyClient : Arrays.asList(jdk, ok)) {
+            // Warm up connection pool.
+            httpsPolicyClient.getPolicy(record, 64000);
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                long start = System.nanoTime();
+                List<Future<Long>> futures = new ArrayList<>();
+                for (int i = 0; i < fetches; i++) {
+                    futures.add(executor.submit(() -> {
+                        long fetchStart = System.nanoTime();
+                        assertEquals(200, httpsPolicyClient.getPolicy(record, 64000).getCode());
+                        return System.nanoTime() - fetchStart;
+                    }));
+                }
+
+                long[] latencies = new long[fetches];
+                for (int i = 0; i < fetches; i++) {
+                    latencies[i] = futures.get(i).get(30, TimeUnit.SECONDS);
+                }
+                long total = System.nanoTime() - start;
+                Arrays.sort(latencies);
+
+                log.info("{}: {} fetches in {}ms, p50 {}us, p99 {}us",
+                        httpsPolicyClient.getClass().getSimpleName(), fetches, TimeUnit.NANOSECONDS.toMillis(total),
+                        TimeUnit.NANOSECONDS.toMicros(latencies[fetches / 2]),
+                        TimeUnit.NANOSECONDS.toMicros(latencies[fetches * 99 / 100]));
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.mimecast.mtasts.client;
+
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.config.Config;
+import com.mimecast.mtasts.exception.PolicyFetchErrorException;
+import com.mimecast.mtasts.exception.PolicyWebPKIInvalidException;
+import com.mimecast.mtasts.trust.PermissiveTrustManager;
+import com.mimecast.mtasts.util.LocalDnsResolver;
+import com.mimecast.mtasts.util.LocalHttpsPolicyClient;
+import com.mimecast.mtasts.util.LocalHttpsResponse;
+import com.mimecast.mtasts.util.LocalHttpsServer;
+import com.mimecast.mtasts.util.LocalNioHttpsPolicyClient;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Type;
+
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.X509TrustManager;
+import java.net.ServerSocket;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NioHttpsPolicyClientTest {
+    private static final Logger log = LogManager.getLogger(NioHttpsPolicyClientTest.class);
+
+    private static LocalHttpsServer localHttpsServer;
+
+    private static final String valid = "version: STSv1\r\n" +
+            "mode: enforce\r\n" +
+            "mx: *.mimecast.com\r\n" +
+            "max_age: 86400\r\n";
+
+    private static final StsRecord record = new StsRecord("mimecast.com", "\"v=STSv1; id=19840507T234501;\"");
+
+    @BeforeAll
+    static void before() throws Exception {
+        LocalHttpsServer.put("mimecast.com", new LocalHttpsResponse()
+                .setResponseString(valid));
+
+        localHttpsServer = new LocalHttpsServer();
+    }
+
+    @AfterAll
+    static void after() {
+        localHttpsServer.stop();
+    }
+
+    @Test
+    void valid() throws Exception {
+        try (NioHttpsPolicyClient httpsPolicyClient = new LocalNioHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort())) {
+            HttpsResponse httpsResponse = httpsPolicyClient.getPolicy(record, 64000);
+
+            assertTrue(httpsResponse.isSuccessful());
+            assertEquals(200, httpsResponse.getCode());
+            assertEquals("OK", httpsResponse.getMessage());
+            assertTrue(httpsResponse.isHandshake());
+            assertFalse(httpsResponse.getPeerCertificates().isEmpty());
+            assertEquals("text/plain", httpsResponse.getHeader("Content-Type"));
+            assertEquals(valid, httpsResponse.getBody());
+
+            // Bounded body.
+            assertEquals(valid.substring(0, 20), httpsPolicyClient.getPolicy(record, 20).getBody());
+
+            assertNull(httpsPolicyClient.getPolicy(null, 64000));
+        }
+    }
+
+    @Test
+    void notFound() throws Exception {
+        try (NioHttpsPolicyClient httpsPolicyClient = new LocalNioHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort())) {
+            HttpsResponse httpsResponse = httpsPolicyClient.getPolicy(new StsRecord("mimecast.xyz", "\"v=STSv1; id=19840507T234501;\""), 64000);
+
+            assertFalse(httpsResponse.isSuccessful());
+            assertEquals(404, httpsResponse.getCode());
+            assertTrue(httpsResponse.getBody().contains("404 Not Found"));
+        }
+    }
+
+    @Test
+    void webPkiInvalid() {
+        X509TrustManager trustManager = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+                // Not used.
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+                throw new CertificateException("Untrusted");
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+
+        try (NioHttpsPolicyClient httpsPolicyClient = new LocalNioHttpsPolicyClient(trustManager, localHttpsServer.getPort())) {
+            assertThrows(PolicyWebPKIInvalidException.class, () -> httpsPolicyClient.getPolicy(record, 64000));
+        }
+    }
+
+    @Test
+    void fetchError() throws Exception {
+        // Refused.
+        int port;
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            port = serverSocket.getLocalPort();
+        }
+        try (NioHttpsPolicyClient httpsPolicyClient = new LocalNioHttpsPolicyClient(new PermissiveTrustManager(), port)) {
+            assertThrows(PolicyFetchErrorException.class, () -> httpsPolicyClient.getPolicy(record, 64000));
+        }
+
+        // Timed out.
+        try (ServerSocket serverSocket = new ServerSocket(0);
+             NioHttpsPolicyClient httpsPolicyClient = new LocalNioHttpsPolicyClient(new PermissiveTrustManager(), serverSocket.getLocalPort())) {
+            httpsPolicyClient.setConfig(new Config().setConnectTimeout(1));
+
+            long start = System.nanoTime();
+            PolicyFetchErrorException e = assertThrows(PolicyFetchErrorException.class, () -> httpsPolicyClient.getPolicy(record, 64000));
+            assertTrue(e.getMessage().contains("timed out"));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        }
+
+        // Closed.
+        NioHttpsPolicyClient httpsPolicyClient = new LocalNioHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort());
+        httpsPolicyClient.close();
+        assertThrows(PolicyFetchErrorException.class, () -> httpsPolicyClient.getPolicy(record, 64000));
+    }
+
+    @Test
+    void dnsRecordClient() throws Exception {
+        LocalDnsResolver.put("mta-sts.mimecast.com", Type.A, Arrays.asList("127.0.0.1", "127.0.0.2"));
+        Lookup.getDefaultCache(DClass.IN).clearCache();
+
+        try (NioHttpsPolicyClient httpsPolicyClient = new LocalNioHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort())
+                .setDnsRecordClient(new AsyncDnsRecordClient(new LocalDnsResolver()))) {
+            assertEquals(valid, httpsPolicyClient.getPolicy(record, 64000).getBody());
+
+            // Unknown to the DNS client though getAddress would connect.
+            PolicyFetchErrorException e = assertThrows(PolicyFetchErrorException.class,
+                    () -> httpsPolicyClient.getPolicy(new StsRecord("mimecast.xyz", "\"v=STSv1; id=19840507T234501;\""), 64000));
+            assertTrue(e.getMessage().contains("Unknown host"));
+            assertEquals(0, httpsPolicyClient.getInFlight());
+        }
+    }
+
+    @Test
+    void maxConnections() throws Exception {
+        try (NioHttpsPolicyClient httpsPolicyClient = new LocalNioHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort())
+                .setMaxConnections(2)
+                .setThreads(1)) {
+            List<CompletableFuture<NioHttpsResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                futures.add(httpsPolicyClient.getPolicyAsync(record, 64000));
+                assertTrue(httpsPolicyClient.getInFlight() <= 2);
+            }
+
+            for (CompletableFuture<NioHttpsResponse> future : futures) {
+                assertEquals(valid, future.get(10, TimeUnit.SECONDS).getBody());
+            }
+            assertEquals(0, httpsPolicyClient.getInFlight());
+        }
+    }
+
+    @Test
+    void benchmark() throws Exception {
+        int fetches = 200;
+
+        // NIO client on one selector thread.
+        long nio;
+        try (NioHttpsPolicyClient httpsPolicyClient = new LocalNioHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort())
+                .setThreads(1)) {
+            httpsPolicyClient.getPolicy(record, 64000);
+
+            long start = System.nanoTime();
+            List<CompletableFuture<NioHttpsResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < fetches; i++) {
+                futures.add(httpsPolicyClient.getPolicyAsync(record, 64000));
+            }
+            for (CompletableFuture<NioHttpsResponse> future : futures) {
+                assertEquals(200, future.get(30, TimeUnit.SECONDS).getCode());
+            }
+            nio = System.nanoTime() - start;
+        }
+
+        // OkHttp client on a thread per fetch in flight.
+        // Pooling disabled so both clients make a TLS handshake per fetch like for like.
+        ExecutorService executor = Executors.newFixedThreadPool(32);
+        try {
+            HttpsPolicyClient httpsPolicyClient = new LocalHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort()) {
+                @Override
+                protected OkHttpClient.Builder getBuilder(SSLSocketFactory socketFactory) {
+                    return super.getBuilder(socketFactory).connectionPool(new ConnectionPool(0, 1, TimeUnit.SECONDS));
+                }
+            };
+            httpsPolicyClient.getPolicy(record, 64000);
+
+            long start = System.nanoTime();
+            List<Future<HttpsResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < fetches; i++) {
+                futures.add(executor.submit(() -> httpsPolicyClient.getPolicy(record, 64000)));
+            }
+            for (Future<HttpsResponse> future : futures) {
+                assertEquals(200, future.get(30, TimeUnit.SECONDS).getCode());
+            }
+            long ok = System.nanoTime() - start;
+
+            log.info("Fetched {} policies with a new connection each: NIO 1 thread {}ms, OkHttp 32 threads {}ms",
+                    fetches, TimeUnit.NANOSECONDS.toMillis(nio), TimeUnit.NANOSECONDS.toMillis(ok));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.mimecast.mtasts.client;
+
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.util.LocalDnsResolver;
+import com.mimecast.mtasts.util.LocalDnsServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PipelinedTcpResolverTest {
+
+    private static final int BULK = 1000;
+
+    private LocalDnsServer localDnsServer;
+
+    @BeforeAll
+    static void before() {
+        for (int i = 0; i < BULK; i++) {
+            LocalDnsResolver.put("_mta-sts.pipe" + i + ".mimecast.com", Type.TXT, Collections.singletonList("v=STSv1; id=" + i + ";"));
+        }
+    }
+
+    @BeforeEach
+    void start() throws IOException {
+        localDnsServer = new LocalDnsServer();
+        Lookup.getDefaultCache(DClass.IN).clearCache();
+    }
+
+    @AfterEach
+    void stop() {
+        localDnsServer.stop();
+    }
+
+    @Test
+    void single() throws Exception {
+        try (PipelinedTcpResolver resolver = new PipelinedTcpResolver(localDnsServer.getAddress())) {
+            Message response = resolver.send(query("_mta-sts.pipe0.mimecast.com"));
+
+            assertEquals(Rcode.NOERROR, response.getRcode());
+            assertEquals("\"v=STSv1; id=0;\"", response.getSection(Section.ANSWER).get(0).rdataToString());
+            assertEquals(1, localDnsServer.getUdpQueries());
+            assertEquals(0, localDnsServer.getTcpQueries());
+
+            // Forced TCP.
+            resolver.setTCP(true);
+            Message query = query("_mta-sts.pipe1.mimecast.com");
+            response = resolver.send(query);
+
+            assertEquals(query.getHeader().getID(), response.getHeader().getID());
+            assertEquals("\"v=STSv1; id=1;\"", response.getSection(Section.ANSWER).get(0).rdataToString());
+            assertEquals(1, localDnsServer.getTcpQueries());
+        }
+    }
+
+    @Test
+    void burst() throws Exception {
+        try (PipelinedTcpResolver resolver = new PipelinedTcpResolver(localDnsServer.getAddress()).setConnections(2)) {
+            AsyncDnsRecordClient dnsRecordClient = new AsyncDnsRecordClient(resolver);
+
+            List<CompletableFuture<Optional<StsRecord>>> futures = new ArrayList<>();
+            for (int i = 0; i < BULK; i++) {
+                futures.add(dnsRecordClient.getStsRecordAsync("pipe" + i + ".mimecast.com").toCompletableFuture());
+            }
+
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+            for (int i = 0; i < BULK; i++) {
+                assertEquals("v=STSv1; id=" + i + ";", futures.get(i).get().get().toString());
+            }
+
+            assertEquals(BULK, localDnsServer.getTcpQueries() + localDnsServer.getUdpQueries());
+            assertTrue(localDnsServer.getTcpQueries() > BULK / 2);
+            assertTrue(localDnsServer.getTcpConnections() <= 2);
+            assertTrue(resolver.getOpenConnections() <= 2);
+        }
+    }
+
+    @Test
+    void dropped() throws Exception {
+        localDnsServer.setCloseAfter(8);
+
+        try (PipelinedTcpResolver resolver = new PipelinedTcpResolver(localDnsServer.getAddress()).setConnections(1)) {
+            resolver.setTCP(true);
+
+            List<CompletableFuture<Message>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                futures.add(resolver.sendAsync(query("_mta-sts.pipe" + i + ".mimecast.com")).toCompletableFuture());
+            }
+
+            // Connection closed on the eighth query, unanswered ones are sent again on a new connection.
+            for (int i = 0; i < 10; i++) {
+                Message response = futures.get(i).get(10, TimeUnit.SECONDS);
+                assertEquals("\"v=STSv1; id=" + i + ";\"", response.getSection(Section.ANSWER).get(0).rdataToString());
+            }
+            assertTrue(localDnsServer.getTcpConnections() >= 2);
+        }
+    }
+
+    @Test
+    void droppedRepeatedly() throws Exception {
+        localDnsServer.setCloseAfter(3);
+
+        try (PipelinedTcpResolver resolver = new PipelinedTcpResolver(localDnsServer.getAddress()).setConnections(1)) {
+            resolver.setTCP(true);
+
+            List<CompletableFuture<Message>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                futures.add(resolver.sendAsync(query("_mta-sts.pipe" + i + ".mimecast.com")).toCompletableFuture());
+            }
+
+            // Every connection drops a query so some are sent more than twice.
+            for (int i = 0; i < 20; i++) {
+                Message response = futures.get(i).get(10, TimeUnit.SECONDS);
+                assertEquals("\"v=STSv1; id=" + i + ";\"", response.getSection(Section.ANSWER).get(0).rdataToString());
+            }
+            assertTrue(localDnsServer.getTcpConnections() >= 10);
+        }
+    }
+
+    @Test
+    void timeout() throws Exception {
+        localDnsServer.setSilent(true);
+
+        try (PipelinedTcpResolver resolver = new PipelinedTcpResolver(localDnsServer.getAddress())) {
+            resolver.setTCP(true);
+            resolver.setTimeout(Duration.ofMillis(200));
+
+            assertThrows(IOException.class, () -> resolver.send(query("_mta-sts.pipe0.mimecast.com")));
+        }
+    }
+
+    @Test
+    void connectFailed() throws Exception {
+        // Nothing listening.
+        InetSocketAddress address;
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            address = (InetSocketAddress) serverSocket.getLocalSocketAddress();
+        }
+
+        try (PipelinedTcpResolver resolver = new PipelinedTcpResolver(address)) {
+            resolver.setTCP(true);
+
+            CompletableFuture<Message> future = resolver.sendAsync(query("_mta-sts.pipe0.mimecast.com")).toCompletableFuture();
+            ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+            assertInstanceOf(IOException.class, e.getCause());
+            assertEquals(0, resolver.getOpenConnections());
+        }
+    }
+
+    @Test
+    void connectOffCaller() throws Exception {
+        // Never accepting with a full backlog so the handshake hangs until the timeout.
+        List<Socket> fillers = new ArrayList<>();
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            while (true) {
+                Socket filler = new Socket();
+                fillers.add(filler);
+                try {
+                    filler.connect(serverSocket.getLocalSocketAddress(), 200);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+            }
+
+            try (PipelinedTcpResolver resolver = new PipelinedTcpResolver((InetSocketAddress) serverSocket.getLocalSocketAddress())) {
+                resolver.setTCP(true);
+                resolver.setTimeout(Duration.ofSeconds(2));
+
+                long start = System.nanoTime();
+                CompletableFuture<Message> future = resolver.sendAsync(query("_mta-sts.pipe0.mimecast.com")).toCompletableFuture();
+                CompletableFuture<Message> second = resolver.sendAsync(query("_mta-sts.pipe1.mimecast.com")).toCompletableFuture();
+                assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+
+                assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+                assertThrows(ExecutionException.class, () -> second.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            for (Socket filler : fillers) {
+                filler.close();
+            }
+        }
+    }
+
+    @Test
+    void idle() throws Exception {
+        try (PipelinedTcpResolver resolver = new PipelinedTcpResolver(localDnsServer.getAddress()).setIdleTimeout(Duration.ofMillis(100))) {
+            resolver.setTCP(true);
+            resolver.send(query("_mta-sts.pipe0.mimecast.com"));
+            assertEquals(1, resolver.getOpenConnections());
+
+            Thread.sleep(500);
+            assertEquals(0, resolver.getOpenConnections());
+
+            // Reconnects.
+            resolver.send(query("_mta-sts.pipe1.mimecast.com"));
+            assertEquals(2, localDnsServer.getTcpConnections());
+        }
+    }
+
+    private static Message query(String name) throws TextParseException {
+        return Message.newQuery(org.xbill.DNS.Record.newRecord(Name.fromString(name, Name.root), Type.TXT, DClass.IN));
+    }
+}
@@ -0,0 +1,157 @@
+package com.mimecast.mtasts.client;
+
+import com.mimecast.mtasts.util.LocalDnsResolver;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.*;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SuppressWarnings("OptionalGetWithoutIsPresent")
+class ResolverPoolTest {
+
+    private static Resolver defaultResolver;
+
+    @BeforeAll
+    static void before() {
+        LocalDnsResolver.put("_mta-sts.mimecast.at", Type.TXT, Collections.singletonList("v=STSv1; id=19840507T234501;"));
+        defaultResolver = Lookup.getDefaultResolver();
+    }
+
+    @AfterAll
+    static void after() {
+        Lookup.setDefaultResolver(defaultResolver);
+    }
+
+    @Test
+    void fastest() throws Exception {
+        StubResolver slow = new StubResolver().setDelay(30);
+        StubResolver fast = new StubResolver();
+        ResolverPool pool = new ResolverPool(slow, fast);
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(Rcode.NOERROR, pool.send(query()).getRcode());
+        }
+
+        assertTrue(fast.queries.get() >= 18);
+        assertTrue(pool.getUpstreams().get(0).getLatency() > pool.getUpstreams().get(1).getLatency());
+    }
+
+    @Test
+    void failover() throws Exception {
+        StubResolver failing = new StubResolver().setFailing(true);
+        StubResolver healthy = new StubResolver().setDelay(5);
+        ResolverPool pool = new ResolverPool(failing, healthy)
+                .setEjectAfter(3)
+                .setEjectTime(Duration.ofMillis(200));
+
+        // Untried upstreams score zero so the failing one is tried first until it ranks below.
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Rcode.NOERROR, pool.send(query()).getRcode());
+        }
+        assertTrue(pool.getUpstreams().get(0).getErrorRate() > 0);
+
+        // Eject.
+        for (int i = 0; i < 3; i++) {
+            pool.getUpstreams().get(0).failure(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        assertTrue(pool.getUpstreams().get(0).isEjected());
+
+        // Still ejected after a failed probe.
+        Thread.sleep(250);
+        int queries = failing.queries.get();
+        pool.send(query());
+        Thread.sleep(50);
+        assertEquals(queries + 1, failing.queries.get());
+        assertTrue(pool.getUpstreams().get(0).isEjected());
+
+        // Recovered after a good probe.
+        failing.setFailing(false);
+        Thread.sleep(250);
+        pool.send(query());
+        Thread.sleep(50);
+        assertFalse(pool.getUpstreams().get(0).isEjected());
+    }
+
+    @Test
+    void servfail() throws Exception {
+        StubResolver servfail = new StubResolver().setServfail(true);
+        StubResolver healthy = new StubResolver();
+        ResolverPool pool = new ResolverPool(servfail, healthy);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Rcode.NOERROR, pool.send(query()).getRcode());
+        }
+    }
+
+    @Test
+    void exhausted() {
+        ResolverPool pool = new ResolverPool(new StubResolver().setFailing(true), new StubResolver().setFailing(true));
+        assertThrows(IOException.class, () -> pool.send(query()));
+
+        assertThrows(IllegalArgumentException.class, ResolverPool::new);
+    }
+
+    @Test
+    void install() {
+        Lookup.getDefaultCache(DClass.IN).clearCache();
+        StubResolver healthy = new StubResolver();
+        new ResolverPool(new StubResolver().setFailing(true), healthy).install();
+
+        assertEquals("v=STSv1; id=19840507T234501;", new XBillDnsRecordClient().getStsRecord("mimecast.at").get().toString());
+        assertTrue(healthy.queries.get() > 0);
+    }
+
+    private static Message query() throws TextParseException {
+        return Message.newQuery(org.xbill.DNS.Record.newRecord(Name.fromString("_mta-sts.mimecast.at."), Type.TXT, DClass.IN));
+    }
+
+    /**
+     * Local resolver with delay and failures.
+     */
+    private static class StubResolver extends LocalDnsResolver {
+        private final AtomicInteger queries = new AtomicInteger();
+        private volatile long delay = 0;
+        private volatile boolean failing = false;
+        private volatile boolean servfail = false;
+
+        StubResolver setDelay(long delay) {
+            this.delay = delay;
+            return this;
+        }
+
+        StubResolver setFailing(boolean failing) {
+            this.failing = failing;
+            return this;
+        }
+
+        StubResolver setServfail(boolean servfail) {
+            this.servfail = servfail;
+            return this;
+        }
+
+        @Override
+        public CompletionStage<Message> sendAsync(Message query, Executor executor) {
+            queries.incrementAndGet();
+            if (failing) {
+                return CompletableFuture.failedFuture(new IOException("Upstream down"));
+            }
+
+            Message answer = send(query);
+            if (servfail) {
+                answer.getHeader().setRcode(Rcode.SERVFAIL);
+            }
+            return CompletableFuture.supplyAsync(() -> answer, CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, executor));
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.mimecast.mtasts.client;
+
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLHandshakeException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetryPolicyTest {
+
+    @Test
+    void delay() {
+        RetryPolicy retryPolicy = new RetryPolicy().setBaseDelay(100).setMaxDelay(500);
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(retryPolicy.getDelay(1) <= 100);
+            assertTrue(retryPolicy.getDelay(3) <= 400);
+            assertTrue(retryPolicy.getDelay(10) <= 500);
+            assertTrue(retryPolicy.getDelay(100) <= 500);
+            assertTrue(retryPolicy.getDelay(1) >= 0);
+        }
+    }
+
+    @Test
+    void retries() {
+        RetryPolicy.Budget budget = new RetryPolicy().begin();
+        assertFalse(budget.backoff());
+
+        budget = new RetryPolicy().setMaxRetries(3).setBaseDelay(1).begin();
+        assertTrue(budget.backoff());
+        assertTrue(budget.backoff());
+        assertTrue(budget.backoff());
+        assertFalse(budget.backoff());
+        assertEquals(3, budget.getRetries());
+    }
+
+    @Test
+    void deadline() {
+        RetryPolicy retryPolicy = new RetryPolicy().setMaxRetries(10).setBaseDelay(1000).setMaxDelay(1000);
+
+        // Time limit.
+        long start = System.nanoTime();
+        RetryPolicy.Budget budget = retryPolicy.setBudget(0).begin();
+        assertFalse(budget.backoff());
+
+        // Caller deadline earlier than time limit.
+        budget = retryPolicy.setBudget(60000).begin(System.nanoTime());
+        assertFalse(budget.backoff());
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    @Test
+    void remaining() throws InterruptedException {
+        RetryPolicy retryPolicy = new RetryPolicy().setMaxRetries(3).setBaseDelay(1).setBudget(1000);
+
+        // Retry allowed while the delay fits.
+        RetryPolicy.Budget budget = retryPolicy.begin();
+        assertTrue(budget.backoff());
+        assertTrue(budget.getRemaining() <= 1000);
+        assertTrue(budget.getRemaining() > 500);
+
+        // Caller deadline earlier than time limit.
+        budget = retryPolicy.setBudget(60000).begin(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500));
+        assertTrue(budget.getRemaining() <= 500);
+
+        // Never below one millisecond.
+        budget = retryPolicy.begin(System.nanoTime());
+        Thread.sleep(5);
+        assertEquals(1, budget.getRemaining());
+        assertFalse(budget.backoff());
+    }
+
+    @Test
+    void classify() {
+        assertTrue(RetryPolicy.isTransient(new SocketTimeoutException("timeout")));
+        assertTrue(RetryPolicy.isTransient(new ConnectException("Connection refused")));
+        assertTrue(RetryPolicy.isTransient(new IOException("Connection reset")));
+        assertFalse(RetryPolicy.isTransient(new SSLHandshakeException("PKIX path building failed")));
+        assertFalse(RetryPolicy.isTransient(new UnknownHostException("mta-sts.mimecast.com")));
+        assertFalse(RetryPolicy.isTransient(new IllegalStateException()));
+
+        assertTrue(RetryPolicy.isTransient(503));
+        assertTrue(RetryPolicy.isTransient(429));
+        assertFalse(RetryPolicy.isTransient(200));
+        assertFalse(RetryPolicy.isTransient(404));
+        assertFalse(RetryPolicy.isTransient(501));
+    }
+}
@@ -0,0 +1,86 @@
+package com.mimecast.mtasts.client;
+
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.trust.PermissiveTrustManager;
+import com.mimecast.mtasts.util.LocalDnsResolver;
+import com.mimecast.mtasts.util.LocalHttpsPolicyClient;
+import com.mimecast.mtasts.util.LocalHttpsResponse;
+import com.mimecast.mtasts.util.LocalHttpsServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Type;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class XBillDnsTest {
+
+    private static LocalHttpsServer localHttpsServer;
+
+    @BeforeAll
+    static void before() throws Exception {
+        Lookup.setDefaultResolver(new LocalDnsResolver());
+        LocalDnsResolver.put("mta-sts.mimecast.com", Type.A, Arrays.asList("127.0.0.1", "127.0.0.2"));
+        LocalDnsResolver.put("mta-sts.mimecast.com", Type.AAAA, Collections.singletonList("::1"));
+        LocalDnsResolver.put("mta-sts.mimecast.org", Type.AAAA, Collections.singletonList("::2"));
+
+        LocalHttpsServer.put("mimecast.com", new LocalHttpsResponse()
+                .setResponseString("version: STSv1\r\nmode: enforce\r\nmx: *.mimecast.com\r\nmax_age: 86400\r\n"));
+        localHttpsServer = new LocalHttpsServer();
+    }
+
+    @AfterAll
+    static void after() {
+        localHttpsServer.stop();
+    }
+
+    @Test
+    void lookup() throws UnknownHostException {
+        List<InetAddress> addresses = new XBillDns().lookup("mta-sts.mimecast.com");
+
+        assertEquals(3, addresses.size());
+        assertEquals("127.0.0.1", addresses.get(0).getHostAddress());
+        assertEquals("127.0.0.2", addresses.get(1).getHostAddress());
+        assertEquals(InetAddress.getByName("::1"), addresses.get(2));
+    }
+
+    @Test
+    void ipv6Only() throws UnknownHostException {
+        List<InetAddress> addresses = new XBillDns().lookup("mta-sts.mimecast.org");
+
+        assertEquals(1, addresses.size());
+        assertEquals(InetAddress.getByName("::2"), addresses.get(0));
+    }
+
+    @Test
+    void literal() throws UnknownHostException {
+        assertEquals("127.0.0.1", new XBillDns().lookup("127.0.0.1").get(0).getHostAddress());
+    }
+
+    @Test
+    void unknown() {
+        assertThrows(UnknownHostException.class, () -> new XBillDns().lookup("mta-sts.mimecast.net"));
+    }
+
+    @Test
+    void policyClient() throws Exception {
+        OkHttpsPolicyClient httpsPolicyClient = new LocalHttpsPolicyClient(new PermissiveTrustManager(), localHttpsServer.getPort()) {
+            @Override
+            protected String getUrl(String domain) {
+                return "https://mta-sts." + domain + ":" + localHttpsServer.getPort() + "/" + domain;
+            }
+        }.setDns(new XBillDns());
+
+        HttpsResponse response = httpsPolicyClient.getPolicy(new StsRecord("mimecast.com", "v=STSv1; id=1;"), 64000);
+        assertTrue(response.isSuccessful());
+
+        assertThrows(Exception.class, () -> httpsPolicyClient.getPolicy(new StsRecord("mimecast.net", "v=STSv1; id=1;"), 64000));
+    }
+}
@@ -0,0 +1,275 @@
+package com.mimecast.mtasts.cluster;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.cache.OffHeapPolicyCache;
+import com.mimecast.mtasts.cache.PolicyCache;
+import com.mimecast.mtasts.client.HttpsPolicyClient;
+import com.mimecast.mtasts.client.HttpsResponse;
+import com.mimecast.mtasts.exception.PolicyFetchErrorException;
+import com.mimecast.mtasts.trace.LookupTrace;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClusterHttpsPolicyClientTest {
+
+    private static final String body = "version: STSv1\r\n" +
+            "mode: enforce\r\n" +
+            "mx: *.mimecast.com\r\n" +
+            "max_age: 86400\r\n";
+
+    private static final byte[] secret = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+
+    private final AtomicInteger fetches = new AtomicInteger();
+    private final List<ClusterHttpsPolicyClient> nodes = new ArrayList<>();
+    private final List<PolicyCache> caches = new ArrayList<>();
+
+    private final List<String> etags = new CopyOnWriteArrayList<>();
+    private final List<Long> deadlines = new CopyOnWriteArrayList<>();
+
+    private final HttpsPolicyClient origin = new HttpsPolicyClient() {
+        @Override
+        public HttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize) throws PolicyFetchErrorException {
+            fetches.incrementAndGet();
+            if (stsRecord.getDomain().startsWith("error")) {
+                throw new PolicyFetchErrorException("Connection refused");
+            }
+            return new ClusterHttpsResponse(true, 200, "OK", true, "text/plain", body, 0L, "\"1\"", null);
+        }
+
+        @Override
+        public HttpsResponse getPolicy(StsRecord stsRecord, int maxPolicyBodySize, LookupTrace trace, String etag, String lastModified, long deadline) throws PolicyFetchErrorException {
+            etags.add(String.valueOf(etag));
+            deadlines.add(deadline);
+            if (etag != null) {
+                fetches.incrementAndGet();
+                return new ClusterHttpsResponse(false, 304, "Not Modified", true, "", "", 0L, etag, null);
+            }
+            return getPolicy(stsRecord, maxPolicyBodySize);
+        }
+    };
+
+    private static StsRecord record(String domain) {
+        return new StsRecord(domain, "v=STSv1; id=1;");
+    }
+
+    // Same cache then fetch flow as StrictTransportSecurity.
+    private StsPolicy lookup(int node, String domain) throws Exception {
+        Optional<StsPolicy> optional = caches.get(node).getByRecord(record(domain));
+        if (optional.isPresent()) {
+            return optional.get();
+        }
+
+        HttpsResponse response = nodes.get(node).getPolicy(record(domain), 64000);
+        StsPolicy policy = new StsPolicy(record(domain), response).make();
+        caches.get(node).put(policy);
+        return policy;
+    }
+
+    @BeforeEach
+    void before() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            PolicyCache cache = new OffHeapPolicyCache(1000, 1024 * 1024);
+            caches.add(cache);
+            nodes.add(new ClusterHttpsPolicyClient(origin, cache, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), secret)
+                    .setTimeout(1000));
+        }
+
+        for (ClusterHttpsPolicyClient node : nodes) {
+            for (ClusterHttpsPolicyClient peer : nodes) {
+                if (peer != node) {
+                    node.addNode("127.0.0.1", peer.getPort());
+                }
+            }
+        }
+    }
+
+    @AfterEach
+    void after() {
+        nodes.forEach(ClusterHttpsPolicyClient::close);
+    }
+
+    @Test
+    void ring() {
+        assertEquals("127.0.0.1:" + nodes.get(0).getPort(), nodes.get(0).getNodeId());
+
+        String owner = nodes.get(0).getRing().getOwner("mimecast.com").get();
+        for (ClusterHttpsPolicyClient node : nodes) {
+            assertEquals(owner, node.getRing().getOwner("mimecast.com").get());
+        }
+    }
+
+    @Test
+    void fetchOnce() throws Exception {
+        for (int i = 0; i < 30; i++) {
+            for (int node = 0; node < nodes.size(); node++) {
+                StsPolicy policy = lookup(node, "domain" + i + ".com");
+                assertTrue(policy.isValid());
+                assertEquals("enforce", policy.getMode().toString());
+                assertEquals("*.mimecast.com", policy.getMxMasks().get(0));
+            }
+        }
+
+        assertEquals(30, fetches.get());
+    }
+
+    @Test
+    void error() {
+        String domain = "error.com";
+        for (int node = 0; node < nodes.size(); node++) {
+            int current = node;
+            assertThrows(PolicyFetchErrorException.class, () -> nodes.get(current).getPolicy(record(domain), 64000));
+        }
+    }
+
+    @Test
+    void failover() throws Exception {
+        nodes.get(0).close();
+
+        for (int i = 0; i < 30; i++) {
+            assertTrue(lookup(1, "domain" + i + ".com").isValid());
+            assertTrue(lookup(2, "domain" + i + ".com").isValid());
+        }
+
+        assertEquals(30, fetches.get());
+    }
+
+    @Test
+    void leave() throws Exception {
+        // Open pooled connections to every owner then drop node 0.
+        for (int i = 0; i < 30; i++) {
+            assertTrue(lookup(1, "domain" + i + ".com").isValid());
+        }
+        nodes.get(0).close();
+
+        for (int i = 30; i < 60; i++) {
+            assertTrue(lookup(1, "domain" + i + ".com").isValid());
+        }
+
+        assertEquals(60, fetches.get());
+    }
+
+    @Test
+    void fetchTime() throws Exception {
+        String domain = "aged.com";
+        String owner = nodes.get(0).getRing().getOwner(domain).get();
+        int ownerIndex = 0;
+        for (int node = 0; node < nodes.size(); node++) {
+            if (nodes.get(node).getNodeId().equals(owner)) {
+                ownerIndex = node;
+            }
+        }
+        int askerIndex = (ownerIndex + 1) % nodes.size();
+
+        // Owner holds a policy fetched an hour ago.
+        long fetched = System.currentTimeMillis() / 1000 - 3600;
+        StsPolicy policy = new StsPolicy(record(domain), new ClusterHttpsResponse(true, 200, "OK", true, "text/plain", body, fetched)).make();
+        assertEquals(fetched, policy.getFetchTime());
+        caches.get(ownerIndex).put(policy);
+
+        StsPolicy relayed = lookup(askerIndex, domain);
+        assertEquals(fetched, relayed.getFetchTime());
+        assertEquals(0, fetches.get());
+    }
+
+    @Test
+    void staleRecord() throws Exception {
+        String domain = "rotated.com";
+        String owner = nodes.get(0).getRing().getOwner(domain).get();
+        int ownerIndex = 0;
+        for (int node = 0; node < nodes.size(); node++) {
+            if (nodes.get(node).getNodeId().equals(owner)) {
+                ownerIndex = node;
+            }
+        }
+        int askerIndex = (ownerIndex + 1) % nodes.size();
+
+        StsRecord current = new StsRecord(domain, "v=STSv1; id=2;");
+        caches.get(ownerIndex).put(new StsPolicy(current, new ClusterHttpsResponse(true, 200, "OK", true, "text/plain", body, 0L)).make());
+
+        // Asker still sees the old record ID.
+        assertTrue(new StsPolicy(record(domain), nodes.get(askerIndex).getPolicy(record(domain), 64000)).make().isValid());
+        assertEquals(1, fetches.get());
+
+        assertEquals("2", caches.get(ownerIndex).getByDomain(domain).get().getRecord().getId());
+    }
+
+    @Test
+    void notMember() throws Exception {
+        ClusterHttpsPolicyClient node = new ClusterHttpsPolicyClient(origin, null, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), secret);
+        nodes.add(node);
+
+        try (Socket socket = new Socket("127.0.0.1", node.getPort());
+             DataInputStream in = new DataInputStream(socket.getInputStream())) {
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void wrongSecret() throws Exception {
+        byte[] other = "fedcba9876543210fedcba9876543210".getBytes(StandardCharsets.UTF_8);
+        ClusterHttpsPolicyClient node = new ClusterHttpsPolicyClient(origin, null, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), other)
+                .setTimeout(1000);
+        nodes.add(node);
+        for (int i = 0; i < 3; i++) {
+            node.addNode("127.0.0.1", nodes.get(i).getPort());
+            nodes.get(i).addNode("127.0.0.1", node.getPort());
+        }
+
+        // Owners refuse the node so every domain is fetched locally.
+        for (int i = 0; i < 10; i++) {
+            assertTrue(new StsPolicy(record("domain" + i + ".com"), node.getPolicy(record("domain" + i + ".com"), 64000)).make().isValid());
+        }
+        assertEquals(10, fetches.get());
+    }
+
+    @Test
+    void wildcard() {
+        assertThrows(IllegalArgumentException.class, () -> new ClusterHttpsPolicyClient(origin, null, new InetSocketAddress(0), secret));
+        assertThrows(IllegalArgumentException.class, () -> new ClusterHttpsPolicyClient(origin, null, new InetSocketAddress("::", 0), secret));
+    }
+
+    @Test
+    void conditional() throws Exception {
+        String domain = "unchanged.com";
+        String owner = nodes.get(0).getRing().getOwner(domain).get();
+        int askerIndex = 0;
+        for (int node = 0; node < nodes.size(); node++) {
+            if (!nodes.get(node).getNodeId().equals(owner)) {
+                askerIndex = node;
+            }
+        }
+
+        // Validators and deadline reach the owner origin fetch.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        HttpsResponse response = nodes.get(askerIndex).getPolicy(record(domain), 64000, null, "\"1\"", null, deadline);
+        assertEquals(304, response.getCode());
+        assertEquals("\"1\"", response.getHeader("ETag"));
+        assertEquals(Collections.singletonList("\"1\""), etags);
+        // Rebuilt by the owner from the time left so it may trail by the relay time.
+        assertTrue(deadlines.get(0) - deadline < TimeUnit.SECONDS.toNanos(1));
+        assertTrue(deadlines.get(0) - System.nanoTime() > TimeUnit.SECONDS.toNanos(20));
+
+        // Unconditional fetch relays the validators for the next refresh.
+        response = nodes.get(askerIndex).getPolicy(record(domain), 64000, null, null, null);
+        assertEquals(200, response.getCode());
+        assertEquals("\"1\"", response.getHeader("ETag"));
+        assertEquals(2, fetches.get());
+    }
+}
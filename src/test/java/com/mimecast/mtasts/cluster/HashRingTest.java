@@ -0,0 +1,67 @@
+package com.mimecast.mtasts.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashRingTest {
+
+    @Test
+    void empty() {
+        HashRing ring = new HashRing();
+
+        assertFalse(ring.getOwner("mimecast.com").isPresent());
+        assertTrue(ring.getOwners("mimecast.com", 3).isEmpty());
+    }
+
+    @Test
+    void owners() {
+        HashRing ring = new HashRing().add("a").add("b").add("c");
+
+        List<String> owners = ring.getOwners("mimecast.com", 5);
+        assertEquals(3, owners.size());
+        assertEquals(3, owners.stream().distinct().count());
+        assertEquals(ring.getOwner("mimecast.com").get(), owners.get(0));
+    }
+
+    @Test
+    void balance() {
+        HashRing ring = new HashRing().add("a").add("b").add("c");
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            counts.merge(ring.getOwner("domain" + i + ".com").get(), 1, Integer::sum);
+        }
+
+        for (int count : counts.values()) {
+            assertTrue(count > 600 && count < 1400, "Unbalanced: " + counts);
+        }
+    }
+
+    @Test
+    void remove() {
+        HashRing ring = new HashRing().add("a").add("b").add("c");
+
+        Map<String, String> before = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            before.put("domain" + i + ".com", ring.getOwner("domain" + i + ".com").get());
+        }
+
+        ring.remove("b");
+        assertEquals(2, ring.getNodes().size());
+
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            String owner = ring.getOwner(entry.getKey()).get();
+            if (!entry.getValue().equals("b")) {
+                assertEquals(entry.getValue(), owner);
+            }
+            else {
+                assertNotEquals("b", owner);
+            }
+        }
+    }
+}
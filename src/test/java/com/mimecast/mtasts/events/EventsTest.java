@@ -0,0 +1,95 @@
+package com.mimecast.mtasts.events;
+
+import com.mimecast.mtasts.assets.StsPolicy;
+import com.mimecast.mtasts.assets.StsRecord;
+import com.mimecast.mtasts.cache.MemoryPolicyCache;
+import com.mimecast.mtasts.client.HttpsResponseMock;
+import com.mimecast.mtasts.client.XBillDnsRecordClient;
+import com.mimecast.mtasts.util.LocalDnsResolver;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Type;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EventsTest {
+
+    @BeforeAll
+    static void before() {
+        // Set local resolver
+        Lookup.setDefaultResolver(new LocalDnsResolver());
+        LocalDnsResolver.put("_mta-sts.mimecast.com", Type.TXT, new ArrayList<String>() {{
+            add("v=STSv1; id=19840507T234501;");
+        }});
+    }
+
+    @Test
+    void events() throws IOException {
+        Path file = Files.createTempFile("mta-sts", ".jfr");
+
+        try (Recording recording = new Recording()) {
+            recording.enable(DnsLookupEvent.class);
+            recording.enable(PolicyParseEvent.class);
+            recording.enable(CacheLookupEvent.class);
+            recording.start();
+
+            new XBillDnsRecordClient().getStsRecord("mimecast.com");
+
+            StsRecord record = new StsRecord("mimecast.com", "v=STSv1; id=19840507T234501;");
+            StsPolicy policy = new StsPolicy(record, new HttpsResponseMock()
+                    .setSuccessful(true)
+                    .setCode(200)
+                    .setHandshake(true)
+                    .setPeerCertificates(new ArrayList<>())
+                    .putHeader("Content-Type", "text/plain")
+                    .setBody("version: STSv1\r\nmode: enforce\r\nmx: *.mimecast.com\r\nmax_age: 86400\r\n"))
+                    .make();
+
+            MemoryPolicyCache cache = new MemoryPolicyCache();
+            cache.put(policy);
+            cache.getByRecord(record);
+            cache.getByDomain("mimecast.net");
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        Files.delete(file);
+
+        List<RecordedEvent> dns = filter(events, "com.mimecast.mtasts.DnsLookup");
+        assertEquals(1, dns.size());
+        assertEquals("_mta-sts.mimecast.com", dns.get(0).getString("name"));
+        assertEquals("TXT", dns.get(0).getString("type"));
+        assertEquals(1, dns.get(0).getInt("records"));
+
+        List<RecordedEvent> parse = filter(events, "com.mimecast.mtasts.PolicyParse");
+        assertEquals(1, parse.size());
+        assertEquals("mimecast.com", parse.get(0).getString("domain"));
+        assertEquals("valid", parse.get(0).getString("outcome"));
+
+        List<String> cache = filter(events, "com.mimecast.mtasts.CacheLookup").stream()
+                .map(event -> event.getString("status"))
+                .collect(Collectors.toList());
+        assertTrue(cache.contains("hit"));
+        assertTrue(cache.contains("miss"));
+    }
+
+    private static List<RecordedEvent> filter(List<RecordedEvent> events, String name) {
+        return events.stream()
+                .filter(event -> event.getEventType().getName().equals(name))
+                .collect(Collectors.toList());
+    }
+}
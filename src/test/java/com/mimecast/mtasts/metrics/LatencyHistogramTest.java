@@ -0,0 +1,48 @@
+package com.mimecast.mtasts.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+
+    @Test
+    void buckets() {
+        for (long micros = 0; micros < 100_000; micros++) {
+            int index = LatencyHistogram.index(micros);
+            assertTrue(LatencyHistogram.lowerBound(index) <= micros);
+            assertTrue(LatencyHistogram.upperBound(index) >= micros);
+        }
+
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    void empty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean(TimeUnit.MICROSECONDS));
+        assertEquals(0, histogram.getPercentile(99, TimeUnit.MICROSECONDS));
+    }
+
+    @Test
+    void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax(TimeUnit.MILLISECONDS));
+        assertEquals(500, histogram.getMean(TimeUnit.MILLISECONDS));
+
+        long p50 = histogram.getPercentile(50, TimeUnit.MILLISECONDS);
+        assertTrue(p50 >= 500 && p50 <= 563, "p50: " + p50);
+
+        long p99 = histogram.getPercentile(99, TimeUnit.MILLISECONDS);
+        assertTrue(p99 >= 990 && p99 <= 1000, "p99: " + p99);
+    }
+}
@@ -0,0 +1,33 @@
+package com.mimecast.mtasts.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MemoryMetricsTest {
+
+    @Test
+    void counters() {
+        MemoryMetrics metrics = new MemoryMetrics();
+        metrics.count(Counter.CACHE_HIT);
+        metrics.count(Counter.CACHE_HIT);
+        metrics.count(Counter.CACHE_MISS);
+
+        assertEquals(2, metrics.getCount(Counter.CACHE_HIT));
+        assertEquals(1, metrics.getCount(Counter.CACHE_MISS));
+        assertEquals(0, metrics.getCount(Counter.CACHE_EVICT));
+    }
+
+    @Test
+    void stages() {
+        MemoryMetrics metrics = new MemoryMetrics();
+        metrics.time(Stage.DNS_STS, TimeUnit.MILLISECONDS.toNanos(4));
+        metrics.time(Stage.DNS_STS, TimeUnit.MILLISECONDS.toNanos(6));
+
+        assertEquals(2, metrics.getHistogram(Stage.DNS_STS).getCount());
+        assertEquals(5, metrics.getHistogram(Stage.DNS_STS).getMean(TimeUnit.MILLISECONDS));
+        assertEquals(0, metrics.getHistogram(Stage.HTTPS_FETCH).getCount());
+    }
+}
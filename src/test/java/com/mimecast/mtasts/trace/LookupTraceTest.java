@@ -0,0 +1,28 @@
+package com.mimecast.mtasts.trace;
+
+import com.mimecast.mtasts.trace.LookupTrace.Phase;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LookupTraceTest {
+
+    @Test
+    void record() {
+        LookupTrace trace = new LookupTrace("mimecast.com");
+        long now = System.nanoTime();
+        trace.record(Phase.DNS_STS, now, now + 2_000_000L);
+        trace.record(Phase.CACHE, now + 2_000_000L, now + 2_500_000L, true);
+
+        assertEquals(2, trace.getEntries().size());
+        assertEquals(2_000_000L, trace.getEntry(Phase.DNS_STS).getDuration());
+        assertFalse(trace.getEntry(Phase.DNS_STS).isCached());
+        assertTrue(trace.getEntry(Phase.CACHE).isCached());
+        assertNull(trace.getEntry(Phase.HTTPS_FETCH));
+
+        String string = trace.toString();
+        assertTrue(string.startsWith("Trace:\tmimecast.com"));
+        assertTrue(string.contains("Policy cache"));
+        assertTrue(string.endsWith("cached"));
+    }
+}
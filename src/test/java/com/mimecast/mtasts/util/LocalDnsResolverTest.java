@@ -50,11 +50,15 @@ class LocalDnsResolverTest {
         LocalDnsResolver.put("_mta-sts.mimecast.com", Type.TXT, new ArrayList<String>() {{ add( "v=STSv1; id=19840507T234501;" ); }});
         LocalDnsResolver.put("_smtp._tls.mimecast.com", Type.TXT, new ArrayList<String>() {{ add( "v=TLSRPTv1; rua=mailto:tlsrpt@mimecast.com;" ); }});
 
-        // Invalid || unsupported
         LocalDnsResolver.put("mimecast.com", Type.AAAA, new ArrayList<String>() {{
             add("::1");
         }});
 
+        // Invalid || unsupported
+        LocalDnsResolver.put("mimecast.com", Type.CAA, new ArrayList<String>() {{
+            add("0 issue \"letsencrypt.org\"");
+        }});
+
         LocalDnsResolver.put("mimecast.eu", Type.A, new ArrayList<String>() {{
             add("a.b.c.d");
         }});
@@ -75,6 +79,7 @@ class LocalDnsResolverTest {
 
         assertEquals("91.220.42.231", lookup("service-alpha-inbound-a.mimecast.com", Type.A)[0].rdataToString());
         assertEquals("195.130.217.231", lookup("service-alpha-inbound-b.mimecast.com", Type.A)[0].rdataToString());
+        assertEquals("0:0:0:0:0:0:0:1", lookup("mimecast.com", Type.AAAA)[0].rdataToString());
 
         assertEquals("\"v=STSv1; id=19840507T234501;\"", lookup("_mta-sts.mimecast.com", Type.TXT)[0].rdataToString());
         assertEquals("\"v=TLSRPTv1; rua=mailto:tlsrpt@mimecast.com;\"", lookup("_smtp._tls.mimecast.com", Type.TXT)[0].rdataToString());
@@ -85,7 +90,7 @@ class LocalDnsResolverTest {
 
     @Test
     void invalid() throws TextParseException {
-        Assertions.assertThrows(IllegalArgumentException.class, () -> lookup("mimecast.com", Type.AAAA));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> lookup("mimecast.com", Type.CAA));
 
         assertNull(lookup("mimecast.org", Type.A));
         assertNull(lookup("mimecast.net", Type.A));